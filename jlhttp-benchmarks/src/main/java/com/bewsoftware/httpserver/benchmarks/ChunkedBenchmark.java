@@ -0,0 +1,122 @@
+/*
+ *  File Name:    ChunkedBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.ChunkedInputStream;
+import com.bewsoftware.httpserver.ChunkedOutputStream;
+import com.bewsoftware.httpserver.Headers;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code ChunkedBenchmark} class measures the chunked transfer encoding
+ * of a body, written in 8 KiB writes, and the decoding of the same body, read
+ * into an 8 KiB buffer.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class ChunkedBenchmark
+{
+    private static final int WRITE_SIZE = 8192;
+
+    /**
+     * The size of the body in bytes.
+     */
+    @Param(
+            {
+                "1024", "65536", "1048576"
+            })
+    public int size;
+
+    private final byte[] buf = new byte[WRITE_SIZE];
+
+    private byte[] body;
+
+    private byte[] encoded;
+
+    private ByteArrayOutputStream out;
+
+    /**
+     * Constructs a ChunkedBenchmark.
+     */
+    public ChunkedBenchmark()
+    {
+    }
+
+    @Setup
+    public void setup() throws IOException
+    {
+        body = new byte[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            body[i] = (byte) ('a' + i % 26);
+        }
+
+        out = new ByteArrayOutputStream(size + size / 16 + 64);
+        encode();
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public int decode() throws IOException
+    {
+        ChunkedInputStream in = new ChunkedInputStream(
+                new ByteArrayInputStream(encoded), new Headers());
+        int total = 0;
+
+        for (int count; (count = in.read(buf, 0, WRITE_SIZE)) != -1;)
+        {
+            total += count;
+        }
+
+        return total;
+    }
+
+    @Benchmark
+    public int encode() throws IOException
+    {
+        out.reset();
+
+        try (ChunkedOutputStream chunked = new ChunkedOutputStream(out))
+        {
+            for (int off = 0; off < size; off += WRITE_SIZE)
+            {
+                chunked.write(body, off, Math.min(WRITE_SIZE, size - off));
+            }
+        }
+
+        return out.size();
+    }
+}
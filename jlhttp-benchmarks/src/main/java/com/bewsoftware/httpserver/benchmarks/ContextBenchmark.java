@@ -0,0 +1,114 @@
+/*
+ *  File Name:    ContextBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.ContextHandler;
+import com.bewsoftware.httpserver.ContextInfo;
+import com.bewsoftware.httpserver.VirtualHost;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code ContextBenchmark} class measures the lookup of the context
+ * that handles a request path, with {@link VirtualHost#getContext}.
+ * <p>
+ * The host has {@code contexts} contexts of the form
+ * {@code /app<n>/api/v1/items}, and one templated context,
+ * {@code /users/{id}/orders/{orderId}}.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class ContextBenchmark
+{
+    /**
+     * The number of contexts in the host.
+     */
+    @Param(
+            {
+                "10", "100", "1000"
+            })
+    public int contexts;
+
+    private String exact;
+
+    private VirtualHost host;
+
+    private String nested;
+
+    /**
+     * Constructs a ContextBenchmark.
+     */
+    public ContextBenchmark()
+    {
+    }
+
+    @Setup
+    public void setup()
+    {
+        ContextHandler handler = (req, resp) -> 0;
+        host = new VirtualHost("localhost");
+
+        for (int i = 0; i < contexts; i++)
+        {
+            host.addContext("/app" + i + "/api/v1/items", handler);
+        }
+
+        host.addContext("/users/{id}/orders/{orderId}", handler);
+
+        int middle = contexts / 2;
+        exact = "/app" + middle + "/api/v1/items";
+        nested = "/app" + middle + "/api/v1/items/42/details/summary.html";
+    }
+
+    @Benchmark
+    public ContextInfo exact()
+    {
+        return host.getContext(exact);
+    }
+
+    @Benchmark
+    public ContextInfo missing()
+    {
+        return host.getContext("/static/css/site.css");
+    }
+
+    @Benchmark
+    public ContextInfo nested()
+    {
+        return host.getContext(nested);
+    }
+
+    @Benchmark
+    public ContextInfo template()
+    {
+        return host.getContext("/users/1042/orders/77");
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  File Name:    ContextDispatchBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.ContextHandler;
+import com.bewsoftware.httpserver.MethodContextHandler;
+import com.bewsoftware.httpserver.Request;
+import com.bewsoftware.httpserver.Response;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code ContextDispatchBenchmark} class compares the ways a request can
+ * be dispatched to a {@link com.bewsoftware.httpserver.Context @Context}
+ * method:
+ * <ul>
+ * <li>{@code reflective} - {@link Method#invoke}, as
+ * {@link MethodContextHandler} did before it bound its method,</li>
+ * <li>{@code bound} - {@link MethodContextHandler}, which binds the method
+ * with the {@link java.lang.invoke.LambdaMetafactory}, and</li>
+ * <li>{@code lambda} - a hand-written lambda, as the baseline.</li>
+ * </ul>
+ * The handlers ignore the request and response, so only the dispatch itself
+ * is measured.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class ContextDispatchBenchmark
+{
+    private ContextHandler bound;
+
+    private ContextHandler lambda;
+
+    private Method method;
+
+    private Handlers handlers;
+
+    /**
+     * Constructs a ContextDispatchBenchmark.
+     */
+    public ContextDispatchBenchmark()
+    {
+    }
+
+    @Setup
+    public void setup() throws NoSuchMethodException
+    {
+        handlers = new Handlers();
+        method = Handlers.class.getDeclaredMethod("serve", Request.class, Response.class);
+        method.setAccessible(true);
+        bound = new MethodContextHandler(method, handlers);
+        lambda = handlers::serve;
+    }
+
+    @Benchmark
+    public int bound() throws IOException
+    {
+        return bound.serve(null, null);
+    }
+
+    @Benchmark
+    public int lambda() throws IOException
+    {
+        return lambda.serve(null, null);
+    }
+
+    @Benchmark
+    public int reflective() throws IOException
+    {
+        // the dispatch of MethodContextHandler.serve before it was bound
+        try
+        {
+            return (Integer) method.invoke(handlers, null, null);
+        } catch (InvocationTargetException ite)
+        {
+            throw new IOException("error: " + ite.getCause().getMessage());
+        } catch (IllegalAccessException | IllegalArgumentException e)
+        {
+            throw new IOException("error: " + e);
+        }
+    }
+
+    /**
+     * The object with the handler method.
+     */
+    public static class Handlers implements AutoCloseable
+    {
+        private int count;
+
+        /**
+         * Constructs a Handlers.
+         */
+        public Handlers()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @com.bewsoftware.httpserver.Context("/")
+        private int serve(Request req, Response resp)
+        {
+            return ++count & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  File Name:    HeadersBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.Headers;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The {@code HeadersBenchmark} class compares header lookups in
+ * {@link Headers}, which finds well-known names by id, with the linear,
+ * case-insensitive search of {@link LegacyHeaders}.
+ * <p>
+ * Each benchmark looks up, in a typical browser request, the headers the
+ * server itself asks for while handling it, most of which are absent.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class HeadersBenchmark
+{
+    /**
+     * A typical browser request's headers, in the case they were sent in.
+     */
+    private static final String[][] REQUEST =
+    {
+        {"Host", "localhost:8080"},
+        {"User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:102.0) Gecko/20100101 Firefox/102.0"},
+        {"Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"},
+        {"Accept-Language", "en-US,en;q=0.5"},
+        {"Accept-Encoding", "gzip, deflate, br"},
+        {"Connection", "keep-alive"},
+        {"Upgrade-Insecure-Requests", "1"},
+        {"Sec-Fetch-Dest", "document"},
+        {"Sec-Fetch-Mode", "navigate"},
+        {"Sec-Fetch-Site", "none"},
+        {"If-Modified-Since", "Mon, 04 Jul 2022 10:15:30 GMT"},
+        {"If-None-Match", "W/\"1656929730000\""}
+    };
+
+    /**
+     * The headers the server looks up while handling a file request.
+     */
+    private static final String[] LOOKUPS =
+    {
+        "Transfer-Encoding", "Content-Length", "Host", "Expect", "Connection",
+        "Range", "If-Range", "If-Match", "If-None-Match", "If-Modified-Since",
+        "If-Unmodified-Since", "Accept-Encoding", "Connection"
+    };
+
+    /**
+     * Unknown names, which both implementations compare one by one.
+     */
+    private static final String[] UNKNOWN =
+    {
+        "sec-fetch-mode", "X-Requested-With", "DNT"
+    };
+
+    private Headers headers;
+
+    private LegacyHeaders legacy;
+
+    /**
+     * Constructs a HeadersBenchmark.
+     */
+    public HeadersBenchmark()
+    {
+    }
+
+    @Setup
+    public void setup()
+    {
+        headers = new Headers();
+        legacy = new LegacyHeaders();
+
+        for (String[] header : REQUEST)
+        {
+            headers.add(header[0], header[1]);
+            legacy.add(header[0], header[1]);
+        }
+    }
+
+    @Benchmark
+    public void buildHeaders(Blackhole bh)
+    {
+        Headers h = new Headers();
+
+        for (String[] header : REQUEST)
+        {
+            h.add(header[0], header[1]);
+        }
+
+        h.replace("Connection", "close");
+        bh.consume(h);
+    }
+
+    @Benchmark
+    public void buildLegacy(Blackhole bh)
+    {
+        LegacyHeaders h = new LegacyHeaders();
+
+        for (String[] header : REQUEST)
+        {
+            h.add(header[0], header[1]);
+        }
+
+        h.replace("Connection", "close");
+        bh.consume(h);
+    }
+
+    @Benchmark
+    public void getKnownHeaders(Blackhole bh)
+    {
+        for (String name : LOOKUPS)
+        {
+            bh.consume(headers.get(name));
+        }
+    }
+
+    @Benchmark
+    public void getKnownLegacy(Blackhole bh)
+    {
+        for (String name : LOOKUPS)
+        {
+            bh.consume(legacy.get(name));
+        }
+    }
+
+    @Benchmark
+    public void getUnknownHeaders(Blackhole bh)
+    {
+        for (String name : UNKNOWN)
+        {
+            bh.consume(headers.get(name));
+        }
+    }
+
+    @Benchmark
+    public void getUnknownLegacy(Blackhole bh)
+    {
+        for (String name : UNKNOWN)
+        {
+            bh.consume(legacy.get(name));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  File Name:    LegacyHeaders.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.Header;
+
+/**
+ * The {@code LegacyHeaders} class is a copy of the lookup part of
+ * {@link com.bewsoftware.httpserver.Headers} as it was before well-known
+ * header names were indexed by id: every lookup compares names
+ * case-insensitively, one header at a time.
+ * <p>
+ * It is kept as the baseline for {@link HeadersBenchmark}.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class LegacyHeaders
+{
+
+    protected Header[] arrHeader = new Header[12];
+
+    protected int count;
+
+    /**
+     * Constructs an empty collection of headers.
+     */
+    public LegacyHeaders()
+    {
+    }
+
+    /**
+     * Adds a header with the given name and value to the end of this
+     * collection of headers.
+     *
+     * @param name  the header name (case insensitive)
+     * @param value the header value
+     */
+    @SuppressWarnings("ValueOfIncrementOrDecrementUsed")
+    public void add(String name, String value)
+    {
+        Header header = new Header(name, value);
+
+        if (count == arrHeader.length)
+        {
+            Header[] expanded = new Header[2 * count];
+            System.arraycopy(arrHeader, 0, expanded, 0, count);
+            arrHeader = expanded;
+        }
+
+        arrHeader[count++] = header;
+    }
+
+    /**
+     * Returns the value of the first header with the given name.
+     *
+     * @param name the header name (case insensitive)
+     *
+     * @return the header value, or null if none exists
+     */
+    public String get(String name)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (arrHeader[i].getName().equalsIgnoreCase(name))
+            {
+                return arrHeader[i].getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a header with the given name and value, replacing the first
+     * existing header with the same name.
+     *
+     * @param name  the header name (case insensitive)
+     * @param value the header value
+     *
+     * @return the replaced header, or null if none existed
+     */
+    public Header replace(String name, String value)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (arrHeader[i].getName().equalsIgnoreCase(name))
+            {
+                Header prev = arrHeader[i];
+                arrHeader[i] = new Header(name, value);
+                return prev;
+            }
+        }
+
+        add(name, value);
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  File Name:    LoopbackBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.HTTPServer;
+import com.bewsoftware.httpserver.SelectorEngine;
+import com.bewsoftware.httpserver.VirtualHost;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code LoopbackBenchmark} class measures end-to-end GET throughput
+ * over the loopback interface: each benchmark thread sends requests on its
+ * own persistent connection, one at a time, and reads each response in full.
+ * <p>
+ * Run it with several threads ({@code -t}) to load the server with that many
+ * concurrent connections.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+public class LoopbackBenchmark
+{
+    private static final byte[] BODY = "Hello, World!".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Constructs a LoopbackBenchmark.
+     */
+    public LoopbackBenchmark()
+    {
+    }
+
+    @Benchmark
+    public int get(Client client) throws IOException
+    {
+        return client.get();
+    }
+
+    /**
+     * A persistent connection to the server, one per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client
+    {
+        private InputStream in;
+
+        private OutputStream out;
+
+        private byte[] request;
+
+        private Socket socket;
+
+        /**
+         * Constructs a Client.
+         */
+        public Client()
+        {
+        }
+
+        @Setup
+        public void connect(Server server) throws IOException
+        {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            request = ("GET /hello HTTP/1.1\r\nHost: localhost:" + server.port + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @TearDown
+        public void disconnect() throws IOException
+        {
+            socket.close();
+        }
+
+        /**
+         * Sends a request and reads its response.
+         *
+         * @return the length of the response body
+         *
+         * @throws IOException if an error occurs
+         */
+        public int get() throws IOException
+        {
+            out.write(request);
+            int length = -1;
+
+            // read the response head line by line, looking for the body length
+            for (String line; !(line = readLine()).isEmpty();)
+            {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+                {
+                    length = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+
+            if (length < 0)
+            {
+                throw new IOException("response has no Content-Length");
+            }
+
+            in.skipNBytes(length);
+
+            return length;
+        }
+
+        private String readLine() throws IOException
+        {
+            StringBuilder line = new StringBuilder(64);
+
+            for (int b; (b = in.read()) != '\n';)
+            {
+                if (b == -1)
+                {
+                    throw new IOException("connection closed");
+                }
+
+                if (b != '\r')
+                {
+                    line.append((char) b);
+                }
+            }
+
+            return line.toString();
+        }
+    }
+
+    /**
+     * The server under test, shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Server
+    {
+        /**
+         * The connection engine: {@code blocking} for the default
+         * thread-per-connection engine, or {@code nio} for the
+         * {@link SelectorEngine}.
+         */
+        @Param(
+                {
+                    "blocking", "nio"
+                })
+        public String engine;
+
+        /**
+         * The loopback port to listen on.
+         */
+        @Param(
+                {
+                    "8791"
+                })
+        public int port;
+
+        private HTTPServer server;
+
+        /**
+         * Constructs a Server.
+         */
+        public Server()
+        {
+        }
+
+        @Setup
+        public void start() throws IOException
+        {
+            server = new HTTPServer(port);
+
+            if (engine.equals("nio"))
+            {
+                server.setConnectionEngine(new SelectorEngine());
+            }
+
+            VirtualHost host = server.getVirtualHost(null);
+            host.addContext("/hello", (req, resp) ->
+            {
+                resp.sendHeaders(200, BODY.length, -1, null, "text/plain", null);
+                resp.getBody().write(BODY);
+                return 0;
+            });
+            server.start();
+        }
+
+        @TearDown
+        public void stop()
+        {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  File Name:    MultipartBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.Headers;
+import com.bewsoftware.httpserver.MultipartInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code MultipartBenchmark} class measures the boundary search of
+ * {@link MultipartInputStream}, reading every part of a
+ * {@code multipart/form-data} body.
+ * <p>
+ * The part data is text with many carriage returns, line feeds and dashes,
+ * each of which may start a boundary, and a typical browser boundary.
+ * Dividing the body's size ({@code 3 * size} plus about 200 bytes) by the
+ * average time gives the parse throughput: {@link #readParts} copies the
+ * data out through {@code read}, and {@link #transferParts} hands it
+ * straight from the stream's buffer to a channel, as when a file part is
+ * streamed to disk (the channel discards it, so the disk is not measured).
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class MultipartBenchmark
+{
+    private static final byte[] BOUNDARY
+            = "----WebKitFormBoundary7MA4YWxkTrZu0gW".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int PARTS = 3;
+
+    /**
+     * Discards everything written to it.
+     */
+    private static final WritableByteChannel SINK = new WritableByteChannel()
+    {
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int count = src.remaining();
+            src.position(src.limit());
+
+            return count;
+        }
+    };
+
+    /**
+     * The size of the stream's buffer in bytes.
+     */
+    @Param(
+            {
+                "4096", "65536"
+            })
+    public int bufferSize;
+
+    /**
+     * The size of each part's data in bytes.
+     */
+    @Param(
+            {
+                "1024", "65536", "1048576", "16777216"
+            })
+    public int size;
+
+    private final byte[] buf = new byte[8192];
+
+    private byte[] body;
+
+    /**
+     * Constructs a MultipartBenchmark.
+     */
+    public MultipartBenchmark()
+    {
+    }
+
+    @Setup
+    public void setup() throws IOException
+    {
+        byte[] line = "-- field data\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            data[i] = line[i % line.length];
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < PARTS; i++)
+        {
+            out.write("--".getBytes(StandardCharsets.ISO_8859_1));
+            out.write(BOUNDARY);
+            out.write(("\r\nContent-Disposition: form-data; name=\"field" + i + "\"\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.write(data);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        out.write("--".getBytes(StandardCharsets.ISO_8859_1));
+        out.write(BOUNDARY);
+        out.write("--\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        body = out.toByteArray();
+    }
+
+    @Benchmark
+    public long readParts() throws IOException
+    {
+        long total = 0;
+
+        try (Parts in = new Parts(new ByteArrayInputStream(body), BOUNDARY, bufferSize))
+        {
+            while (in.nextPart())
+            {
+                total += in.headers().size();
+
+                for (int count; (count = in.read(buf, 0, buf.length)) != -1;)
+                {
+                    total += count;
+                }
+            }
+        }
+
+        return total;
+    }
+
+    @Benchmark
+    public long transferParts() throws IOException
+    {
+        long total = 0;
+
+        try (Parts in = new Parts(new ByteArrayInputStream(body), BOUNDARY, bufferSize))
+        {
+            while (in.nextPart())
+            {
+                total += in.headers().size();
+                total += in.transferTo(SINK);
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Gives the benchmark access to the protected members.
+     */
+    private static final class Parts extends MultipartInputStream
+    {
+        Parts(InputStream in, byte[] boundary, int bufferSize)
+        {
+            super(in, boundary, bufferSize);
+        }
+
+        Headers headers() throws IOException
+        {
+            return readHeaders();
+        }
+    }
+}
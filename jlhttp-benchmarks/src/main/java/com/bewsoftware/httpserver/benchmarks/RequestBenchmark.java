@@ -0,0 +1,111 @@
+/*
+ *  File Name:    RequestBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.ConnectionInputStream;
+import com.bewsoftware.httpserver.Headers;
+import com.bewsoftware.httpserver.NetUtils;
+import com.bewsoftware.httpserver.Request;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code RequestBenchmark} class measures the parsing of a request
+ * head: the request line and headers of a typical browser request.
+ * <p>
+ * {@code connection} parses it the way the server does, with the
+ * {@link com.bewsoftware.httpserver.RequestParser RequestParser} of a
+ * {@link ConnectionInputStream}. {@code stream} parses it from a plain
+ * input stream, with {@link Request#readRequestLine} and
+ * {@link NetUtils#readHeaders}. {@code readHeaders} measures just the
+ * latter on the headers alone.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class RequestBenchmark
+{
+    private static final String HEADERS
+            = "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:102.0) Gecko/20100101 Firefox/102.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "If-Modified-Since: Mon, 04 Jul 2022 10:15:30 GMT\r\n"
+            + "\r\n";
+
+    private static final byte[] HEADER_BYTES = HEADERS.getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] REQUEST_BYTES
+            = ("GET /docs/index.html?lang=en&page=2 HTTP/1.1\r\n" + HEADERS)
+                    .getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Constructs a RequestBenchmark.
+     */
+    public RequestBenchmark()
+    {
+    }
+
+    @Benchmark
+    public Request connection() throws IOException
+    {
+        ConnectionInputStream in = new ConnectionInputStream(
+                new ByteArrayInputStream(REQUEST_BYTES), 4096);
+
+        try
+        {
+            return new Request(in, null);
+        } finally
+        {
+            in.release();
+        }
+    }
+
+    @Benchmark
+    public Headers readHeaders() throws IOException
+    {
+        return NetUtils.readHeaders(new ByteArrayInputStream(HEADER_BYTES));
+    }
+
+    @Benchmark
+    public Request stream() throws IOException
+    {
+        return new Request(new ByteArrayInputStream(REQUEST_BYTES), null);
+    }
+}
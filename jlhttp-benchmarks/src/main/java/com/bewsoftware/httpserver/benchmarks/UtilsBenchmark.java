@@ -0,0 +1,107 @@
+/*
+ *  File Name:    UtilsBenchmark.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.benchmarks;
+
+import com.bewsoftware.httpserver.HTTPServer;
+import com.bewsoftware.httpserver.Utils;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code UtilsBenchmark} class measures the header value helpers used on
+ * every request: the formatting and parsing of HTTP dates, the parsing of
+ * byte ranges, and the splitting of header element lists.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class UtilsBenchmark
+{
+    private static final String ASCTIME = "Mon Jul  4 10:15:30 2022";
+
+    private static final String ELEMENTS = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+
+    private static final String RANGE = "0-499, 1000-1499, -500"; // the "bytes=" unit is stripped by Request
+
+    private static final String RFC1123 = "Mon, 04 Jul 2022 10:15:30 GMT";
+
+    private static final String RFC850 = "Monday, 04-Jul-22 10:15:30 GMT";
+
+    private static final long TIME = 1656929730000L;
+
+    /**
+     * Constructs a UtilsBenchmark.
+     */
+    public UtilsBenchmark()
+    {
+    }
+
+    @Benchmark
+    public String formatDate()
+    {
+        return Utils.formatDate(TIME);
+    }
+
+    /**
+     * The obsolete asctime format is only tried after the other two fail.
+     *
+     * @return the parsed date
+     */
+    @Benchmark
+    public Date parseDateAsctime()
+    {
+        return HTTPServer.parseDate(ASCTIME);
+    }
+
+    @Benchmark
+    public Date parseDateRfc1123()
+    {
+        return HTTPServer.parseDate(RFC1123);
+    }
+
+    @Benchmark
+    public Date parseDateRfc850()
+    {
+        return HTTPServer.parseDate(RFC850);
+    }
+
+    @Benchmark
+    public long[] parseRange()
+    {
+        return Utils.parseRange(RANGE, 100_000L);
+    }
+
+    @Benchmark
+    public String[] splitElements()
+    {
+        return Utils.splitElements(ELEMENTS, true);
+    }
+}
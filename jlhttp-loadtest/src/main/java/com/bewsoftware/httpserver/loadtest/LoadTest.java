@@ -0,0 +1,169 @@
+/*
+ *  File Name:    LoadTest.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code LoadTest} class drives an in-process {@link TestServer} over
+ * loopback, with a number of concurrent client connections, each run by a
+ * {@link Worker}, and reports the throughput and latency percentiles of the
+ * responses.
+ * <p>
+ * After a warm-up, whose responses are not recorded, the test measures for a
+ * fixed time. The results are printed, and written as a JSON report, with the
+ * latency distribution beside it as an {@code .hgrm} file.
+ * See {@link Options#USAGE} for the command line.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public final class LoadTest
+{
+    volatile boolean recording; // record the responses
+
+    volatile boolean running = true; // keep sending requests
+
+    private final Options options;
+
+    /**
+     * Constructs a LoadTest.
+     *
+     * @param options the load test options
+     */
+    public LoadTest(Options options)
+    {
+        this.options = options;
+    }
+
+    /**
+     * Runs a load test.
+     *
+     * @param args the command line, as described by {@link Options#USAGE}
+     *
+     * @throws IOException          if the test server could not be started,
+     *                              or the report could not be written
+     * @throws InterruptedException if interrupted while the test is running
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Options options;
+
+        try
+        {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException ex)
+        {
+            System.err.println(ex.getMessage());
+            System.err.print(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if (options.help)
+        {
+            System.out.print(Options.USAGE);
+            return;
+        }
+
+        Report report;
+
+        try (TestServer server = new TestServer(options))
+        {
+            report = new LoadTest(options).run(server);
+        }
+
+        report.print(System.out);
+
+        Path json = Path.of(options.report);
+        String name = json.getFileName().toString();
+        Path hgrm = json.resolveSibling((name.endsWith(".json")
+                ? name.substring(0, name.length() - 5) : name) + ".hgrm");
+        report.writeJson(json);
+        report.writeDistribution(hgrm);
+        System.out.println("report written to " + json + " and " + hgrm);
+
+        // the idle threads of the server's default executor linger for a minute
+        System.exit(0);
+    }
+
+    /**
+     * Runs the load test against the given server.
+     *
+     * @param server the server under test
+     *
+     * @return the results
+     *
+     * @throws InterruptedException if interrupted while the test is running
+     */
+    public Report run(TestServer server) throws InterruptedException
+    {
+        List<Worker> workers = new ArrayList<>(options.connections);
+        List<Thread> threads = new ArrayList<>(options.connections);
+
+        for (int i = 0; i < options.connections; i++)
+        {
+            Worker worker = new Worker(this, options, i);
+            Thread thread = new Thread(worker, "loadtest-" + i);
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+
+        try
+        {
+            TimeUnit.SECONDS.sleep(options.warmup);
+            long rejections = server.getRejections();
+            recording = true;
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(options.duration);
+            recording = false;
+            long elapsed = System.nanoTime() - start;
+            running = false;
+
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+
+            return new Report(options, workers, elapsed, server.getRejections() - rejections);
+        } finally
+        {
+            running = false;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LoadTest{"
+                + "\noptions=" + options + ", "
+                + "\nrecording=" + recording + ", "
+                + "\nrunning=" + running + '}';
+    }
+}
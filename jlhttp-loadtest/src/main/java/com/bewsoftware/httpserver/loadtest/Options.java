@@ -0,0 +1,294 @@
+/*
+ *  File Name:    Options.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The {@code Options} class holds the settings of a load test, parsed from
+ * its command line.
+ * <p>
+ * Each option is given as {@code --name value} or {@code --name=value};
+ * the boolean options need no value.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public final class Options
+{
+    /**
+     * The command line usage.
+     */
+    public static final String USAGE = """
+            Usage: java --enable-preview -jar loadtest.jar [options]
+
+              --engine blocking|nio   connection engine (default blocking)
+              --virtual-threads       handle connections on virtual threads
+              --acceptors n           acceptor threads, with SO_REUSEPORT (default 1)
+              --cache                 serve files through a ContentCache
+              --port n                loopback port to listen on (default 8792)
+              --connections n         concurrent client connections (default 16)
+              --close                 close each connection after one request
+              --pipeline n            requests sent per batch on a connection (default 1)
+              --mix type=w,...        request mix weights, of the types
+                                      small, static, range, jar, multipart, chunked
+                                      (default small=60,static=20,range=10,multipart=5,chunked=5)
+              --file-size n           size of the served file in bytes (default 16384)
+              --upload-size n         size of each upload in bytes (default 16384)
+              --warmup s              warm-up seconds, not recorded (default 5)
+              --duration s            measured seconds (default 30)
+              --report file           JSON report file (default loadtest-report.json);
+                                      the latency distribution is also written
+                                      beside it, as an .hgrm file
+              --help                  show this help
+            """;
+
+    int acceptors = 1; // acceptor threads
+
+    boolean cache; // serve files through a ContentCache
+
+    int connections = 16; // concurrent client connections
+
+    int duration = 30; // measured seconds
+
+    String engine = "blocking"; // blocking or nio
+
+    int fileSize = 16384; // size of the served file
+
+    boolean help; // show the usage
+
+    boolean keepAlive = true; // keep connections alive
+
+    final Map<RequestType, Integer> mix = new EnumMap<>(RequestType.class); // request weights
+
+    int pipeline = 1; // requests per batch
+
+    int port = 8792; // loopback port
+
+    String report = "loadtest-report.json"; // JSON report file
+
+    int uploadSize = 16384; // size of each upload
+
+    boolean virtualThreads; // handle connections on virtual threads
+
+    int warmup = 5; // warm-up seconds
+
+    private Options()
+    {
+    }
+
+    /**
+     * Parses the given command line.
+     *
+     * @param args the command line arguments
+     *
+     * @return the options
+     *
+     * @throws IllegalArgumentException if an option is unknown, or its value
+     *                                  is missing or invalid
+     */
+    public static Options parse(String... args)
+    {
+        Options options = new Options();
+        options.parseMix("small=60,static=20,range=10,multipart=5,chunked=5");
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String name = args[i];
+            String value = null;
+            int eq = name.indexOf('=');
+
+            if (eq > 0)
+            {
+                value = name.substring(eq + 1);
+                name = name.substring(0, eq);
+            }
+
+            switch (name)
+            {
+                case "--cache" ->
+                    options.cache = true;
+                case "--close" ->
+                    options.keepAlive = false;
+                case "--help", "-help", "-h" ->
+                    options.help = true;
+                case "--virtual-threads" ->
+                    options.virtualThreads = true;
+                default ->
+                {
+                    if (value == null)
+                    {
+                        if (i + 1 == args.length)
+                        {
+                            throw new IllegalArgumentException("missing value for " + name);
+                        }
+
+                        value = args[++i];
+                    }
+
+                    options.set(name, value);
+                }
+            }
+        }
+
+        if (options.pipeline > 1 && !options.keepAlive)
+        {
+            throw new IllegalArgumentException("--pipeline needs persistent connections");
+        }
+
+        return options;
+    }
+
+    /**
+     * Returns the request mix, as it is given on the command line.
+     *
+     * @return the request mix
+     */
+    public String getMix()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<RequestType, Integer> entry : mix.entrySet())
+        {
+            if (!sb.isEmpty())
+            {
+                sb.append(',');
+            }
+
+            sb.append(entry.getKey().key()).append('=').append(entry.getValue());
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Options{"
+                + "\nacceptors=" + acceptors + ", "
+                + "\ncache=" + cache + ", "
+                + "\nconnections=" + connections + ", "
+                + "\nduration=" + duration + ", "
+                + "\nengine=" + engine + ", "
+                + "\nfileSize=" + fileSize + ", "
+                + "\nkeepAlive=" + keepAlive + ", "
+                + "\nmix=" + getMix() + ", "
+                + "\npipeline=" + pipeline + ", "
+                + "\nport=" + port + ", "
+                + "\nreport=" + report + ", "
+                + "\nuploadSize=" + uploadSize + ", "
+                + "\nvirtualThreads=" + virtualThreads + ", "
+                + "\nwarmup=" + warmup + '}';
+    }
+
+    private static int positive(String name, String value)
+    {
+        int n = Integer.parseInt(value);
+
+        if (n < 1)
+        {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+
+        return n;
+    }
+
+    private void parseMix(String value)
+    {
+        mix.clear();
+
+        for (String weight : value.split(","))
+        {
+            int eq = weight.indexOf('=');
+
+            if (eq < 0)
+            {
+                throw new IllegalArgumentException("invalid --mix weight: " + weight);
+            }
+
+            int w = Integer.parseInt(weight.substring(eq + 1).trim());
+
+            if (w < 0)
+            {
+                throw new IllegalArgumentException("invalid --mix weight: " + weight);
+            }
+
+            if (w > 0)
+            {
+                mix.put(RequestType.of(weight.substring(0, eq).trim()), w);
+            }
+        }
+
+        if (mix.isEmpty())
+        {
+            throw new IllegalArgumentException("--mix has no requests");
+        }
+    }
+
+    private void set(String name, String value)
+    {
+        switch (name)
+        {
+            case "--acceptors" ->
+                acceptors = positive(name, value);
+            case "--connections" ->
+                connections = positive(name, value);
+            case "--duration" ->
+                duration = positive(name, value);
+            case "--engine" ->
+            {
+                if (!value.equals("blocking") && !value.equals("nio"))
+                {
+                    throw new IllegalArgumentException("unknown engine: " + value);
+                }
+
+                engine = value;
+            }
+            case "--file-size" ->
+                fileSize = positive(name, value);
+            case "--mix" ->
+                parseMix(value);
+            case "--pipeline" ->
+                pipeline = positive(name, value);
+            case "--port" ->
+                port = positive(name, value);
+            case "--report" ->
+                report = value;
+            case "--upload-size" ->
+                uploadSize = positive(name, value);
+            case "--warmup" ->
+            {
+                warmup = Integer.parseInt(value);
+
+                if (warmup < 0)
+                {
+                    throw new IllegalArgumentException("--warmup must not be negative: " + value);
+                }
+            }
+            default ->
+                throw new IllegalArgumentException("unknown option: " + name);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *  File Name:    Report.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The {@code Report} class holds the results of a load test, merged from its
+ * workers, and writes them out: as a JSON document, as an HdrHistogram
+ * percentile distribution ({@code .hgrm}) of all the latencies, and as a
+ * short summary for the console.
+ * <p>
+ * Latencies are reported in microseconds.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public final class Report
+{
+    private static final double[] PERCENTILES =
+    {
+        50, 90, 99, 99.9, 99.99
+    };
+
+    private final Histogram all = new Histogram(Worker.HIGHEST_LATENCY, 3);
+
+    private long bytes;
+
+    private final long elapsed;
+
+    private long errors;
+
+    private final Map<RequestType, Histogram> histograms = new EnumMap<>(RequestType.class);
+
+    private final Options options;
+
+    private final long rejections;
+
+    private final long[] statuses = new long[600];
+
+    /**
+     * Merges the results of the given workers.
+     *
+     * @param options    the load test options
+     * @param workers    the finished workers
+     * @param elapsed    the measured time, in nanoseconds
+     * @param rejections the number of connections rejected by the server
+     */
+    Report(Options options, List<Worker> workers, long elapsed, long rejections)
+    {
+        this.options = options;
+        this.elapsed = elapsed;
+        this.rejections = rejections;
+
+        for (Worker worker : workers)
+        {
+            bytes += worker.bytes;
+            errors += worker.errors;
+
+            for (int i = 0; i < statuses.length; i++)
+            {
+                statuses[i] += worker.statuses[i];
+            }
+
+            for (Map.Entry<RequestType, Histogram> entry : worker.histograms.entrySet())
+            {
+                histograms.computeIfAbsent(entry.getKey(), type -> new Histogram(Worker.HIGHEST_LATENCY, 3))
+                        .add(entry.getValue());
+                all.add(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of responses received per second.
+     *
+     * @return the throughput
+     */
+    public double getThroughput()
+    {
+        return all.getTotalCount() * 1e9 / elapsed;
+    }
+
+    /**
+     * Prints a summary of the results.
+     *
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out)
+    {
+        out.printf(Locale.ROOT, "%d responses in %.1f s: %.0f/s, %.1f MiB/s, %d errors, %d rejections%n",
+                all.getTotalCount(), elapsed / 1e9, getThroughput(),
+                bytes / 1048576.0 * 1e9 / elapsed, errors, rejections);
+        out.printf(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s%n",
+                "latency", "count", "mean", "p50", "p99", "p99.9", "max");
+        print(out, "all", all);
+
+        for (Map.Entry<RequestType, Histogram> entry : histograms.entrySet())
+        {
+            print(out, entry.getKey().key(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the percentile distribution of all the latencies, in
+     * microseconds, in the HdrHistogram {@code .hgrm} format.
+     *
+     * @param file the file to write
+     *
+     * @throws IOException if an error occurs
+     */
+    public void writeDistribution(Path file) throws IOException
+    {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file), false, StandardCharsets.UTF_8))
+        {
+            all.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    /**
+     * Writes the results as a JSON document.
+     *
+     * @param file the file to write
+     *
+     * @throws IOException if an error occurs
+     */
+    public void writeJson(Path file) throws IOException
+    {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            out.write(toJson());
+        }
+    }
+
+    /**
+     * Returns the results as a JSON document.
+     *
+     * @return the JSON document
+     */
+    public String toJson()
+    {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\n  \"options\": {")
+                .append("\n    \"engine\": \"").append(options.engine).append("\",")
+                .append("\n    \"virtualThreads\": ").append(options.virtualThreads).append(',')
+                .append("\n    \"acceptors\": ").append(options.acceptors).append(',')
+                .append("\n    \"cache\": ").append(options.cache).append(',')
+                .append("\n    \"connections\": ").append(options.connections).append(',')
+                .append("\n    \"keepAlive\": ").append(options.keepAlive).append(',')
+                .append("\n    \"pipeline\": ").append(options.pipeline).append(',')
+                .append("\n    \"mix\": \"").append(options.getMix()).append("\",")
+                .append("\n    \"fileSize\": ").append(options.fileSize).append(',')
+                .append("\n    \"uploadSize\": ").append(options.uploadSize).append(',')
+                .append("\n    \"warmupSeconds\": ").append(options.warmup).append(',')
+                .append("\n    \"durationSeconds\": ").append(options.duration)
+                .append("\n  },")
+                .append("\n  \"elapsedSeconds\": ").append(format(elapsed / 1e9)).append(',')
+                .append("\n  \"responses\": ").append(all.getTotalCount()).append(',')
+                .append("\n  \"throughput\": ").append(format(getThroughput())).append(',')
+                .append("\n  \"bytes\": ").append(bytes).append(',')
+                .append("\n  \"errors\": ").append(errors).append(',')
+                .append("\n  \"rejections\": ").append(rejections).append(',')
+                .append("\n  \"statuses\": {");
+
+        String sep = "";
+
+        for (int i = 0; i < statuses.length; i++)
+        {
+            if (statuses[i] > 0)
+            {
+                sb.append(sep).append("\n    \"").append(i).append("\": ").append(statuses[i]);
+                sep = ",";
+            }
+        }
+
+        sb.append("\n  },\n  \"latencyMicros\": {");
+        json(sb, "all", all);
+
+        for (Map.Entry<RequestType, Histogram> entry : histograms.entrySet())
+        {
+            sb.append(',');
+            json(sb, entry.getKey().key(), entry.getValue());
+        }
+
+        return sb.append("\n  }\n}\n").toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Report{"
+                + "\nbytes=" + bytes + ", "
+                + "\nelapsed=" + elapsed + ", "
+                + "\nerrors=" + errors + ", "
+                + "\nrejections=" + rejections + ", "
+                + "\nresponses=" + all.getTotalCount() + '}';
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static void json(StringBuilder sb, String name, Histogram histogram)
+    {
+        sb.append("\n    \"").append(name).append("\": {")
+                .append("\n      \"count\": ").append(histogram.getTotalCount()).append(',')
+                .append("\n      \"mean\": ").append(format(histogram.getMean() / 1000)).append(',')
+                .append("\n      \"min\": ").append(format(histogram.getMinValue() / 1000.0)).append(',');
+
+        for (double percentile : PERCENTILES)
+        {
+            sb.append("\n      \"p").append(String.valueOf(percentile).replace(".0", "").replace('.', '_'))
+                    .append("\": ").append(format(histogram.getValueAtPercentile(percentile) / 1000.0))
+                    .append(',');
+        }
+
+        sb.append("\n      \"max\": ").append(format(histogram.getMaxValue() / 1000.0))
+                .append("\n    }");
+    }
+
+    private static void print(PrintStream out, String name, Histogram histogram)
+    {
+        out.printf(Locale.ROOT, "%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                name, histogram.getTotalCount(), histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0);
+    }
+}
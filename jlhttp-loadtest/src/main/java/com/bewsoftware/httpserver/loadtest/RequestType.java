@@ -0,0 +1,199 @@
+/*
+ *  File Name:    RequestType.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code RequestType} enum lists the kinds of request in a load test's
+ * request mix, and encodes each of them.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public enum RequestType
+{
+    /**
+     * A GET of a small response generated by a lambda context.
+     */
+    SMALL,
+    /**
+     * A GET of a whole file, served by a {@code FileContextHandler}.
+     */
+    STATIC,
+    /**
+     * A GET of the first KiB of a file, served by a
+     * {@code FileContextHandler}.
+     */
+    RANGE,
+    /**
+     * A GET of a whole file, served from a jar file by a
+     * {@code JarContextHandler}.
+     */
+    JAR,
+    /**
+     * A POST of a {@code multipart/form-data} body with one file part.
+     */
+    MULTIPART,
+    /**
+     * A POST of a body with chunked transfer encoding.
+     */
+    CHUNKED;
+
+    private static final String BOUNDARY = "----LoadTestBoundary7MA4YWxkTrZu0gW";
+
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Returns the name of this type, as used in the request mix and reports.
+     *
+     * @return the lower case name
+     */
+    public String key()
+    {
+        return name().toLowerCase();
+    }
+
+    /**
+     * Encodes a request of this type.
+     *
+     * @param options   the load test options
+     * @param keepAlive whether the connection is to be kept alive after the
+     *                  response
+     *
+     * @return the complete request, head and body
+     */
+    public byte[] encode(Options options, boolean keepAlive)
+    {
+        StringBuilder head = new StringBuilder(256);
+        byte[] body = null;
+
+        switch (this)
+        {
+            case SMALL ->
+                head.append("GET /small HTTP/1.1\r\n");
+            case STATIC ->
+                head.append("GET /static/").append(TestServer.FILE_NAME).append(" HTTP/1.1\r\n");
+            case RANGE ->
+                head.append("GET /static/").append(TestServer.FILE_NAME).append(" HTTP/1.1\r\n")
+                        .append("Range: bytes=0-1023\r\n");
+            case JAR ->
+                head.append("GET /jar/").append(TestServer.FILE_NAME).append(" HTTP/1.1\r\n");
+            case MULTIPART ->
+            {
+                body = multipart(options.uploadSize);
+                head.append("POST /upload HTTP/1.1\r\n")
+                        .append("Content-Type: multipart/form-data; boundary=").append(BOUNDARY).append("\r\n")
+                        .append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            case CHUNKED ->
+            {
+                body = chunked(options.uploadSize);
+                head.append("POST /chunked HTTP/1.1\r\n")
+                        .append("Content-Type: application/octet-stream\r\n")
+                        .append("Transfer-Encoding: chunked\r\n");
+            }
+        }
+
+        head.append("Host: localhost:").append(options.port).append("\r\n");
+
+        if (!keepAlive)
+        {
+            head.append("Connection: close\r\n");
+        }
+
+        head.append("\r\n");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(head.length() + (body == null ? 0 : body.length));
+        out.writeBytes(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (body != null)
+        {
+            out.writeBytes(body);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the request type with the given name.
+     *
+     * @param key the name, as returned by {@link #key()}
+     *
+     * @return the request type
+     *
+     * @throws IllegalArgumentException if there is no such request type
+     */
+    public static RequestType of(String key)
+    {
+        return valueOf(key.toUpperCase());
+    }
+
+    private static byte[] chunked(int size)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 64 + 16);
+        byte[] data = data(size);
+
+        for (int off = 0; off < size; off += CHUNK_SIZE)
+        {
+            int len = Math.min(CHUNK_SIZE, size - off);
+            out.writeBytes((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(data, off, len);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        out.writeBytes("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        return out.toByteArray();
+    }
+
+    private static byte[] data(int size)
+    {
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            data[i] = (byte) ('a' + i % 26);
+        }
+
+        return data;
+    }
+
+    private static byte[] multipart(int size)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 512);
+        out.writeBytes(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"description\"\r\n\r\n"
+                + "load test upload\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"upload.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(data(size));
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  File Name:    TestServer.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.loadtest;
+
+import com.bewsoftware.httpserver.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * The {@code TestServer} class runs the server under test, in-process, with
+ * a context for each {@link RequestType}:
+ * <ul>
+ * <li>{@code /small} - a lambda context sending a short text,</li>
+ * <li>{@code /static} - a {@link FileContextHandler} over a temporary
+ * directory holding one file,</li>
+ * <li>{@code /jar} - a {@link JarContextHandler} over a temporary jar file
+ * holding the same file,</li>
+ * <li>{@code /upload} - a lambda context reading every part of a
+ * multipart POST, and</li>
+ * <li>{@code /chunked} - a lambda context reading a POST body.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public final class TestServer implements AutoCloseable
+{
+    /**
+     * The name of the file served by {@code /static} and {@code /jar}.
+     */
+    public static final String FILE_NAME = "file.bin";
+
+    private static final byte[] SMALL_BODY = "Hello, World!".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Path dir;
+
+    private final HTTPServer server;
+
+    /**
+     * Creates the test content and starts a server serving it.
+     *
+     * @param options the load test options
+     *
+     * @throws IOException if the content could not be created or the
+     *                     server could not be started
+     */
+    public TestServer(Options options) throws IOException
+    {
+        dir = Files.createTempDirectory("jlhttp-loadtest");
+        server = new HTTPServer(options.port);
+
+        try
+        {
+            Path files = Files.createDirectory(dir.resolve("static"));
+            byte[] content = new byte[options.fileSize];
+            new Random(42).nextBytes(content);
+            Files.write(files.resolve(FILE_NAME), content);
+
+            Path jar = dir.resolve("content.jar");
+
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar)))
+            {
+                out.putNextEntry(new JarEntry(FILE_NAME));
+                out.write(content);
+                out.closeEntry();
+            }
+
+            if (options.engine.equals("nio"))
+            {
+                server.setConnectionEngine(new SelectorEngine());
+            }
+
+            if (options.virtualThreads)
+            {
+                server.setVirtualThreads(true);
+            }
+
+            if (options.acceptors > 1)
+            {
+                server.setAcceptorThreads(options.acceptors);
+                server.setReusePort(true);
+            }
+
+            VirtualHost host = server.getVirtualHost(null);
+            host.addContext("/small", TestServer::small);
+            host.addContext("/static", new FileContextHandler(files.toString(),
+                    options.cache ? new ContentCache() : null));
+            host.addContext("/jar", new JarContextHandler(URI.create("jar:" + jar.toUri()), "/",
+                    options.cache ? new ContentCache() : null));
+            host.addContext("/upload", TestServer::upload, "POST");
+            host.addContext("/chunked", TestServer::consume, "POST");
+            server.start();
+        } catch (IOException | RuntimeException ex)
+        {
+            close();
+            throw ex;
+        } catch (URISyntaxException ex)
+        {
+            close();
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Stops the server and deletes the test content.
+     *
+     * @throws IOException if the content could not be deleted
+     */
+    @Override
+    public void close() throws IOException
+    {
+        server.stop();
+        delete(dir);
+    }
+
+    /**
+     * Returns the number of connections rejected by the server, for being
+     * over its connection limit or its executor's capacity.
+     *
+     * @return the number of rejected connections
+     */
+    public long getRejections()
+    {
+        return server.getLimitRejections() + server.getExecutorRejections();
+    }
+
+    private static int consume(Request req, Response resp) throws IOException
+    {
+        long count = drain(req.getBody());
+        send(resp, "received " + count);
+
+        return 0;
+    }
+
+    private static void delete(Path dir) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(dir))
+        {
+            for (Iterator<Path> it = paths.sorted(Comparator.reverseOrder()).iterator(); it.hasNext();)
+            {
+                Files.deleteIfExists(it.next());
+            }
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException
+    {
+        byte[] buf = new byte[8192];
+        long count = 0;
+
+        for (int n; (n = in.read(buf)) != -1;)
+        {
+            count += n;
+        }
+
+        return count;
+    }
+
+    private static void send(Response resp, String text) throws IOException
+    {
+        byte[] body = text.getBytes(StandardCharsets.ISO_8859_1);
+        resp.sendHeaders(200, body.length, -1, null, "text/plain", null);
+        resp.getBody().write(body);
+    }
+
+    private static int small(Request req, Response resp) throws IOException
+    {
+        resp.sendHeaders(200, SMALL_BODY.length, -1, null, "text/plain", null);
+        resp.getBody().write(SMALL_BODY);
+
+        return 0;
+    }
+
+    private static int upload(Request req, Response resp) throws IOException
+    {
+        long count = 0;
+
+        for (Iterator<Part> it = new MultipartIterator(req); it.hasNext();)
+        {
+            count += drain(it.next().body);
+        }
+
+        send(resp, "received " + count);
+
+        return 0;
+    }
+}
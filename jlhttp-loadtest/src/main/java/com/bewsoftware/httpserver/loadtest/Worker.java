@@ -0,0 +1,344 @@
+/*
+ *  File Name:    Worker.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The {@code Worker} class drives one client connection of a load test.
+ * <p>
+ * It sends batches of {@link Options#pipeline} requests, picked at random
+ * from the request mix, and then reads their responses. Each response's
+ * latency is measured from the sending of its batch, so with pipelining it
+ * includes the time spent waiting for the responses ahead of it. The worker
+ * is closed-loop: it only sends the next batch once the previous one has been
+ * answered, so a stalled server shows up as lower throughput rather than
+ * higher latency.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+final class Worker implements Runnable
+{
+    /**
+     * The highest latency recorded, in nanoseconds; longer ones are
+     * recorded as this.
+     */
+    static final long HIGHEST_LATENCY = 60_000_000_000L;
+
+    long bytes; // response body bytes read while recording
+
+    long errors; // I/O errors while recording
+
+    final Map<RequestType, Histogram> histograms = new EnumMap<>(RequestType.class); // latency by type
+
+    final long[] statuses = new long[600]; // responses by status code while recording
+
+    private InputStream in;
+
+    private final byte[] line = new byte[8192];
+
+    private final Options options;
+
+    private OutputStream out;
+
+    private final SplittableRandom random;
+
+    private final byte[][] requests;
+
+    private boolean responseClose; // the last response closes the connection
+
+    private int responseStatus; // the last response's status code
+
+    private Socket socket;
+
+    private final LoadTest test;
+
+    private final RequestType[] weighted;
+
+    /**
+     * Constructs a Worker.
+     *
+     * @param test    the load test, whose flags control the worker
+     * @param options the load test options
+     * @param seed    the seed of the worker's request picks
+     */
+    Worker(LoadTest test, Options options, long seed)
+    {
+        this.test = test;
+        this.options = options;
+        this.random = new SplittableRandom(seed);
+        this.requests = new byte[RequestType.values().length][];
+
+        int total = 0;
+
+        for (Map.Entry<RequestType, Integer> entry : options.mix.entrySet())
+        {
+            RequestType type = entry.getKey();
+            requests[type.ordinal()] = type.encode(options, options.keepAlive);
+            histograms.put(type, new Histogram(HIGHEST_LATENCY, 3));
+            total += entry.getValue();
+        }
+
+        weighted = new RequestType[total];
+        int i = 0;
+
+        for (Map.Entry<RequestType, Integer> entry : options.mix.entrySet())
+        {
+            for (int w = entry.getValue(); w > 0; w--)
+            {
+                weighted[i++] = entry.getKey();
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        RequestType[] batch = new RequestType[options.pipeline];
+
+        while (test.running)
+        {
+            try
+            {
+                if (socket == null)
+                {
+                    connect();
+                }
+
+                for (int i = 0; i < batch.length; i++)
+                {
+                    batch[i] = weighted[random.nextInt(weighted.length)];
+                    out.write(requests[batch[i].ordinal()]);
+                }
+
+                out.flush();
+                long sent = System.nanoTime();
+                boolean close = !options.keepAlive;
+
+                for (RequestType type : batch)
+                {
+                    long length = readResponse();
+                    long latency = System.nanoTime() - sent;
+
+                    if (test.recording)
+                    {
+                        histograms.get(type).recordValue(Math.min(latency, HIGHEST_LATENCY));
+                        statuses[responseStatus]++;
+                        bytes += length;
+                    }
+
+                    close |= responseClose;
+                }
+
+                if (close)
+                {
+                    disconnect();
+                }
+            } catch (IOException | RuntimeException ex)
+            {
+                if (test.recording)
+                {
+                    errors++;
+                }
+
+                disconnect();
+            }
+        }
+
+        disconnect();
+    }
+
+    private void connect() throws IOException
+    {
+        socket = new Socket(InetAddress.getLoopbackAddress(), options.port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(30_000);
+        in = new BufferedInputStream(socket.getInputStream(), 65536);
+        out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+    }
+
+    private void disconnect()
+    {
+        if (socket != null)
+        {
+            try
+            {
+                socket.close();
+            } catch (IOException ignore)
+            {
+                // NoOp
+            }
+
+            socket = null;
+        }
+    }
+
+    /**
+     * Reads a line, without its line terminator, into {@link #line}.
+     *
+     * @return the length of the line
+     *
+     * @throws IOException if an error occurs, or the line is too long
+     */
+    private int readLine() throws IOException
+    {
+        int len = 0;
+
+        for (int b; (b = in.read()) != '\n';)
+        {
+            if (b == -1)
+            {
+                throw new IOException("connection closed");
+            }
+
+            if (len == line.length)
+            {
+                throw new IOException("line too long");
+            }
+
+            line[len++] = (byte) b;
+        }
+
+        return len > 0 && line[len - 1] == '\r' ? len - 1 : len;
+    }
+
+    /**
+     * Reads a response, skipping its body.
+     *
+     * @return the length of the response body
+     *
+     * @throws IOException if an error occurs
+     */
+    private long readResponse() throws IOException
+    {
+        int len = readLine();
+
+        // "HTTP/1.1 200 OK"
+        if (len < 12 || line[8] != ' ')
+        {
+            throw new IOException("invalid status line");
+        }
+
+        responseStatus = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+
+        if (responseStatus < 100 || responseStatus > 599)
+        {
+            throw new IOException("invalid status line");
+        }
+
+        responseClose = line[7] == '0'; // HTTP/1.0
+        long length = -1;
+        boolean chunked = false;
+
+        while ((len = readLine()) > 0)
+        {
+            String header = new String(line, 0, len, StandardCharsets.ISO_8859_1);
+            int colon = header.indexOf(':');
+            String name = header.substring(0, Math.max(colon, 0));
+            String value = header.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Content-Length"))
+            {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding"))
+            {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection"))
+            {
+                responseClose = value.equalsIgnoreCase("close");
+            }
+        }
+
+        if (responseStatus == 204 || responseStatus == 304 || responseStatus < 200)
+        {
+            return 0;
+        }
+
+        if (chunked)
+        {
+            return skipChunks();
+        }
+
+        if (length >= 0)
+        {
+            in.skipNBytes(length);
+            return length;
+        }
+
+        // the body ends when the connection closes
+        responseClose = true;
+        long count = 0;
+
+        while (in.read() != -1)
+        {
+            count++;
+        }
+
+        return count;
+    }
+
+    private long skipChunks() throws IOException
+    {
+        long count = 0;
+
+        while (true)
+        {
+            int len = readLine();
+            int end = 0;
+
+            while (end < len && line[end] != ';' && line[end] != ' ')
+            {
+                end++;
+            }
+
+            long size = Long.parseLong(new String(line, 0, end, StandardCharsets.ISO_8859_1), 16);
+
+            if (size == 0)
+            {
+                while (readLine() > 0)
+                {
+                    // skip the trailers
+                }
+
+                return count;
+            }
+
+            in.skipNBytes(size);
+            readLine(); // the CRLF after the chunk data
+            count += size;
+        }
+    }
+}
@@ -0,0 +1,699 @@
+/*
+ *  File Name:    AccessLog.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The {@code AccessLog} class records one entry per served request to a
+ * log file, without request threads ever waiting on the disk.
+ * <p>
+ * It is enabled by setting it on a server with {@link HTTPServer#setAccessLog}.
+ * Each entry (the method, request target, status, bytes written, duration,
+ * remote address and virtual host) is copied into a preallocated slot of a
+ * bounded ring buffer. A background writer thread drains the ring in
+ * batches, formats the entries and appends each batch to the file with a
+ * single write. If the ring is full, the entry is dropped and counted (see
+ * {@link #getDropped()}), rather than blocking the request thread.
+ * <p>
+ * When the file would grow beyond its maximum size, it is rotated:
+ * {@code access.log} is renamed to {@code access.log.1}, which is renamed
+ * to {@code access.log.2}, and so on, up to the maximum number of rotated
+ * files kept.
+ * <p>
+ * The access log must be {@link #close() closed} when it is no longer needed,
+ * which writes any remaining entries and stops the writer thread.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public final class AccessLog implements AutoCloseable
+{
+    /**
+     * The default number of entries the ring buffer holds.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The default number of rotated files kept.
+     */
+    public static final int DEFAULT_MAX_FILES = 10;
+
+    /**
+     * The default maximum size of the log file, in bytes.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+
+    /**
+     * The longest time the writer thread sleeps while the ring is not
+     * filling up, in nanoseconds.
+     */
+    protected static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    protected static final DateTimeFormatter COMMON_TIME
+            = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+    protected FileChannel channel; // writer thread only
+
+    protected final LongAdder dropped = new LongAdder(); // entries not logged
+
+    protected final Entry[] entries; // the ring buffer
+
+    protected final Path file;
+
+    protected final Format format;
+
+    protected long head; // next entry to be written (writer thread only)
+
+    protected volatile IOException lastError;
+
+    protected final int mask;
+
+    protected final int maxFiles;
+
+    protected final long maxFileSize;
+
+    protected volatile boolean open = true;
+
+    protected long size; // current log file size (writer thread only)
+
+    protected final AtomicLong tail = new AtomicLong(); // next entry to be claimed
+
+    protected final Thread writer;
+
+    protected final ZoneId zone = ZoneId.systemDefault();
+
+    /**
+     * Constructs an AccessLog that writes {@link Format#COMMON} entries
+     * to the given file, with the default capacity and rotation settings.
+     *
+     * @param file the log file
+     */
+    public AccessLog(Path file)
+    {
+        this(file, Format.COMMON, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * Constructs an AccessLog, and starts its writer thread.
+     *
+     * @param file        the log file
+     * @param format      the format of the entries
+     * @param capacity    the number of entries the ring buffer holds (rounded
+     *                    up to a power of two)
+     * @param maxFileSize the maximum size of the log file, in bytes, or 0
+     *                    to never rotate it
+     * @param maxFiles    the number of rotated files kept
+     *
+     * @throws IllegalArgumentException if capacity is not positive, or
+     *                                  maxFileSize or maxFiles is negative
+     */
+    public AccessLog(Path file, Format format, int capacity, long maxFileSize, int maxFiles)
+    {
+        if (capacity <= 0 || capacity > 1 << 30)
+        {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+
+        if (maxFileSize < 0 || maxFiles < 0)
+        {
+            throw new IllegalArgumentException("invalid rotation: " + maxFileSize + ", " + maxFiles);
+        }
+
+        this.file = file;
+        this.format = format;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        int length = Integer.highestOneBit(capacity);
+        length = length < capacity ? length << 1 : length;
+        mask = length - 1;
+        entries = new Entry[length];
+
+        for (int i = 0; i < length; i++)
+        {
+            entries[i] = new Entry(i);
+        }
+
+        writer = new Thread(this::run, getClass().getSimpleName() + "-" + file.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a character sequence to a JSON string, escaping it as needed.
+     *
+     * @param sb    the buffer to append to
+     * @param value the value to append
+     */
+    protected static void appendEscaped(StringBuilder sb, CharSequence value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+            {
+                sb.append('\\').append(c);
+            } else if (c < ' ')
+            {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else
+            {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the text of a remote address, without a reverse DNS lookup.
+     *
+     * @param remote the remote address
+     *
+     * @return the address text, or null if there is no address
+     */
+    protected static String toText(SocketAddress remote)
+    {
+        if (remote instanceof InetSocketAddress isa)
+        {
+            return isa.getAddress() != null ? isa.getAddress().getHostAddress() : isa.getHostString();
+        }
+
+        return remote != null ? remote.toString() : null;
+    }
+
+    /**
+     * Stops the writer thread, once it has written every entry logged so
+     * far, and closes the log file. Entries logged after this are dropped.
+     */
+    @Override
+    public void close()
+    {
+        if (open)
+        {
+            open = false;
+            LockSupport.unpark(writer);
+
+            try
+            {
+                writer.join();
+            } catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries dropped so far, because the ring buffer
+     * was full, the log was closed, or the file could not be written.
+     *
+     * @return the number of dropped entries
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the log file.
+     *
+     * @return the log file
+     */
+    public Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the last error that occurred while writing the log file.
+     *
+     * @return the last error, or null if there was none
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * Logs an entry. This never blocks: if the ring buffer is full, the entry
+     * is dropped.
+     *
+     * @param method  the request method, or null if the request could not be
+     *                read
+     * @param target  the request target (URI)
+     * @param version the request version
+     * @param host    the virtual host name
+     * @param status  the response status
+     * @param bytes   the number of bytes written for the response, headers
+     *                included
+     * @param nanos   the duration of the transaction, in nanoseconds
+     * @param remote  the client's address
+     *
+     * @return true if the entry was logged, false if it was dropped
+     */
+    public boolean log(String method, String target, String version, String host,
+            int status, long bytes, long nanos, SocketAddress remote)
+    {
+        if (!open)
+        {
+            dropped.increment();
+            return false;
+        }
+
+        long t = tail.get();
+
+        while (true)
+        {
+            Entry e = entries[(int) t & mask];
+            long sequence = e.sequence;
+
+            if (sequence == t)
+            {
+                if (tail.compareAndSet(t, t + 1))
+                {
+                    e.time = System.currentTimeMillis();
+                    e.method = method;
+                    e.target = target;
+                    e.version = version;
+                    e.host = host;
+                    e.status = status;
+                    e.bytes = bytes;
+                    e.nanos = nanos;
+                    e.remote = remote;
+                    e.sequence = t + 1; // publish it to the writer
+
+                    if ((t & (mask >> 1)) == 0) // every half ring, wake the writer early
+                    {
+                        LockSupport.unpark(writer);
+                    }
+
+                    return true;
+                }
+
+                t = tail.get();
+            } else if (sequence < t)
+            { // the ring is full: the writer has not freed this slot yet
+                dropped.increment();
+                LockSupport.unpark(writer);
+                return false;
+            } else
+            { // another thread claimed the slot first
+                t = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Logs the transaction of a request.
+     *
+     * @param req    the request, or null if it could not be read
+     * @param resp   the response
+     * @param bytes  the number of bytes written for the response
+     * @param nanos  the duration of the transaction, in nanoseconds
+     * @param remote the client's address
+     *
+     * @return true if the entry was logged, false if it was dropped
+     */
+    public boolean log(Request req, Response resp, long bytes, long nanos, SocketAddress remote)
+    {
+        if (req == null)
+        {
+            return log(null, null, null, null, resp.getStatus(), bytes, nanos, remote);
+        }
+
+        VirtualHost vhost = req.host; // only if already resolved while handling it
+        String host = vhost != null ? vhost.getName() : null;
+
+        return log(req.getMethod(), req.getURI().toString(), req.getVersion(),
+                host != null ? host : req.getHeaders().get("Host"),
+                resp.getStatus(), bytes, nanos, remote);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AccessLog{" + "\nfile=" + file
+                + ", \nformat=" + format
+                + ", \ncapacity=" + entries.length
+                + ", \nmaxFileSize=" + maxFileSize
+                + ", \nmaxFiles=" + maxFiles
+                + ", \ndropped=" + getDropped()
+                + "\n}";
+    }
+
+    /**
+     * Formats the entries published so far, freeing their slots.
+     *
+     * @param sb the buffer to format them into
+     *
+     * @return the number of entries formatted
+     */
+    protected int drain(StringBuilder sb)
+    {
+        int count = 0;
+
+        while (count < entries.length)
+        {
+            Entry e = entries[(int) head & mask];
+
+            if (e.sequence != head + 1)
+            {
+                break; // not published yet
+            }
+
+            switch (format)
+            {
+                case JSON -> formatJson(e, sb);
+                default -> formatCommon(e, sb);
+            }
+
+            e.clear();
+            e.sequence = head + entries.length; // free the slot for its next round
+            head++;
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Formats an entry in the Common Log Format, followed by the virtual host
+     * and the duration in microseconds:
+     * <pre>
+     * 127.0.0.1 - - [10/Oct/2022:13:55:36 +1000] "GET /index.html HTTP/1.1" 200 2326 "example.com" 153
+     * </pre>
+     *
+     * @param e  the entry
+     * @param sb the buffer to format it into
+     */
+    protected void formatCommon(Entry e, StringBuilder sb)
+    {
+        String remote = toText(e.remote);
+        sb.append(remote != null ? remote : "-").append(" - - [");
+        COMMON_TIME.formatTo(Instant.ofEpochMilli(e.time).atZone(zone), sb);
+        sb.append("] \"");
+
+        if (e.method != null)
+        {
+            sb.append(e.method).append(' ').append(e.target).append(' ').append(e.version);
+        } else
+        {
+            sb.append('-');
+        }
+
+        sb.append("\" ").append(e.status).append(' ').append(e.bytes).append(" \"");
+        appendEscaped(sb, e.host != null ? e.host : "-");
+        sb.append("\" ").append(e.nanos / 1000).append('\n');
+    }
+
+    /**
+     * Formats an entry as a single line JSON object:
+     * <pre>
+     * {"time":"2022-10-10T03:55:36.012Z","remote":"127.0.0.1","host":"example.com",
+     *  "method":"GET","target":"/index.html","version":"HTTP/1.1","status":200,
+     *  "bytes":2326,"duration_us":153}
+     * </pre>
+     * The remote, host, method, target and version fields are omitted if
+     * they are unknown.
+     *
+     * @param e  the entry
+     * @param sb the buffer to format it into
+     */
+    protected void formatJson(Entry e, StringBuilder sb)
+    {
+        sb.append("{\"time\":\"").append(Instant.ofEpochMilli(e.time)).append('"');
+        formatJsonField("remote", toText(e.remote), sb);
+        formatJsonField("host", e.host, sb);
+        formatJsonField("method", e.method, sb);
+        formatJsonField("target", e.target, sb);
+        formatJsonField("version", e.version, sb);
+        sb.append(",\"status\":").append(e.status)
+                .append(",\"bytes\":").append(e.bytes)
+                .append(",\"duration_us\":").append(e.nanos / 1000)
+                .append("}\n");
+    }
+
+    /**
+     * Formats a JSON string field, unless its value is null.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @param sb    the buffer to format it into
+     */
+    protected void formatJsonField(String name, String value, StringBuilder sb)
+    {
+        if (value != null)
+        {
+            sb.append(",\"").append(name).append("\":\"");
+            appendEscaped(sb, value);
+            sb.append('"');
+        }
+    }
+
+    /**
+     * Rotates the log file, if it is not empty: each rotated file is renamed
+     * to the next number, the oldest is deleted, and the log file becomes
+     * number 1.
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void rotate() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.close();
+            channel = null;
+        }
+
+        if (maxFiles == 0)
+        {
+            Files.deleteIfExists(file);
+        } else
+        {
+            Files.deleteIfExists(rotated(maxFiles));
+
+            for (int i = maxFiles - 1; i > 0; i--)
+            {
+                Path from = rotated(i);
+
+                if (Files.exists(from))
+                {
+                    Files.move(from, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            if (Files.exists(file))
+            {
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        size = 0;
+    }
+
+    /**
+     * Returns the path of a rotated log file.
+     *
+     * @param number the rotation number
+     *
+     * @return the rotated file's path
+     */
+    protected Path rotated(int number)
+    {
+        return file.resolveSibling(file.getFileName() + "." + number);
+    }
+
+    /**
+     * Writes batches of entries until the log is closed and drained.
+     */
+    protected void run()
+    {
+        StringBuilder sb = new StringBuilder(8192);
+
+        try
+        {
+            while (true)
+            {
+                sb.setLength(0);
+                int count = drain(sb);
+
+                if (count > 0)
+                {
+                    try
+                    {
+                        write(sb);
+                    } catch (IOException ioe)
+                    {
+                        lastError = ioe;
+                        dropped.add(count);
+                        closeChannel(); // reopen it for the next batch
+                    }
+                } else if (!open && head == tail.get())
+                {
+                    break;
+                } else if (open)
+                {
+                    LockSupport.parkNanos(this, FLUSH_INTERVAL);
+                } else
+                {
+                    Thread.onSpinWait(); // a logging thread is publishing its final entry
+                }
+            }
+        } finally
+        {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Writes a formatted batch of entries to the log file, rotating it first
+     * if the batch would overflow it.
+     *
+     * @param sb the formatted entries
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void write(StringBuilder sb) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(UTF_8));
+
+        if (maxFileSize > 0 && size > 0 && size + buf.remaining() > maxFileSize)
+        {
+            rotate();
+        }
+
+        if (channel == null)
+        {
+            channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+            size = channel.size();
+        }
+
+        while (buf.hasRemaining())
+        {
+            size += channel.write(buf);
+        }
+    }
+
+    /**
+     * Closes the log file, if it is open.
+     */
+    private void closeChannel()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            } catch (IOException ignore)
+            {
+                // NoOp
+            }
+
+            channel = null;
+        }
+    }
+
+    /**
+     * The formats of the access log entries.
+     */
+    public enum Format
+    {
+        /**
+         * The Common Log Format, followed by the quoted virtual host and the
+         * duration in microseconds.
+         */
+        COMMON,
+        /**
+         * One JSON object per line.
+         */
+        JSON
+    }
+
+    /**
+     * A slot of the ring buffer.
+     * <p>
+     * A slot is free for the entry numbered {@code sequence}; once the entry
+     * has been copied into it, {@code sequence} is set to one more than its
+     * number, which publishes it to the writer thread.
+     */
+    protected static final class Entry
+    {
+        protected long bytes;
+
+        protected String host;
+
+        protected String method;
+
+        protected long nanos;
+
+        protected SocketAddress remote;
+
+        protected volatile long sequence;
+
+        protected int status;
+
+        protected String target;
+
+        protected long time;
+
+        protected String version;
+
+        protected Entry(long sequence)
+        {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Drops the entry's references, so they can be garbage collected.
+         */
+        protected void clear()
+        {
+            host = method = target = version = null;
+            remote = null;
+        }
+    }
+}
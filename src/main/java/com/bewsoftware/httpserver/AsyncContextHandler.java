@@ -0,0 +1,96 @@
+/*
+ *  File Name:    AsyncContextHandler.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An {@code AsyncContextHandler} serves the content of resources within a
+ * context asynchronously, without holding a server thread while it waits
+ * (e.g. for a slow backend).
+ * <p>
+ * The handler returns a stage that completes with the status once the
+ * response is done with, and may write the response from any thread (e.g.
+ * the one completing the stage) until then. Meanwhile the transaction is
+ * suspended: the thread that called the handler goes on to serve other
+ * connections, and once the stage completes, the transaction is finished
+ * and the connection's keep-alive loop continues on an executor thread.
+ * <p>
+ * The response must not be used after the stage completes. The server does
+ * not time out a suspended transaction, so a handler whose backend may hang
+ * should bound its stage (e.g. with
+ * {@link java.util.concurrent.CompletableFuture#orTimeout}).
+ * <p>
+ * Where a transaction cannot be suspended (e.g. on an HTTP/2 stream, a
+ * directory index lookup, or when called through
+ * {@link HTTPServer#handleConnection(java.io.InputStream, java.io.OutputStream) handleConnection}
+ * directly), the handler is invoked through {@link #serve}, which waits for
+ * the stage.
+ *
+ * @see VirtualHost#addContext
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@FunctionalInterface
+public interface AsyncContextHandler extends ContextHandler
+{
+    /**
+     * Serves the given request using the given response, waiting for the
+     * stage returned by {@link #serveAsync} to complete.
+     *
+     * @param req  the request to be served
+     * @param resp the response to be filled
+     *
+     * @return the status the stage completed with
+     *
+     * @throws IOException if an IO error occurs, or the stage completed
+     *                     exceptionally
+     */
+    @Override
+    default int serve(Request req, Response resp) throws IOException
+    {
+        return NetUtils.awaitStatus(serveAsync(req, resp));
+    }
+
+    /**
+     * Serves the given request using the given response asynchronously.
+     *
+     * @param req  the request to be served
+     * @param resp the response to be filled, from any thread, until the
+     *             returned stage completes
+     *
+     * @return a (non-null) stage which completes with an HTTP status code,
+     *         which will be used in returning a default response appropriate
+     *         for this status. If the response already sent anything
+     *         (headers or content), the stage must complete with 0, and no
+     *         further processing will be done. If the stage completes
+     *         exceptionally, the transaction fails as if {@link #serve} had
+     *         thrown an exception
+     *
+     * @throws IOException if an IO error occurs
+     */
+    CompletionStage<Integer> serveAsync(Request req, Response resp) throws IOException;
+}
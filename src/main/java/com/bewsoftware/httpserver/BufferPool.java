@@ -0,0 +1,341 @@
+/*
+ *  File Name:    BufferPool.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@code BufferPool} class is a shared pool of I/O buffers, so that
+ * connections, transfers and multipart uploads reuse buffers instead of
+ * allocating new ones every time.
+ * <p>
+ * Buffers are pooled in size classes: powers of two from 1 KiB up to the
+ * maximum pooled size. A request for a buffer is served from the smallest
+ * class that fits it, so the buffer returned may be larger than requested.
+ * Larger buffers are neither pooled nor kept. Heap buffers (byte arrays)
+ * and direct {@link ByteBuffer}s are pooled separately.
+ * <p>
+ * Each size class has a fixed number of slots, which are claimed and
+ * returned with compare-and-set operations, so the pool never blocks, and
+ * is as usable from virtual threads as from platform threads. When a class
+ * is empty a new buffer is allocated, and when it is full a released
+ * buffer is simply left to the garbage collector, so a buffer that is
+ * never released is not a leak.
+ * <p>
+ * The {@link #getBufferSize() buffer size} is the size of each connection's
+ * input and output buffers, and the {@link #getTransferSize() transfer size}
+ * is the size of the buffers used to copy streams (e.g. request and
+ * response bodies). Both can be raised (e.g. to 16 or 64 KiB for bulk
+ * transfers) by installing a pool with {@link #setDefault}, before the
+ * server is started. Multipart uploads take larger buffers of their own
+ * size (see {@link MultipartInputStream#DEFAULT_BUFFER_SIZE}).
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class BufferPool
+{
+    /**
+     * The default connection buffer size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /**
+     * The default maximum pooled buffer size.
+     */
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    /**
+     * The default number of buffers kept per size class.
+     */
+    public static final int DEFAULT_SLOTS = 32;
+
+    /**
+     * The default transfer buffer size.
+     */
+    public static final int DEFAULT_TRANSFER_SIZE = 4096;
+
+    /**
+     * The smallest size class (as a power of two).
+     */
+    protected static final int MIN_SHIFT = 10;
+
+    private static volatile BufferPool defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE,
+            DEFAULT_TRANSFER_SIZE, DEFAULT_MAX_SIZE, DEFAULT_SLOTS);
+
+    protected final int bufferSize;
+
+    protected final AtomicReferenceArray<ByteBuffer> direct; // slots of each class, in class order
+
+    protected final AtomicReferenceArray<byte[]> heap; // slots of each class, in class order
+
+    protected final int maxSize;
+
+    protected final int slots; // per size class
+
+    protected final int transferSize;
+
+    /**
+     * Constructs a BufferPool.
+     *
+     * @param bufferSize   the connection buffer size
+     * @param transferSize the transfer buffer size
+     * @param maxSize      the maximum size of pooled buffers (rounded up to
+     *                     a power of two)
+     * @param slots        the number of buffers kept per size class
+     *                     (0 disables pooling)
+     *
+     * @throws IllegalArgumentException if a size is not positive, or slots
+     *                                  is negative
+     */
+    public BufferPool(int bufferSize, int transferSize, int maxSize, int slots)
+    {
+        if (bufferSize <= 0 || transferSize <= 0 || maxSize <= 0 || slots < 0)
+        {
+            throw new IllegalArgumentException("invalid buffer pool size");
+        }
+
+        this.bufferSize = bufferSize;
+        this.transferSize = transferSize;
+        this.maxSize = 1 << sizeClass(maxSize) + MIN_SHIFT;
+        this.slots = slots;
+
+        int length = (sizeClass(this.maxSize) + 1) * slots;
+        this.heap = new AtomicReferenceArray<>(length);
+        this.direct = new AtomicReferenceArray<>(length);
+    }
+
+    /**
+     * Returns the default pool, which is used by the server.
+     *
+     * @return the default pool
+     */
+    public static BufferPool getDefault()
+    {
+        return defaultPool;
+    }
+
+    /**
+     * Sets the default pool, which is used by the server. Buffers already
+     * taken from the previous pool are released back to it.
+     *
+     * @param pool the new default pool
+     */
+    public static void setDefault(BufferPool pool)
+    {
+        if (pool == null)
+        {
+            throw new NullPointerException("pool");
+        }
+
+        defaultPool = pool;
+    }
+
+    /**
+     * Returns the size class of the given buffer size: 0 for up to 1 KiB,
+     * 1 for up to 2 KiB, and so on.
+     *
+     * @param size the buffer size
+     *
+     * @return the size class
+     */
+    protected static int sizeClass(int size)
+    {
+        return size <= 1 << MIN_SHIFT ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Returns a heap buffer of at least the given size.
+     *
+     * @param size the minimum buffer size
+     *
+     * @return the buffer
+     */
+    public byte[] acquire(int size)
+    {
+        if (size > maxSize)
+        {
+            return new byte[size];
+        }
+
+        int cls = sizeClass(size);
+        byte[] buf = take(heap, cls);
+
+        return buf != null ? buf : new byte[1 << cls + MIN_SHIFT];
+    }
+
+    /**
+     * Returns a cleared direct buffer with at least the given capacity.
+     *
+     * @param size the minimum buffer capacity
+     *
+     * @return the buffer
+     */
+    public ByteBuffer acquireDirect(int size)
+    {
+        if (size > maxSize)
+        {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        int cls = sizeClass(size);
+        ByteBuffer buf = take(direct, cls);
+
+        return buf != null ? buf.clear() : ByteBuffer.allocateDirect(1 << cls + MIN_SHIFT);
+    }
+
+    /**
+     * Returns the connection buffer size.
+     *
+     * @return the connection buffer size
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the maximum size of pooled buffers.
+     *
+     * @return the maximum size of pooled buffers
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns the transfer buffer size.
+     *
+     * @return the transfer buffer size
+     */
+    public int getTransferSize()
+    {
+        return transferSize;
+    }
+
+    /**
+     * Returns a heap buffer to the pool. The buffer must no longer be used
+     * by the caller.
+     *
+     * @param buf the buffer (may be null)
+     */
+    public void release(byte[] buf)
+    {
+        if (buf != null && isPooledSize(buf.length))
+        {
+            put(heap, sizeClass(buf.length), buf);
+        }
+    }
+
+    /**
+     * Returns a direct buffer to the pool. The buffer must no longer be used
+     * by the caller.
+     *
+     * @param buf the buffer (may be null)
+     */
+    public void release(ByteBuffer buf)
+    {
+        if (buf != null && buf.isDirect() && isPooledSize(buf.capacity()))
+        {
+            put(direct, sizeClass(buf.capacity()), buf);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPool{" + "\nbufferSize=" + bufferSize
+                + ", \nmaxSize=" + maxSize
+                + ", \nslots=" + slots
+                + ", \ntransferSize=" + transferSize
+                + "}";
+    }
+
+    /**
+     * Returns whether a buffer of the given size belongs to a size class.
+     *
+     * @param size the buffer size
+     *
+     * @return true if it does
+     */
+    protected boolean isPooledSize(int size)
+    {
+        return size <= maxSize && size >= 1 << MIN_SHIFT && Integer.bitCount(size) == 1;
+    }
+
+    /**
+     * Puts a buffer into a free slot of its size class, unless they are all
+     * taken.
+     *
+     * @param <T>   the buffer type
+     * @param array the slots
+     * @param cls   the size class
+     * @param buf   the buffer
+     */
+    protected <T> void put(AtomicReferenceArray<T> array, int cls, T buf)
+    {
+        int base = cls * slots;
+
+        for (int i = 0, start = slots > 1 ? ThreadLocalRandom.current().nextInt(slots) : 0; i < slots; i++)
+        {
+            int slot = base + (start + i) % slots;
+
+            if (array.get(slot) == null && array.compareAndSet(slot, null, buf))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a buffer from a slot of its size class, if there is one.
+     *
+     * @param <T>   the buffer type
+     * @param array the slots
+     * @param cls   the size class
+     *
+     * @return the buffer, or null if there is none
+     */
+    protected <T> T take(AtomicReferenceArray<T> array, int cls)
+    {
+        int base = cls * slots;
+
+        for (int i = 0, start = slots > 1 ? ThreadLocalRandom.current().nextInt(slots) : 0; i < slots; i++)
+        {
+            int slot = base + (start + i) % slots;
+            T buf = array.get(slot);
+
+            if (buf != null && array.compareAndSet(slot, buf, null))
+            {
+                return buf;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  File Name:    ConnectionEngine.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+
+/**
+ * A {@code ConnectionEngine} accepts connections on behalf of an
+ * {@link HTTPServer}, and passes them on to be serviced.
+ * <p>
+ * When no engine is set, the server uses its built-in blocking
+ * {@code SocketHandlerThread}, which dedicates one executor thread to each
+ * connection for its whole lifetime.
+ *
+ * @see HTTPServer#setConnectionEngine(ConnectionEngine)
+ * @see SelectorEngine
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public interface ConnectionEngine
+{
+    /**
+     * Binds the server's listening socket, and starts accepting connections.
+     * <p>
+     * The engine must set the server's {@code serv} field to the (first)
+     * bound socket, and add all its listening sockets to the server's
+     * {@code listeners}, so that {@link HTTPServer#stop()} can close them.
+     * It should honour the server's acceptor thread count and
+     * {@code SO_REUSEPORT} settings.
+     *
+     * @param server the server whose connections are to be handled
+     *
+     * @throws IOException if the server cannot begin accepting connections
+     */
+    void start(HTTPServer server) throws IOException;
+
+    /**
+     * Stops accepting connections, and releases any resources held by this
+     * engine. If it is already stopped, does nothing.
+     */
+    void stop();
+}
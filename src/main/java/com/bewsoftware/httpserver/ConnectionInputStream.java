@@ -0,0 +1,290 @@
+/*
+ *  File Name:    ConnectionInputStream.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@code ConnectionInputStream} is the buffered input stream used for
+ * reading requests from a connection.
+ * <p>
+ * Unlike {@link #available()}, which may also query the underlying socket,
+ * {@link #buffered()} reports only the data already read into the buffer,
+ * which is how a connection knows whether the client has sent another request
+ * without blocking on the socket.
+ * <p>
+ * Since the responses to such pipelined requests are not flushed one by
+ * one, the connection's {@link #setOutput output} is flushed whenever this
+ * stream is about to block on the underlying stream, so that the client
+ * never waits for responses that are still buffered.
+ * <p>
+ * Unlike {@link java.io.BufferedInputStream}, this stream is not synchronized.
+ * A connection's streams are only ever used by one thread at a time, and
+ * blocking on the socket while holding a monitor would pin a virtual thread
+ * to its carrier thread.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class ConnectionInputStream extends FilterInputStream
+{
+    protected byte[] buf; // taken from the pool, or null once released
+
+    protected int count; // number of valid bytes in buf
+
+    protected OutputStream output; // flushed before reading from the underlying stream (or null)
+
+    protected final BufferPool pool;
+
+    protected RequestParser parser; // lazily created
+
+    protected int pos; // index of the next byte to read from buf
+
+    protected long total; // number of bytes read through this stream
+
+    /**
+     * Constructs a ConnectionInputStream with the given underlying stream
+     * and buffer size. The buffer is taken from the
+     * {@link BufferPool#getDefault() default pool}, and should be
+     * {@link #release released} once the connection is done with.
+     *
+     * @param in   the underlying input stream
+     * @param size the (minimum) buffer size
+     *
+     * @throws IllegalArgumentException if size &lt;= 0
+     */
+    public ConnectionInputStream(InputStream in, int size)
+    {
+        super(in);
+
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException("invalid buffer size: " + size);
+        }
+
+        this.pool = BufferPool.getDefault();
+        this.buf = pool.acquire(size);
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        int n = count - pos;
+        int avail = in.available();
+
+        return n > Integer.MAX_VALUE - avail ? Integer.MAX_VALUE : n + avail;
+    }
+
+    /**
+     * Returns the number of bytes that have already been read into the buffer,
+     * and not yet consumed.
+     *
+     * @return the number of buffered bytes
+     */
+    public int buffered()
+    {
+        return count - pos;
+    }
+
+    /**
+     * Returns the buffer to the pool. Any data still buffered is discarded,
+     * and this stream must not be read from again.
+     */
+    public void release()
+    {
+        pool.release(buf);
+        buf = null;
+        pos = count = 0;
+    }
+
+    /**
+     * Sets the connection's output stream, which is flushed before every
+     * read from the underlying stream (which may block).
+     *
+     * @param output the output stream, or null
+     */
+    public void setOutput(OutputStream output)
+    {
+        this.output = output;
+    }
+
+    /**
+     * Returns the parser for the requests read from this stream. It is
+     * created on first use, and reused for every request on the connection.
+     *
+     * @return the request parser
+     */
+    public RequestParser getParser()
+    {
+        if (parser == null)
+        {
+            parser = new RequestParser();
+        }
+
+        return parser;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("ValueOfIncrementOrDecrementUsed")
+    public int read() throws IOException
+    {
+        if (pos == count && !fill())
+        {
+            return -1;
+        }
+
+        total++;
+
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    @SuppressWarnings("AssignmentToMethodParameter")
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (pos == count)
+        {
+            if (len >= buf.length)
+            {
+                flushOutput();
+                int n = in.read(b, off, len); // large read - don't copy through the buffer
+                total += Math.max(n, 0);
+
+                return n;
+            }
+
+            if (!fill())
+            {
+                return -1;
+            }
+        }
+
+        len = Math.min(count - pos, len);
+        System.arraycopy(buf, pos, b, off, len); // throws IOOBE as necessary
+        pos += len;
+        total += len;
+
+        return len;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+
+        if (pos == count)
+        {
+            flushOutput();
+            long skipped = in.skip(n);
+            total += skipped;
+
+            return skipped;
+        }
+
+        long skipped = Math.min(count - pos, n);
+        pos += (int) skipped;
+        total += skipped;
+
+        return skipped;
+    }
+
+    /**
+     * Returns the number of bytes read through this stream.
+     *
+     * @return the number of bytes read
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * Waits until there is data to read, reading more into the buffer if it
+     * is empty (and flushing the output first, as any read does).
+     *
+     * @return true if there is data to read, or false if the end of the
+     *         stream has been reached
+     *
+     * @throws IOException if an error occurs
+     */
+    public boolean await() throws IOException
+    {
+        return pos < count || fill();
+    }
+
+    /**
+     * Refills the (fully consumed) buffer with a single read from the
+     * underlying stream.
+     *
+     * @return true if data was read, or false if the end of stream was reached
+     *
+     * @throws IOException if an error occurs
+     */
+    protected boolean fill() throws IOException
+    {
+        int n;
+        flushOutput();
+
+        do
+        {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+
+        pos = 0;
+        count = Math.max(n, 0);
+
+        return n > 0;
+    }
+
+    /**
+     * Flushes the connection's output stream, if set.
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void flushOutput() throws IOException
+    {
+        if (output != null)
+        {
+            output.flush();
+        }
+    }
+}
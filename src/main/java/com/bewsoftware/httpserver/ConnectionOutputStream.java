@@ -0,0 +1,292 @@
+/*
+ *  File Name:    ConnectionOutputStream.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * The {@code ConnectionOutputStream} is the buffered output stream used for
+ * writing responses to a connection.
+ * <p>
+ * Unlike {@link java.io.BufferedOutputStream}, this stream is not
+ * synchronized. A connection's streams are only ever used by one thread at a
+ * time, and blocking on the socket while holding a monitor would pin a
+ * virtual thread to its carrier thread.
+ * <p>
+ * When the connection's {@link GatheringByteChannel channel} is given, the
+ * buffer is a direct {@link ByteBuffer} that is reused for every response
+ * on the connection, and everything is written through the channel. The
+ * response head (status line and headers) is encoded straight into the
+ * buffer, and a body that does not fit into what is left of it is handed to
+ * the channel together with the buffered head, in a single gathering write,
+ * so that even a larger response does not go out as a separate head packet
+ * followed by the body.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class ConnectionOutputStream extends FilterOutputStream
+{
+    protected ByteBuffer buf; // direct if there is a channel, else backed by an array (null once released)
+
+    protected final GatheringByteChannel channel; // the channel under out, or null
+
+    protected final ByteBuffer[] gather = new ByteBuffer[2]; // buffered data and the data being written
+
+    protected final BufferPool pool;
+
+    protected long total; // number of bytes written through this stream
+
+    /**
+     * Constructs a ConnectionOutputStream with the given underlying stream
+     * and buffer size.
+     *
+     * @param out  the underlying output stream
+     * @param size the (minimum) buffer size
+     *
+     * @throws IllegalArgumentException if size &lt;= 0
+     */
+    public ConnectionOutputStream(OutputStream out, int size)
+    {
+        this(out, null, size);
+    }
+
+    /**
+     * Constructs a ConnectionOutputStream with the given underlying stream,
+     * the channel it writes to, and buffer size. The buffer is taken from
+     * the {@link BufferPool#getDefault() default pool}, and should be
+     * {@link #release released} once the connection is done with.
+     *
+     * @param out     the underlying output stream
+     * @param channel the (blocking) channel that out writes to, or null if
+     *                there is none (or it must not be written to directly,
+     *                e.g. SSL)
+     * @param size    the (minimum) buffer size
+     *
+     * @throws IllegalArgumentException if size &lt;= 0
+     */
+    public ConnectionOutputStream(OutputStream out, GatheringByteChannel channel, int size)
+    {
+        super(out);
+
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException("invalid buffer size: " + size);
+        }
+
+        this.channel = channel;
+        this.pool = BufferPool.getDefault();
+        this.buf = channel != null ? pool.acquireDirect(size) : ByteBuffer.wrap(pool.acquire(size));
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Adds to the number of bytes written through this stream, the bytes
+     * that were written straight to its channel (e.g. by
+     * {@link java.nio.channels.FileChannel#transferTo}).
+     *
+     * @param count the number of bytes written to the channel
+     */
+    public void addTotal(long count)
+    {
+        total += count;
+    }
+
+    /**
+     * Returns the number of bytes written through this stream.
+     *
+     * @return the number of bytes written
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * Returns the buffer to the pool. Any data still buffered is discarded
+     * (so the stream should be flushed first), and this stream must not be
+     * written to again.
+     */
+    public void release()
+    {
+        if (buf != null)
+        {
+            if (buf.isDirect())
+            {
+                pool.release(buf);
+            } else
+            {
+                pool.release(buf.array());
+            }
+
+            buf = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (!buf.hasRemaining())
+        {
+            flushBuffer();
+        }
+
+        buf.put((byte) b);
+        total++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        total += len;
+
+        if (len <= buf.remaining())
+        {
+            buf.put(b, off, len); // throws IOOBE as necessary
+        } else if (channel != null)
+        {
+            // write the buffered data and b together
+            gather[1] = ByteBuffer.wrap(b, off, len);
+            writeBuffer(gather);
+            gather[1] = null;
+        } else if (len >= buf.capacity())
+        {
+            // large write - flush what we have and write it directly
+            flushBuffer();
+            out.write(b, off, len);
+        } else
+        {
+            flushBuffer();
+            buf.put(b, off, len);
+        }
+    }
+
+    /**
+     * Writes a header line (the name, a colon and space, the value and CRLF).
+     * The characters are encoded straight into the buffer, without creating
+     * intermediate byte arrays.
+     *
+     * @param name  the header name
+     * @param value the header value
+     *
+     * @throws IOException if an error occurs
+     */
+    public void writeHeader(String name, String value) throws IOException
+    {
+        int len = name.length() + value.length() + 4;
+
+        if (len > buf.remaining())
+        {
+            if (len > buf.capacity())
+            {
+                write(Utils.getBytes(name, ": ", value, "\r\n"));
+                return;
+            }
+
+            flushBuffer();
+        }
+
+        put(name);
+        buf.put((byte) ':').put((byte) ' ');
+        put(value);
+        buf.put((byte) '\r').put((byte) '\n');
+        total += len;
+    }
+
+    /**
+     * Writes the buffered data to the underlying stream (or channel),
+     * without flushing it.
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void flushBuffer() throws IOException
+    {
+        if (buf.position() == 0)
+        {
+            return;
+        }
+
+        if (channel != null)
+        {
+            gather[1] = null;
+            writeBuffer(gather);
+        } else
+        {
+            out.write(buf.array(), buf.arrayOffset(), buf.position());
+            buf.clear();
+        }
+    }
+
+    /**
+     * Encodes the given string into the buffer, which must have room for it.
+     * As in {@link Utils#getBytes}, each char is truncated to a byte.
+     *
+     * @param s the string
+     */
+    protected void put(String s)
+    {
+        for (int i = 0, len = s.length(); i < len; i++)
+        {
+            buf.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the buffered data, followed by the given buffer (if not null),
+     * to the channel, using as few gathering writes as the channel allows.
+     *
+     * @param srcs the buffered data's slot (ignored) and the following buffer
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void writeBuffer(ByteBuffer[] srcs) throws IOException
+    {
+        buf.flip();
+        srcs[0] = buf;
+        int length = srcs[1] == null ? 1 : 2;
+
+        try
+        {
+            while (srcs[length - 1].hasRemaining())
+            {
+                channel.write(srcs, 0, length);
+            }
+        } finally
+        {
+            buf.clear();
+            srcs[0] = null;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ *  File Name:    ContentCache.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The {@code ContentCache} holds the contents of recently served static
+ * files in memory, together with the metadata needed to serve them.
+ * <p>
+ * A cached file is served without touching the file system, except that its
+ * modification time and size are checked at most once every
+ * {@link #getRevalidateInterval() revalidate interval}: if either has
+ * changed, or the file is gone, the entry is dropped and the file is served
+ * (and cached) afresh.
+ * <p>
+ * The cache is bounded by the total size of the cached contents. When full,
+ * the least recently used entries are evicted. Files larger than the
+ * maximum entry size are never cached, as they are better sent with
+ * {@link Response#sendFile zero-copy} transfers.
+ * <p>
+ * Each entry also keeps the encoded (compressed) variants of its file that
+ * have been requested: a precompressed sidecar file (e.g. {@code foo.js.gz}
+ * or {@code foo.js.br}) if there is one, or else, for gzip, the file
+ * compressed once on first request. Variants are dropped along with their
+ * entry, when the file changes.
+ * <p>
+ * Only cached files are compressed once. A file that is larger than the
+ * maximum entry size, or served without a cache, and has no sidecar, is
+ * still compressed on the fly for each request that accepts gzip, and sent
+ * with chunked encoding. Large compressible files are best given a sidecar.
+ * <p>
+ * A single cache may be shared by several context handlers.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class ContentCache
+{
+    /**
+     * The default maximum size of a single cached file: 1 MiB.
+     */
+    public static final long DEFAULT_MAX_ENTRY_SIZE = 1L << 20;
+
+    /**
+     * The default maximum total size of the cached contents: 64 MiB.
+     */
+    public static final long DEFAULT_MAX_SIZE = 64L << 20;
+
+    /**
+     * The default revalidate interval: 1 second.
+     */
+    public static final long DEFAULT_REVALIDATE_INTERVAL = 1000;
+
+    /**
+     * The cached entries, in least recently used order.
+     */
+    protected final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    protected final LongAdder hits = new LongAdder();
+
+    /**
+     * Guards {@link #entries} and {@link #size}.
+     * A lock is used rather than {@code synchronized}, so that virtual threads
+     * are not pinned.
+     */
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final long maxEntrySize;
+
+    protected final long maxSize;
+
+    protected final LongAdder misses = new LongAdder();
+
+    protected final long revalidateInterval;
+
+    protected long size; // total size of the cached contents
+
+    /**
+     * Constructs a ContentCache with the default limits.
+     */
+    public ContentCache()
+    {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTRY_SIZE, DEFAULT_REVALIDATE_INTERVAL);
+    }
+
+    /**
+     * Constructs a ContentCache.
+     *
+     * @param maxSize            the maximum total size of the cached contents
+     * @param maxEntrySize       the maximum size of a single cached file
+     * @param revalidateInterval the number of milliseconds a cached file is
+     *                           served before its modification time and size
+     *                           are checked again (0 checks every time)
+     *
+     * @throws IllegalArgumentException if a value is negative
+     */
+    public ContentCache(long maxSize, long maxEntrySize, long revalidateInterval)
+    {
+        if (maxSize < 0 || maxEntrySize < 0 || revalidateInterval < 0)
+        {
+            throw new IllegalArgumentException("invalid cache limits: "
+                    + maxSize + "/" + maxEntrySize + "/" + revalidateInterval);
+        }
+
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxEntrySize, maxSize);
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        lock.lock();
+
+        try
+        {
+            entries.clear();
+            size = 0;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the entry cached under the given key, if it is still valid.
+     *
+     * @param key the key, as given to {@link #load load}
+     *
+     * @return the entry, or null if there is none (or it was stale)
+     */
+    public Entry get(Path key)
+    {
+        Entry entry;
+        lock.lock();
+
+        try
+        {
+            entry = entries.get(key);
+        } finally
+        {
+            lock.unlock();
+        }
+
+        if (entry != null)
+        {
+            long now = System.currentTimeMillis();
+
+            if (now - entry.validated < revalidateInterval || entry.isUnchanged())
+            {
+                entry.validated = now;
+                hits.increment();
+
+                return entry;
+            }
+
+            remove(key, entry);
+        }
+
+        misses.increment();
+
+        return null;
+    }
+
+    /**
+     * Returns the entry's file in the given content encoding.
+     * <p>
+     * The first time an encoding is requested, the file's sidecar (the file
+     * name with the given suffix) is read if it exists and is not older than
+     * the file. Otherwise, for gzip, the file is compressed. The result
+     * (including its absence) is kept with the entry.
+     *
+     * @param entry    the entry
+     * @param encoding the content encoding, e.g. "gzip" or "br"
+     * @param suffix   the suffix of the encoding's sidecar files, e.g. ".gz"
+     *
+     * @return the encoded file, or null if it is not available in that
+     *         encoding
+     *
+     * @throws IOException if an error occurs
+     */
+    public byte[] getEncoded(Entry entry, String encoding, String suffix) throws IOException
+    {
+        byte[] encoded = entry.encoded.get(encoding);
+
+        if (encoded == null)
+        {
+            encoded = encode(entry, encoding, suffix);
+            lock.lock();
+
+            try
+            {
+                byte[] previous = entry.encoded.putIfAbsent(encoding, encoded);
+
+                if (previous != null)
+                {
+                    encoded = previous;
+                } else
+                {
+                    entry.size += encoded.length;
+
+                    if (entries.get(entry.key) == entry)
+                    {
+                        size += encoded.length;
+                        evict();
+                    }
+                }
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+
+        return encoded.length > 0 ? encoded : null;
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests not served from the cache.
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the revalidate interval.
+     *
+     * @return the number of milliseconds between checks of a cached file
+     */
+    public long getRevalidateInterval()
+    {
+        return revalidateInterval;
+    }
+
+    /**
+     * Returns the total size of the cached contents.
+     *
+     * @return the size in bytes
+     */
+    public long getSize()
+    {
+        lock.lock();
+
+        try
+        {
+            return size;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a file, which has already been found servable, into the cache.
+     *
+     * @param key         the key to cache it under, which is derived from the
+     *                    request without touching the file system
+     * @param file        the (resolved) file
+     * @param contentType the file's content type
+     *
+     * @return the new entry, or null if the file is too large to be cached
+     *
+     * @throws IOException if an error occurs
+     */
+    public Entry load(Path key, Path file, String contentType) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+        if (attrs.size() > maxEntrySize)
+        {
+            return null;
+        }
+
+        Entry entry = new Entry(key, file, Files.readAllBytes(file),
+                attrs.lastModifiedTime().toMillis(), contentType);
+
+        if (entry.body.length != attrs.size() || !entry.isUnchanged())
+        {
+            return null; // modified while being read - serve it uncached
+        }
+
+        lock.lock();
+
+        try
+        {
+            Entry previous = entries.put(key, entry);
+            size += entry.size - (previous != null ? previous.size : 0);
+            evict();
+        } finally
+        {
+            lock.unlock();
+        }
+
+        return entry;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ContentCache{"
+                + "\nhits=" + hits + ", "
+                + "\nmaxEntrySize=" + maxEntrySize + ", "
+                + "\nmaxSize=" + maxSize + ", "
+                + "\nmisses=" + misses + ", "
+                + "\nrevalidateInterval=" + revalidateInterval + ", "
+                + "\nsize=" + getSize() + '}';
+    }
+
+    /**
+     * Reads or creates the encoded variant of an entry's file.
+     *
+     * @param entry    the entry
+     * @param encoding the content encoding
+     * @param suffix   the suffix of the encoding's sidecar files
+     *
+     * @return the encoded file, or an empty array if it is not available
+     *
+     * @throws IOException if an error occurs
+     */
+    protected byte[] encode(Entry entry, String encoding, String suffix) throws IOException
+    {
+        Path sidecar = entry.file.resolveSibling(entry.file.getFileName() + suffix);
+
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes(sidecar, BasicFileAttributes.class);
+
+            if (attrs.isRegularFile() && attrs.size() <= maxEntrySize
+                    && attrs.lastModifiedTime().toMillis() >= entry.lastModified)
+            {
+                return Files.readAllBytes(sidecar);
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp - no sidecar
+        }
+
+        if (!encoding.equals("gzip"))
+        {
+            return new byte[0];
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.body.length / 2);
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes, 4096))
+        {
+            gzip.write(entry.body);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is within its
+     * maximum size. Must be called while holding the lock.
+     */
+    protected void evict()
+    {
+        for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext();)
+        {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes an entry, unless it has already been replaced.
+     *
+     * @param key   the key
+     * @param entry the entry
+     */
+    protected void remove(Path key, Entry entry)
+    {
+        lock.lock();
+
+        try
+        {
+            if (entries.remove(key, entry))
+            {
+                size -= entry.size;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The {@code Entry} class holds a cached file's contents and metadata.
+     */
+    public static class Entry
+    {
+        /**
+         * The file's contents.
+         */
+        public final byte[] body;
+
+        public final String contentType;
+
+        /**
+         * The file's (weak) ETag, as used for uncached files.
+         */
+        public final String etag;
+
+        public final long lastModified;
+
+        /**
+         * The encoded variants of the file, by content encoding (empty if
+         * not available).
+         */
+        protected final Map<String, byte[]> encoded = new ConcurrentHashMap<>(4);
+
+        protected final Path file;
+
+        protected final Path key;
+
+        protected long size; // total size of body and encoded variants, guarded by the cache's lock
+
+        protected volatile long validated; // when the file was last known to be unchanged
+
+        /**
+         * Constructs an Entry.
+         *
+         * @param key          the key it is cached under
+         * @param file         the file
+         * @param body         the file's contents
+         * @param lastModified the file's modification time
+         * @param contentType  the file's content type
+         */
+        protected Entry(Path key, Path file, byte[] body, long lastModified, String contentType)
+        {
+            this.key = key;
+            this.file = file;
+            this.body = body;
+            this.size = body.length;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.etag = "W/\"" + lastModified + "\""; // a weak tag based on date
+            this.validated = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks whether the file still has the modification time and size
+         * it had when it was cached.
+         *
+         * @return false if the file has changed or can no longer be read
+         */
+        protected boolean isUnchanged()
+        {
+            try
+            {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+                return attrs.lastModifiedTime().toMillis() == lastModified
+                        && attrs.size() == body.length;
+            } catch (IOException ex)
+            {
+                return false;
+            }
+        }
+    }
+}
@@ -20,7 +20,10 @@
 
 package com.bewsoftware.httpserver;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -28,9 +31,12 @@ import java.util.concurrent.ConcurrentHashMap;
  * The {@code ContextInfo} class holds a single context's information.
  * <p>
  * Refactored out to separate file: v2.6.3.
+ * <p>
+ * The context path may be a template, whose variables are whole path
+ * segments in braces (e.g. {@code /users/{id}}). See {@link ContextRouter}.
  *
  * @since 1.0
- * @version 2.6.3
+ * @version 2.7.1
  */
 public class ContextInfo
 {
@@ -40,6 +46,8 @@ public class ContextInfo
 
     protected final String path;
 
+    protected final String[] variables; // variable name by path segment (null if literal), or null if none
+
     /**
      * Constructs a ContextInfo with the given context path.
      *
@@ -50,6 +58,35 @@ public class ContextInfo
     {
         this.outer = outer;
         this.path = path;
+        this.variables = parseVariables(path);
+    }
+
+    /**
+     * Returns the template variable names of a context path.
+     *
+     * @param path the context path (or null)
+     *
+     * @return the variable name of each path segment (null for literal
+     *         segments), or null if the path has no variables
+     */
+    private static String[] parseVariables(String path)
+    {
+        if (path == null || path.indexOf('{') < 0)
+        {
+            return null;
+        }
+
+        List<String> names = new ArrayList<>();
+        boolean found = false;
+
+        for (String segment : path.split("/", -1))
+        {
+            boolean variable = ContextRouter.isVariable(segment);
+            names.add(variable ? segment.substring(1, segment.length() - 1) : null);
+            found |= variable;
+        }
+
+        return found ? names.toArray(String[]::new) : null;
     }
 
     /**
@@ -88,6 +125,40 @@ public class ContextInfo
         return Collections.unmodifiableMap(handlers);
     }
 
+    /**
+     * Returns the values of this context's path template variables, as
+     * matched by the given path.
+     *
+     * @param path a request path matched by this context
+     *
+     * @return the variable names and values, in path order (empty if this
+     *         context's path is not a template)
+     */
+    public Map<String, String> getPathParams(String path)
+    {
+        if (variables == null)
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> params = new LinkedHashMap<>();
+
+        for (int i = 0, start = 0; i < variables.length && start <= path.length(); i++)
+        {
+            int end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+
+            if (variables[i] != null)
+            {
+                params.put(variables[i], path.substring(start, end));
+            }
+
+            start = end + 1;
+        }
+
+        return params;
+    }
+
     /**
      * Returns the context path.
      *
@@ -0,0 +1,326 @@
+/*
+ *  File Name:    ContextRouter.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+/**
+ * The {@code ContextRouter} class is a prefix tree of context paths, which
+ * finds the longest context path that matches a request path.
+ * <p>
+ * Each node of the tree is a path segment. A lookup walks the request path
+ * once, one segment at a time, and finds each segment among a node's
+ * children by hashing its characters in place, so no substrings (or other
+ * objects) are created, however many contexts there are or however deep
+ * the path is.
+ * <p>
+ * A context path may be a template, in which a whole segment is a variable
+ * in braces (e.g. {@code /users/{id}/posts}). Such a segment matches any
+ * non-empty request path segment. When both a literal segment and a
+ * variable lead to a context, the longer context path wins, and the literal
+ * one if they are equally long. The values of the variables are available from
+ * {@link Request#getPathParams()}.
+ * <p>
+ * A router is not thread-safe while contexts are being added; the
+ * {@link VirtualHost} builds a new one whenever a context is added, and only
+ * ever looks up contexts in a complete router.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class ContextRouter
+{
+    protected final Node root = new Node(0);
+
+    /**
+     * Constructs an empty ContextRouter.
+     */
+    public ContextRouter()
+    {
+    }
+
+    /**
+     * Returns the hash code of a path segment, which is the same as that of
+     * the equivalent String.
+     *
+     * @param path  the path
+     * @param start the segment start
+     * @param end   the segment end
+     *
+     * @return the hash code
+     */
+    protected static int hash(String path, int start, int end)
+    {
+        int h = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            h = 31 * h + path.charAt(i);
+        }
+
+        return h;
+    }
+
+    /**
+     * Returns whether a path segment is a template variable, e.g. "{id}".
+     *
+     * @param segment the path segment
+     *
+     * @return true if it is a variable
+     */
+    protected static boolean isVariable(String segment)
+    {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    /**
+     * Adds a context.
+     *
+     * @param info the context info, whose path is either empty (the root
+     *             context), or starts with '/' and has no trailing slash
+     *
+     * @throws IllegalArgumentException if the path is malformed, or another
+     *                                  context has an equivalent path
+     *                                  (e.g. the same template with
+     *                                  different variable names)
+     */
+    public void add(ContextInfo info)
+    {
+        String path = info.getPath();
+
+        if (!path.isEmpty() && (path.charAt(0) != '/' || path.endsWith("/")))
+        {
+            throw new IllegalArgumentException("invalid path: " + path);
+        }
+
+        Node node = root;
+
+        for (int start = 1, end; start <= path.length(); start = end + 1)
+        {
+            end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+            String segment = path.substring(start, end);
+
+            if (segment.isEmpty())
+            {
+                throw new IllegalArgumentException("invalid path: " + path);
+            }
+
+            if (isVariable(segment))
+            {
+                if (node.variable == null)
+                {
+                    node.variable = new Node(node.depth + 1);
+                }
+
+                node = node.variable;
+            } else
+            {
+                node = node.addChild(segment);
+            }
+        }
+
+        if (node.info != null)
+        {
+            throw new IllegalArgumentException("context " + path + " conflicts with " + node.info.getPath());
+        }
+
+        node.info = info;
+    }
+
+    /**
+     * Returns the context with the longest path that matches the given path,
+     * segment by segment.
+     *
+     * @param path the request path (starting with '/')
+     *
+     * @return the context, or null if there is none
+     */
+    public ContextInfo find(String path)
+    {
+        Node node = path.startsWith("/") ? find(root, path, 0) : null;
+        return node != null ? node.info : null;
+    }
+
+    /**
+     * Returns the node of the context with the longest path that matches the
+     * given path, from a node onward.
+     *
+     * @param node the node matched so far
+     * @param path the request path
+     * @param pos  the end of the path matched so far (at a '/' or the end)
+     *
+     * @return the context's node, or null if there is none
+     */
+    protected Node find(Node node, String path, int pos)
+    {
+        int start = pos + 1;
+
+        if (start < path.length())
+        {
+            int end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+
+            if (end > start)
+            {
+                Node child = node.getChild(path, start, end);
+                Node found = child != null ? find(child, path, end) : null;
+
+                if (node.variable != null)
+                {
+                    Node variable = find(node.variable, path, end);
+
+                    if (variable != null && (found == null || variable.depth > found.depth))
+                    {
+                        found = variable;
+                    }
+                }
+
+                if (found != null)
+                {
+                    return found;
+                }
+            }
+        }
+
+        return node.info != null ? node : null;
+    }
+
+    /**
+     * A node of the tree, i.e. a path segment.
+     */
+    protected static class Node
+    {
+        protected Node[] children; // by label hash (open addressing), or null
+
+        protected final int depth; // number of segments
+
+        protected ContextInfo info; // the context whose path ends here, or null
+
+        protected String[] labels; // the literal segments of the children
+
+        protected int size; // number of children
+
+        protected Node variable; // the child for a template variable, or null
+
+        /**
+         * Constructs an empty Node.
+         *
+         * @param depth the number of segments up to and including this one
+         */
+        protected Node(int depth)
+        {
+            this.depth = depth;
+        }
+
+        /**
+         * Returns the child for the given literal segment, adding it if
+         * necessary.
+         *
+         * @param label the segment
+         *
+         * @return the child
+         */
+        protected Node addChild(String label)
+        {
+            if (labels == null || 2 * (size + 1) > labels.length)
+            {
+                rehash(labels == null ? 4 : 2 * labels.length);
+            }
+
+            int mask = labels.length - 1;
+            int i = label.hashCode() & mask;
+
+            for (; labels[i] != null; i = (i + 1) & mask)
+            {
+                if (labels[i].equals(label))
+                {
+                    return children[i];
+                }
+            }
+
+            size++;
+            labels[i] = label;
+            return children[i] = new Node(depth + 1);
+        }
+
+        /**
+         * Returns the child for the given path segment.
+         *
+         * @param path  the path
+         * @param start the segment start
+         * @param end   the segment end
+         *
+         * @return the child, or null if there is none
+         */
+        protected Node getChild(String path, int start, int end)
+        {
+            if (labels == null)
+            {
+                return null;
+            }
+
+            int mask = labels.length - 1;
+            int len = end - start;
+
+            for (int i = hash(path, start, end) & mask; labels[i] != null; i = (i + 1) & mask)
+            {
+                if (labels[i].length() == len && path.regionMatches(start, labels[i], 0, len))
+                {
+                    return children[i];
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Resizes the children table.
+         *
+         * @param capacity the new capacity (a power of two)
+         */
+        protected void rehash(int capacity)
+        {
+            String[] oldLabels = labels;
+            Node[] oldChildren = children;
+            labels = new String[capacity];
+            children = new Node[capacity];
+
+            for (int j = 0; oldLabels != null && j < oldLabels.length; j++)
+            {
+                if (oldLabels[j] != null)
+                {
+                    int i = oldLabels[j].hashCode() & capacity - 1;
+
+                    while (labels[i] != null)
+                    {
+                        i = (i + 1) & capacity - 1;
+                    }
+
+                    labels[i] = oldLabels[j];
+                    children[i] = oldChildren[j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,794 @@
+/*
+ *  File Name:    EventStream.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An {@code EventStream} is a response that streams Server-Sent Events
+ * (the {@code text/event-stream} format) to the client.
+ * <p>
+ * Events may be sent from any thread. They are queued, and written by a
+ * writer which sends all the events queued within the
+ * {@link #setCoalesceWindow coalescing window} as a single chunk, with a
+ * single flush. A comment line is sent as a heartbeat when the stream has
+ * been idle for the {@link #setHeartbeatInterval heartbeat interval}, which
+ * keeps proxies from dropping the connection and detects clients that have
+ * gone away.
+ * <p>
+ * A stream is best {@link #serveAsync served asynchronously}, by an
+ * {@link AsyncContextHandler}: the transaction is then suspended until the
+ * stream is closed, and a shared writer thread is only taken while there is
+ * something to write, so idle streams hold no threads at all. For example:
+ * <pre>{@code
+ * server.getVirtualHost(null).addContext("/events", (AsyncContextHandler) (req, resp) -> {
+ *     EventStream stream = new EventStream(req, resp);
+ *     subscribers.add(stream);
+ *
+ *     return stream.serveAsync() // completes once the stream is closed
+ *             .whenComplete((status, e) -> subscribers.remove(stream));
+ * });
+ * ...
+ * for (EventStream stream : subscribers) {
+ *     stream.send("price", "42.5");
+ * }
+ * }</pre>
+ * A stream may instead be {@link #serve served} by a plain
+ * {@link ContextHandler}, whose thread then writes the events, and is held
+ * for the life of the stream. With a bounded executor (see
+ * {@link HTTPServer#newBoundedExecutor}), a few hundred idle clients would
+ * take all its threads, so this needs
+ * {@link HTTPServer#setVirtualThreads virtual threads} or an unbounded pool.
+ * It is also the fallback where a transaction cannot be suspended (e.g. on an
+ * HTTP/2 stream), as the handler then waits for the stage.
+ * <p>
+ * Heartbeats are timed by a single scheduler thread shared by all streams,
+ * which only wakes the streams that are due.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class EventStream implements Closeable
+{
+    /**
+     * The content type of an event stream.
+     */
+    public static final String CONTENT_TYPE = "text/event-stream; charset=utf-8";
+
+    /**
+     * The default coalescing window, in milliseconds.
+     */
+    public static final long DEFAULT_COALESCE_WINDOW = 10;
+
+    /**
+     * The default heartbeat interval, in milliseconds.
+     */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15_000;
+
+    /**
+     * The default maximum size of the queued events.
+     */
+    public static final int DEFAULT_MAX_QUEUED = 1024 * 1024;
+
+    /**
+     * The heartbeat, a comment line.
+     */
+    protected static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF_8);
+
+    /**
+     * How often the scheduler looks for streams that are due a heartbeat,
+     * in milliseconds.
+     */
+    protected static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * The open streams, which the scheduler sweeps for heartbeats.
+     */
+    protected static final Set<EventStream> STREAMS = ConcurrentHashMap.newKeySet();
+
+    protected final Condition changed; // an event was queued, a heartbeat is due or the stream closed (serve)
+
+    protected volatile boolean closed;
+
+    protected volatile long coalesceWindow = DEFAULT_COALESCE_WINDOW * 1_000_000; // in nanoseconds
+
+    protected CompletableFuture<Integer> done; // completed once the stream ends (serveAsync)
+
+    protected long firstQueued; // when the oldest queued event was queued (lock)
+
+    protected boolean heartbeatDue; // lock
+
+    protected volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL * 1_000_000; // in nanoseconds
+
+    protected volatile long lastWrite = System.nanoTime();
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected volatile int maxQueued = DEFAULT_MAX_QUEUED;
+
+    protected final OutputStream out; // the chunked response body, or null if it is discarded
+
+    protected byte[] queue = new byte[256]; // the formatted events, in order (lock)
+
+    protected int queued; // number of bytes in queue (lock)
+
+    protected final Request req;
+
+    protected boolean served; // serve or serveAsync was called (lock)
+
+    protected byte[] spare = new byte[256]; // swapped with the queue when it is written (lock)
+
+    protected boolean writing; // a writer is scheduled or running (serveAsync, lock)
+
+    /**
+     * Constructs an EventStream, and sends the response headers.
+     * <p>
+     * The response is not compressed, as compressing streams buffer their
+     * output, and is sent with the chunked transfer encoding (over HTTP/1.1).
+     *
+     * @param req  the request
+     * @param resp the response
+     *
+     * @throws IOException if an error occurs
+     */
+    public EventStream(Request req, Response resp) throws IOException
+    {
+        this.req = req;
+        this.changed = lock.newCondition();
+        resp.getHeaders().add("Cache-Control", "no-cache");
+        resp.setBodyEncoded(true); // not compressed
+        resp.sendHeaders(200, -1, -1, null, CONTENT_TYPE, null);
+        out = resp.getBody();
+        closed = out == null; // e.g. a HEAD request
+    }
+
+    /**
+     * Returns the last event ID the client received, sent when it
+     * reconnects.
+     *
+     * @return the {@code Last-Event-ID} header, or null if there is none
+     */
+    public String getLastEventId()
+    {
+        return req.getHeaders().get("Last-Event-ID");
+    }
+
+    /**
+     * Returns whether events can still be sent.
+     *
+     * @return true until the stream is closed
+     */
+    public boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * Sets the time that events are held for, so that any events sent
+     * meanwhile are written together. If zero, events are written as soon
+     * as the writer gets to them (which still coalesces any that are queued
+     * while it is writing).
+     *
+     * @param window the coalescing window, in milliseconds
+     *
+     * @throws IllegalArgumentException if window is negative
+     */
+    public void setCoalesceWindow(long window)
+    {
+        if (window < 0)
+        {
+            throw new IllegalArgumentException("invalid window: " + window);
+        }
+
+        this.coalesceWindow = window * 1_000_000;
+    }
+
+    /**
+     * Sets the time without any writes after which a heartbeat is sent.
+     * Heartbeats are timed to within a second.
+     *
+     * @param interval the heartbeat interval, in milliseconds
+     *
+     * @throws IllegalArgumentException if interval is not positive
+     */
+    public void setHeartbeatInterval(long interval)
+    {
+        if (interval <= 0)
+        {
+            throw new IllegalArgumentException("invalid interval: " + interval);
+        }
+
+        this.heartbeatInterval = interval * 1_000_000;
+    }
+
+    /**
+     * Sets the maximum size of the events queued for the client. A client
+     * that falls that far behind is too slow, and its stream is closed.
+     *
+     * @param maxQueued the maximum size of the queued events, in bytes
+     *
+     * @throws IllegalArgumentException if maxQueued is not positive
+     */
+    public void setMaxQueued(int maxQueued)
+    {
+        if (maxQueued <= 0)
+        {
+            throw new IllegalArgumentException("invalid size: " + maxQueued);
+        }
+
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Sets the time the client waits before reconnecting, when the
+     * connection is lost.
+     *
+     * @param retry the reconnection time, in milliseconds
+     *
+     * @return true if the field was queued, or false if the stream is
+     *         closed
+     */
+    public boolean setRetry(long retry)
+    {
+        return enqueue("retry: " + retry + "\n\n");
+    }
+
+    /**
+     * Closes the stream. Events that were already queued are still sent.
+     */
+    @Override
+    public void close()
+    {
+        lock.lock();
+
+        try
+        {
+            closed = true;
+            changed.signalAll();
+            schedule();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends an unnamed event (of type "message").
+     *
+     * @param data the event data, which may span several lines
+     *
+     * @return true if the event was queued, or false if the stream is
+     *         closed
+     */
+    public boolean send(String data)
+    {
+        return send(null, null, data);
+    }
+
+    /**
+     * Sends an event.
+     *
+     * @param event the event type, or null for "message"
+     * @param data  the event data, which may span several lines
+     *
+     * @return true if the event was queued, or false if the stream is
+     *         closed
+     */
+    public boolean send(String event, String data)
+    {
+        return send(null, event, data);
+    }
+
+    /**
+     * Sends an event.
+     *
+     * @param id    the event ID, or null if none
+     * @param event the event type, or null for "message"
+     * @param data  the event data, which may span several lines
+     *
+     * @return true if the event was queued, or false if the stream is
+     *         closed (or the client fell too far behind)
+     *
+     * @throws IllegalArgumentException if the ID or type span several lines
+     */
+    public boolean send(String id, String event, String data)
+    {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        field(sb, "id", id);
+        field(sb, "event", event);
+
+        for (String line : data.split("\r\n|\r|\n", -1))
+        {
+            sb.append("data: ").append(line).append('\n');
+        }
+
+        return enqueue(sb.append('\n').toString());
+    }
+
+    /**
+     * Writes the queued events and heartbeats until the stream is closed,
+     * by either side. This is meant to be called by the context handler
+     * that created the stream, which returns once it has, so the calling
+     * thread is held for the life of the stream (see {@link #serveAsync}).
+     *
+     * @throws IOException           if an error occurs (e.g. the client has
+     *                               gone)
+     * @throws IllegalStateException if the stream is already being served
+     */
+    public void serve() throws IOException
+    {
+        start();
+
+        if (closed)
+        {
+            return;
+        }
+
+        register(this);
+
+        try
+        {
+            while (true)
+            {
+                byte[] batch;
+                int length;
+
+                lock.lock();
+
+                try
+                {
+                    while (!closed && queued == 0 && !heartbeatDue)
+                    {
+                        changed.await();
+                    }
+
+                    // hold the events for the rest of the window, unless closing
+                    long wait = firstQueued + coalesceWindow - System.nanoTime();
+
+                    while (queued > 0 && !closed && wait > 0)
+                    {
+                        wait = changed.awaitNanos(wait);
+                    }
+
+                    if (queued == 0 && closed)
+                    {
+                        return;
+                    }
+
+                    heartbeatDue = false;
+                    batch = queue;
+                    length = queued;
+                    queue = spare; // double-buffered, so that events can be queued while writing
+                    queued = 0;
+                } catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", ie);
+                } finally
+                {
+                    lock.unlock();
+                }
+
+                if (length > 0)
+                {
+                    out.write(batch, 0, length); // a single chunk
+                } else
+                {
+                    out.write(HEARTBEAT);
+                }
+
+                out.flush();
+                lastWrite = System.nanoTime();
+
+                lock.lock();
+
+                try
+                {
+                    spare = batch;
+                } finally
+                {
+                    lock.unlock();
+                }
+            }
+        } finally
+        {
+            closed = true;
+            STREAMS.remove(this);
+        }
+    }
+
+    /**
+     * Writes the queued events and heartbeats until the stream is closed,
+     * by either side, without holding a thread while the stream is idle.
+     * This is meant to be returned by the {@link AsyncContextHandler} that
+     * created the stream, whose transaction is then suspended until the
+     * stream is closed.
+     * <p>
+     * The events are written by a shared writer thread, which is taken when
+     * the coalescing window of the first queued event has passed, or a
+     * heartbeat is due, and released once everything queued is written.
+     *
+     * @return a stage which completes with 0 once the stream is closed, or
+     *         exceptionally if an error occurs (e.g. the client has gone)
+     *
+     * @throws IllegalStateException if the stream is already being served
+     */
+    public CompletionStage<Integer> serveAsync()
+    {
+        start();
+
+        if (out == null)
+        {
+            return CompletableFuture.completedFuture(0); // e.g. a HEAD request
+        }
+
+        register(this);
+        lock.lock();
+
+        try
+        {
+            done = new CompletableFuture<>();
+
+            if (queued > 0 || closed)
+            {
+                schedule();
+            }
+
+            return done;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EventStream{"
+                + "\nclosed=" + closed + ", "
+                + "\ncoalesceWindow=" + coalesceWindow / 1_000_000 + ", "
+                + "\nheartbeatInterval=" + heartbeatInterval / 1_000_000 + ", "
+                + "\nuri=" + req.getURI() + '}';
+    }
+
+    /**
+     * Appends a single-line field to an event, if it has a value.
+     *
+     * @param sb    the event
+     * @param name  the field name
+     * @param value the field value, or null
+     *
+     * @throws IllegalArgumentException if the value spans several lines
+     */
+    protected static void field(StringBuilder sb, String name, String value)
+    {
+        if (value != null)
+        {
+            if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            {
+                throw new IllegalArgumentException("invalid " + name + ": " + value);
+            }
+
+            sb.append(name).append(": ").append(value).append('\n');
+        }
+    }
+
+    /**
+     * Registers a stream for heartbeats, starting the shared scheduler if
+     * it is not running yet.
+     *
+     * @param stream the stream
+     */
+    protected static void register(EventStream stream)
+    {
+        STREAMS.add(stream);
+        Heartbeats.start();
+    }
+
+    /**
+     * Wakes the streams that are due a heartbeat, which then send it
+     * themselves, so that the scheduler never blocks on a slow client.
+     */
+    protected static void sweep()
+    {
+        long now = System.nanoTime();
+
+        for (EventStream stream : STREAMS)
+        {
+            if (now - stream.lastWrite >= stream.heartbeatInterval)
+            {
+                stream.heartbeat();
+            }
+        }
+    }
+
+    /**
+     * Queues a formatted event.
+     *
+     * @param event the event, including its terminating blank line
+     *
+     * @return true if the event was queued, or false if the stream is
+     *         closed (or the client fell too far behind)
+     */
+    protected boolean enqueue(String event)
+    {
+        byte[] b = event.getBytes(UTF_8);
+        lock.lock();
+
+        try
+        {
+            if (closed)
+            {
+                return false;
+            }
+
+            if (queued + b.length > maxQueued)
+            {
+                closed = true; // the client is too slow - drop it
+                changed.signalAll();
+                schedule();
+
+                return false;
+            }
+
+            if (queued + b.length > queue.length)
+            {
+                queue = Arrays.copyOf(queue, Math.max(queued + b.length, queue.length * 2));
+            }
+
+            System.arraycopy(b, 0, queue, queued, b.length);
+
+            if (queued == 0)
+            {
+                firstQueued = System.nanoTime();
+                changed.signal(); // only the first event wakes the serving thread
+                schedule(); // or starts the writer
+            }
+
+            queued += b.length;
+
+            return true;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes the stage of a stream served asynchronously, once nothing
+     * more is to be written, and stops its heartbeats.
+     *
+     * @param e the error the stream failed with, or null if it was closed
+     */
+    protected void finish(IOException e)
+    {
+        closed = true;
+        STREAMS.remove(this);
+
+        if (e == null)
+        {
+            done.complete(0);
+        } else
+        {
+            done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Marks a heartbeat as due, and wakes the serving thread (or starts the
+     * writer) to send it.
+     */
+    protected void heartbeat()
+    {
+        lock.lock();
+
+        try
+        {
+            heartbeatDue = true;
+            changed.signal();
+            schedule();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the writer of a stream served asynchronously, unless it is
+     * not, or the writer is already scheduled or running. Queued events are
+     * held for the rest of their coalescing window first, unless closing.
+     * Must be called with the lock held.
+     */
+    protected void schedule()
+    {
+        if (done == null || writing)
+        {
+            return;
+        }
+
+        writing = true;
+        long wait = queued > 0 && !closed ? firstQueued + coalesceWindow - System.nanoTime() : 0;
+
+        if (wait > 0)
+        { // the scheduler only hands over, so that it never blocks on a slow client
+            Heartbeats.SCHEDULER.schedule(() -> Writers.EXECUTOR.execute(this::write),
+                    wait, TimeUnit.NANOSECONDS);
+        } else
+        {
+            Writers.EXECUTOR.execute(this::write);
+        }
+    }
+
+    /**
+     * Marks the stream as being served.
+     *
+     * @throws IllegalStateException if it is already being served
+     */
+    protected void start()
+    {
+        lock.lock();
+
+        try
+        {
+            if (served)
+            {
+                throw new IllegalStateException("already served");
+            }
+
+            served = true;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the queued events, or a heartbeat, of a stream served
+     * asynchronously, as a single chunk. This runs on the writer's thread,
+     * which is released afterwards: events queued meanwhile start another
+     * writer once their coalescing window has passed.
+     */
+    protected void write()
+    {
+        byte[] batch = null; // nothing to write
+        int length = 0;
+        boolean ended = false;
+
+        lock.lock();
+
+        try
+        {
+            if (queued == 0 && (closed || !heartbeatDue))
+            {
+                writing = false;
+                ended = closed;
+            } else
+            {
+                heartbeatDue = false;
+                batch = queue;
+                length = queued;
+                queue = spare; // double-buffered, so that events can be queued while writing
+                queued = 0;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+
+        if (batch == null)
+        {
+            if (ended)
+            {
+                finish(null);
+            }
+
+            return;
+        }
+
+        try
+        {
+            if (length > 0)
+            {
+                out.write(batch, 0, length); // a single chunk
+            } else
+            {
+                out.write(HEARTBEAT);
+            }
+
+            out.flush();
+            lastWrite = System.nanoTime();
+        } catch (IOException ioe)
+        {
+            finish(ioe); // the writer stays taken, so none is started again
+            return;
+        }
+
+        lock.lock();
+
+        try
+        {
+            spare = batch;
+            writing = false;
+
+            if (queued > 0 || closed || heartbeatDue)
+            {
+                schedule();
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Holds the scheduler that sweeps the streams for heartbeats, which is
+     * started when the first stream is served.
+     */
+    private static final class Heartbeats
+    {
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "EventStream heartbeats");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        static
+        {
+            SCHEDULER.scheduleWithFixedDelay(EventStream::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Not meant to be instantiated.
+         */
+        private Heartbeats()
+        {
+        }
+
+        /**
+         * Starts the scheduler, if it is not running yet.
+         */
+        static void start()
+        {
+            // NoOp - initializing this class starts the scheduler
+        }
+    }
+}
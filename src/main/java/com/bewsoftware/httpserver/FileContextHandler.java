@@ -33,14 +33,32 @@ import static com.bewsoftware.httpserver.NetUtils.serveFile;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
+@SuppressWarnings("ProtectedField")
 public class FileContextHandler implements ContextHandler, AutoCloseable {
 
     protected final File base;
 
+    protected final ContentCache cache; // or null
+
     public FileContextHandler(String dir) throws IOException {
+        this(dir, null);
+    }
+
+    /**
+     * Instantiate a {@code FileContextHandler} which serves small files
+     * from the given cache. Only the cached files are gzipped once, rather
+     * than for each request.
+     *
+     * @param dir   the directory to publish
+     * @param cache the content cache, or null if none is used
+     *
+     * @throws IOException if the directory cannot be resolved
+     */
+    public FileContextHandler(String dir, ContentCache cache) throws IOException {
         this.base = new File(dir).getCanonicalFile();
+        this.cache = cache;
     }
 
     @Override
@@ -50,6 +68,6 @@ public class FileContextHandler implements ContextHandler, AutoCloseable {
 
     @Override
     public int serve(Request req, Response resp) throws IOException {
-        return serveFile(base, req.getContext().getPath(), req, resp);
+        return serveFile(base, req.getContext().getPath(), req, resp, cache);
     }
 }
@@ -309,27 +309,36 @@ public class FileUtils
         {
             return; // small optimization - avoid buffer creation
         }
-        byte[] buf = new byte[4096];
-        while (len != 0)
-        {
-            int count = len < 0 || buf.length < len ? buf.length : (int) len;
-            count = in.read(buf, 0, count);
 
-            if (count < 0)
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buf = pool.acquire(pool.getTransferSize());
+
+        try
+        {
+            while (len != 0)
             {
-                if (len > 0)
+                int count = len < 0 || buf.length < len ? buf.length : (int) len;
+                count = in.read(buf, 0, count);
+
+                if (count < 0)
                 {
-                    throw new IOException("unexpected end of stream");
+                    if (len > 0)
+                    {
+                        throw new IOException("unexpected end of stream");
+                    }
+                    break;
                 }
-                break;
-            }
 
-            if (out != null)
-            {
-                out.write(buf, 0, count);
-            }
+                if (out != null)
+                {
+                    out.write(buf, 0, count);
+                }
 
-            len -= len > 0 ? count : 0;
+                len -= len > 0 ? count : 0;
+            }
+        } finally
+        {
+            pool.release(buf);
         }
     }
 
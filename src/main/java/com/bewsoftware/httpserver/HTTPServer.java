@@ -22,18 +22,37 @@
 package com.bewsoftware.httpserver;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.swing.JOptionPane;
 
+import static com.bewsoftware.httpserver.NetUtils.awaitStatus;
 import static com.bewsoftware.httpserver.NetUtils.handleTransaction;
+import static com.bewsoftware.httpserver.Utils.getBytes;
 import static com.bewsoftware.httpserver.Utils.openURL;
 import static com.bewsoftware.httpserver.Utils.split;
 import static com.bewsoftware.httpserver.util.BJSPOMProperties.INSTANCE;
@@ -65,9 +84,13 @@ import static java.lang.System.exit;
  * streams</li>
  * <li>Gzip/deflate compression - reduces bandwidth and download time</li>
  * <li>HTTPS - secures all server communications</li>
+ * <li>HTTP/2 - multiplexed streams over h2c or TLS (ALPN), when enabled</li>
+ * <li>WebSockets - upgrade handling, permessage-deflate and broadcasting</li>
  * <li>Partial content - download continuation (a.k.a. byte range serving)</li>
- * <li>File upload - multipart/form-data handling as stream or iterator</li>
+ * <li>File upload - multipart/form-data handling as stream, iterator or
+ * spooled upload (in memory or temporary files, within quotas)</li>
  * <li>Multiple context handlers - a different handler method per URL path</li>
+ * <li>Asynchronous handlers - no thread is held while a handler waits</li>
  * <li>@Context annotations - auto-detection of context handler methods</li>
  * <li>Parameter parsing - from query string or x-www-form-urlencoded body</li>
  * <li>A single source file - super-easy to integrate into any application</li>
@@ -166,7 +189,7 @@ import static java.lang.System.exit;
  *
  * @author Amichai Rothman
  * @since 2008-07-24
- * @version 2.6.4
+ * @version 2.7.1
  */
 @SuppressWarnings("ProtectedField")
 public class HTTPServer
@@ -259,11 +282,26 @@ public class HTTPServer
      */
     protected static final Map<String, String> contentTypes = new ConcurrentHashMap<>();
 
+    /**
+     * The HTTP status lines (e.g. "HTTP/1.1 200 OK" and CRLF), encoded once
+     * from {@link #statuses} when this class is initialized.
+     */
+    protected static final byte[][] statusLines = new byte[600][];
+
     /**
      * The HTTP status description strings.
      */
     protected static final String[] statuses = new String[600];
 
+    protected volatile int acceptorThreads = 1;
+
+    protected volatile AccessLog accessLog; // null if requests are not logged
+
+    /**
+     * The number of connections currently being served by the executor.
+     */
+    protected final AtomicInteger activeConnections = new AtomicInteger();
+
     /**
      * Setting to disallow web browsers caching the files sent by an instance of
      * HTTPServer.
@@ -273,12 +311,59 @@ public class HTTPServer
      */
     protected boolean disallowBrowserFileCaching;
 
+    protected volatile ConnectionEngine engine;
+
     protected volatile Executor executor;
 
+    /**
+     * The number of connections shed because the executor rejected them
+     * (e.g. its queue was full).
+     */
+    protected final LongAdder executorRejections = new LongAdder();
+
     protected final Map<String, VirtualHost> hosts = new ConcurrentHashMap<>();
 
+    protected volatile boolean http2; // whether HTTP/2 connections are accepted
+
+    /**
+     * All listening sockets, including {@link #serv}.
+     * There is more than one when the acceptor threads each have their own
+     * {@link #setReusePort SO_REUSEPORT} socket.
+     */
+    protected final List<ServerSocket> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Guards {@link #start()} and {@link #stop()}.
+     * <p>
+     * A lock is used rather than {@code synchronized}, so that a virtual
+     * thread starting or stopping the server is not pinned while sockets are
+     * being bound or closed.
+     */
+    protected final ReentrantLock lifecycleLock = new ReentrantLock();
+
+    /**
+     * The number of connections shed because {@link #maxConnections} were
+     * already being served.
+     */
+    protected final LongAdder limitRejections = new LongAdder();
+
+    protected volatile int maxConnections; // 0 means unlimited
+
+    protected volatile Metrics metrics; // null if metrics are not recorded
+
+    /**
+     * The pre-encoded response sent to connections that are shed.
+     */
+    protected volatile byte[] overloadResponse = encodeOverloadResponse(1);
+
+    protected volatile int poolQueueDepth;
+
+    protected volatile int poolThreads; // 0 means unbounded (no pool)
+
     protected volatile int port;
 
+    protected volatile boolean reusePort;
+
     protected volatile boolean secure;
 
     protected volatile ServerSocket serv;
@@ -289,11 +374,14 @@ public class HTTPServer
 
     protected volatile int socketTimeout = 1000;
 
+    protected volatile boolean virtualThreads;
+
     static
     {
         // initialize status descriptions lookup table
         Arrays.fill(statuses, "Unknown Status");
         statuses[100] = "Continue";
+        statuses[101] = "Switching Protocols";
         statuses[200] = "OK";
         statuses[204] = "No Content";
         statuses[206] = "Partial Content";
@@ -312,11 +400,17 @@ public class HTTPServer
         statuses[414] = "Request-URI Too Large";
         statuses[416] = "Requested Range Not Satisfiable";
         statuses[417] = "Expectation Failed";
+        statuses[426] = "Upgrade Required";
         statuses[500] = "Internal Server Error";
         statuses[501] = "Not Implemented";
         statuses[502] = "Bad Gateway";
         statuses[503] = "Service Unavailable";
         statuses[504] = "Gateway Time-out";
+
+        for (int status = 0; status < statuses.length; status++)
+        {
+            statusLines[status] = getBytes("HTTP/1.1 ", Integer.toString(status), " ", statuses[status], "\r\n");
+        }
     }
 
     static
@@ -507,6 +601,76 @@ public class HTTPServer
         return OS.contains("win");
     }
 
+    /**
+     * Returns a new executor that runs each task (connection) on its own
+     * virtual thread.
+     * <p>
+     * Virtual threads are cheap enough to have one per connection even for
+     * tens of thousands of mostly idle keep-alive connections, without the
+     * memory cost of as many platform threads. The connection streams
+     * ({@link ConnectionInputStream} and {@link ConnectionOutputStream}) hold
+     * no monitors while blocked on the socket, so they do not pin the virtual
+     * thread to its carrier thread.
+     * <p>
+     * Virtual threads require Java 21 or later, or Java 19/20 with
+     * {@code --enable-preview}.
+     *
+     * @return a new virtual thread per task executor
+     *
+     * @throws UnsupportedOperationException if the Java runtime does not
+     *                                       support virtual threads
+     * @see #setVirtualThreads(boolean)
+     */
+    public static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            // looked up reflectively, as we are compiled for a release without virtual threads
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (InvocationTargetException ex)
+        { // e.g. preview features not enabled
+            throw new UnsupportedOperationException("virtual threads are not available: "
+                    + ex.getCause().getMessage(), ex.getCause());
+        } catch (ReflectiveOperationException ex)
+        {
+            throw new UnsupportedOperationException(
+                    "virtual threads are not supported by this Java runtime", ex);
+        }
+    }
+
+    /**
+     * Returns a new executor with a bounded number of threads and a bounded
+     * queue, which rejects tasks (connections) once both are exhausted,
+     * rather than creating threads without limit.
+     * <p>
+     * Idle threads are released after a minute.
+     *
+     * @param threads    the maximum number of threads
+     * @param queueDepth the maximum number of tasks waiting for a thread
+     *                   (may be 0)
+     *
+     * @return a new bounded executor
+     *
+     * @throws IllegalArgumentException if threads is not positive or
+     *                                  queueDepth is negative
+     * @see #setBoundedExecutor(int, int)
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueDepth)
+    {
+        if (threads <= 0 || queueDepth < 0)
+        {
+            throw new IllegalArgumentException("invalid pool size: " + threads + "/" + queueDepth);
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queueDepth == 0 ? new SynchronousQueue<>() : new LinkedBlockingQueue<>(queueDepth),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
     //=====================================================================================
     /**
      * Starts a stand-alone HTTP server, serving files from disk.
@@ -626,6 +790,86 @@ public class HTTPServer
         hosts.put(name == null ? "" : name, host);
     }
 
+    /**
+     * Sets the number of threads accepting connections.
+     * <p>
+     * A single acceptor thread serializes every {@code accept()} call, which
+     * can become the bottleneck under a storm of short-lived connections.
+     * By default, the acceptor threads share one listening socket; see
+     * {@link #setReusePort(boolean)} to give each its own.
+     * <p>
+     * With a {@link SelectorEngine}, this is the number of selector threads.
+     *
+     * @param count the number of acceptor threads (default is 1)
+     *
+     * @throws IllegalArgumentException if count is not positive
+     */
+    public void setAcceptorThreads(int count)
+    {
+        if (count <= 0)
+        {
+            throw new IllegalArgumentException("invalid acceptor thread count: " + count);
+        }
+
+        this.acceptorThreads = count;
+    }
+
+    /**
+     * Sets the access log to which this server logs every transaction.
+     * <p>
+     * The access log is not closed when the server is stopped, and must be
+     * closed separately.
+     *
+     * @param accessLog the access log, or null to log nothing (the default)
+     */
+    public void setAccessLog(AccessLog accessLog)
+    {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Sets the default executor to be a {@link #newBoundedExecutor bounded}
+     * pool, rather than an unbounded cached pool.
+     * <p>
+     * Under overload, an unbounded pool keeps creating threads until memory
+     * runs out. With a bounded pool, connections that find all threads busy
+     * and the queue full are shed instead: they are sent a
+     * {@code 503 Service Unavailable} response and closed, without being
+     * parsed. See {@link #getExecutorRejections()}.
+     * <p>
+     * This has no effect if an {@link #setExecutor executor} has been set,
+     * or if {@link #setVirtualThreads virtual threads} are used.
+     *
+     * @param threads    the maximum number of threads, or 0 for an unbounded
+     *                   pool (the default)
+     * @param queueDepth the maximum number of connections waiting for a thread
+     *
+     * @throws IllegalArgumentException if either value is negative
+     */
+    public void setBoundedExecutor(int threads, int queueDepth)
+    {
+        if (threads < 0 || queueDepth < 0)
+        {
+            throw new IllegalArgumentException("invalid pool size: " + threads + "/" + queueDepth);
+        }
+
+        this.poolThreads = threads;
+        this.poolQueueDepth = queueDepth;
+    }
+
+    /**
+     * Sets the engine used to accept and dispatch connections.
+     * If null or not set, each connection is serviced by a single executor
+     * thread for its whole lifetime, including any idle time between
+     * keep-alive requests.
+     *
+     * @param engine the connection engine to use, e.g. a {@link SelectorEngine}
+     */
+    public void setConnectionEngine(ConnectionEngine engine)
+    {
+        this.engine = engine;
+    }
+
     /**
      * Sets the executor used in servicing HTTP connections.
      * If null, a default executor is used. The caller is responsible
@@ -638,6 +882,72 @@ public class HTTPServer
         this.executor = executor;
     }
 
+    /**
+     * Sets whether the default executor runs each connection on its own
+     * virtual thread (see {@link #newVirtualThreadExecutor()}), rather than on
+     * a cached pool of platform threads.
+     * This has no effect if an {@link #setExecutor executor} has been set.
+     *
+     * @param virtualThreads specifies whether virtual threads are used
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets whether HTTP/2 connections are accepted, alongside HTTP/1.x ones.
+     * <p>
+     * Over plain sockets, a client must use HTTP/2 with prior knowledge
+     * (h2c): a connection is served as HTTP/2 if it starts with the HTTP/2
+     * connection preface. With an {@link SSLServerSocketFactory}, {@code h2}
+     * is also offered to clients through ALPN. This should be set before the
+     * server is started.
+     *
+     * @param http2 specifies whether HTTP/2 is accepted (default is false)
+     */
+    public void setHttp2(boolean http2)
+    {
+        this.http2 = http2;
+    }
+
+    /**
+     * Sets the maximum number of connections served concurrently.
+     * <p>
+     * Once reached, further connections are shed: they are sent a
+     * {@code 503 Service Unavailable} response and closed, without being
+     * parsed. See {@link #getLimitRejections()}.
+     * With a {@link SelectorEngine}, idle keep-alive connections held by the
+     * selector do not count towards the limit; only those being served by the
+     * executor do.
+     *
+     * @param max the maximum number of connections, or 0 for no limit (the
+     *            default)
+     *
+     * @throws IllegalArgumentException if max is negative
+     */
+    public void setMaxConnections(int max)
+    {
+        if (max < 0)
+        {
+            throw new IllegalArgumentException("invalid maximum connections: " + max);
+        }
+
+        this.maxConnections = max;
+    }
+
+    /**
+     * Sets the registry into which this server records its connection and
+     * request metrics. This should be set before the server is started.
+     *
+     * @param metrics the metrics registry, or null to record no metrics (the
+     *                default)
+     */
+    public void setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
     /**
      * Sets the port on which this server will accept connections.
      *
@@ -648,6 +958,23 @@ public class HTTPServer
         this.port = port;
     }
 
+    /**
+     * Sets whether each acceptor thread gets its own listening socket,
+     * all bound to the same port with the {@code SO_REUSEPORT} option, so
+     * that the kernel spreads incoming connections across them and the accept
+     * rate scales with the number of cores.
+     * <p>
+     * This only takes effect on Linux, when there is more than one
+     * {@link #setAcceptorThreads acceptor thread}, and the server socket
+     * supports the option. Otherwise the acceptor threads share one socket.
+     *
+     * @param reusePort specifies whether listening sockets are sharded
+     */
+    public void setReusePort(boolean reusePort)
+    {
+        this.reusePort = reusePort;
+    }
+
     /**
      * Sets the factory used to create the server socket.
      * If null or not set, the default {@link ServerSocketFactory#getDefault()}
@@ -671,6 +998,25 @@ public class HTTPServer
         this.secure = factory instanceof SSLServerSocketFactory;
     }
 
+    /**
+     * Sets the value of the {@code Retry-After} header sent with the
+     * {@code 503 Service Unavailable} response to connections that are shed.
+     *
+     * @param seconds the number of seconds after which clients may retry
+     *                (default is 1)
+     *
+     * @throws IllegalArgumentException if seconds is negative
+     */
+    public void setRetryAfter(int seconds)
+    {
+        if (seconds < 0)
+        {
+            throw new IllegalArgumentException("invalid retry after: " + seconds);
+        }
+
+        this.overloadResponse = encodeOverloadResponse(seconds);
+    }
+
     /**
      * Sets the socket timeout for established connections.
      *
@@ -681,6 +1027,60 @@ public class HTTPServer
         this.socketTimeout = timeout;
     }
 
+    /**
+     * Returns the access log to which this server logs every transaction.
+     *
+     * @return the access log, or null if requests are not logged
+     */
+    public AccessLog getAccessLog()
+    {
+        return accessLog;
+    }
+
+    /**
+     * Returns the number of connections currently being served.
+     *
+     * @return the number of active connections
+     */
+    public int getActiveConnections()
+    {
+        return activeConnections.get();
+    }
+
+    /**
+     * Returns the number of connections shed so far because the executor
+     * rejected them, e.g. because a {@link #setBoundedExecutor bounded}
+     * executor was saturated.
+     *
+     * @return the number of executor rejections
+     */
+    public long getExecutorRejections()
+    {
+        return executorRejections.sum();
+    }
+
+    /**
+     * Returns the number of connections shed so far because the
+     * {@link #setMaxConnections maximum} number of connections were already
+     * being served.
+     *
+     * @return the number of limit rejections
+     */
+    public long getLimitRejections()
+    {
+        return limitRejections.sum();
+    }
+
+    /**
+     * Returns the registry into which this server records its metrics.
+     *
+     * @return the metrics registry, or null if metrics are not recorded
+     */
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
     /**
      * Returns the virtual host with the given name.
      *
@@ -713,31 +1113,51 @@ public class HTTPServer
      *
      * @throws IOException if the server cannot begin accepting connections
      */
-    public synchronized void start() throws IOException
+    public void start() throws IOException
     {
-        if (serv != null)
-        {
-            return;
-        }
+        lifecycleLock.lock();
 
-        if (serverSocketFactory == null) // assign default server socket factory if needed
+        try
         {
-            serverSocketFactory = ServerSocketFactory.getDefault(); // plain sockets
-        }
+            if (serv != null)
+            {
+                return;
+            }
 
-        serv = createServerSocket();
+            if (serverSocketFactory == null) // assign default server socket factory if needed
+            {
+                serverSocketFactory = ServerSocketFactory.getDefault(); // plain sockets
+            }
 
-        if (executor == null) // assign default executor if needed
-        {
-            executor = Executors.newCachedThreadPool(); // consumes no resources when idle
-        }        // register all host aliases (which may have been modified)
+            if (executor == null) // assign default executor if needed
+            {
+                executor = virtualThreads ? newVirtualThreadExecutor()
+                        : poolThreads > 0 ? newBoundedExecutor(poolThreads, poolQueueDepth)
+                        : Executors.newCachedThreadPool(); // consumes no resources when idle
+            }
 
-        getVirtualHosts()
-                .forEach(host -> host.getAliases()
-                .forEach(alias -> hosts.put(alias, host)));
+            ServerSocket[] sockets = engine == null ? createListeners() : null;
 
-        // start handling incoming connections
-        new SocketHandlerThread(this).start();
+            // register all host aliases (which may have been modified)
+            getVirtualHosts()
+                    .forEach(host -> host.getAliases()
+                    .forEach(alias -> hosts.put(alias, host)));
+
+            // start handling incoming connections
+            if (engine != null)
+            {
+                engine.start(this);
+            } else
+            {
+                for (int i = 0; i < sockets.length; i++)
+                {
+                    new SocketHandlerThread(this, sockets[i], sockets.length > 1 ? i : -1).start();
+                }
+            }
+        } finally
+        {
+            lifecycleLock.unlock();
+        }
     }
 
     /**
@@ -745,49 +1165,71 @@ public class HTTPServer
      * Note that if an {@link #setExecutor Executor} was set, it must be closed
      * separately.
      */
-    public synchronized void stop()
+    public void stop()
     {
+        lifecycleLock.lock();
+
         try
         {
-            if (serv != null)
+            for (ServerSocket listener : listeners)
             {
-                serv.close();
+                try
+                {
+                    listener.close();
+                } catch (IOException ignore)
+                {
+                    // NoOp
+                }
             }
-        } catch (IOException ignore)
-        {
-            // NoOp
-        }
-        serv = null;
 
-        hosts.values().forEach((VirtualHost host) ->
-        {
-            host.contexts.values().forEach((ContextInfo context) ->
+            listeners.clear();
+            serv = null;
+
+            if (engine != null)
+            {
+                engine.stop();
+            }
+
+            hosts.values().forEach((VirtualHost host) ->
             {
-                context.handlers.values().forEach((ContextHandler handler) ->
+                host.contexts.values().forEach((ContextInfo context) ->
                 {
-                    try
-                    {
-                        ((AutoCloseable) handler).close();
-                    } catch (Exception ignore)
+                    context.handlers.values().forEach((ContextHandler handler) ->
                     {
-                        // No Op.
-                    }
+                        try
+                        {
+                            ((AutoCloseable) handler).close();
+                        } catch (Exception ignore)
+                        {
+                            // No Op.
+                        }
+                    });
                 });
             });
-        });
+        } finally
+        {
+            lifecycleLock.unlock();
+        }
     }
 
     @Override
     public String toString()
     {
         return "HTTPServer{"
+                + "\nacceptorThreads=" + acceptorThreads + ", "
+                + "\nengine=" + engine + ", "
                 + "\nexecutor=" + executor + ", "
                 + "\nhosts=" + hosts + ", "
+                + "\nmaxConnections=" + maxConnections + ", "
+                + "\npoolQueueDepth=" + poolQueueDepth + ", "
+                + "\npoolThreads=" + poolThreads + ", "
                 + "\nport=" + port + ", "
+                + "\nreusePort=" + reusePort + ", "
                 + "\nsecure=" + secure + ", "
                 + "\nserv=" + serv + ", "
                 + "\nserverSocketFactory=" + serverSocketFactory + ", "
-                + "\nsocketTimeout=" + socketTimeout + '}';
+                + "\nsocketTimeout=" + socketTimeout + ", "
+                + "\nvirtualThreads=" + virtualThreads + '}';
     }
 
     /**
@@ -812,9 +1254,152 @@ public class HTTPServer
      */
     protected ServerSocket createServerSocket() throws IOException
     {
-        ServerSocket serverSocket = serverSocketFactory.createServerSocket();
+        ServerSocket serverSocket = openServerSocket();
+        configureListener(serverSocket);
+        bind(serverSocket);
+
+        return serverSocket;
+    }
+
+    /**
+     * Opens a new, unbound listening socket using the configured
+     * {@link #setServerSocketFactory ServerSocketFactory}.
+     * <p>
+     * With the default factory (plain sockets), the socket is opened through a
+     * {@link ServerSocketChannel}, so that the accepted sockets have a
+     * {@link Socket#getChannel() channel} which file contents can be
+     * {@link Response#sendFile transferred} to without copying.
+     *
+     * @return the new server socket
+     *
+     * @throws IOException if the socket cannot be created
+     */
+    protected ServerSocket openServerSocket() throws IOException
+    {
+        return serverSocketFactory == ServerSocketFactory.getDefault()
+                ? ServerSocketChannel.open().socket()
+                : serverSocketFactory.createServerSocket();
+    }
+
+    /**
+     * Creates the listening sockets for the acceptor threads, and sets
+     * {@link #serv} and {@link #listeners} accordingly.
+     * <p>
+     * If the first socket was created with {@code SO_REUSEPORT} enabled
+     * (see {@link #configureListener}), each further acceptor thread gets its
+     * own socket bound to the same port. Otherwise they all share the first.
+     *
+     * @return one listening socket per acceptor thread
+     *
+     * @throws IOException if a socket cannot be created
+     */
+    protected ServerSocket[] createListeners() throws IOException
+    {
+        ServerSocket[] sockets = new ServerSocket[acceptorThreads];
+        sockets[0] = createServerSocket();
+        listeners.add(sockets[0]);
+        serv = sockets[0];
+
+        try
+        {
+            for (int i = 1; i < sockets.length; i++)
+            {
+                if (isReusePortEnabled(sockets[0]))
+                {
+                    sockets[i] = openServerSocket();
+                    listeners.add(sockets[i]);
+                    configureListener(sockets[i]);
+                    sockets[i].bind(new InetSocketAddress(port)); // the same port as the first
+                } else
+                {
+                    sockets[i] = sockets[0];
+                }
+            }
+        } catch (IOException ex)
+        {
+            for (ServerSocket listener : listeners)
+            {
+                listener.close();
+            }
+
+            listeners.clear();
+            serv = null;
+            throw ex;
+        }
+
+        return sockets;
+    }
+
+    /**
+     * Sets the options of a new, unbound listening socket.
+     * <p>
+     * {@code SO_REUSEADDR} is always enabled. {@code SO_REUSEPORT} is
+     * enabled if {@link #setReusePort sharding} was requested, there is more
+     * than one acceptor thread, and the platform is Linux (elsewhere the
+     * option does not balance connections across sockets).
+     * <p>
+     * If {@link #setHttp2 HTTP/2} is accepted over TLS, the {@code h2} and
+     * {@code http/1.1} application protocols are offered through ALPN.
+     *
+     * @param serverSocket the unbound server socket
+     *
+     * @return whether {@code SO_REUSEPORT} was enabled
+     *
+     * @throws IOException if an option cannot be set
+     */
+    protected boolean configureListener(ServerSocket serverSocket) throws IOException
+    {
         serverSocket.setReuseAddress(true);
 
+        if (http2 && serverSocket instanceof SSLServerSocket sslServerSocket)
+        {
+            SSLParameters params = sslServerSocket.getSSLParameters();
+            params.setApplicationProtocols(new String[]
+            {
+                "h2", "http/1.1"
+            });
+            sslServerSocket.setSSLParameters(params);
+        }
+
+        if (reusePort && acceptorThreads > 1 && OS.contains("linux")
+                && serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+        {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the given socket has {@code SO_REUSEPORT} enabled.
+     *
+     * @param serverSocket the server socket
+     *
+     * @return true if enabled, false if disabled or not supported
+     *
+     * @throws IOException if an error occurs
+     */
+    protected static boolean isReusePortEnabled(ServerSocket serverSocket) throws IOException
+    {
+        return serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)
+                && serverSocket.getOption(StandardSocketOptions.SO_REUSEPORT);
+    }
+
+    /**
+     * Binds the given server socket to the configured {@link #setPort port}.
+     * If that port is not available, a range of default ports is tried, and
+     * the port is updated to the one actually bound.
+     * <p>
+     * Refactored out of {@link #createServerSocket()}, so that a
+     * {@link ConnectionEngine} can bind its own listening socket.
+     *
+     * @param serverSocket the unbound server socket
+     *
+     * @throws IOException if the socket cannot be bound to any of the ports
+     */
+    protected void bind(ServerSocket serverSocket) throws IOException
+    {
         // New code (bw)
         try
         {
@@ -844,8 +1429,79 @@ public class HTTPServer
                 throw ex;
             }
         } // to here.
+    }
 
-        return serverSocket;
+    /**
+     * Admits a new connection to be served, if the
+     * {@link #setMaxConnections maximum} number of connections are not
+     * already being served.
+     * Every admitted connection must later be {@link #releaseConnection()
+     * released}.
+     *
+     * @return true if the connection is admitted, false if it must be
+     *         {@link #shed shed}
+     */
+    protected boolean admitConnection()
+    {
+        int max = maxConnections;
+
+        if (activeConnections.incrementAndGet() > max && max > 0)
+        {
+            activeConnections.decrementAndGet();
+            limitRejections.increment();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases a connection previously {@link #admitConnection() admitted}.
+     */
+    protected void releaseConnection()
+    {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Sheds a blocking socket accepted while overloaded, by writing the
+     * pre-encoded {@code 503 Service Unavailable} response and closing it.
+     * The request is not read.
+     * <p>
+     * This is called on the acceptor thread. An SSL socket is closed without
+     * a response, as writing one would mean a handshake on that thread.
+     *
+     * @param sock the socket to shed
+     */
+    protected void shed(Socket sock)
+    {
+        try (sock)
+        {
+            if (!(sock instanceof SSLSocket))
+            {
+                sock.getOutputStream().write(overloadResponse); // fits in an empty send buffer
+                sock.shutdownOutput();
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp
+        }
+    }
+
+    /**
+     * Encodes the response sent to connections that are shed.
+     *
+     * @param retryAfter the Retry-After header value, in seconds
+     *
+     * @return the encoded response
+     */
+    protected static byte[] encodeOverloadResponse(int retryAfter)
+    {
+        return getBytes("HTTP/1.1 503 ", statuses[503], "\r\n",
+                "Retry-After: ", Integer.toString(retryAfter), "\r\n",
+                "Content-Length: 0\r\n",
+                "Connection: close\r\n\r\n");
     }
 
     /**
@@ -862,65 +1518,489 @@ public class HTTPServer
      */
     protected void handleConnection(InputStream in, OutputStream out) throws IOException
     {
-        BufferedInputStream bis = new BufferedInputStream(in, 4096);
-        BufferedOutputStream bos = new BufferedOutputStream(out, 4096);
-        Request req;
-        Response resp;
+        handleConnection(in, out, null);
+    }
+
+    /**
+     * Handles communications for a single connection over the given streams,
+     * as {@link #handleConnection(InputStream, OutputStream)} does.
+     *
+     * @param in      the stream from which the incoming requests are read
+     * @param out     the stream into which the outgoing responses are written
+     * @param channel the channel that out writes to, used for zero-copy file
+     *                transfers, or null if there is none (or it must not be
+     *                written to directly, e.g. SSL)
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void handleConnection(InputStream in, OutputStream out, WritableByteChannel channel) throws IOException
+    {
+        handleConnection(in, out, channel, null);
+    }
+
+    /**
+     * Handles communications for a single connection over the given streams,
+     * as {@link #handleConnection(InputStream, OutputStream)} does.
+     *
+     * @param in      the stream from which the incoming requests are read
+     * @param out     the stream into which the outgoing responses are written
+     * @param channel the channel that out writes to, used for zero-copy file
+     *                transfers, or null if there is none (or it must not be
+     *                written to directly, e.g. SSL)
+     * @param remote  the client's address, or null if it is unknown
+     *
+     * @throws IOException if an error occurs
+     */
+    @SuppressWarnings("empty-statement")
+    protected void handleConnection(InputStream in, OutputStream out, WritableByteChannel channel,
+            SocketAddress remote) throws IOException
+    {
+        int size = BufferPool.getDefault().getBufferSize();
+        ConnectionInputStream bis = new ConnectionInputStream(in, size);
+        ConnectionOutputStream bos = new ConnectionOutputStream(out,
+                channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : null, size);
+        bis.setOutput(bos);
+
+        try
+        {
+            // RFC7230#6.6: persist connection unless client or server close explicitly (or legacy client)
+            while (serveTransaction(bis, bos, channel, remote));
+        } finally
+        {
+            bis.release();
+            bos.release();
+        }
+    }
+
+    /**
+     * Handles communications for a single connection over the given streams,
+     * as {@link #handleConnection(InputStream, OutputStream)} does, except
+     * that a transaction served by an {@link AsyncContextHandler} is
+     * suspended rather than waited for.
+     * <p>
+     * This method then returns without waiting, and once the transaction
+     * completes, the rest of the connection is handled on an executor
+     * thread. Either way, closer is run once the connection is done with.
+     *
+     * @param in      the stream from which the incoming requests are read
+     * @param out     the stream into which the outgoing responses are written
+     * @param channel the channel that out writes to, used for zero-copy file
+     *                transfers, or null if there is none (or it must not be
+     *                written to directly, e.g. SSL)
+     * @param remote  the client's address, or null if it is unknown
+     * @param closer  closes the connection (errors are not reported)
+     */
+    protected void handleConnection(InputStream in, OutputStream out, WritableByteChannel channel,
+            SocketAddress remote, Runnable closer)
+    {
+        int size = BufferPool.getDefault().getBufferSize();
+        ConnectionInputStream bis = new ConnectionInputStream(in, size);
+        ConnectionOutputStream bos = new ConnectionOutputStream(out,
+                channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : null, size);
+        bis.setOutput(bos);
+        serveConnection(bis, bos, channel, remote, true, closer);
+    }
+
+    /**
+     * Serves transactions on a connection until it is done with, or a
+     * transaction is suspended, in which case its resumption continues from
+     * here.
+     *
+     * @param in      the connection's input stream
+     * @param out     the connection's output stream
+     * @param channel the channel that out writes to, or null
+     * @param remote  the client's address, or null if it is unknown
+     * @param persist whether the connection persists (after a resumed
+     *                transaction)
+     * @param closer  closes the connection
+     */
+    private void serveConnection(ConnectionInputStream in, ConnectionOutputStream out,
+            WritableByteChannel channel, SocketAddress remote, boolean persist, Runnable closer)
+    {
+        Boolean next = persist;
+
+        try
+        {
+            // RFC7230#6.6: persist connection unless client or server close explicitly (or legacy client)
+            while (next == Boolean.TRUE)
+            {
+                next = serveTransaction(in, out, channel, remote,
+                        resumed -> serveConnection(in, out, channel, remote, resumed, closer));
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp
+        } finally
+        {
+            if (next != null) // not suspended
+            {
+                in.release();
+                out.release();
+                closer.run();
+            }
+        }
+    }
+
+    /**
+     * Handles a single transaction over the given (buffered) streams.
+     * <p>
+     * Refactored out of {@link #handleConnection(InputStream, OutputStream, WritableByteChannel, SocketAddress)},
+     * so that a {@link ConnectionEngine} can release a connection between
+     * transactions.
+     * <p>
+     * The response is flushed at the end of the transaction, unless the
+     * next (pipelined) request has already been read into the
+     * {@link ConnectionInputStream}, in which case the responses are
+     * batched and flushed together once the last buffered request has been
+     * served (or the input stream has to wait for more data).
+     * <p>
+     * If {@link #setMetrics metrics} are recorded, the request's parse and
+     * handler times, response status and bytes transferred are recorded.
+     * If there is an {@link #setAccessLog access log}, the transaction is
+     * logged to it.
+     * <p>
+     * If {@link #setHttp2 HTTP/2} is accepted and the request is the HTTP/2
+     * connection preface, the rest of the connection is served as HTTP/2 by
+     * an {@link Http2Connection}.
+     *
+     * @param in      the stream from which the request is read
+     * @param out     the stream into which the response is written
+     * @param channel the channel that out writes to, used for zero-copy file
+     *                transfers, or null if there is none
+     *
+     * @return whether the connection should persist for another transaction
+     *
+     * @throws IOException if an error occurs
+     */
+    protected boolean serveTransaction(InputStream in, OutputStream out, WritableByteChannel channel)
+            throws IOException
+    {
+        return serveTransaction(in, out, channel, null);
+    }
+
+    /**
+     * Handles a single transaction over the given (buffered) streams, as
+     * {@link #serveTransaction(InputStream, OutputStream, WritableByteChannel)}
+     * does.
+     *
+     * @param in      the stream from which the request is read
+     * @param out     the stream into which the response is written
+     * @param channel the channel that out writes to, used for zero-copy file
+     *                transfers, or null if there is none
+     * @param remote  the client's address, or null if it is unknown
+     *
+     * @return whether the connection should persist for another transaction
+     *
+     * @throws IOException if an error occurs
+     */
+    protected boolean serveTransaction(InputStream in, OutputStream out, WritableByteChannel channel,
+            SocketAddress remote) throws IOException
+    {
+        return serveTransaction(in, out, channel, remote, null);
+    }
+
+    /**
+     * Handles a single transaction over the given (buffered) streams, as
+     * {@link #serveTransaction(InputStream, OutputStream, WritableByteChannel)}
+     * does, except that if resume is given, a transaction served by an
+     * {@link AsyncContextHandler} is suspended rather than waited for.
+     * <p>
+     * A suspended transaction is finished on an executor thread once the
+     * handler's stage completes (or on the completing thread, if the
+     * executor rejects it), which then resumes the connection.
+     *
+     * @param in      the stream from which the request is read
+     * @param out     the stream into which the response is written
+     * @param channel the channel that out writes to, used for zero-copy file
+     *                transfers, or null if there is none
+     * @param remote  the client's address, or null if it is unknown
+     * @param resume  resumes the connection once a suspended transaction is
+     *                finished, or null if the transaction must not be
+     *                suspended
+     *
+     * @return whether the connection should persist for another transaction,
+     *         or null if the transaction was suspended
+     *
+     * @throws IOException if an error occurs
+     */
+    protected Boolean serveTransaction(InputStream in, OutputStream out, WritableByteChannel channel,
+            SocketAddress remote, Resumption resume) throws IOException
+    {
+        // create request and response and handle transaction
+        Request req = null;
+        Response resp = new Response(out, disallowBrowserFileCaching);
+        resp.setChannel(channel);
+        resp.suspendable = resume != null;
+        Metrics m = metrics;
+        ConnectionInputStream cin = in instanceof ConnectionInputStream cis ? cis : null;
+        ConnectionOutputStream cout = out instanceof ConnectionOutputStream cos ? cos : null;
+        long inStart = cin != null ? cin.getTotal() : 0;
+        long outStart = cout != null ? cout.getTotal() : 0;
+        long start = 0;
+        long parsed = 0;
+        IOException error = null;
 
-        do
+        try
         {
-            // create request and response and handle transaction
-            req = null;
-            resp = new Response(bos, disallowBrowserFileCaching);
+            if (m != null || accessLog != null)
+            {
+                if (cin != null)
+                {
+                    try
+                    {
+                        cin.await(); // the transaction starts when the request arrives
+                    } catch (IOException ioe)
+                    { // if timeout etc. between requests - as the request parser signals it
+                        throw new IOException("missing request line");
+                    }
+                }
+
+                start = System.nanoTime();
+            }
+
+            req = new Request(in, this);
+
+            if (http2 && Http2Connection.isPreface(req))
+            {
+                new Http2Connection(this, in, out, remote).serve();
+                transactionEnded(req, resp, remote, start, cin, inStart, cout, outStart);
+                return false; // the connection has ended
+            }
+
+            if (m != null)
+            {
+                parsed = m.requestParsed(req, start, inStart > 0);
+            }
+
+            handleTransaction(req, resp);
+
+            if (resp.pending != null && !resp.pending.isDone())
+            {
+                Request sreq = req;
+                long sstart = start;
+                long sparsed = parsed;
+                Runnable finisher = () ->
+                {
+                    boolean persist;
+
+                    try
+                    {
+                        persist = endTransaction(sreq, resp, null, out, remote, sstart, sparsed,
+                                cin, inStart, cout, outStart);
+                    } catch (IOException | RuntimeException ex)
+                    {
+                        persist = false;
+                    }
+
+                    resume.resume(persist);
+                };
+
+                resp.pending.whenComplete((status, t) ->
+                {
+                    try
+                    {
+                        executor.execute(finisher);
+                    } catch (RejectedExecutionException ree)
+                    {
+                        finisher.run();
+                    }
+                });
+
+                return null; // the thread is free to serve other connections meanwhile
+            }
+        } catch (IOException ioe)
+        {
+            error = ioe;
+        } catch (RuntimeException re)
+        { // the transaction ends here, and the connection with it
+            try
+            { // send a 500 if we still can, and record the end of the transaction
+                endTransaction(req, resp, new IOException(re), out, remote, start, parsed,
+                        cin, inStart, cout, outStart);
+            } catch (IOException | RuntimeException ex)
+            {
+                re.addSuppressed(ex);
+            }
+
+            throw re;
+        }
+
+        return endTransaction(req, resp, error, out, remote, start, parsed, cin, inStart, cout, outStart);
+    }
+
+    /**
+     * Finishes a transaction once its handler is done with it (or has
+     * failed), and returns whether the connection should persist.
+     *
+     * @param req      the request, or null if it could not be read
+     * @param resp     the response
+     * @param error    the error the transaction failed with, or null
+     * @param out      the stream into which the response is written
+     * @param remote   the client's address, or null if it is unknown
+     * @param start    the time the transaction started, in nanoseconds
+     * @param parsed   the time the request was parsed, as returned by
+     *                 {@link Metrics#requestParsed}, or 0
+     * @param cin      the connection's input stream, or null
+     * @param inStart  the input stream's total at the start of the transaction
+     * @param cout     the connection's output stream, or null
+     * @param outStart the output stream's total at the start of the transaction
+     *
+     * @return whether the connection should persist for another transaction
+     *
+     * @throws IOException if an error occurs
+     */
+    private boolean endTransaction(Request req, Response resp, IOException error, OutputStream out,
+            SocketAddress remote, long start, long parsed, ConnectionInputStream cin, long inStart,
+            ConnectionOutputStream cout, long outStart) throws IOException
+    {
+        Metrics m = metrics;
 
+        if (error == null && resp.pending != null)
+        {
             try
+            { // the stage of an asynchronous handler has completed
+                int status = awaitStatus(resp.pending);
+
+                if (status > 0)
+                {
+                    resp.sendError(status);
+                }
+            } catch (IOException ioe)
             {
-                req = new Request(bis, this);
-                handleTransaction(req, resp);
-            } catch (IOException t)
+                error = ioe;
+            }
+        }
+
+        boolean handled = error == null;
+
+        try
+        {
+            if (error != null)
             { // unhandled errors (not normal error responses like 404)
 
                 if (req == null)
                 { // error reading request
-                    if (t instanceof IOException && t.getMessage().contains("missing request line"))
+                    if (error.getMessage() != null && error.getMessage().contains("missing request line"))
                     {
-                        break; // we're not in the middle of a transaction - so just disconnect
+                        return false; // we're not in the middle of a transaction - so just disconnect
                     }
 
                     resp.getHeaders().add("Connection", "close"); // about to close connection
 
-                    if (t instanceof InterruptedIOException) // e.g. SocketTimeoutException
+                    if (error instanceof InterruptedIOException) // e.g. SocketTimeoutException
                     {
                         resp.sendError(408, "Timeout waiting for client request");
                     } else
                     {
-                        resp.sendError(400, "Invalid request: " + t.getMessage());
+                        resp.sendError(400, "Invalid request: " + error.getMessage());
                     }
                 } else if (!resp.headersSent())
                 { // if headers were not already sent, we can send an error response
-                    DISPLAY.level(0).appendln(t.getMessage());
+                    DISPLAY.level(0).println(error.getMessage());
 
-                    resp = new Response(bos, disallowBrowserFileCaching); // ignore whatever headers may have already been set
+                    resp.closeResources(); // the replaced response is never finished
+                    resp = new Response(out, disallowBrowserFileCaching); // ignore whatever headers may have already been set
                     resp.getHeaders().add("Connection", "close"); // about to close connection
-                    resp.sendError(500, "Error processing request: " + t);
+                    resp.sendError(500, "Error processing request: " + error);
                 } // otherwise just abort the connection since we can't recover
 
-                break; // proceed to close connection
+                return false; // proceed to close connection
+            }
+        } finally
+        {
+            try
+            {
+                if (handled && cin != null)
+                {
+                    resp.finish(); // close response, but leave output buffered (see below)
+                } else
+                {
+                    resp.close(); // close response and flush output
+                }
             } finally
             {
-                resp.close(); // close response and flush output
-            }
+                if (m != null)
+                {
+                    if (parsed != 0)
+                    {
+                        m.requestHandled(resp, parsed);
+                    } else
+                    {
+                        m.responseSent(resp);
+                    }
+                }
 
-            // consume any leftover body data so next request can be processed
-            if (req != null)
-            {
-                FileUtils.transfer(req.getBody(), null, -1);
+                if (!handled) // the transaction ends here
+                {
+                    transactionEnded(req, resp, remote, start, cin, inStart, cout, outStart);
+                }
             }
+        }
 
-            // RFC7230#6.6: persist connection unless client or server close explicitly (or legacy client)
-        } while (req != null && !"close".equalsIgnoreCase(req.getHeaders().get("Connection"))
+        // consume any leftover body data so next request can be processed
+        // (the ConnectionInputStream flushes the response before it blocks)
+        FileUtils.transfer(req.getBody(), null, -1);
+
+        boolean persist = !"close".equalsIgnoreCase(req.getHeaders().get("Connection"))
                 && !"close".equalsIgnoreCase(resp.getHeaders().get("Connection"))
-                && req.getVersion().endsWith("1.1"));
+                && req.getVersion().endsWith("1.1")
+                && resp.getStatus() != 101; // the connection was switched to another protocol
+
+        // if the client has already pipelined its next request, its response
+        // is batched with this one, and they are flushed together
+        if (!persist || cin == null || cin.buffered() == 0)
+        {
+            out.flush();
+        }
+
+        transactionEnded(req, resp, remote, start, cin, inStart, cout, outStart);
+
+        return persist;
+    }
+
+    /**
+     * Records the end of a transaction in the metrics and access log, if any.
+     *
+     * @param req      the request, or null if it could not be read
+     * @param resp     the response
+     * @param remote   the client's address, or null if it is unknown
+     * @param start    the time the transaction started, in nanoseconds
+     * @param cin      the connection's input stream, or null
+     * @param inStart  the input stream's total at the start of the transaction
+     * @param cout     the connection's output stream, or null
+     * @param outStart the output stream's total at the start of the transaction
+     */
+    protected void transactionEnded(Request req, Response resp, SocketAddress remote, long start,
+            ConnectionInputStream cin, long inStart, ConnectionOutputStream cout, long outStart)
+    {
+        Metrics m = metrics;
+        AccessLog log = accessLog;
+        long sent = cout != null ? cout.getTotal() - outStart : 0;
+
+        if (m != null)
+        {
+            m.transferred(cin != null ? cin.getTotal() - inStart : 0, sent);
+        }
+
+        if (log != null && resp.getStatus() != 0) // no response was sent if the client just left
+        {
+            log.log(req, resp, sent, start != 0 ? System.nanoTime() - start : 0, remote);
+        }
+    }
+
+    /**
+     * Resumes a connection once a suspended transaction is finished.
+     */
+    @FunctionalInterface
+    protected interface Resumption
+    {
+        /**
+         * Resumes the connection.
+         *
+         * @param persist whether the connection should persist for another
+         *                transaction
+         */
+        void resume(boolean persist);
     }
 
 }
@@ -27,11 +27,14 @@ package com.bewsoftware.httpserver;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
+@SuppressWarnings("ProtectedField")
 public class Header
 {
 
+    protected final int id; // see HeaderNames
+
     protected final String name;
 
     protected final String value;
@@ -56,6 +59,21 @@ public class Header
         {
             throw new IllegalArgumentException("name cannot be empty");
         }
+
+        this.id = HeaderNames.idOf(this.name);
+    }
+
+    /**
+     * Returns the id of this header's name.
+     *
+     * @return the id, or -1 if the name is not well-known
+     *
+     * @see HeaderNames#idOf(String)
+     * @since 2.7.1
+     */
+    public int getId()
+    {
+        return id;
     }
 
     /**
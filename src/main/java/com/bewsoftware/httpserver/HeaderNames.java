@@ -0,0 +1,278 @@
+/*
+ *  File Name:    HeaderNames.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+/**
+ * The {@code HeaderNames} class holds the well-known HTTP header names.
+ * <p>
+ * Each well-known name has an id, which is its index in {@link #NAMES}.
+ * {@link Headers} uses these ids to find well-known headers in constant
+ * time, instead of comparing names case-insensitively one by one.
+ * <p>
+ * Ids are looked up in two open-addressed tables: one keyed by the name's
+ * (cached) {@link String#hashCode()}, which finds the name constants and
+ * literals used throughout the server without looking at their characters
+ * twice, and one keyed by a case-insensitive hash, which finds the names as
+ * they arrive from the client, in whatever case was sent.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public final class HeaderNames
+{
+    public static final String ACCEPT = "Accept";
+
+    public static final String ACCEPT_CHARSET = "Accept-Charset";
+
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    public static final String ACCEPT_LANGUAGE = "Accept-Language";
+
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+
+    public static final String ALLOW = "Allow";
+
+    public static final String AUTHORIZATION = "Authorization";
+
+    public static final String CACHE_CONTROL = "Cache-Control";
+
+    public static final String CONNECTION = "Connection";
+
+    public static final String CONTENT_DISPOSITION = "Content-Disposition";
+
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+
+    public static final String CONTENT_LANGUAGE = "Content-Language";
+
+    public static final String CONTENT_LENGTH = "Content-Length";
+
+    public static final String CONTENT_RANGE = "Content-Range";
+
+    public static final String CONTENT_TYPE = "Content-Type";
+
+    public static final String COOKIE = "Cookie";
+
+    public static final String DATE = "Date";
+
+    public static final String ETAG = "ETag";
+
+    public static final String EXPECT = "Expect";
+
+    public static final String EXPIRES = "Expires";
+
+    public static final String HOST = "Host";
+
+    public static final String IF_MATCH = "If-Match";
+
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final String IF_NONE_MATCH = "If-None-Match";
+
+    public static final String IF_RANGE = "If-Range";
+
+    public static final String IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+
+    public static final String KEEP_ALIVE = "Keep-Alive";
+
+    public static final String LAST_MODIFIED = "Last-Modified";
+
+    public static final String LOCATION = "Location";
+
+    public static final String ORIGIN = "Origin";
+
+    public static final String PRAGMA = "Pragma";
+
+    public static final String RANGE = "Range";
+
+    public static final String REFERER = "Referer";
+
+    public static final String RETRY_AFTER = "Retry-After";
+
+    public static final String SERVER = "Server";
+
+    public static final String SET_COOKIE = "Set-Cookie";
+
+    public static final String TE = "TE";
+
+    public static final String TRAILER = "Trailer";
+
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+    public static final String UPGRADE = "Upgrade";
+
+    public static final String USER_AGENT = "User-Agent";
+
+    public static final String VARY = "Vary";
+
+    public static final String VIA = "Via";
+
+    public static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    /**
+     * The well-known header names, indexed by id.
+     */
+    static final String[] NAMES =
+    {
+        ACCEPT, ACCEPT_CHARSET, ACCEPT_ENCODING, ACCEPT_LANGUAGE, ACCEPT_RANGES,
+        ALLOW, AUTHORIZATION, CACHE_CONTROL, CONNECTION, CONTENT_DISPOSITION,
+        CONTENT_ENCODING, CONTENT_LANGUAGE, CONTENT_LENGTH, CONTENT_RANGE,
+        CONTENT_TYPE, COOKIE, DATE, ETAG, EXPECT, EXPIRES, HOST, IF_MATCH,
+        IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, IF_UNMODIFIED_SINCE,
+        KEEP_ALIVE, LAST_MODIFIED, LOCATION, ORIGIN, PRAGMA, RANGE, REFERER,
+        RETRY_AFTER, SERVER, SET_COOKIE, TE, TRAILER, TRANSFER_ENCODING,
+        UPGRADE, USER_AGENT, VARY, VIA, WWW_AUTHENTICATE, X_FORWARDED_FOR
+    };
+
+    /**
+     * The number of well-known header names.
+     */
+    public static final int COUNT = NAMES.length;
+
+    private static final int MASK = 255; // table size - 1, at least 4 * COUNT
+
+    private static final byte[] exact = new byte[MASK + 1]; // id + 1 by hashCode
+
+    private static final byte[] folded = new byte[MASK + 1]; // id + 1 by foldedHash
+
+    static
+    {
+        for (int id = 0; id < COUNT; id++)
+        {
+            put(exact, NAMES[id].hashCode(), id);
+            put(folded, foldedHash(NAMES[id]), id);
+        }
+    }
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private HeaderNames()
+    {
+    }
+
+    /**
+     * Returns the id of the given header name.
+     *
+     * @param name the header name (case insensitive)
+     *
+     * @return the id, or -1 if the name is not well-known
+     */
+    public static int idOf(String name)
+    {
+        int slot = name.hashCode();
+
+        for (int id; (id = exact[slot & MASK] - 1) >= 0; slot++)
+        {
+            String known = NAMES[id];
+
+            if (known == name || known.equals(name))
+            {
+                return id;
+            }
+        }
+
+        slot = foldedHash(name);
+
+        for (int id; (id = folded[slot & MASK] - 1) >= 0; slot++)
+        {
+            if (NAMES[id].equalsIgnoreCase(name))
+            {
+                return id;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the id of the header name held in a byte array region.
+     *
+     * @param bytes the byte array
+     * @param start the name start
+     * @param end   the name end
+     *
+     * @return the id, or -1 if the name is not well-known
+     */
+    public static int idOf(byte[] bytes, int start, int end)
+    {
+        int h = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            h = 31 * h + (bytes[i] & 0xFF | 0x20);
+        }
+
+        for (int id; (id = folded[h & MASK] - 1) >= 0; h++)
+        {
+            String known = NAMES[id];
+
+            if (known.length() == end - start && ParsedHeaders.regionMatches(bytes, start, known, true))
+            {
+                return id;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns a hash of the given name that ignores the case of its
+     * letters. Other characters may collide, which is resolved by comparing
+     * the names themselves.
+     *
+     * @param name the name
+     *
+     * @return the hash
+     */
+    private static int foldedHash(String name)
+    {
+        int h = 0;
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            h = 31 * h + (name.charAt(i) | 0x20);
+        }
+
+        return h;
+    }
+
+    /**
+     * Adds an id to a table, probing linearly from the hash.
+     *
+     * @param table the table
+     * @param hash  the hash
+     * @param id    the id
+     */
+    private static void put(byte[] table, int hash, int id)
+    {
+        while (table[hash & MASK] != 0)
+        {
+            hash++;
+        }
+
+        table[hash & MASK] = (byte) (id + 1);
+    }
+}
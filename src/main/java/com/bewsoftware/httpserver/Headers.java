@@ -38,7 +38,7 @@ import static com.bewsoftware.httpserver.Utils.trimRight;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
 /**
  * The {@code Headers} class encapsulates a collection of HTTP headers.
@@ -53,15 +53,30 @@ public class Headers implements Iterable<Header>
     // due to the requirements of case-insensitive name comparisons,
     // retaining the original case, and retaining header insertion order,
     // and due to the fact that the number of arrHeader is generally
-    // quite small (usually under 12 arrHeader), we use a simple array with
-    // linear access times, which proves to be more efficient and
-    // straightforward than the alternatives
-    protected Header[] arrHeader = new Header[12];
+    // quite small (usually under 12 arrHeader), we use a simple array,
+    // which proves to be more efficient and straightforward than the
+    // alternatives. Well-known names (see HeaderNames) are additionally
+    // indexed by id, so only the unknown names are compared one by one
+    protected Header[] arrHeader;
 
     protected int count;
 
+    protected int[] known; // index + 1 of the first header by id, or null
+
     public Headers()
     {
+        this(12);
+    }
+
+    /**
+     * Constructs an empty collection of headers with the given initial
+     * capacity.
+     *
+     * @param capacity the initial capacity (may be 0)
+     */
+    protected Headers(int capacity)
+    {
+        arrHeader = new Header[capacity];
     }
 
     /**
@@ -79,11 +94,24 @@ public class Headers implements Iterable<Header>
         // expand array if necessary
         if (count == arrHeader.length)
         {
-            Header[] expanded = new Header[2 * count];
+            Header[] expanded = new Header[Math.max(2 * count, 12)];
             System.arraycopy(arrHeader, 0, expanded, 0, count);
             arrHeader = expanded;
         }
 
+        if (header.id >= 0)
+        {
+            if (known == null)
+            {
+                known = new int[HeaderNames.COUNT];
+            }
+
+            if (known[header.id] == 0)
+            {
+                known[header.id] = count + 1;
+            }
+        }
+
         arrHeader[count++] = header; // inlining header would cause a bug!
     }
 
@@ -122,14 +150,8 @@ public class Headers implements Iterable<Header>
      */
     public String get(String name)
     {
-        for (int i = 0; i < count; i++)
-        {
-            if (arrHeader[i].getName().equalsIgnoreCase(name))
-            {
-                return arrHeader[i].getValue();
-            }
-        }
-        return null;
+        int i = indexOf(name);
+        return i < 0 ? null : arrHeader[i].getValue();
     }
 
     /**
@@ -197,13 +219,21 @@ public class Headers implements Iterable<Header>
     @SuppressWarnings("ValueOfIncrementOrDecrementUsed")
     public void remove(String name)
     {
+        if (indexOf(name) < 0)
+        {
+            return;
+        }
+
+        int id = HeaderNames.idOf(name);
         int j = 0;
 
         for (int i = 0; i < count; i++)
         {
-            if (!arrHeader[i].getName().equalsIgnoreCase(name))
+            Header header = arrHeader[i];
+
+            if (id >= 0 ? header.id != id : header.id >= 0 || !header.getName().equalsIgnoreCase(name))
             {
-                arrHeader[j++] = arrHeader[i];
+                arrHeader[j++] = header;
             }
         }
 
@@ -211,6 +241,19 @@ public class Headers implements Iterable<Header>
         {
             arrHeader[--count] = null;
         }
+
+        if (known != null) // indices have shifted
+        {
+            Arrays.fill(known, 0);
+
+            for (int i = count - 1; i >= 0; i--)
+            {
+                if (arrHeader[i].id >= 0)
+                {
+                    known[arrHeader[i].id] = i + 1;
+                }
+            }
+        }
     }
 
     /**
@@ -225,18 +268,54 @@ public class Headers implements Iterable<Header>
      */
     public Header replace(String name, String value)
     {
+        int i = indexOf(name);
+
+        if (i >= 0)
+        {
+            Header prev = arrHeader[i];
+            arrHeader[i] = new Header(name, value);
+            return prev;
+        }
+
+        add(name, value);
+        return null;
+    }
+
+    /**
+     * Returns the index of the first header with the given name.
+     * <p>
+     * Well-known names are found by id; other names are only compared
+     * against the headers whose names are not well-known either.
+     *
+     * @param name the header name (case insensitive)
+     *
+     * @return the header index, or -1 if none exists
+     */
+    protected int indexOf(String name)
+    {
+        if (name == null || count == 0)
+        {
+            return -1;
+        }
+
+        int id = HeaderNames.idOf(name);
+
+        if (id >= 0)
+        {
+            return known == null ? -1 : known[id] - 1;
+        }
+
         for (int i = 0; i < count; i++)
         {
-            if (arrHeader[i].getName().equalsIgnoreCase(name))
+            Header header = arrHeader[i];
+
+            if (header.id < 0 && header.getName().equalsIgnoreCase(name))
             {
-                Header prev = arrHeader[i];
-                arrHeader[i] = new Header(name, value);
-                return prev;
+                return i;
             }
         }
 
-        add(name, value);
-        return null;
+        return -1;
     }
 
     /**
@@ -258,6 +337,19 @@ public class Headers implements Iterable<Header>
      */
     public void writeTo(OutputStream out) throws IOException
     {
+        if (out instanceof ConnectionOutputStream)
+        {
+            ConnectionOutputStream cos = (ConnectionOutputStream) out;
+
+            for (int i = 0; i < count; i++)
+            {
+                cos.writeHeader(arrHeader[i].getName(), arrHeader[i].getValue());
+            }
+
+            out.write(CRLF);
+            return;
+        }
+
         for (int i = 0; i < count; i++)
         {
             out.write(getBytes(arrHeader[i].getName(), ": ", arrHeader[i].getValue()));
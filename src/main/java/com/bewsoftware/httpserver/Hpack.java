@@ -0,0 +1,817 @@
+/*
+ *  File Name:    Hpack.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * The {@code Hpack} class implements HPACK (RFC 7541), the header
+ * compression of HTTP/2.
+ * <p>
+ * The static table and the Huffman code are shared by every connection.
+ * Each connection has a {@link Decoder} for the header blocks it receives
+ * and an {@link Encoder} for those it sends, each with its own dynamic
+ * table.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+final class Hpack
+{
+    /**
+     * The default (and our maximum) dynamic table size.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * The per-entry overhead added to the name and value lengths when sizing
+     * a dynamic table (RFC7541#4.1).
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * The static table (RFC7541#A), indexed from 1.
+     */
+    static final String[][] STATIC_TABLE =
+    {
+        null,
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"},
+        {":path", "/"}, {":path", "/index.html"}, {":scheme", "http"},
+        {":scheme", "https"}, {":status", "200"}, {":status", "204"},
+        {":status", "206"}, {":status", "304"}, {":status", "400"},
+        {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""},
+        {"accept-ranges", ""}, {"accept", ""},
+        {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+        {"authorization", ""}, {"cache-control", ""},
+        {"content-disposition", ""}, {"content-encoding", ""},
+        {"content-language", ""}, {"content-length", ""},
+        {"content-location", ""}, {"content-range", ""},
+        {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""},
+        {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+        {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""},
+        {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+        {"link", ""}, {"location", ""}, {"max-forwards", ""},
+        {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+        {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+        {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+        {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""},
+        {"via", ""}, {"www-authenticate", ""}
+    };
+
+    /**
+     * The Huffman codes of the 256 octets (RFC7541#B), right-aligned.
+     */
+    private static final int[] CODES =
+    {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+            0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+            0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+            0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+            0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+            0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+            0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+            0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+            0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+            0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+            0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+            0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+            0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+            0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+            0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+            0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+            0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+            0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+            0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+            0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    /**
+     * The lengths, in bits, of the Huffman codes.
+     */
+    private static final byte[] LENGTHS =
+    {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    private static final int EOS = 256; // the end-of-string symbol, which must never be decoded
+
+    private static final int EOS_CODE = 0x3fffffff;
+
+    private static final int EOS_LENGTH = 30;
+
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>(); // "name:value" -> index
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>(); // name -> first index
+
+    /**
+     * The Huffman decoding tree: the children of node n are at 2n (bit 0)
+     * and 2n + 1 (bit 1); a positive entry is a node, and a negative entry
+     * is the leaf -(symbol + 1).
+     */
+    private static final int[] TREE;
+
+    static
+    {
+        for (int i = STATIC_TABLE.length - 1; i > 0; i--)
+        {
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + ":" + STATIC_TABLE[i][1], i);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i); // the lowest index wins
+        }
+
+        int[] tree = new int[1024];
+        int nodes = 1;
+
+        for (int symbol = 0; symbol <= EOS; symbol++)
+        {
+            int code = symbol < EOS ? CODES[symbol] : EOS_CODE;
+            int length = symbol < EOS ? LENGTHS[symbol] : EOS_LENGTH;
+            int node = 0;
+
+            for (int bit = length - 1; bit > 0; bit--)
+            {
+                int slot = 2 * node + (code >>> bit & 1);
+
+                if (tree[slot] == 0)
+                {
+                    tree[slot] = nodes++;
+                }
+
+                node = tree[slot];
+            }
+
+            tree[2 * node + (code & 1)] = -(symbol + 1);
+        }
+
+        TREE = tree;
+    }
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private Hpack()
+    {
+    }
+
+    /**
+     * Returns the length of a string once Huffman encoded.
+     *
+     * @param s the string (of octets)
+     *
+     * @return the encoded length, in bytes
+     */
+    static int huffmanLength(String s)
+    {
+        long bits = 0;
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            bits += LENGTHS[s.charAt(i) & 0xFF];
+        }
+
+        return (int) ((bits + 7) >> 3);
+    }
+
+    /**
+     * Decodes a Huffman encoded string.
+     *
+     * @param b      the buffer
+     * @param off    the encoded string offset
+     * @param len    the encoded string length
+     * @param sb     the buffer to decode it into
+     *
+     * @throws IOException if the string is not validly encoded
+     */
+    static void huffmanDecode(byte[] b, int off, int len, StringBuilder sb) throws IOException
+    {
+        int node = 0;
+        int depth = 0; // bits read since the last symbol
+        boolean ones = true; // all of those bits are ones (padding is EOS' prefix)
+
+        for (int i = off; i < off + len; i++)
+        {
+            int octet = b[i] & 0xFF;
+
+            for (int bit = 7; bit >= 0; bit--)
+            {
+                int next = TREE[2 * node + (octet >>> bit & 1)];
+                depth++;
+                ones &= (octet >>> bit & 1) == 1;
+
+                if (next < 0)
+                {
+                    int symbol = -next - 1;
+
+                    if (symbol == EOS)
+                    {
+                        throw new IOException("Huffman string contains EOS");
+                    }
+
+                    sb.append((char) symbol);
+                    node = depth = 0;
+                    ones = true;
+                } else if (next == 0)
+                {
+                    throw new IOException("invalid Huffman code");
+                } else
+                {
+                    node = next;
+                }
+            }
+        }
+
+        if (depth > 7 || !ones)
+        {
+            throw new IOException("invalid Huffman padding");
+        }
+    }
+
+    /**
+     * Returns the lower case form of a header name, as sent in HTTP/2.
+     *
+     * @param name the header name
+     *
+     * @return the lower case name
+     */
+    static String lowerCase(String name)
+    {
+        int id = HeaderNames.idOf(name);
+
+        return id >= 0 ? LowerNames.NAMES[id] : name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Decodes the header blocks received on a connection.
+     */
+    static final class Decoder
+    {
+        private final long maxListSize;
+
+        private int pos; // position in the block being decoded
+
+        private final StringBuilder sb = new StringBuilder();
+
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+
+        /**
+         * Constructs a Decoder.
+         *
+         * @param maxListSize the maximum size of a decoded header list
+         *                    (RFC7540#6.5.2)
+         */
+        Decoder(long maxListSize)
+        {
+            this.maxListSize = maxListSize;
+        }
+
+        /**
+         * Decodes a complete header block.
+         *
+         * @param block    the buffer holding the block
+         * @param len      the block length
+         * @param consumer receives each decoded name (in lower case) and
+         *                 value, in order
+         *
+         * @throws IOException if the block is not validly encoded (which is
+         *                     a connection error, as the dynamic table can
+         *                     no longer be trusted)
+         */
+        void decode(byte[] block, int len, BiConsumer<String, String> consumer) throws IOException
+        {
+            pos = 0;
+            long listSize = 0; // also non-zero once a field has been decoded
+
+            try
+            {
+                while (pos < len)
+                {
+                    int b = block[pos] & 0xFF;
+                    String name;
+                    String value;
+
+                    if ((b & 0x80) != 0)
+                    { // indexed field
+                        int index = decodeInt(block, len, 7);
+                        name = nameAt(index);
+                        value = valueAt(index);
+                    } else if ((b & 0xE0) == 0x20)
+                    { // dynamic table size update
+                        if (listSize > 0) // updates must start the block (RFC7541#4.2)
+                        {
+                            throw new IOException("table size update after a field");
+                        }
+
+                        int size = decodeInt(block, len, 5);
+
+                        if (size > DEFAULT_TABLE_SIZE)
+                        {
+                            throw new IOException("invalid table size: " + size);
+                        }
+
+                        table.setMaxSize(size);
+                        continue;
+                    } else
+                    { // literal field, with incremental indexing (01), or without (0000) or never (0001)
+                        boolean indexing = (b & 0xC0) == 0x40;
+                        int index = decodeInt(block, len, indexing ? 6 : 4);
+                        name = index == 0 ? decodeString(block, len) : nameAt(index);
+                        value = decodeString(block, len);
+
+                        if (indexing)
+                        {
+                            table.add(name, value);
+                        }
+                    }
+
+                    listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+
+                    if (listSize > maxListSize)
+                    {
+                        throw new IOException("header list too large");
+                    }
+
+                    consumer.accept(name, value);
+                }
+            } catch (ArrayIndexOutOfBoundsException e)
+            {
+                throw new IOException("truncated header block");
+            }
+        }
+
+        private int decodeInt(byte[] block, int len, int prefix) throws IOException
+        {
+            if (pos >= len)
+            {
+                throw new IOException("truncated header block");
+            }
+
+            int max = (1 << prefix) - 1;
+            int value = block[pos++] & max;
+
+            if (value < max)
+            {
+                return value;
+            }
+
+            for (int shift = 0; shift < 28; shift += 7)
+            {
+                if (pos >= len)
+                {
+                    throw new IOException("truncated integer");
+                }
+
+                int b = block[pos++];
+                value += (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+
+            throw new IOException("integer overflow");
+        }
+
+        private String decodeString(byte[] block, int len) throws IOException
+        {
+            boolean huffman = pos < len && (block[pos] & 0x80) != 0;
+            int length = decodeInt(block, len, 7);
+
+            if (length > len - pos)
+            {
+                throw new IOException("truncated string");
+            }
+
+            String s;
+
+            if (huffman)
+            {
+                sb.setLength(0);
+                huffmanDecode(block, pos, length, sb);
+                s = sb.toString();
+            } else
+            {
+                s = new String(block, pos, length, ISO_8859_1);
+            }
+
+            pos += length;
+
+            return s;
+        }
+
+        private String nameAt(int index) throws IOException
+        {
+            return index < STATIC_TABLE.length && index > 0 ? STATIC_TABLE[index][0]
+                    : table.get(index - STATIC_TABLE.length + 1)[0];
+        }
+
+        private String valueAt(int index) throws IOException
+        {
+            return index < STATIC_TABLE.length && index > 0 ? STATIC_TABLE[index][1]
+                    : table.get(index - STATIC_TABLE.length + 1)[1];
+        }
+    }
+
+    /**
+     * Encodes the header blocks sent on a connection. Its methods must only
+     * be called by one thread at a time, in the order the blocks are sent.
+     */
+    static final class Encoder
+    {
+        private byte[] buf = new byte[256];
+
+        private int length;
+
+        private int pendingSize = -1; // a table size update to signal, or -1
+
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+
+        /**
+         * Constructs an Encoder.
+         */
+        Encoder()
+        {
+        }
+
+        /**
+         * Starts a new header block, discarding the previous one.
+         */
+        void begin()
+        {
+            length = 0;
+
+            if (pendingSize >= 0)
+            {
+                writeInt(0x20, 5, pendingSize);
+                pendingSize = -1;
+            }
+        }
+
+        /**
+         * Returns the buffer holding the encoded header block.
+         *
+         * @return the buffer
+         */
+        byte[] getBuffer()
+        {
+            return buf;
+        }
+
+        /**
+         * Returns the length of the encoded header block.
+         *
+         * @return the length
+         */
+        int getLength()
+        {
+            return length;
+        }
+
+        /**
+         * Encodes a header field.
+         *
+         * @param name  the name, in lower case
+         * @param value the value
+         */
+        void encode(String name, String value)
+        {
+            Integer index = STATIC_FIELDS.get(name + ":" + value);
+            int dynamic = table.indexOf(name, value);
+
+            if (index != null || dynamic > 0)
+            {
+                writeInt(0x80, 7, index != null ? index : STATIC_TABLE.length - 1 + dynamic);
+                return;
+            }
+
+            Integer nameIndex = STATIC_NAMES.get(name);
+
+            if (nameIndex == null && (dynamic = table.indexOf(name, null)) > 0)
+            {
+                nameIndex = STATIC_TABLE.length - 1 + dynamic;
+            }
+
+            switch (name)
+            {
+                case "set-cookie", "authorization" -> writeInt(0x10, 4, nameIndex != null ? nameIndex : 0); // never indexed
+                case ":path", "content-length", "content-range", "etag", "last-modified", "location" ->
+                    writeInt(0x00, 4, nameIndex != null ? nameIndex : 0); // unlikely to repeat
+                default ->
+                {
+                    writeInt(0x40, 6, nameIndex != null ? nameIndex : 0);
+                    table.add(name, value);
+                }
+            }
+
+            if (nameIndex == null)
+            {
+                writeString(name);
+            }
+
+            writeString(value);
+        }
+
+        /**
+         * Sets the maximum dynamic table size allowed by the peer. The change
+         * is signalled at the start of the next header block.
+         *
+         * @param size the peer's SETTINGS_HEADER_TABLE_SIZE
+         */
+        void setMaxTableSize(long size)
+        {
+            int max = (int) Math.min(size, DEFAULT_TABLE_SIZE);
+
+            if (max != table.maxSize)
+            {
+                table.setMaxSize(max);
+                pendingSize = max;
+            }
+        }
+
+        private void ensure(int n)
+        {
+            if (length + n > buf.length)
+            {
+                byte[] expanded = new byte[Math.max(2 * buf.length, length + n)];
+                System.arraycopy(buf, 0, expanded, 0, length);
+                buf = expanded;
+            }
+        }
+
+        private void writeInt(int pattern, int prefix, int value)
+        {
+            ensure(6);
+            int max = (1 << prefix) - 1;
+
+            if (value < max)
+            {
+                buf[length++] = (byte) (pattern | value);
+                return;
+            }
+
+            buf[length++] = (byte) (pattern | max);
+            value -= max;
+
+            while (value >= 0x80)
+            {
+                buf[length++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+
+            buf[length++] = (byte) value;
+        }
+
+        private void writeString(String s)
+        {
+            int huffman = huffmanLength(s);
+
+            if (huffman < s.length())
+            {
+                writeInt(0x80, 7, huffman);
+                ensure(huffman);
+                long bits = 0;
+                int count = 0;
+
+                for (int i = 0; i < s.length(); i++)
+                {
+                    int c = s.charAt(i) & 0xFF;
+                    bits = bits << LENGTHS[c] | CODES[c];
+                    count += LENGTHS[c];
+
+                    while (count >= 8)
+                    {
+                        count -= 8;
+                        buf[length++] = (byte) (bits >>> count);
+                    }
+                }
+
+                if (count > 0) // pad with the most significant bits of EOS
+                {
+                    buf[length++] = (byte) (bits << (8 - count) | 0xFF >>> count);
+                }
+            } else
+            {
+                writeInt(0x00, 7, s.length());
+                ensure(s.length());
+
+                for (int i = 0; i < s.length(); i++)
+                {
+                    buf[length++] = (byte) s.charAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The lower case forms of the {@link HeaderNames well-known} header
+     * names, by id (created on first use).
+     */
+    private static final class LowerNames
+    {
+        static final String[] NAMES = new String[HeaderNames.COUNT];
+
+        static
+        {
+            for (int id = 0; id < NAMES.length; id++)
+            {
+                NAMES[id] = HeaderNames.NAMES[id].toLowerCase(Locale.US);
+            }
+        }
+    }
+
+    /**
+     * A dynamic table: a bounded FIFO of header fields, the most recently
+     * added first.
+     */
+    private static final class Table
+    {
+        private String[][] entries = new String[16][]; // ring buffer
+
+        private int first; // index of the most recent entry in the ring
+
+        private int count;
+
+        private int maxSize;
+
+        private int size;
+
+        Table(int maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Adds an entry, evicting the oldest ones as needed to make room.
+         *
+         * @param name  the name
+         * @param value the value
+         */
+        void add(String name, String value)
+        {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+
+            while (count > 0 && size + entrySize > maxSize)
+            {
+                evict();
+            }
+
+            if (entrySize > maxSize)
+            {
+                return; // an oversized entry just empties the table
+            }
+
+            if (count == entries.length)
+            {
+                String[][] expanded = new String[2 * count][];
+
+                for (int i = 0; i < count; i++)
+                {
+                    expanded[i] = entries[(first + i) % count];
+                }
+
+                entries = expanded;
+                first = 0;
+            }
+
+            first = (first - 1 + entries.length) % entries.length;
+            entries[first] = new String[]
+            {
+                name, value
+            };
+            count++;
+            size += entrySize;
+        }
+
+        /**
+         * Returns an entry.
+         *
+         * @param index the entry's index, from 1 (the most recent)
+         *
+         * @return the name and value
+         *
+         * @throws IOException if there is no such entry
+         */
+        String[] get(int index) throws IOException
+        {
+            if (index < 1 || index > count)
+            {
+                throw new IOException("invalid table index: " + index);
+            }
+
+            return entries[(first + index - 1) % entries.length];
+        }
+
+        /**
+         * Returns the index of an entry.
+         *
+         * @param name  the name
+         * @param value the value, or null to match the name only
+         *
+         * @return the entry's index, from 1, or 0 if there is none
+         */
+        int indexOf(String name, String value)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                String[] entry = entries[(first + i) % entries.length];
+
+                if (entry[0].equals(name) && (value == null || entry[1].equals(value)))
+                {
+                    return i + 1;
+                }
+            }
+
+            return 0;
+        }
+
+        /**
+         * Sets the maximum size, evicting the oldest entries as needed.
+         *
+         * @param maxSize the maximum size
+         */
+        void setMaxSize(int maxSize)
+        {
+            this.maxSize = maxSize;
+
+            while (size > maxSize)
+            {
+                evict();
+            }
+        }
+
+        private void evict()
+        {
+            int last = (first + count - 1) % entries.length;
+            String[] entry = entries[last];
+            entries[last] = null;
+            size -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+            count--;
+        }
+    }
+}
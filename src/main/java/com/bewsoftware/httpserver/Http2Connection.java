@@ -0,0 +1,1412 @@
+/*
+ *  File Name:    Http2Connection.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.bewsoftware.httpserver.NetUtils.handleTransaction;
+import static com.bewsoftware.httpserver.Utils.formatDate;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * The {@code Http2Connection} class serves an HTTP/2 (RFC 7540) connection.
+ * <p>
+ * A connection becomes an HTTP/2 connection when its first request is the
+ * HTTP/2 connection preface: either sent with prior knowledge over a plain
+ * socket (h2c), or after {@code h2} was negotiated by ALPN over TLS (see
+ * {@link HTTPServer#setHttp2}). The thread serving the connection then
+ * becomes its reader: it reads and decodes the frames, and hands each
+ * request to the server's executor, so the streams of the connection are
+ * served concurrently. Each request is mapped onto the usual
+ * {@link Request}/{@link Response} API (as an {@link Http2Response}), so
+ * the context handlers serve HTTP/2 requests unchanged.
+ * <p>
+ * The frames are written under a lock, in the order their header blocks
+ * were encoded. The DATA frames of a response are sent as the peer's
+ * connection and stream flow control windows allow; the request bodies are
+ * bounded by the stream receive windows, which are replenished as the
+ * bodies are read.
+ * <p>
+ * Server push and stream priorities are not supported (priorities are
+ * read and ignored).
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+final class Http2Connection
+{
+    /**
+     * The request version of HTTP/2 requests.
+     */
+    static final String VERSION = "HTTP/2.0";
+
+    /**
+     * The initial flow control window size, of the connection and each stream.
+     */
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    /**
+     * The largest frame payload sent or accepted (the protocol's default).
+     */
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /**
+     * The receive window of the connection, shared by all its streams.
+     */
+    static final int CONNECTION_WINDOW_SIZE = 1 << 20;
+
+    /**
+     * The maximum number of concurrent streams a client may open.
+     */
+    static final int MAX_CONCURRENT_STREAMS = 100;
+
+    /**
+     * The maximum size of a request's header list (and of its encoded block).
+     */
+    static final int MAX_HEADER_LIST_SIZE = 65536;
+
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    // frame types (RFC7540#6)
+    static final int DATA = 0x0;
+
+    static final int HEADERS = 0x1;
+
+    static final int PRIORITY = 0x2;
+
+    static final int RST_STREAM = 0x3;
+
+    static final int SETTINGS = 0x4;
+
+    static final int PUSH_PROMISE = 0x5;
+
+    static final int PING = 0x6;
+
+    static final int GOAWAY = 0x7;
+
+    static final int WINDOW_UPDATE = 0x8;
+
+    static final int CONTINUATION = 0x9;
+
+    // frame flags
+    static final int FLAG_ACK = 0x1;
+
+    static final int FLAG_END_STREAM = 0x1;
+
+    static final int FLAG_END_HEADERS = 0x4;
+
+    static final int FLAG_PADDED = 0x8;
+
+    static final int FLAG_PRIORITY = 0x20;
+
+    // error codes (RFC7540#7)
+    static final int NO_ERROR = 0x0;
+
+    static final int PROTOCOL_ERROR = 0x1;
+
+    static final int INTERNAL_ERROR = 0x2;
+
+    static final int FLOW_CONTROL_ERROR = 0x3;
+
+    static final int STREAM_CLOSED = 0x5;
+
+    static final int FRAME_SIZE_ERROR = 0x6;
+
+    static final int REFUSED_STREAM = 0x7;
+
+    static final int CANCEL = 0x8;
+
+    static final int COMPRESSION_ERROR = 0x9;
+
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // settings (RFC7540#6.5.2)
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * The rest of the connection preface, after the "PRI * HTTP/2.0" request
+     * head.
+     */
+    private static final byte[] PREFACE_END = "SM\r\n\r\n".getBytes(ISO_8859_1);
+
+    protected boolean closed; // no more frames may be written (writeLock)
+
+    protected int connectionUnacknowledged; // bytes received, not yet returned to the window (reader)
+
+    protected int continuationStream; // the stream whose header block continues, or 0 (reader)
+
+    protected final Hpack.Decoder decoder = new Hpack.Decoder(MAX_HEADER_LIST_SIZE);
+
+    protected final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    protected final Condition flowChanged; // a window was updated or a stream reset
+
+    protected final ReentrantLock flowLock = new ReentrantLock(); // guards the send windows
+
+    protected final byte[] frameHeader = new byte[9]; // writeLock
+
+    protected byte[] headerBlock = new byte[1024]; // the header block being received (reader)
+
+    protected int headerBlockLength;
+
+    protected boolean headerEndStream; // the header block's HEADERS frame ended the stream
+
+    protected long headerStart; // when the header block's HEADERS frame was read
+
+    protected final InputStream in;
+
+    protected volatile long initialSendWindow = DEFAULT_WINDOW_SIZE; // the peer's initial stream window
+
+    protected int lastStreamId; // the highest stream id the client opened (reader)
+
+    protected final OutputStream out;
+
+    protected final byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE]; // reader
+
+    protected final SocketAddress remote;
+
+    protected long sendWindow = DEFAULT_WINDOW_SIZE; // the connection's send window (flowLock)
+
+    protected final HTTPServer server;
+
+    protected final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>(); // open streams
+
+    protected final ReentrantLock writeLock = new ReentrantLock(); // guards the output and encoder
+
+    /**
+     * Constructs an Http2Connection, over a connection whose first request
+     * was the connection preface.
+     *
+     * @param server the server
+     * @param in     the stream from which the frames are read, positioned
+     *               after the preface's request head
+     * @param out    the stream into which the frames are written
+     * @param remote the client's address, or null if it is unknown
+     */
+    Http2Connection(HTTPServer server, InputStream in, OutputStream out, SocketAddress remote)
+    {
+        this.server = server;
+        this.in = in;
+        this.out = out;
+        this.remote = remote;
+        this.flowChanged = flowLock.newCondition();
+
+        if (in instanceof ConnectionInputStream cin)
+        {
+            cin.setOutput(null); // the output is written by many threads, under the write lock
+        }
+    }
+
+    /**
+     * Returns whether a request is the HTTP/2 connection preface
+     * ("PRI * HTTP/2.0").
+     *
+     * @param req the request
+     *
+     * @return true if it is the preface
+     */
+    static boolean isPreface(Request req)
+    {
+        return VERSION.equals(req.getVersion()) && "PRI".equals(req.getMethod())
+                && "*".equals(req.getURI().toString());
+    }
+
+    /**
+     * Serves the connection until it is closed by the client, an error
+     * occurs, or it is idle for longer than the socket timeout.
+     */
+    void serve()
+    {
+        int error = -1; // the GOAWAY error code, or -1 if none can be sent
+
+        try
+        {
+            readPreface();
+            writeSettings();
+            error = serveFrames();
+        } catch (Http2Exception h2e)
+        {
+            error = h2e.code;
+        } catch (IOException ignore)
+        {
+            // NoOp - the connection is broken
+        } finally
+        {
+            close(error);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Http2Connection{" + "\nremote=" + remote
+                + ", \nlastStreamId=" + lastStreamId
+                + ", \nstreams=" + streams.size()
+                + "\n}";
+    }
+
+    /**
+     * Flushes the frames written so far.
+     *
+     * @throws IOException if an error occurs
+     */
+    void flush() throws IOException
+    {
+        writeLock.lock();
+
+        try
+        {
+            checkOpen(null);
+            out.flush();
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Resets a stream, unless it has already been reset (by either peer).
+     * A stream whose response is complete may still be reset, to stop the
+     * client from sending the rest of its request body.
+     *
+     * @param stream the stream
+     * @param code   the error code
+     */
+    void resetStream(Http2Stream stream, int code)
+    {
+        boolean send = !stream.isReset();
+        streams.remove(stream.id);
+        stream.reset(code);
+        signalFlow();
+
+        writeLock.lock();
+
+        try
+        {
+            if (!closed && send)
+            {
+                writeFrame(RST_STREAM, 0, stream.id, code, 4, true);
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp - the connection is broken
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes DATA frames, as the flow control windows allow.
+     *
+     * @param stream    the stream
+     * @param b         the buffer
+     * @param off       the data offset
+     * @param len       the data length
+     * @param endStream whether the last frame ends the stream
+     *
+     * @throws IOException if the stream or connection is closed, or an
+     *                     error occurs
+     */
+    void writeData(Http2Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException
+    {
+        do
+        {
+            int n = len > 0 ? acquireWindow(stream, Math.min(len, DEFAULT_MAX_FRAME_SIZE)) : 0;
+            boolean last = endStream && n == len;
+            writeLock.lock();
+
+            try
+            {
+                checkOpen(stream);
+                writeFrameHeader(n, DATA, last ? FLAG_END_STREAM : 0, stream.id);
+                out.write(b, off, n);
+                out.flush();
+                stream.sent += 9 + n;
+                stream.localClosed = last;
+            } finally
+            {
+                writeLock.unlock();
+            }
+
+            off += n;
+            len -= n;
+        } while (len > 0);
+    }
+
+    /**
+     * Writes a HEADERS frame (followed by CONTINUATION frames if needed).
+     *
+     * @param stream    the stream
+     * @param status    the response status
+     * @param headers   the response headers, or null for an informational
+     *                  response without headers
+     * @param endStream whether the frame ends the stream
+     *
+     * @throws IOException if the stream or connection is closed, or an
+     *                     error occurs
+     */
+    void writeHeaders(Http2Stream stream, int status, Headers headers, boolean endStream) throws IOException
+    {
+        writeLock.lock();
+
+        try
+        {
+            checkOpen(stream);
+            encoder.begin();
+            encoder.encode(":status", Integer.toString(status));
+
+            if (headers != null)
+            {
+                if (!headers.contains("Date"))
+                {
+                    encoder.encode("date", formatDate(System.currentTimeMillis()));
+                }
+
+                encoder.encode("server", HTTPServer.SERVER);
+
+                for (Header header : headers)
+                {
+                    encoder.encode(Hpack.lowerCase(header.getName()), header.getValue());
+                }
+            }
+
+            byte[] block = encoder.getBuffer();
+            int length = encoder.getLength();
+            int type = HEADERS;
+            int off = 0;
+
+            do
+            {
+                int n = Math.min(length - off, DEFAULT_MAX_FRAME_SIZE);
+                int flags = (off + n == length ? FLAG_END_HEADERS : 0)
+                        | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+                writeFrameHeader(n, type, flags, stream.id);
+                out.write(block, off, n);
+                stream.sent += 9 + n;
+                off += n;
+                type = CONTINUATION;
+            } while (off < length);
+
+            if (endStream)
+            {
+                stream.localClosed = true;
+                out.flush();
+            }
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns bytes of a request body to the stream's receive window, after
+     * they were read.
+     *
+     * @param stream the stream
+     * @param n      the number of bytes
+     */
+    void windowUpdate(Http2Stream stream, int n)
+    {
+        writeLock.lock();
+
+        try
+        {
+            if (!closed && !stream.isReset())
+            {
+                writeFrame(WINDOW_UPDATE, 0, stream.id, n, 4, true);
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp - the connection is broken
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Takes up to the given number of bytes from the send windows of a
+     * stream and the connection, waiting until both are open.
+     *
+     * @param stream the stream
+     * @param want   the number of bytes wanted
+     *
+     * @return the number of bytes that may be sent (positive)
+     *
+     * @throws IOException if the stream is reset or the connection closed
+     *                     while waiting
+     */
+    private int acquireWindow(Http2Stream stream, int want) throws IOException
+    {
+        flowLock.lock();
+
+        try
+        {
+            while (true)
+            {
+                if (stream.isReset())
+                {
+                    throw new IOException("stream reset (" + stream.resetCode + ")");
+                }
+
+                int n = (int) Math.min(want, Math.min(stream.sendWindow, sendWindow));
+
+                if (n > 0)
+                {
+                    stream.sendWindow -= n;
+                    sendWindow -= n;
+
+                    return n;
+                }
+
+                flowChanged.await();
+            }
+        } catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException("interrupted waiting for flow control window");
+        } finally
+        {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a header block fragment to the header block being received.
+     *
+     * @param off the fragment's offset in the payload
+     * @param len the fragment's length
+     *
+     * @throws Http2Exception if the header block is too large
+     */
+    private void appendHeaderBlock(int off, int len) throws Http2Exception
+    {
+        if (headerBlockLength + len > MAX_HEADER_LIST_SIZE)
+        {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "header block too large");
+        }
+
+        if (headerBlockLength + len > headerBlock.length)
+        {
+            byte[] expanded = new byte[Math.max(2 * headerBlock.length, headerBlockLength + len)];
+            System.arraycopy(headerBlock, 0, expanded, 0, headerBlockLength);
+            headerBlock = expanded;
+        }
+
+        System.arraycopy(payload, off, headerBlock, headerBlockLength, len);
+        headerBlockLength += len;
+    }
+
+    /**
+     * Throws if frames may no longer be written for a stream.
+     * Must be called holding the write lock.
+     *
+     * @param stream the stream, or null for connection frames
+     *
+     * @throws IOException if the connection is closed or the stream reset
+     */
+    private void checkOpen(Http2Stream stream) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("connection closed");
+        }
+
+        if (stream != null && (stream.isReset() || stream.localClosed))
+        {
+            throw new IOException("stream closed");
+        }
+    }
+
+    /**
+     * Closes the connection: sends a GOAWAY frame if possible, stops any
+     * further frames from being written, and resets the remaining streams.
+     *
+     * @param error the GOAWAY error code, or -1 to not send one
+     */
+    private void close(int error)
+    {
+        writeLock.lock();
+
+        try
+        {
+            if (error >= 0 && !closed)
+            {
+                writeFrameHeader(8, GOAWAY, 0, 0);
+                writeInt(lastStreamId);
+                writeInt(error);
+                out.flush();
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp - the connection is broken
+        } finally
+        {
+            closed = true;
+            writeLock.unlock();
+        }
+
+        for (Http2Stream stream : streams.values())
+        {
+            stream.reset(CANCEL);
+        }
+
+        streams.clear();
+        signalFlow();
+    }
+
+    /**
+     * Decodes a complete request header block, and starts serving its
+     * request (or ends the request body, if it is a trailer block).
+     *
+     * @param id the stream identifier
+     *
+     * @throws IOException if a connection error occurs
+     */
+    private void endHeaders(int id) throws IOException
+    {
+        continuationStream = 0;
+        Headers headers = new Headers();
+        String[] pseudo = new String[4]; // :method, :scheme, :authority, :path
+        boolean[] malformed = new boolean[1];
+
+        try
+        {
+            decoder.decode(headerBlock, headerBlockLength, (name, value) ->
+            {
+                switch (name)
+                {
+                    case ":method" -> pseudo[0] = value;
+                    case ":scheme" -> pseudo[1] = value;
+                    case ":authority" -> pseudo[2] = value;
+                    case ":path" -> pseudo[3] = value;
+                    case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" ->
+                        malformed[0] = true; // RFC7540#8.1.2.2
+                    default ->
+                    {
+                        if (name.startsWith(":") || !name.equals(name.toLowerCase(Locale.US)))
+                        {
+                            malformed[0] = true;
+                        } else
+                        {
+                            addHeader(headers, name, value);
+                        }
+                    }
+                }
+            });
+        } catch (IllegalArgumentException iae)
+        {
+            malformed[0] = true; // an invalid header name or value (the decoding went on)
+        } catch (IOException ioe)
+        {
+            throw new Http2Exception(COMPRESSION_ERROR, ioe.getMessage());
+        } finally
+        {
+            headerBlockLength = 0;
+        }
+
+        Http2Stream stream = streams.get(id);
+
+        if (stream != null)
+        { // trailers, which are not passed on
+            if (!headerEndStream)
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "trailers without END_STREAM");
+            }
+
+            stream.endInput();
+            return;
+        }
+
+        if (id <= lastStreamId)
+        {
+            throw new Http2Exception(STREAM_CLOSED, "HEADERS on closed stream " + id);
+        }
+
+        lastStreamId = id;
+        stream = new Http2Stream(this, id, initialSendWindow);
+
+        if (malformed[0] || pseudo[0] == null || pseudo[1] == null || pseudo[3] == null)
+        {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+
+        if (streams.size() >= MAX_CONCURRENT_STREAMS)
+        {
+            resetStream(stream, REFUSED_STREAM);
+            return;
+        }
+
+        if (pseudo[2] != null && !headers.contains("Host"))
+        {
+            headers.add("Host", pseudo[2]); // RFC7540#8.1.2.3
+        }
+
+        if (headerEndStream)
+        {
+            stream.endInput();
+        }
+
+        Request req;
+
+        try
+        {
+            req = new Request(server, pseudo[0], pseudo[3], VERSION, headers, stream.getInputStream());
+        } catch (IOException ioe)
+        {
+            resetStream(stream, PROTOCOL_ERROR); // a malformed path
+            return;
+        }
+
+        long start = headerStart;
+        boolean reused = id > 1;
+        streams.put(id, stream);
+        Http2Stream s = stream;
+
+        try
+        {
+            server.executor.execute(() -> serveStream(s, req, start, reused));
+        } catch (RejectedExecutionException ree)
+        {
+            server.executorRejections.increment();
+            resetStream(stream, REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Adds a request header, combining repeated headers into a single one as
+     * {@link NetUtils#readHeaders} does (and cookies as RFC7540#8.1.2.5
+     * requires).
+     *
+     * @param headers the request headers
+     * @param name    the header name, in lower case
+     * @param value   the header value
+     */
+    private static void addHeader(Headers headers, String name, String value)
+    {
+        int id = HeaderNames.idOf(name);
+        String canonical = id >= 0 ? HeaderNames.NAMES[id] : name; // the names handlers expect
+        String previous = headers.get(canonical);
+
+        if (previous == null)
+        {
+            headers.add(canonical, value);
+        } else
+        {
+            headers.replace(canonical, previous + (name.equals("cookie") ? "; " : ", ") + value);
+        }
+    }
+
+    /**
+     * Reads from the input stream until the buffer is filled. Read timeouts
+     * are ignored while streams are being served.
+     *
+     * @param b        the buffer
+     * @param len      the number of bytes to read
+     * @param idleable whether an idle timeout may end the connection here
+     *                 (before the first byte of a frame)
+     *
+     * @return false if the connection ended cleanly (before the first byte)
+     *
+     * @throws IOException if the stream ends in mid-frame, or an error
+     *                     occurs
+     */
+    private boolean readFully(byte[] b, int len, boolean idleable) throws IOException
+    {
+        int n = 0;
+
+        while (n < len)
+        {
+            int count;
+
+            try
+            {
+                count = in.read(b, n, len - n);
+            } catch (InterruptedIOException iioe) // e.g. SocketTimeoutException
+            {
+                if (!streams.isEmpty())
+                {
+                    continue; // requests are still being served
+                }
+
+                if (idleable && n == 0)
+                {
+                    return false; // idle
+                }
+
+                throw iioe;
+            }
+
+            if (count < 0)
+            {
+                if (idleable && n == 0)
+                {
+                    return false;
+                }
+
+                throw new EOFException("unexpected end of stream");
+            }
+
+            n += count;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the rest of the connection preface, after its request head.
+     *
+     * @throws IOException if the preface is invalid or an error occurs
+     */
+    private void readPreface() throws IOException
+    {
+        byte[] b = new byte[PREFACE_END.length];
+
+        if (!readFully(b, b.length, false) || !Arrays.equals(b, PREFACE_END))
+        {
+            throw new IOException("invalid HTTP/2 connection preface");
+        }
+    }
+
+    /**
+     * Reads and handles frames until the connection ends.
+     *
+     * @return the GOAWAY error code to send, or -1 if none can be sent
+     *
+     * @throws IOException if an error occurs
+     */
+    private int serveFrames() throws IOException
+    {
+        byte[] header = new byte[9];
+        boolean first = true;
+
+        while (true)
+        {
+            if (!readFully(header, 9, true))
+            {
+                return streams.isEmpty() ? NO_ERROR : -1; // idle, or the client has left
+            }
+
+            long now = System.nanoTime();
+            int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF;
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int id = readInt(header, 5) & 0x7FFFFFFF;
+
+            if (length > DEFAULT_MAX_FRAME_SIZE)
+            {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "frame too large: " + length);
+            }
+
+            if (!readFully(payload, length, false))
+            {
+                return -1;
+            }
+
+            if (first && type != SETTINGS)
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "the preface must end with SETTINGS");
+            }
+
+            first = false;
+
+            if (continuationStream != 0 && (type != CONTINUATION || id != continuationStream))
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "expected CONTINUATION");
+            }
+
+            switch (type)
+            {
+                case DATA -> onData(id, flags, length);
+                case HEADERS -> onHeaders(id, flags, length, now);
+                case PRIORITY ->
+                {
+                    if (length != 5)
+                    {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "invalid PRIORITY");
+                    }
+                }
+                case RST_STREAM -> onReset(id, length);
+                case SETTINGS -> onSettings(id, flags, length);
+                case PING -> onPing(id, flags, length);
+                case GOAWAY ->
+                {
+                    if (id != 0)
+                    {
+                        throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on stream " + id);
+                    } // otherwise the client closes the connection once its streams end
+                }
+                case WINDOW_UPDATE -> onWindowUpdate(id, length);
+                case CONTINUATION ->
+                {
+                    if (continuationStream == 0)
+                    {
+                        throw new Http2Exception(PROTOCOL_ERROR, "unexpected CONTINUATION");
+                    }
+
+                    appendHeaderBlock(0, length);
+
+                    if ((flags & FLAG_END_HEADERS) != 0)
+                    {
+                        endHeaders(id);
+                    }
+                }
+                case PUSH_PROMISE -> throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+                default ->
+                {
+                    // NoOp - unknown frame types are ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a DATA frame.
+     */
+    private void onData(int id, int flags, int length) throws IOException
+    {
+        if (id == 0)
+        {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+
+        int off = 0;
+        int pad = 0;
+
+        if ((flags & FLAG_PADDED) != 0)
+        {
+            if (length == 0 || (pad = payload[off++] & 0xFF) >= length)
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "invalid DATA padding");
+            }
+        }
+
+        // the connection window is replenished as soon as the data is queued,
+        // since each stream's queue is bounded by its own window
+        connectionUnacknowledged += length;
+
+        if (connectionUnacknowledged >= CONNECTION_WINDOW_SIZE / 2)
+        {
+            writeLock.lock();
+
+            try
+            {
+                writeFrame(WINDOW_UPDATE, 0, 0, connectionUnacknowledged, 4, true);
+                connectionUnacknowledged = 0;
+            } finally
+            {
+                writeLock.unlock();
+            }
+        }
+
+        Http2Stream stream = streams.get(id);
+
+        if (stream == null)
+        {
+            if (id > lastStreamId)
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + id);
+            }
+
+            return; // a stream we have already closed or reset
+        }
+
+        if (stream.isRemoteClosed())
+        {
+            resetStream(stream, STREAM_CLOSED);
+        } else if (!stream.receive(payload, off, length - off - pad, length, (flags & FLAG_END_STREAM) != 0))
+        {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Handles a HEADERS frame.
+     */
+    private void onHeaders(int id, int flags, int length, long now) throws IOException
+    {
+        if (id == 0 || (id & 1) == 0)
+        {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream " + id);
+        }
+
+        int off = 0;
+        int pad = 0;
+
+        if ((flags & FLAG_PADDED) != 0)
+        {
+            if (length == 0)
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "invalid HEADERS padding");
+            }
+
+            pad = payload[off++] & 0xFF;
+        }
+
+        if ((flags & FLAG_PRIORITY) != 0)
+        {
+            off += 5; // dependency and weight are ignored
+        }
+
+        if (off + pad > length)
+        {
+            throw new Http2Exception(PROTOCOL_ERROR, "invalid HEADERS padding");
+        }
+
+        headerStart = now;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        appendHeaderBlock(off, length - off - pad);
+
+        if ((flags & FLAG_END_HEADERS) != 0)
+        {
+            endHeaders(id);
+        } else
+        {
+            continuationStream = id;
+        }
+    }
+
+    /**
+     * Handles a PING frame.
+     */
+    private void onPing(int id, int flags, int length) throws IOException
+    {
+        if (id != 0)
+        {
+            throw new Http2Exception(PROTOCOL_ERROR, "PING on stream " + id);
+        }
+
+        if (length != 8)
+        {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid PING");
+        }
+
+        if ((flags & FLAG_ACK) == 0)
+        {
+            writeLock.lock();
+
+            try
+            {
+                checkOpen(null);
+                writeFrameHeader(8, PING, FLAG_ACK, 0);
+                out.write(payload, 0, 8);
+                out.flush();
+            } finally
+            {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Handles a RST_STREAM frame.
+     */
+    private void onReset(int id, int length) throws IOException
+    {
+        if (id == 0 || id > lastStreamId)
+        {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream " + id);
+        }
+
+        if (length != 4)
+        {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid RST_STREAM");
+        }
+
+        Http2Stream stream = streams.remove(id);
+
+        if (stream != null)
+        {
+            stream.reset(readInt(payload, 0)); // so no RST_STREAM is sent in reply
+            signalFlow();
+        }
+    }
+
+    /**
+     * Handles a SETTINGS frame.
+     */
+    private void onSettings(int id, int flags, int length) throws IOException
+    {
+        if (id != 0)
+        {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream " + id);
+        }
+
+        if ((flags & FLAG_ACK) != 0)
+        {
+            if (length != 0)
+            {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "invalid SETTINGS ACK");
+            }
+
+            return;
+        }
+
+        if (length % 6 != 0)
+        {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid SETTINGS");
+        }
+
+        writeLock.lock();
+
+        try
+        {
+            for (int off = 0; off < length; off += 6)
+            {
+                int setting = (payload[off] & 0xFF) << 8 | payload[off + 1] & 0xFF;
+                long value = readInt(payload, off + 2) & 0xFFFFFFFFL;
+
+                switch (setting)
+                {
+                    case SETTINGS_HEADER_TABLE_SIZE -> encoder.setMaxTableSize(value);
+                    case SETTINGS_ENABLE_PUSH ->
+                    {
+                        if (value > 1)
+                        {
+                            throw new Http2Exception(PROTOCOL_ERROR, "invalid ENABLE_PUSH");
+                        }
+                    }
+                    case SETTINGS_INITIAL_WINDOW_SIZE ->
+                    {
+                        if (value > MAX_WINDOW_SIZE)
+                        {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "invalid INITIAL_WINDOW_SIZE");
+                        }
+
+                        setInitialSendWindow(value);
+                    }
+                    case SETTINGS_MAX_FRAME_SIZE ->
+                    {
+                        if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xFFFFFF)
+                        {
+                            throw new Http2Exception(PROTOCOL_ERROR, "invalid MAX_FRAME_SIZE");
+                        } // we never send frames larger than the default anyway
+                    }
+                    default ->
+                    {
+                        // NoOp - other and unknown settings are ignored
+                    }
+                }
+            }
+
+            checkOpen(null);
+            writeFrameHeader(0, SETTINGS, FLAG_ACK, 0);
+            out.flush();
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Handles a WINDOW_UPDATE frame.
+     */
+    private void onWindowUpdate(int id, int length) throws IOException
+    {
+        if (length != 4)
+        {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+        }
+
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        Http2Stream stream = id == 0 ? null : streams.get(id);
+
+        if (id != 0 && stream == null)
+        {
+            return; // a closed stream
+        }
+
+        if (increment == 0)
+        {
+            if (stream == null)
+            {
+                throw new Http2Exception(PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+            }
+
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+
+        boolean overflow;
+        flowLock.lock();
+
+        try
+        {
+            if (stream == null)
+            {
+                sendWindow += increment;
+                overflow = sendWindow > MAX_WINDOW_SIZE;
+            } else
+            {
+                stream.sendWindow += increment;
+                overflow = stream.sendWindow > MAX_WINDOW_SIZE;
+            }
+
+            flowChanged.signalAll();
+        } finally
+        {
+            flowLock.unlock();
+        }
+
+        if (overflow)
+        {
+            if (stream == null)
+            {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "window overflow");
+            }
+
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Serves the request of a stream, on an executor thread.
+     *
+     * @param stream the stream
+     * @param req    the request
+     * @param start  when the request's HEADERS frame was read
+     * @param reused whether an earlier request was served on the connection
+     */
+    private void serveStream(Http2Stream stream, Request req, long start, boolean reused)
+    {
+        Metrics m = server.metrics;
+        AccessLog log = server.accessLog;
+        Response resp = new Http2Response(stream, server.disallowBrowserFileCaching);
+        long parsed = m != null ? m.requestParsed(req, start, reused) : 0;
+
+        try
+        {
+            handleTransaction(req, resp);
+        } catch (IOException | RuntimeException e)
+        { // unhandled errors (not normal error responses like 404)
+            if (!resp.headersSent() && !stream.isReset())
+            {
+                try
+                {
+                    resp = new Http2Response(stream, server.disallowBrowserFileCaching);
+                    resp.sendError(500, "Error processing request: " + e);
+                } catch (IOException ignore)
+                {
+                    // NoOp
+                }
+            }
+        } finally
+        {
+            try
+            {
+                resp.close(); // ends the stream (or resets it, if nothing was sent)
+            } catch (IOException ignore)
+            {
+                // NoOp
+            }
+
+            streams.remove(stream.id);
+
+            if (!stream.isRemoteClosed())
+            {
+                resetStream(stream, NO_ERROR); // the rest of the request body is not needed
+            }
+
+            if (m != null)
+            {
+                m.requestHandled(resp, parsed);
+            }
+
+            if (log != null && resp.getStatus() != 0)
+            {
+                log.log(req, resp, stream.sent, System.nanoTime() - start, remote);
+            }
+        }
+    }
+
+    /**
+     * Sets the initial send window of the streams, adjusting those of the
+     * open streams by the difference. Must be called holding the write lock.
+     *
+     * @param value the new initial window
+     */
+    private void setInitialSendWindow(long value)
+    {
+        flowLock.lock();
+
+        try
+        {
+            long delta = value - initialSendWindow;
+            initialSendWindow = value;
+
+            for (Http2Stream stream : streams.values())
+            {
+                stream.sendWindow += delta;
+            }
+
+            flowChanged.signalAll();
+        } finally
+        {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes the threads waiting for a send window, so they can see a change.
+     */
+    private void signalFlow()
+    {
+        flowLock.lock();
+
+        try
+        {
+            flowChanged.signalAll();
+        } finally
+        {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a frame with a single 4-byte payload. Must be called holding the
+     * write lock.
+     *
+     * @param type   the frame type
+     * @param flags  the frame flags
+     * @param id     the stream identifier
+     * @param value  the payload
+     * @param length the payload length (4)
+     * @param flush  whether to flush the frame
+     *
+     * @throws IOException if the connection is closed or an error occurs
+     */
+    private void writeFrame(int type, int flags, int id, int value, int length, boolean flush) throws IOException
+    {
+        checkOpen(null);
+        writeFrameHeader(length, type, flags, id);
+        writeInt(value);
+
+        if (flush)
+        {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes a frame header. Must be called holding the write lock.
+     */
+    private void writeFrameHeader(int length, int type, int flags, int id) throws IOException
+    {
+        frameHeader[0] = (byte) (length >>> 16);
+        frameHeader[1] = (byte) (length >>> 8);
+        frameHeader[2] = (byte) length;
+        frameHeader[3] = (byte) type;
+        frameHeader[4] = (byte) flags;
+        frameHeader[5] = (byte) (id >>> 24);
+        frameHeader[6] = (byte) (id >>> 16);
+        frameHeader[7] = (byte) (id >>> 8);
+        frameHeader[8] = (byte) id;
+        out.write(frameHeader);
+    }
+
+    /**
+     * Writes a 32-bit integer. Must be called holding the write lock.
+     */
+    private void writeInt(int value) throws IOException
+    {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Writes our SETTINGS frame, and enlarges the connection's receive window.
+     *
+     * @throws IOException if an error occurs
+     */
+    private void writeSettings() throws IOException
+    {
+        writeLock.lock();
+
+        try
+        {
+            writeFrameHeader(12, SETTINGS, 0, 0);
+            out.write(0);
+            out.write(SETTINGS_MAX_CONCURRENT_STREAMS);
+            writeInt(MAX_CONCURRENT_STREAMS);
+            out.write(0);
+            out.write(SETTINGS_MAX_HEADER_LIST_SIZE);
+            writeInt(MAX_HEADER_LIST_SIZE);
+            writeFrame(WINDOW_UPDATE, 0, 0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE, 4, true);
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Reads a 32-bit integer.
+     */
+    private static int readInt(byte[] b, int off)
+    {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+    }
+
+    /**
+     * A connection error, which ends the connection with a GOAWAY frame.
+     */
+    static final class Http2Exception extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        Http2Exception(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+    }
+}
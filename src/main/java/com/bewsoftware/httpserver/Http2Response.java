@@ -0,0 +1,115 @@
+/*
+ *  File Name:    Http2Response.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.IOException;
+
+/**
+ * The {@code Http2Response} class is a {@link Response} sent over an
+ * {@link Http2Stream}.
+ * <p>
+ * The status and headers are sent as a HEADERS frame, and the body as DATA
+ * frames. Connection-specific headers, which HTTP/2 forbids, are dropped;
+ * without a {@code Transfer-Encoding} header, the body is never chunked,
+ * as the stream itself delimits it.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+class Http2Response extends Response
+{
+    /**
+     * The headers that are specific to an HTTP/1.x connection (RFC7540#8.1.2.2).
+     */
+    private static final String[] CONNECTION_HEADERS =
+    {
+        "Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding", "Upgrade"
+    };
+
+    protected final Http2Stream stream;
+
+    /**
+     * Constructs an Http2Response.
+     *
+     * @param stream          the stream the response is sent on
+     * @param disallowCaching Disallow browser file caching.
+     */
+    Http2Response(Http2Stream stream, boolean disallowCaching)
+    {
+        super(stream.getOutputStream(), disallowCaching);
+        this.stream = stream;
+    }
+
+    /**
+     * Closes this response, ending its stream. If no headers were sent, the
+     * stream is reset instead.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    public void finish() throws IOException
+    {
+        boolean sent = headersSent();
+        super.finish();
+
+        if (sent)
+        {
+            out.close(); // END_STREAM
+        } else if (!stream.localClosed)
+        {
+            stream.connection.resetStream(stream, Http2Connection.INTERNAL_ERROR);
+        }
+    }
+
+    @Override
+    public void sendHeaders(int status) throws IOException
+    {
+        if (headersSent())
+        {
+            throw new IOException("headers were already sent");
+        }
+
+        if (disallowCaching)
+        {
+            addNoCachingHeaders();
+        }
+
+        for (String name : CONNECTION_HEADERS)
+        {
+            headers.remove(name);
+        }
+
+        stream.connection.writeHeaders(stream, status, headers, false);
+        state = 1; // headers sent
+        this.status = status;
+    }
+
+    @Override
+    protected void sendContinue() throws IOException
+    {
+        stream.connection.writeHeaders(stream, 100, null, false);
+        stream.connection.flush();
+    }
+}
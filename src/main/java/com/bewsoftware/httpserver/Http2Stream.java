@@ -0,0 +1,415 @@
+/*
+ *  File Name:    Http2Stream.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@code Http2Stream} class is a single stream of an
+ * {@link Http2Connection}, carrying one request and its response.
+ * <p>
+ * The request body is received by the connection's reader thread and
+ * queued, to be read through {@link #getInputStream()} by the thread
+ * handling the request. The queue is bounded by the stream's receive
+ * window, which is only replenished as the body is read. The response body
+ * written to {@link #getOutputStream()} is buffered into DATA frames, which
+ * are sent as the peer's flow control windows allow.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+final class Http2Stream
+{
+    protected final Http2Connection connection;
+
+    protected final Condition dataAvailable;
+
+    protected final ArrayDeque<byte[]> data = new ArrayDeque<>(); // received DATA payloads (lock)
+
+    protected int dataPos; // position in the first payload (lock)
+
+    protected final int id;
+
+    protected final InputStream input = new Input();
+
+    protected volatile boolean localClosed; // END_STREAM sent
+
+    protected final ReentrantLock lock = new ReentrantLock(); // guards the receive side
+
+    protected final OutputStream output = new Output();
+
+    protected volatile long received; // DATA bytes received
+
+    protected int receiveWindow = Http2Connection.DEFAULT_WINDOW_SIZE; // what the peer may still send (lock)
+
+    protected boolean remoteClosed; // END_STREAM received (lock)
+
+    protected volatile int resetCode = -1; // the RST_STREAM error code, or -1
+
+    protected long sendWindow; // guarded by the connection's flow lock
+
+    protected long sent; // bytes of frames sent (connection's write lock)
+
+    protected int unacknowledged; // bytes read, but not yet returned to the receive window (lock)
+
+    /**
+     * Constructs an Http2Stream.
+     *
+     * @param connection the connection
+     * @param id         the stream identifier
+     * @param sendWindow the initial send window
+     */
+    Http2Stream(Http2Connection connection, int id, long sendWindow)
+    {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.dataAvailable = lock.newCondition();
+    }
+
+    /**
+     * Returns the stream from which the request body is read.
+     *
+     * @return the input stream
+     */
+    InputStream getInputStream()
+    {
+        return input;
+    }
+
+    /**
+     * Returns the stream to which the response body is written.
+     *
+     * @return the output stream
+     */
+    OutputStream getOutputStream()
+    {
+        return output;
+    }
+
+    /**
+     * Returns whether the stream has been reset, by either peer.
+     *
+     * @return true if reset
+     */
+    boolean isReset()
+    {
+        return resetCode >= 0;
+    }
+
+    /**
+     * Queues the payload of a DATA frame (reader thread only).
+     *
+     * @param b         the buffer
+     * @param off       the data offset
+     * @param len       the data length
+     * @param flowed    the frame's length, counted against the receive
+     *                  window (including padding)
+     * @param endStream whether the frame ends the stream
+     *
+     * @return false if the frame overflows the receive window
+     */
+    boolean receive(byte[] b, int off, int len, int flowed, boolean endStream)
+    {
+        lock.lock();
+
+        try
+        {
+            receiveWindow -= flowed;
+
+            if (receiveWindow < 0)
+            {
+                return false;
+            }
+
+            if (len > 0)
+            {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                data.add(copy);
+                received += len;
+            }
+
+            unacknowledged += flowed - len; // padding is never read
+            remoteClosed |= endStream;
+            dataAvailable.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+
+        return true;
+    }
+
+    /**
+     * Marks the end of the request body, e.g. when trailers are received.
+     */
+    void endInput()
+    {
+        lock.lock();
+
+        try
+        {
+            remoteClosed = true;
+            dataAvailable.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the whole request body has been received.
+     *
+     * @return true if END_STREAM was received
+     */
+    boolean isRemoteClosed()
+    {
+        lock.lock();
+
+        try
+        {
+            return remoteClosed;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the stream as reset, waking any thread waiting on it.
+     *
+     * @param code the error code
+     */
+    void reset(int code)
+    {
+        if (resetCode < 0)
+        {
+            resetCode = code;
+        }
+
+        lock.lock();
+
+        try
+        {
+            dataAvailable.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Http2Stream{" + "\nid=" + id
+                + ", \nlocalClosed=" + localClosed
+                + ", \nresetCode=" + resetCode
+                + ", \nreceived=" + received
+                + ", \nsent=" + sent
+                + "\n}";
+    }
+
+    /**
+     * The request body.
+     */
+    private final class Input extends InputStream
+    {
+        @Override
+        public int available()
+        {
+            lock.lock();
+
+            try
+            {
+                byte[] first = data.peek();
+
+                return first == null ? 0 : first.length - dataPos;
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            int n;
+            int update = 0;
+            lock.lock();
+
+            try
+            {
+                byte[] first;
+
+                while ((first = data.peek()) == null)
+                {
+                    if (resetCode >= 0)
+                    {
+                        throw new IOException("stream reset (" + resetCode + ")");
+                    }
+
+                    if (remoteClosed)
+                    {
+                        return -1;
+                    }
+
+                    dataAvailable.await();
+                }
+
+                n = Math.min(len, first.length - dataPos);
+                System.arraycopy(first, dataPos, b, off, n);
+                dataPos += n;
+
+                if (dataPos == first.length)
+                {
+                    data.poll();
+                    dataPos = 0;
+                }
+
+                unacknowledged += n;
+
+                // return the read bytes to the peer in batches, unless no more are coming
+                if (unacknowledged >= Http2Connection.DEFAULT_WINDOW_SIZE / 2 && !remoteClosed)
+                {
+                    update = unacknowledged;
+                    unacknowledged = 0;
+                    receiveWindow += update; // before the peer can see the update
+                }
+            } catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException("interrupted waiting for request body");
+            } finally
+            {
+                lock.unlock();
+            }
+
+            if (update > 0)
+            {
+                connection.windowUpdate(Http2Stream.this, update);
+            }
+
+            return n;
+        }
+    }
+
+    /**
+     * The response body, buffered into DATA frames.
+     */
+    private final class Output extends OutputStream
+    {
+        private final byte[] buf = new byte[Http2Connection.DEFAULT_MAX_FRAME_SIZE];
+
+        private boolean closed;
+
+        private int count;
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                connection.writeData(Http2Stream.this, buf, 0, count, true);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            if (count > 0)
+            {
+                connection.writeData(Http2Stream.this, buf, 0, count, false);
+                count = 0;
+            } else
+            {
+                connection.flush();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (count == buf.length)
+            {
+                flush();
+            }
+
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (closed)
+            {
+                throw new IOException("stream closed");
+            }
+
+            if (len > buf.length - count)
+            {
+                if (count > 0)
+                {
+                    flush();
+                }
+
+                if (len >= buf.length)
+                {
+                    connection.writeData(Http2Stream.this, b, off, len, false); // large write - don't copy
+                    return;
+                }
+            }
+
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+}
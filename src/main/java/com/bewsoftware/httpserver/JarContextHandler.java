@@ -38,11 +38,16 @@ import static com.bewsoftware.httpserver.NetUtils.serveFile;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
 @SuppressWarnings("ProtectedField")
 public class JarContextHandler implements ContextHandler, AutoCloseable
 {
+    /**
+     * The content cache, or null if none is used.
+     */
+    protected final ContentCache cache;
+
     /**
      * The Jar File System.
      */
@@ -68,9 +73,27 @@ public class JarContextHandler implements ContextHandler, AutoCloseable
      * @throws URISyntaxException if any.
      */
     public JarContextHandler(URI jarURI, String dir) throws IOException, URISyntaxException
+    {
+        this(jarURI, dir, null);
+    }
+
+    /**
+     * Instantiate a {@code JarContextHandler} which serves small files from
+     * the given cache. Only the cached files are gzipped once, rather than
+     * for each request.
+     *
+     * @param jarURI Path to the 'jar' file.
+     * @param dir    Directory in 'jar' file to publish.
+     * @param cache  The content cache, or null if none is used.
+     *
+     * @throws IOException        if any.
+     * @throws URISyntaxException if any.
+     */
+    public JarContextHandler(URI jarURI, String dir, ContentCache cache) throws IOException, URISyntaxException
     {
         this.jarURI = jarURI;
         rootDir = dir != null ? dir : "";
+        this.cache = cache;
     }
 
     @Override
@@ -101,13 +124,14 @@ public class JarContextHandler implements ContextHandler, AutoCloseable
             jarFS = FileSystems.newFileSystem(jarURI, Collections.emptyMap());
         }
 
-        return serveFile(jarFS, req.getContext().getPath(), req, resp);
+        return serveFile(jarFS, req.getContext().getPath(), req, resp, cache);
     }
 
     @Override
     public String toString()
     {
         return "JarContextHandler{"
+                + "\ncache=" + cache + ", "
                 + "\njarURI=" + jarURI + ", "
                 + "\nrootDir=" + rootDir + '}';
     }
@@ -0,0 +1,274 @@
+/*
+ *  File Name:    LatencyHistogram.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code LatencyHistogram} class records durations, in nanoseconds, into
+ * log-linear buckets, from which percentiles can be estimated.
+ * <p>
+ * Each power of two is split into 16 linear buckets, so a recorded value is
+ * placed in a bucket no more than 6.25% wider than the value itself.
+ * Durations of 2<sup>40</sup> ns (about 18 minutes) and longer share the
+ * last bucket.
+ * <p>
+ * Recording is lock-free and allocates nothing. The bucket counts are
+ * striped over several arrays, picked by thread, to reduce contention
+ * between the threads recording concurrently.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class LatencyHistogram
+{
+    /**
+     * The highest power of 2 that has buckets of its own.
+     */
+    protected static final int MAX_EXPONENT = 39;
+
+    /**
+     * The number of buckets.
+     */
+    public static final int BUCKETS = (MAX_EXPONENT - 2) * 16;
+
+    /**
+     * The number of stripes (a power of 2).
+     */
+    protected static final int STRIPES = 4;
+
+    protected final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS); // by stripe, then bucket
+
+    protected final AtomicLong max = new AtomicLong();
+
+    protected final LongAdder sum = new LongAdder();
+
+    /**
+     * Constructs an empty LatencyHistogram.
+     */
+    public LatencyHistogram()
+    {
+    }
+
+    /**
+     * Returns the bucket that holds the given value.
+     *
+     * @param value the value, which must not be negative
+     *
+     * @return the bucket's index
+     */
+    public static int bucketOf(long value)
+    {
+        if (value < 32)
+        {
+            return (int) value;
+        }
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+
+        if (exp > MAX_EXPONENT)
+        {
+            return BUCKETS - 1;
+        }
+
+        return (exp - 3) * 16 + (int) (value >>> (exp - 4) & 15);
+    }
+
+    /**
+     * Returns the lowest value held by the given bucket.
+     *
+     * @param bucket the bucket's index
+     *
+     * @return the bucket's lowest value
+     */
+    public static long lowestOf(int bucket)
+    {
+        if (bucket < 32)
+        {
+            return bucket;
+        }
+
+        int exp = bucket / 16 + 3;
+
+        return (16L + bucket % 16) << (exp - 4);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds (negative values are recorded
+     *              as 0)
+     */
+    public void record(long nanos)
+    {
+        long value = Math.max(nanos, 0);
+        int stripe = System.identityHashCode(Thread.currentThread()) & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+        sum.add(value);
+
+        if (value > max.get())
+        {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the recorded durations.
+     * <p>
+     * Durations recorded while the snapshot is taken may or may not be
+     * included in it.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot()
+    {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++)
+        {
+            long n = counts.get(i);
+            buckets[i % BUCKETS] += n;
+            count += n;
+        }
+
+        return new Snapshot(buckets, count, sum.sum(), max.get());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram{"
+                + "\nmax=" + max + ", "
+                + "\nsum=" + sum + '}';
+    }
+
+    /**
+     * An immutable snapshot of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot
+    {
+        private final long[] buckets;
+
+        private final long count;
+
+        private final long max;
+
+        private final long sum;
+
+        Snapshot(long[] buckets, long count, long sum, long max)
+        {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Returns the number of recorded durations.
+         *
+         * @return the count
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns the longest recorded duration.
+         *
+         * @return the maximum, in nanoseconds
+         */
+        public long getMax()
+        {
+            return max;
+        }
+
+        /**
+         * Returns the mean of the recorded durations.
+         *
+         * @return the mean, in nanoseconds, or 0 if there are none
+         */
+        public double getMean()
+        {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the sum of the recorded durations.
+         *
+         * @return the sum, in nanoseconds
+         */
+        public long getSum()
+        {
+            return sum;
+        }
+
+        /**
+         * Estimates the duration at the given percentile, as the midpoint of
+         * the bucket it falls in (but no more than the maximum).
+         *
+         * @param percentile the percentile, from 0 to 100
+         *
+         * @return the duration, in nanoseconds, or 0 if there are none
+         */
+        public long getValueAtPercentile(double percentile)
+        {
+            if (count == 0)
+            {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i];
+
+                if (seen >= rank)
+                {
+                    long low = lowestOf(i);
+                    long high = i + 1 < buckets.length ? lowestOf(i + 1) - 1 : max;
+
+                    return Math.min(low + (high - low) / 2, max);
+                }
+            }
+
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Snapshot{"
+                    + "\ncount=" + count + ", "
+                    + "\nmax=" + max + ", "
+                    + "\nsum=" + sum + '}';
+        }
+    }
+}
@@ -22,8 +22,14 @@
 package com.bewsoftware.httpserver;
 
 import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 /**
  * The {@code MethodContextHandler} services a context
@@ -31,17 +37,37 @@ import java.lang.reflect.Method;
  * <p>
  * The method must have the same signature and contract as
  * {@link ContextHandler#serve}, but can have an arbitrary name.
+ * <p>
+ * The method is bound once, when the handler is constructed, into a direct
+ * {@link ContextHandler} implementation generated by the
+ * {@link LambdaMetafactory}, so that serving a request costs the same as
+ * calling a hand-written lambda, rather than a reflective
+ * {@link Method#invoke} with its boxing and argument checks. If the
+ * method's class cannot be accessed that way (e.g. it is in a named module
+ * that does not open its package to this one, and it is not public),
+ * it is invoked reflectively, as before.
+ * <p>
+ * Either way, an {@link IOException} or {@link Error} thrown by the method
+ * propagates unchanged, and any other exception is wrapped in an
+ * IOException, with the exception as its cause.
  *
  * @see VirtualHost#addContexts(AutoCloseable)
  *
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
 public class MethodContextHandler implements ContextHandler, AutoCloseable
 {
 
+    /**
+     * The type of {@link ContextHandler#serve}.
+     */
+    protected static final MethodType SERVE_TYPE = MethodType.methodType(int.class, Request.class, Response.class);
+
+    protected final ContextHandler invoker; // the bound method, or null to use reflection
+
     protected final Method m;
 
     protected final Object obj;
@@ -78,6 +104,98 @@ public class MethodContextHandler implements ContextHandler, AutoCloseable
         {
             throw new IllegalArgumentException("invalid method signature: " + m);
         }
+
+        this.invoker = bind(m, obj);
+    }
+
+    /**
+     * Binds a handler method to the given object.
+     * <p>
+     * The generated class is made a nestmate of the method's class if that
+     * class's package is open to this module (e.g. both are on the class
+     * path), so that even private methods can be called directly. Otherwise
+     * it is made a nestmate of this class, which can only call the method
+     * directly if it is accessible from here (e.g. public).
+     *
+     * @param m   the method, with the same signature as
+     *            {@link ContextHandler#serve}
+     * @param obj the object with the method (ignored if it is static)
+     *
+     * @return a ContextHandler that invokes the method, or null if it cannot
+     *         be bound (and reflection must be used)
+     */
+    protected static ContextHandler bind(Method m, Object obj)
+    {
+        if (m.getParameterTypes()[1] != Response.class)
+        {
+            return null; // the generated method could not pass on a Response
+        }
+
+        Class<?> target = m.getDeclaringClass();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try
+        {
+            MethodContextHandler.class.getModule().addReads(target.getModule());
+            MethodHandles.Lookup targetLookup = MethodHandles.privateLookupIn(target, lookup);
+
+            if (targetLookup.hasFullPrivilegeAccess())
+            {
+                return bind(m, obj, targetLookup);
+            }
+        } catch (IllegalAccessException | LambdaConversionException ignore)
+        {
+            // NoOp - try this class's lookup instead
+        }
+
+        try
+        {
+            return bind(m, obj, lookup);
+        } catch (IllegalAccessException | LambdaConversionException ignore)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Binds a handler method to the given object, by generating a class with
+     * the given lookup.
+     *
+     * @param m      the method
+     * @param obj    the object with the method (ignored if it is static)
+     * @param lookup the lookup (with full privilege access)
+     *
+     * @return a ContextHandler that invokes the method
+     *
+     * @throws IllegalAccessException    if the method is not accessible
+     * @throws LambdaConversionException if the class cannot be generated
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    private static ContextHandler bind(Method m, Object obj, MethodHandles.Lookup lookup)
+            throws IllegalAccessException, LambdaConversionException
+    {
+        boolean isStatic = Modifier.isStatic(m.getModifiers());
+        CallSite site;
+
+        try
+        {
+            site = LambdaMetafactory.metafactory(lookup, "serve",
+                    isStatic ? MethodType.methodType(ContextHandler.class)
+                            : MethodType.methodType(ContextHandler.class, m.getDeclaringClass()),
+                    SERVE_TYPE, lookup.unreflect(m), SERVE_TYPE);
+        } catch (IllegalArgumentException iae)
+        { // e.g. the method is not accessible from the lookup class
+            throw new LambdaConversionException(iae);
+        }
+
+        try
+        {
+            return isStatic ? (ContextHandler) site.getTarget().invoke()
+                    : (ContextHandler) site.getTarget().invoke(obj);
+        } catch (Throwable t)
+        {
+            throw new LambdaConversionException(t);
+        }
     }
 
     @Override
@@ -95,12 +213,36 @@ public class MethodContextHandler implements ContextHandler, AutoCloseable
     @Override
     public int serve(Request req, Response resp) throws IOException
     {
+        if (invoker != null)
+        {
+            try
+            {
+                return invoker.serve(req, resp);
+            } catch (IOException ioe)
+            {
+                throw ioe;
+            } catch (Exception e)
+            { // as with reflection, any other failure becomes an IOException
+                throw new IOException("error: " + e.getMessage(), e);
+            }
+        }
+
         try
         {
             return (Integer) m.invoke(obj, req, resp);
         } catch (InvocationTargetException ite)
-        {
-            throw new IOException("error: " + ite.getCause().getMessage());
+        { // unwrapped as on the bound path
+            Throwable cause = ite.getCause();
+
+            if (cause instanceof IOException ioe)
+            {
+                throw ioe;
+            } else if (cause instanceof Error err)
+            {
+                throw err;
+            }
+
+            throw new IOException("error: " + cause.getMessage(), cause);
         } catch (IllegalAccessException | IllegalArgumentException e)
         {
             throw new IOException("error: " + e);
@@ -0,0 +1,450 @@
+/*
+ *  File Name:    Metrics.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code Metrics} class is a registry of a server's connection and
+ * request metrics.
+ * <p>
+ * It is enabled by setting it on a server, before the server is started,
+ * with {@link HTTPServer#setMetrics}. The counters are striped
+ * ({@link LongAdder}), and the parse and handler times are recorded into
+ * {@link LatencyHistogram}s, so updating the metrics neither locks nor
+ * allocates once every context has been seen.
+ * <p>
+ * The metrics are read with {@link #snapshot()}, or scraped as text by
+ * mounting a {@link MetricsContextHandler}.
+ * <p>
+ * The parse time of a request runs from the arrival of its first bytes to
+ * the end of its head; the handler time runs from there to the end of its
+ * response, less the final flush. A connection is idle while it is open but
+ * not serving a request.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class Metrics
+{
+    protected final LongAdder accepted = new LongAdder(); // connections accepted
+
+    protected final LongAdder busy = new LongAdder(); // requests being served
+
+    protected final LongAdder bytesIn = new LongAdder(); // bytes read from connections
+
+    protected final LongAdder bytesOut = new LongAdder(); // bytes written to connections
+
+    protected final LongAdder closed = new LongAdder(); // connections closed
+
+    protected final Map<ContextInfo, ContextCounter> contexts = new ConcurrentHashMap<>(); // requests by context
+
+    protected final LatencyHistogram handlerTime = new LatencyHistogram();
+
+    protected final LatencyHistogram parseTime = new LatencyHistogram();
+
+    protected final LongAdder requests = new LongAdder(); // requests read
+
+    protected final LongAdder reused = new LongAdder(); // requests read on a kept-alive connection
+
+    protected final LongAdder[] statuses = new LongAdder[600]; // responses by status code
+
+    /**
+     * Constructs an empty Metrics registry.
+     */
+    public Metrics()
+    {
+        for (int i = 0; i < statuses.length; i++)
+        {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the closing of a connection.
+     */
+    public void connectionClosed()
+    {
+        closed.increment();
+    }
+
+    /**
+     * Records the opening of an accepted connection.
+     */
+    public void connectionOpened()
+    {
+        accepted.increment();
+    }
+
+    /**
+     * Records the end of a request.
+     *
+     * @param resp  the response, whose status is counted
+     * @param start the time at which the request head was read, as returned
+     *              by {@link #requestParsed}
+     */
+    public void requestHandled(Response resp, long start)
+    {
+        handlerTime.record(System.nanoTime() - start);
+        busy.decrement();
+        responseSent(resp);
+    }
+
+    /**
+     * Records the reading of a request head.
+     *
+     * @param req    the request
+     * @param start  the time, from {@link System#nanoTime()}, at which the
+     *               first bytes of the request were available
+     * @param reused whether the request was read on a kept-alive connection
+     *
+     * @return the current time, from which the handler time is measured
+     */
+    public long requestParsed(Request req, long start, boolean reused)
+    {
+        long now = System.nanoTime();
+        parseTime.record(now - start);
+        requests.increment();
+        busy.increment();
+
+        if (reused)
+        {
+            this.reused.increment();
+        }
+
+        VirtualHost host = req.getVirtualHost();
+
+        if (host != null)
+        {
+            ContextInfo info = req.getContext();
+            ContextCounter counter = contexts.get(info);
+
+            if (counter == null)
+            {
+                counter = contexts.computeIfAbsent(info, key -> new ContextCounter(host.getName(), key.getPath()));
+            }
+
+            counter.count.increment();
+        }
+
+        return now;
+    }
+
+    /**
+     * Records the status of a response, if it was sent.
+     * <p>
+     * This is only needed for responses to requests that were not
+     * {@link #requestParsed parsed}, e.g. a {@code 400 Bad Request}.
+     *
+     * @param resp the response
+     */
+    public void responseSent(Response resp)
+    {
+        int status = resp.getStatus();
+
+        if (status > 0 && status < statuses.length)
+        {
+            statuses[status].increment();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the metrics.
+     * <p>
+     * The values are read one at a time, while the server is running, so
+     * they may not be exactly consistent with each other.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Records the bytes read from and written to a connection.
+     *
+     * @param in  the number of bytes read
+     * @param out the number of bytes written
+     */
+    public void transferred(long in, long out)
+    {
+        bytesIn.add(in);
+        bytesOut.add(out);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Metrics{"
+                + "\naccepted=" + accepted + ", "
+                + "\nbytesIn=" + bytesIn + ", "
+                + "\nbytesOut=" + bytesOut + ", "
+                + "\nclosed=" + closed + ", "
+                + "\nrequests=" + requests + ", "
+                + "\nreused=" + reused + '}';
+    }
+
+    /**
+     * The request counter of a context.
+     */
+    protected static final class ContextCounter
+    {
+        protected final LongAdder count = new LongAdder();
+
+        protected final String host; // the virtual host's name (null for the default host)
+
+        protected final String path; // the context's path (null if no context matched)
+
+        ContextCounter(String host, String path)
+        {
+            this.host = host;
+            this.path = path;
+        }
+    }
+
+    /**
+     * An immutable snapshot of a {@link Metrics} registry.
+     */
+    public static final class Snapshot
+    {
+        private final long accepted;
+
+        private final long active;
+
+        private final long bytesIn;
+
+        private final long bytesOut;
+
+        private final Map<String, Map<String, Long>> contexts;
+
+        private final LatencyHistogram.Snapshot handlerTime;
+
+        private final long open;
+
+        private final LatencyHistogram.Snapshot parseTime;
+
+        private final long requests;
+
+        private final long reused;
+
+        private final long[] statuses;
+
+        Snapshot(Metrics metrics)
+        {
+            accepted = metrics.accepted.sum();
+            open = Math.max(0, accepted - metrics.closed.sum());
+            active = Math.min(open, Math.max(0, metrics.busy.sum()));
+            bytesIn = metrics.bytesIn.sum();
+            bytesOut = metrics.bytesOut.sum();
+            requests = metrics.requests.sum();
+            reused = metrics.reused.sum();
+            parseTime = metrics.parseTime.snapshot();
+            handlerTime = metrics.handlerTime.snapshot();
+            statuses = new long[metrics.statuses.length];
+
+            for (int i = 0; i < statuses.length; i++)
+            {
+                statuses[i] = metrics.statuses[i].sum();
+            }
+
+            Map<String, Map<String, Long>> map = new TreeMap<>();
+
+            for (ContextCounter counter : metrics.contexts.values())
+            {
+                map.computeIfAbsent(counter.host != null ? counter.host : "", host -> new TreeMap<>())
+                        .merge(counter.path != null ? counter.path : "", counter.count.sum(), Long::sum);
+            }
+
+            map.replaceAll((host, paths) -> Collections.unmodifiableMap(paths));
+            contexts = Collections.unmodifiableMap(map);
+        }
+
+        /**
+         * Returns the number of connections accepted.
+         *
+         * @return the number of accepted connections
+         */
+        public long getAcceptedConnections()
+        {
+            return accepted;
+        }
+
+        /**
+         * Returns the number of open connections that are serving a request.
+         *
+         * @return the number of active connections
+         */
+        public long getActiveConnections()
+        {
+            return active;
+        }
+
+        /**
+         * Returns the number of bytes read from connections.
+         *
+         * @return the number of bytes in
+         */
+        public long getBytesIn()
+        {
+            return bytesIn;
+        }
+
+        /**
+         * Returns the number of bytes written to connections.
+         *
+         * @return the number of bytes out
+         */
+        public long getBytesOut()
+        {
+            return bytesOut;
+        }
+
+        /**
+         * Returns the number of requests per context, by virtual host name
+         * and then by context path. The default host's name, and the path of
+         * requests that matched no context, are empty strings.
+         *
+         * @return the request counts
+         */
+        public Map<String, Map<String, Long>> getContextRequests()
+        {
+            return contexts;
+        }
+
+        /**
+         * Returns the handler times of requests.
+         *
+         * @return the handler time histogram
+         */
+        public LatencyHistogram.Snapshot getHandlerTime()
+        {
+            return handlerTime;
+        }
+
+        /**
+         * Returns the number of open connections that are waiting for a
+         * request.
+         *
+         * @return the number of idle connections
+         */
+        public long getIdleConnections()
+        {
+            return open - active;
+        }
+
+        /**
+         * Returns the number of open connections.
+         *
+         * @return the number of open connections
+         */
+        public long getOpenConnections()
+        {
+            return open;
+        }
+
+        /**
+         * Returns the parse times of request heads.
+         *
+         * @return the parse time histogram
+         */
+        public LatencyHistogram.Snapshot getParseTime()
+        {
+            return parseTime;
+        }
+
+        /**
+         * Returns the number of requests read.
+         *
+         * @return the number of requests
+         */
+        public long getRequests()
+        {
+            return requests;
+        }
+
+        /**
+         * Returns the number of requests read on connections kept alive after
+         * an earlier request.
+         *
+         * @return the number of kept-alive connection reuses
+         */
+        public long getReusedConnections()
+        {
+            return reused;
+        }
+
+        /**
+         * Returns the number of responses sent with the given status.
+         *
+         * @param status the status code
+         *
+         * @return the number of responses
+         */
+        public long getStatusCount(int status)
+        {
+            return status >= 0 && status < statuses.length ? statuses[status] : 0;
+        }
+
+        /**
+         * Returns the number of responses sent, by status code.
+         *
+         * @return the response counts, of the statuses that were sent
+         */
+        public Map<Integer, Long> getStatusCounts()
+        {
+            Map<Integer, Long> map = new TreeMap<>();
+
+            for (int i = 0; i < statuses.length; i++)
+            {
+                if (statuses[i] > 0)
+                {
+                    map.put(i, statuses[i]);
+                }
+            }
+
+            return Collections.unmodifiableMap(map);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Snapshot{"
+                    + "\naccepted=" + accepted + ", "
+                    + "\nactive=" + active + ", "
+                    + "\nbytesIn=" + bytesIn + ", "
+                    + "\nbytesOut=" + bytesOut + ", "
+                    + "\ncontexts=" + contexts + ", "
+                    + "\nopen=" + open + ", "
+                    + "\nrequests=" + requests + ", "
+                    + "\nreused=" + reused + ", "
+                    + "\nstatuses=" + getStatusCounts() + '}';
+        }
+    }
+}
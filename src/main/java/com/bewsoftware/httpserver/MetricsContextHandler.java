@@ -0,0 +1,232 @@
+/*
+ *  File Name:    MetricsContextHandler.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@code MetricsContextHandler} services a context by sending a
+ * snapshot of a {@link Metrics} registry, as text in the Prometheus
+ * exposition format.
+ * <p>
+ * For example:
+ * <pre>{@code
+ * Metrics metrics = new Metrics();
+ * server.setMetrics(metrics);
+ * server.getVirtualHost(null).addContext("/metrics", new MetricsContextHandler(metrics));
+ * }</pre>
+ * Times are in seconds. The parse and handler time quantiles are estimated
+ * from {@link LatencyHistogram} buckets.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class MetricsContextHandler implements ContextHandler
+{
+    /**
+     * The content type of the text exposition format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The quantiles reported for the parse and handler times.
+     */
+    protected static final double[] QUANTILES =
+    {
+        0.5, 0.9, 0.99, 0.999
+    };
+
+    protected final Metrics metrics;
+
+    protected final String prefix; // prepended to every metric name
+
+    /**
+     * Constructs a MetricsContextHandler, whose metric names start with
+     * {@code jlhttp_}.
+     *
+     * @param metrics the metrics registry
+     */
+    public MetricsContextHandler(Metrics metrics)
+    {
+        this(metrics, "jlhttp_");
+    }
+
+    /**
+     * Constructs a MetricsContextHandler.
+     *
+     * @param metrics the metrics registry
+     * @param prefix  the prefix of every metric name
+     */
+    public MetricsContextHandler(Metrics metrics, String prefix)
+    {
+        this.metrics = metrics;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Formats a snapshot of metrics in the text exposition format.
+     *
+     * @param snapshot the snapshot
+     *
+     * @return the formatted metrics
+     */
+    public String format(Metrics.Snapshot snapshot)
+    {
+        StringBuilder sb = new StringBuilder(2048);
+
+        metric(sb, "connections_accepted_total", "counter", "Connections accepted.");
+        sample(sb, "connections_accepted_total", "", snapshot.getAcceptedConnections());
+
+        metric(sb, "connections", "gauge", "Open connections, by whether they are serving a request.");
+        sample(sb, "connections", "{state=\"active\"}", snapshot.getActiveConnections());
+        sample(sb, "connections", "{state=\"idle\"}", snapshot.getIdleConnections());
+
+        metric(sb, "connections_reused_total", "counter", "Requests read on kept-alive connections.");
+        sample(sb, "connections_reused_total", "", snapshot.getReusedConnections());
+
+        metric(sb, "requests_total", "counter", "Requests, by virtual host and context.");
+
+        for (Map.Entry<String, Map<String, Long>> host : snapshot.getContextRequests().entrySet())
+        {
+            for (Map.Entry<String, Long> context : host.getValue().entrySet())
+            {
+                sample(sb, "requests_total", "{host=\"" + escape(host.getKey())
+                        + "\",context=\"" + escape(context.getKey()) + "\"}", context.getValue());
+            }
+        }
+
+        metric(sb, "responses_total", "counter", "Responses, by status code.");
+
+        for (Map.Entry<Integer, Long> status : snapshot.getStatusCounts().entrySet())
+        {
+            sample(sb, "responses_total", "{status=\"" + status.getKey() + "\"}", status.getValue());
+        }
+
+        metric(sb, "received_bytes_total", "counter", "Bytes read from connections.");
+        sample(sb, "received_bytes_total", "", snapshot.getBytesIn());
+
+        metric(sb, "sent_bytes_total", "counter", "Bytes written to connections.");
+        sample(sb, "sent_bytes_total", "", snapshot.getBytesOut());
+
+        summary(sb, "request_parse_seconds", "Time to read request heads.", snapshot.getParseTime());
+        summary(sb, "request_handler_seconds", "Time to handle requests.", snapshot.getHandlerTime());
+
+        return sb.toString();
+    }
+
+    @Override
+    public int serve(Request req, Response resp) throws IOException
+    {
+        byte[] body = format(metrics.snapshot()).getBytes(StandardCharsets.UTF_8);
+        resp.getHeaders().add("Cache-Control", "no-cache");
+        resp.sendHeaders(200, body.length, -1, null, CONTENT_TYPE, null);
+        OutputStream out = resp.getBody();
+
+        if (out != null) // not a HEAD request
+        {
+            out.write(body);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MetricsContextHandler{"
+                + "\nmetrics=" + metrics + ", "
+                + "\nprefix=" + prefix + '}';
+    }
+
+    /**
+     * Escapes a label value.
+     *
+     * @param value the label value
+     *
+     * @return the escaped value
+     */
+    protected static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Appends the HELP and TYPE lines of a metric.
+     *
+     * @param sb   the text
+     * @param name the metric name, without the prefix
+     * @param type the metric type
+     * @param help the metric description
+     */
+    protected void metric(StringBuilder sb, String name, String type, String help)
+    {
+        sb.append("# HELP ").append(prefix).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(prefix).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Appends a sample of a metric.
+     *
+     * @param sb     the text
+     * @param name   the metric name, without the prefix
+     * @param labels the labels, in braces, or an empty string if none
+     * @param value  the value
+     */
+    protected void sample(StringBuilder sb, String name, String labels, Object value)
+    {
+        sb.append(prefix).append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a summary of durations.
+     *
+     * @param sb        the text
+     * @param name      the metric name, without the prefix
+     * @param help      the metric description
+     * @param histogram the durations
+     */
+    protected void summary(StringBuilder sb, String name, String help, LatencyHistogram.Snapshot histogram)
+    {
+        metric(sb, name, "summary", help);
+
+        for (double quantile : QUANTILES)
+        {
+            sample(sb, name, "{quantile=\"" + quantile + "\"}",
+                    seconds(histogram.getValueAtPercentile(quantile * 100)));
+        }
+
+        sample(sb, name + "_sum", "", seconds(histogram.getSum()));
+        sample(sb, name + "_count", "", histogram.getCount());
+    }
+
+    private static String seconds(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -21,9 +21,15 @@
  */
 package com.bewsoftware.httpserver;
 
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import static com.bewsoftware.httpserver.HTTPServer.CRLF;
 
@@ -35,19 +41,34 @@ import static com.bewsoftware.httpserver.HTTPServer.CRLF;
  * The {@code InputStream} methods (e.g. {@link #read}) relate only to
  * the current part, and the {@link #nextPart} method advances to the
  * beginning of the next part.
+ * <p>
+ * Boundaries are found with a Boyer-Moore-Horspool search, which skips
+ * ahead by up to the boundary's length at each position that cannot end a
+ * boundary, over a buffer large enough (64 KiB by default) that the data is
+ * mostly handed over in large blocks. A part can be streamed straight out
+ * of the buffer to a channel (e.g. a file) with {@link #transferTo}.
  *
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
 @SuppressWarnings("ProtectedField")
 public class MultipartInputStream extends FilterInputStream
 {
+    /**
+     * The default buffer size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum length of a part header line.
+     */
+    protected static final int MAX_LINE_LENGTH = 8192;
 
     protected final byte[] boundary; // including leading CRLF--
 
-    protected final byte[] buf = new byte[4096];
+    protected byte[] buf; // taken from the pool, or null once released
 
     protected int end; // last index of input data read into buf
 
@@ -55,12 +76,17 @@ public class MultipartInputStream extends FilterInputStream
 
     protected int len; // length of found boundary
 
+    protected final BufferPool pool; // the pool buf is taken from
+
+    protected final int[] skip = new int[256]; // the search's shift for each byte value (see indexOf)
+
     protected int state; // initial, started data, start boundary, EOS, last boundary, epilogue
 
     protected int tail; // index of current part's data in buf
 
     /**
-     * Constructs a MultipartInputStream with the given underlying stream.
+     * Constructs a MultipartInputStream with the given underlying stream,
+     * and a buffer of the {@link #DEFAULT_BUFFER_SIZE default size}.
      *
      * @param in       the underlying multipart stream
      * @param boundary the multipart boundary
@@ -70,6 +96,25 @@ public class MultipartInputStream extends FilterInputStream
      *                                  between 1 and 70
      */
     protected MultipartInputStream(InputStream in, byte[] boundary)
+    {
+        this(in, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a MultipartInputStream with the given underlying stream.
+     *
+     * @param in         the underlying multipart stream
+     * @param boundary   the multipart boundary
+     * @param bufferSize the minimum size of the buffer the parts are read
+     *                   into (taken from the {@link BufferPool#getDefault()
+     *                   pool})
+     *
+     * @throws NullPointerException     if the given stream or boundary is null
+     * @throws IllegalArgumentException if the given boundary's size is not
+     *                                  between 1 and 70, or the buffer size
+     *                                  is less than 1 KiB
+     */
+    protected MultipartInputStream(InputStream in, byte[] boundary, int bufferSize)
     {
         super(in);
         int blen = boundary.length;
@@ -79,10 +124,27 @@ public class MultipartInputStream extends FilterInputStream
             throw new IllegalArgumentException("invalid boundary length");
         }
 
+        if (bufferSize < 1024)
+        {
+            throw new IllegalArgumentException("invalid buffer size");
+        }
+
         this.boundary = new byte[blen + 4]; // CRLF--boundary
         System.arraycopy(CRLF, 0, this.boundary, 0, 2);
         this.boundary[2] = this.boundary[3] = '-';
         System.arraycopy(boundary, 0, this.boundary, 4, blen);
+
+        // a byte that is not in the boundary (before its last byte) skips past it
+        int last = this.boundary.length - 1;
+        Arrays.fill(skip, this.boundary.length);
+
+        for (int i = 0; i < last; i++)
+        {
+            skip[this.boundary[i] & 0xFF] = last - i;
+        }
+
+        this.pool = BufferPool.getDefault();
+        this.buf = pool.acquire(bufferSize);
     }
 
     @Override
@@ -91,6 +153,19 @@ public class MultipartInputStream extends FilterInputStream
         return tail - head;
     }
 
+    /**
+     * Closes this stream and the underlying stream, and returns the buffer
+     * to the pool it was taken from.
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    public void close() throws IOException
+    {
+        releaseBuffer();
+        super.close();
+    }
+
     @Override
     public boolean markSupported()
     {
@@ -109,7 +184,7 @@ public class MultipartInputStream extends FilterInputStream
     @SuppressWarnings("empty-statement")
     public boolean nextPart() throws IOException
     {
-        while (skip(buf.length) != 0); // skip current part (until boundary)
+        while (skip(Long.MAX_VALUE) != 0); // skip current part (until boundary)
 
         head = tail += len; // the next part starts right after boundary
         state |= 1; // started data (after first boundary)
@@ -168,6 +243,160 @@ public class MultipartInputStream extends FilterInputStream
         return len;
     }
 
+    /**
+     * Transfers the rest of the current part to the given stream, straight
+     * from this stream's buffer.
+     *
+     * @param out the stream to transfer the data to
+     *
+     * @return the number of bytes transferred
+     *
+     * @throws IOException if an error occurs
+     */
+    @Override
+    public long transferTo(OutputStream out) throws IOException
+    {
+        long total = 0;
+
+        while (fill())
+        {
+            int count = tail - head;
+            out.write(buf, head, count);
+            head = tail;
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Transfers the rest of the current part to the given channel (e.g. a
+     * {@link java.nio.channels.FileChannel FileChannel}), straight from this
+     * stream's buffer.
+     *
+     * @param channel the channel to transfer the data to
+     *
+     * @return the number of bytes transferred
+     *
+     * @throws IOException if an error occurs
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException
+    {
+        long total = 0;
+
+        while (fill())
+        {
+            ByteBuffer data = ByteBuffer.wrap(buf, head, tail - head);
+
+            while (data.hasRemaining())
+            {
+                channel.write(data);
+            }
+
+            total += tail - head;
+            head = tail;
+        }
+
+        return total;
+    }
+
+    /**
+     * Reads the headers at the beginning of the current part, as
+     * {@link NetUtils#readHeaders} does, but scanning the buffered data for
+     * line ends rather than reading it a byte at a time.
+     *
+     * @return the read headers (possibly empty, if none exist)
+     *
+     * @throws IOException if an IO error occurs or the headers are malformed
+     *                     or there are more than 100 header lines
+     */
+    protected Headers readHeaders() throws IOException
+    {
+        Headers headers = new Headers();
+        String prevLine = "";
+        int count = 0;
+
+        for (String line; (line = readLine()).length() > 0;)
+        {
+            prevLine = NetUtils.addHeaderLine(headers, line, prevLine);
+
+            if (++count > 100)
+            {
+                throw new IOException("too many header lines");
+            }
+        }
+
+        return headers;
+    }
+
+    /**
+     * Reads a line of the current part, as {@link FileUtils#readLine} does.
+     *
+     * @return the line, excluding its line terminator (LF or CRLF)
+     *
+     * @throws EOFException if the part ends before the line does
+     * @throws IOException  if an error occurs, or the line is too long
+     */
+    protected String readLine() throws IOException
+    {
+        StringBuilder line = null; // only if the line spans reads
+
+        while (fill())
+        {
+            int i = head;
+
+            while (i < tail && buf[i] != '\n')
+            {
+                i++;
+            }
+
+            int length = (line != null ? line.length() : 0) + i - head;
+
+            if (length > MAX_LINE_LENGTH)
+            {
+                throw new IOException("token too large (" + MAX_LINE_LENGTH + ")");
+            }
+
+            if (i < tail) // found the line end
+            {
+                int start = head;
+                head = i + 1;
+
+                if (line == null || i > start)
+                {
+                    int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+                    String s = new String(buf, start, lineEnd - start, StandardCharsets.ISO_8859_1);
+
+                    return line == null ? s : line.append(s).toString();
+                }
+
+                int last = line.length() - 1; // the CR of a CRLF may have ended the previous read
+
+                return line.substring(0, last >= 0 && line.charAt(last) == '\r' ? last : last + 1);
+            }
+
+            line = line != null ? line : new StringBuilder();
+            line.append(new String(buf, head, i - head, StandardCharsets.ISO_8859_1));
+            head = i;
+        }
+
+        throw new EOFException("unexpected end of stream");
+    }
+
+    /**
+     * Returns the buffer to the pool it was taken from, but unlike
+     * {@link #close}, leaves the underlying stream (e.g. a request body)
+     * open. This stream can no longer be read afterwards.
+     */
+    protected void releaseBuffer()
+    {
+        if (buf != null)
+        {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
     /**
      * Fills the buffer with more data from the underlying stream.
      *
@@ -178,6 +407,11 @@ public class MultipartInputStream extends FilterInputStream
      */
     protected boolean fill() throws IOException
     {
+        if (buf == null)
+        {
+            throw new IOException("stream closed");
+        }
+
         // check if we already have more available data
         if (head != tail) // remember that if we continue, head == tail below
         {
@@ -246,54 +480,134 @@ public class MultipartInputStream extends FilterInputStream
     {
         // see RFC2046#5.1.1 for boundary syntax
         len = 0;
-        int off = tail - ((state & 1) != 0 || buf[0] != '-' ? 0 : 2); // skip initial CRLF?
+        int lEnd = this.end;
 
-        for (int lEnd = this.end; tail < lEnd; tail++, off = tail)
+        // the leading CRLF is optional at the first boundary
+        if ((state & 1) == 0 && buf[0] == '-' && tail < lEnd)
         {
-            int j = tail; // end of potential boundary
-
-            // try to match boundary value (leading CRLF is optional at first boundary)
-            while (j < lEnd && j - off < boundary.length && buf[j] == boundary[j - off])
+            if (boundaryAt(tail, tail - 2))
             {
-                j++;
+                return;
             }
 
-            // return potential partial boundary which is cut off at end of current data
-            if (j + 1 >= lEnd) // at least two more chars needed for full boundary (CRLF or --)
+            tail++;
+        }
+
+        // a complete boundary which is followed by at least two chars (CRLF
+        // or --) can only start up to here - beyond it, the boundary may be
+        // cut off at the end of the current data
+        int last = lEnd - boundary.length - 2;
+        int found = indexOf(tail, last);
+
+        if (found >= 0)
+        {
+            boundaryAt(found, found);
+            return;
+        }
+
+        for (int i = Math.max(tail, last + 1); i < lEnd; i++)
+        {
+            if (boundaryAt(i, i))
             {
                 return;
             }
+        }
 
-            // if we found the boundary value, expand selection to include full line
-            if (j - off == boundary.length)
-            {
-                // check if last boundary of entire multipart
-                if (buf[j] == '-' && buf[j + 1] == '-')
-                {
-                    j += 2;
-                    state |= 8; // found last boundary that ends multipart
-                }
+        tail = lEnd;
+    }
 
-                // allow linear whitespace after boundary
-                while (j < lEnd && (buf[j] == ' ' || buf[j] == '\t'))
-                {
-                    j++;
-                }
+    /**
+     * Checks for a boundary at the given position of the buffer, or a
+     * potential partial boundary which is cut off at the end of the current
+     * data. If there is one, tail is set to the position, and length and
+     * state are updated accordingly.
+     *
+     * @param pos the position
+     * @param off the position of the boundary's leading CRLF (which is two
+     *            before pos, if it is missing)
+     *
+     * @return true if there is a (potential) boundary at the position
+     *
+     * @throws IOException if the input format is invalid
+     */
+    private boolean boundaryAt(int pos, int off) throws IOException
+    {
+        int lEnd = this.end;
+        int j = pos; // end of potential boundary
 
-                // check for CRLF (required, except in last boundary with no epilogue)
-                if (j + 1 < lEnd && buf[j] == '\r' && buf[j + 1] == '\n') // found CRLF
-                {
-                    len = j - tail + 2; // including optional whitespace and CRLF
-                } else if (j + 1 < lEnd || (state & 4) != 0 && j + 1 == lEnd) // should have found or never will
-                {
-                    throw new IOException("boundary must end with CRLF");
-                } else if ((state & 4) != 0) // last boundary with no CRLF at end of data is valid
-                {
-                    len = j - tail;
-                }
+        // try to match boundary value
+        while (j < lEnd && j - off < boundary.length && buf[j] == boundary[j - off])
+        {
+            j++;
+        }
 
-                return;
+        // return potential partial boundary which is cut off at end of current data
+        if (j + 1 >= lEnd) // at least two more chars needed for full boundary (CRLF or --)
+        {
+            tail = pos;
+            return true;
+        }
+
+        if (j - off < boundary.length)
+        {
+            return false;
+        }
+
+        // we found the boundary value, so expand selection to include full line
+        tail = pos;
+
+        // check if last boundary of entire multipart
+        if (buf[j] == '-' && buf[j + 1] == '-')
+        {
+            j += 2;
+            state |= 8; // found last boundary that ends multipart
+        }
+
+        // allow linear whitespace after boundary
+        while (j < lEnd && (buf[j] == ' ' || buf[j] == '\t'))
+        {
+            j++;
+        }
+
+        // check for CRLF (required, except in last boundary with no epilogue)
+        if (j + 1 < lEnd && buf[j] == '\r' && buf[j + 1] == '\n') // found CRLF
+        {
+            len = j - tail + 2; // including optional whitespace and CRLF
+        } else if (j + 1 < lEnd || (state & 4) != 0 && j + 1 == lEnd) // should have found or never will
+        {
+            throw new IOException("boundary must end with CRLF");
+        } else if ((state & 4) != 0) // last boundary with no CRLF at end of data is valid
+        {
+            len = j - tail;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the first position of a complete boundary (including its
+     * leading CRLF) in the buffer, using the Boyer-Moore-Horspool algorithm:
+     * the byte under the end of the boundary at each position tried
+     * determines how far it can be shifted before it might match.
+     *
+     * @param from the first position to try
+     * @param to   the last position to try
+     *
+     * @return the position, or -1 if there is no boundary there
+     */
+    private int indexOf(int from, int to)
+    {
+        int last = boundary.length - 1;
+        byte lastByte = boundary[last];
+
+        for (int i = from; i <= to; i += skip[buf[i + last] & 0xFF])
+        {
+            if (buf[i + last] == lastByte && Arrays.equals(buf, i, i + last, boundary, 0, last))
+            {
+                return i;
             }
         }
+
+        return -1;
     }
 }
@@ -26,7 +26,6 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
-import static com.bewsoftware.httpserver.NetUtils.readHeaders;
 import static com.bewsoftware.httpserver.Utils.getBytes;
 
 /**
@@ -56,12 +55,14 @@ import static com.bewsoftware.httpserver.Utils.getBytes;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.6.3
+ * @version 2.7.1
  */
 @SuppressWarnings("ProtectedField")
 public class MultipartIterator implements Iterator<Part>
 {
 
+    protected boolean done; // the parts are exhausted, and the stream's buffer released
+
     protected final MultipartInputStream in;
 
     protected boolean next;
@@ -76,6 +77,24 @@ public class MultipartIterator implements Iterator<Part>
      *                                  is not multipart/form-data, or is missing the boundary
      */
     public MultipartIterator(Request req) throws IOException
+    {
+        this(req, MultipartInputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new MultipartIterator from the given request, which reads
+     * the parts into a buffer of the given size.
+     *
+     * @param req        the multipart/form-data request
+     * @param bufferSize the minimum buffer size (larger buffers suit large
+     *                   uploads)
+     *
+     * @throws IOException              if an IO error occurs
+     * @throws IllegalArgumentException if the given request's content type
+     *                                  is not multipart/form-data, or is missing the boundary,
+     *                                  or the buffer size is less than 1 KiB
+     */
+    public MultipartIterator(Request req, int bufferSize) throws IOException
     {
         Map<String, String> ct = req.getHeaders().getParams("Content-Type");
 
@@ -91,19 +110,41 @@ public class MultipartIterator implements Iterator<Part>
             throw new IllegalArgumentException("Content-Type is missing boundary");
         }
 
-        in = new MultipartInputStream(req.getBody(), getBytes(boundary));
+        in = new MultipartInputStream(req.getBody(), getBytes(boundary), bufferSize);
     }
 
+    /**
+     * Returns whether there is another part. Once there is not (or reading
+     * fails), the stream's buffer is returned to its pool, leaving the
+     * request body open.
+     *
+     * @return true if there is another part
+     */
     @Override
     public boolean hasNext()
     {
+        if (next || done)
+        {
+            return next;
+        }
+
         try
         {
-            return next || (next = in.nextPart());
+            next = in.nextPart();
         } catch (IOException ioe)
         {
+            done = true;
+            in.releaseBuffer();
             throw new RuntimeException(ioe);
         }
+
+        if (!next)
+        {
+            done = true;
+            in.releaseBuffer();
+        }
+
+        return next;
     }
 
     @Override
@@ -119,7 +160,7 @@ public class MultipartIterator implements Iterator<Part>
 
         try
         {
-            p.headers = readHeaders(in);
+            p.headers = in.readHeaders();
         } catch (IOException ioe)
         {
             throw new RuntimeException(ioe);
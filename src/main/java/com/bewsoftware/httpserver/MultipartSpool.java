@@ -0,0 +1,303 @@
+/*
+ *  File Name:    MultipartSpool.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code MultipartSpool} holds the limits of {@link MultipartUpload}s,
+ * and accounts for the bytes they hold between them.
+ * <p>
+ * A part of an upload that is no larger than the memory threshold is kept
+ * in memory, and a larger one is spooled to a temporary file in the spool's
+ * directory. The request quota limits the bytes of all the parts of a
+ * single upload, and the global quota limits the bytes of all the uploads
+ * that are open at once, so that many concurrent uploads cannot exhaust the
+ * heap or the disk. The maximum number of parts bounds the memory taken by
+ * the parts' names and headers, which the quotas do not count (e.g. in an
+ * upload of many empty fields). An upload which would exceed a quota or the
+ * maximum number of parts fails with a {@link QuotaExceededException}.
+ * <p>
+ * The {@link #getDefault() default spool} is used by uploads that are not
+ * given one, and can be replaced with {@link #setDefault}.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class MultipartSpool
+{
+    /**
+     * The default global quota (1 GiB).
+     */
+    public static final long DEFAULT_GLOBAL_QUOTA = 1L << 30;
+
+    /**
+     * The default maximum number of parts in an upload.
+     */
+    public static final int DEFAULT_MAX_PARTS = 1000;
+
+    /**
+     * The default memory threshold (16 KiB).
+     */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 16 * 1024;
+
+    /**
+     * The default request quota (256 MiB).
+     */
+    public static final long DEFAULT_REQUEST_QUOTA = 256L << 20;
+
+    private static volatile MultipartSpool defaultSpool = new MultipartSpool(null,
+            DEFAULT_MEMORY_THRESHOLD, DEFAULT_REQUEST_QUOTA, DEFAULT_GLOBAL_QUOTA);
+
+    protected final Path directory; // where parts are spooled, or null for the default temporary directory
+
+    protected final long globalQuota;
+
+    protected final int maxParts;
+
+    protected final int memoryThreshold;
+
+    protected final long requestQuota;
+
+    protected final AtomicLong used = new AtomicLong(); // bytes held by open uploads
+
+    /**
+     * Constructs a MultipartSpool which allows the
+     * {@link #DEFAULT_MAX_PARTS default maximum number} of parts.
+     *
+     * @param directory       the directory parts are spooled to, or null for
+     *                        the default temporary directory
+     * @param memoryThreshold the size of the largest part kept in memory
+     * @param requestQuota    the maximum number of bytes in the parts of a
+     *                        single upload
+     * @param globalQuota     the maximum number of bytes in the parts of all
+     *                        open uploads
+     *
+     * @throws IllegalArgumentException if a size is negative, or the request
+     *                                  quota is larger than the global one
+     */
+    public MultipartSpool(Path directory, int memoryThreshold, long requestQuota, long globalQuota)
+    {
+        this(directory, memoryThreshold, requestQuota, globalQuota, DEFAULT_MAX_PARTS);
+    }
+
+    /**
+     * Constructs a MultipartSpool.
+     *
+     * @param directory       the directory parts are spooled to, or null for
+     *                        the default temporary directory
+     * @param memoryThreshold the size of the largest part kept in memory
+     * @param requestQuota    the maximum number of bytes in the parts of a
+     *                        single upload
+     * @param globalQuota     the maximum number of bytes in the parts of all
+     *                        open uploads
+     * @param maxParts        the maximum number of parts in a single upload
+     *
+     * @throws IllegalArgumentException if a size or the maximum number of
+     *                                  parts is negative, or the request
+     *                                  quota is larger than the global one
+     */
+    public MultipartSpool(Path directory, int memoryThreshold, long requestQuota, long globalQuota,
+            int maxParts)
+    {
+        if (memoryThreshold < 0 || requestQuota < 0 || globalQuota < requestQuota || maxParts < 0)
+        {
+            throw new IllegalArgumentException("invalid spool limits");
+        }
+
+        this.directory = directory;
+        this.memoryThreshold = memoryThreshold;
+        this.requestQuota = requestQuota;
+        this.globalQuota = globalQuota;
+        this.maxParts = maxParts;
+    }
+
+    /**
+     * Returns the default spool, which is used by uploads that are not given
+     * one.
+     *
+     * @return the default spool
+     */
+    public static MultipartSpool getDefault()
+    {
+        return defaultSpool;
+    }
+
+    /**
+     * Sets the default spool, which is used by uploads that are not given
+     * one. Uploads which are already open keep using the previous spool.
+     *
+     * @param spool the new default spool
+     */
+    public static void setDefault(MultipartSpool spool)
+    {
+        if (spool == null)
+        {
+            throw new NullPointerException("spool");
+        }
+
+        defaultSpool = spool;
+    }
+
+    /**
+     * Returns the directory parts are spooled to.
+     *
+     * @return the directory, or null for the default temporary directory
+     */
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes in the parts of all open uploads.
+     *
+     * @return the global quota
+     */
+    public long getGlobalQuota()
+    {
+        return globalQuota;
+    }
+
+    /**
+     * Returns the maximum number of parts in a single upload.
+     *
+     * @return the maximum number of parts
+     */
+    public int getMaxParts()
+    {
+        return maxParts;
+    }
+
+    /**
+     * Returns the size of the largest part kept in memory.
+     *
+     * @return the memory threshold
+     */
+    public int getMemoryThreshold()
+    {
+        return memoryThreshold;
+    }
+
+    /**
+     * Returns the maximum number of bytes in the parts of a single upload.
+     *
+     * @return the request quota
+     */
+    public long getRequestQuota()
+    {
+        return requestQuota;
+    }
+
+    /**
+     * Returns the number of bytes held by the open uploads.
+     *
+     * @return the number of bytes
+     */
+    public long getUsed()
+    {
+        return used.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MultipartSpool{" + "\ndirectory=" + directory
+                + ", \nglobalQuota=" + globalQuota
+                + ", \nmaxParts=" + maxParts
+                + ", \nmemoryThreshold=" + memoryThreshold
+                + ", \nrequestQuota=" + requestQuota
+                + ", \nused=" + used
+                + "}";
+    }
+
+    /**
+     * Creates an empty temporary file to spool a part to.
+     *
+     * @return the file
+     *
+     * @throws IOException if the file cannot be created
+     */
+    protected Path createFile() throws IOException
+    {
+        return directory != null
+                ? Files.createTempFile(directory, "upload-", ".part")
+                : Files.createTempFile("upload-", ".part");
+    }
+
+    /**
+     * Returns bytes reserved by an upload that is closed.
+     *
+     * @param count the number of bytes
+     */
+    protected void release(long count)
+    {
+        used.addAndGet(-count);
+    }
+
+    /**
+     * Reserves bytes for an upload, within the global quota.
+     *
+     * @param count the number of bytes
+     *
+     * @throws QuotaExceededException if the global quota would be exceeded
+     */
+    protected void reserve(long count) throws QuotaExceededException
+    {
+        long current;
+
+        do
+        {
+            current = used.get();
+
+            if (current + count > globalQuota)
+            {
+                throw new QuotaExceededException("global upload quota exceeded");
+            }
+        } while (!used.compareAndSet(current, current + count));
+    }
+
+    /**
+     * Thrown when an upload would exceed a quota. A handler would normally
+     * respond with a {@code 413 Request Entity Too Large} status.
+     */
+    public static class QuotaExceededException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs a QuotaExceededException.
+         *
+         * @param message the detail message
+         */
+        public QuotaExceededException(String message)
+        {
+            super(message);
+        }
+    }
+}
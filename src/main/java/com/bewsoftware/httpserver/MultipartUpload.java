@@ -0,0 +1,344 @@
+/*
+ *  File Name:    MultipartUpload.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import com.bewsoftware.httpserver.MultipartSpool.QuotaExceededException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The {@code MultipartUpload} class reads all the parts of a
+ * multipart/form-data request up front, so that a handler can use them in
+ * any order without buffering them itself.
+ * <p>
+ * Parts no larger than the {@link MultipartSpool spool}'s memory threshold
+ * are kept in memory, and larger ones are streamed straight from the
+ * request into temporary files. An upload that would exceed the spool's
+ * request or global quota, or its maximum number of parts, fails with a
+ * {@link MultipartSpool.QuotaExceededException QuotaExceededException}
+ * (to be answered with a {@code 413} status), and is cleaned up at once.
+ * <p>
+ * The upload is closed, releasing its memory and deleting its files, when
+ * the response is finished, so a handler need not close it (but may, to
+ * release them sooner). For example:
+ * <pre>{@code
+ * MultipartUpload upload = MultipartUpload.read(req, resp);
+ * SpooledPart file = upload.getPart("file");
+ * Files.move(file.getPath(), target); // or file.getInputStream() etc.
+ * }</pre>
+ * For uploads that are processed in a single pass, a
+ * {@link MultipartIterator} reads the parts straight from the request
+ * instead.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class MultipartUpload implements Closeable, Iterable<SpooledPart>
+{
+    protected volatile boolean closed;
+
+    protected final List<SpooledPart> parts = new ArrayList<>();
+
+    protected long reserved; // bytes of the spool's quota held by the parts
+
+    protected final MultipartSpool spool;
+
+    /**
+     * Constructs an empty MultipartUpload.
+     *
+     * @param spool the spool whose limits apply
+     */
+    protected MultipartUpload(MultipartSpool spool)
+    {
+        this.spool = spool;
+    }
+
+    /**
+     * Reads the parts of the given request, using the
+     * {@link MultipartSpool#getDefault() default spool}.
+     *
+     * @param req  the multipart/form-data request
+     * @param resp the response, whose finishing closes the upload
+     *
+     * @return the upload
+     *
+     * @throws QuotaExceededException   if the upload exceeds a quota
+     * @throws IOException              if an IO error occurs
+     * @throws IllegalArgumentException if the given request's content type
+     *                                  is not multipart/form-data, or is
+     *                                  missing the boundary
+     */
+    public static MultipartUpload read(Request req, Response resp) throws IOException
+    {
+        return read(req, resp, MultipartSpool.getDefault());
+    }
+
+    /**
+     * Reads the parts of the given request.
+     *
+     * @param req   the multipart/form-data request
+     * @param resp  the response, whose finishing closes the upload
+     * @param spool the spool whose limits apply
+     *
+     * @return the upload
+     *
+     * @throws QuotaExceededException   if the upload exceeds a quota
+     * @throws IOException              if an IO error occurs
+     * @throws IllegalArgumentException if the given request's content type
+     *                                  is not multipart/form-data, or is
+     *                                  missing the boundary
+     */
+    public static MultipartUpload read(Request req, Response resp, MultipartSpool spool) throws IOException
+    {
+        MultipartInputStream in = new MultipartIterator(req).in;
+        MultipartUpload upload = new MultipartUpload(spool);
+        resp.closeOnFinish(upload);
+        upload.readParts(in);
+        return upload;
+    }
+
+    /**
+     * Releases the parts' memory and deletes their files. The parts may not
+     * be used afterwards.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            parts.forEach(SpooledPart::close);
+            spool.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Returns the first part with the given name.
+     *
+     * @param name the part's name (form field name)
+     *
+     * @return the part, or null if there is none
+     */
+    public SpooledPart getPart(String name)
+    {
+        for (SpooledPart part : parts)
+        {
+            if (name.equals(part.name))
+            {
+                return part;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the parts, in the order they were sent.
+     *
+     * @return an unmodifiable list of the parts
+     */
+    public List<SpooledPart> getParts()
+    {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * Returns the number of bytes in the parts' bodies.
+     *
+     * @return the number of bytes
+     */
+    public long getSize()
+    {
+        return reserved;
+    }
+
+    @Override
+    public Iterator<SpooledPart> iterator()
+    {
+        return getParts().iterator();
+    }
+
+    /**
+     * Reads all the parts from the given stream, then returns its buffer to
+     * the pool (leaving the request body open). If reading fails, the
+     * upload is closed.
+     *
+     * @param in the multipart stream of the request
+     *
+     * @throws IOException if an IO error occurs, or a quota is exceeded
+     */
+    protected void readParts(MultipartInputStream in) throws IOException
+    {
+        try
+        {
+            while (in.nextPart())
+            {
+                if (parts.size() >= spool.maxParts)
+                {
+                    throw new QuotaExceededException("too many parts");
+                }
+
+                Headers headers = in.readHeaders();
+                Map<String, String> cd = headers.getParams("Content-Disposition");
+                SpooledPart part = new SpooledPart(this, cd.get("name"), cd.get("filename"), headers);
+                parts.add(part);
+                spool(part, in);
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            close();
+            throw e;
+        } finally
+        {
+            in.releaseBuffer();
+        }
+    }
+
+    /**
+     * Reserves bytes for the parts, within the request and global quotas.
+     *
+     * @param count the number of bytes
+     *
+     * @throws QuotaExceededException if a quota would be exceeded
+     */
+    protected void reserve(long count) throws QuotaExceededException
+    {
+        if (reserved + count > spool.requestQuota)
+        {
+            throw new QuotaExceededException("request upload quota exceeded");
+        }
+
+        spool.reserve(count);
+        reserved += count;
+    }
+
+    /**
+     * Reads the body of the current part into memory, or if it is larger
+     * than the memory threshold, into a temporary file.
+     * <p>
+     * The body is first read into a pooled buffer of the threshold's size.
+     * A body that fits is copied out into an array of its exact size, so
+     * that the memory a part holds is what is reserved for it (however
+     * small it is), and the buffer goes straight back to the pool.
+     *
+     * @param part the part
+     * @param in   the stream positioned at the part's body
+     *
+     * @throws IOException if an IO error occurs, or a quota is exceeded
+     */
+    protected void spool(SpooledPart part, MultipartInputStream in) throws IOException
+    {
+        BufferPool pool = BufferPool.getDefault();
+        int threshold = spool.memoryThreshold;
+        byte[] data = pool.acquire(threshold);
+
+        try
+        {
+            int count = in.readNBytes(data, 0, threshold);
+            reserve(count);
+
+            if (count < threshold || !in.fill()) // the whole body fits
+            {
+                part.data = Arrays.copyOf(data, count);
+                part.size = count;
+                return;
+            }
+
+            part.path = spool.createFile();
+
+            try (FileChannel channel = FileChannel.open(part.path, WRITE))
+            {
+                ByteBuffer head = ByteBuffer.wrap(data, 0, count);
+
+                while (head.hasRemaining())
+                {
+                    channel.write(head);
+                }
+
+                part.size = count + in.transferTo(new QuotaChannel(channel));
+            }
+        } finally
+        {
+            pool.release(data);
+        }
+    }
+
+    /**
+     * Writes to a file channel, reserving the bytes written within the
+     * quotas first.
+     */
+    private class QuotaChannel implements WritableByteChannel
+    {
+        private final FileChannel channel;
+
+        /**
+         * Constructs a QuotaChannel.
+         *
+         * @param channel the file channel to write to
+         */
+        QuotaChannel(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            int count = src.remaining();
+            reserve(count);
+
+            while (src.hasRemaining())
+            {
+                channel.write(src);
+            }
+
+            return count;
+        }
+    }
+}
@@ -28,10 +28,14 @@ import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 
 import static com.bewsoftware.httpserver.FileUtils.createIndex;
 import static com.bewsoftware.httpserver.HTTPServer.CRLF;
 import static com.bewsoftware.httpserver.HTTPServer.getContentType;
+import static com.bewsoftware.httpserver.HTTPServer.isCompressible;
 import static com.bewsoftware.httpserver.Utils.formatDate;
 import static com.bewsoftware.httpserver.Utils.getBytes;
 import static com.bewsoftware.httpserver.Utils.match;
@@ -44,10 +48,19 @@ import static java.lang.String.join;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 2.5.3
- * @version 2.6.5
+ * @version 2.7.1
  */
 public class NetUtils
 {
+    /**
+     * The content encodings of precompressed sidecar files, in order of
+     * preference, and the file name suffixes that identify them.
+     */
+    protected static final String[][] SIDECARS =
+    {
+        { "br", ".br" }, { "gzip", ".gz" }
+    };
+
     /**
      * Not meant to be instantiated.
      */
@@ -135,6 +148,44 @@ public class NetUtils
         return force ? 200 : status;
     }
 
+    /**
+     * Returns the {@link #SIDECARS precompressed encodings} in which the
+     * requested content may be sent, in order of preference.
+     * <p>
+     * As with on-the-fly compression, only compressible content types longer
+     * than 300 bytes qualify. Range requests are always served from the
+     * unencoded content.
+     *
+     * @param req         the request
+     * @param contentType the content type
+     * @param len         the unencoded content length
+     *
+     * @return the accepted encodings and their sidecar file suffixes (may be
+     *         empty)
+     */
+    public static List<String[]> getAcceptedSidecars(Request req, String contentType, long len)
+    {
+        Headers headers = req.getHeaders();
+
+        if (len <= 300 || !isCompressible(contentType) || headers.get("Range") != null)
+        {
+            return List.of();
+        }
+
+        List<String> accepted = Arrays.asList(splitElements(headers.get("Accept-Encoding"), true));
+        List<String[]> sidecars = new ArrayList<>(SIDECARS.length);
+
+        for (String[] sidecar : SIDECARS)
+        {
+            if (accepted.contains(sidecar[0]))
+            {
+                sidecars.add(sidecar);
+            }
+        }
+
+        return sidecars;
+    }
+
     /**
      * Handles a TRACE method request.
      *
@@ -166,10 +217,7 @@ public class NetUtils
      * @throws IOException if an IO error occurs or the arrHeader are malformed
      *                     or there are more than 100 header lines
      */
-    @SuppressWarnings(
-            {
-                "empty-statement", "ValueOfIncrementOrDecrementUsed"
-            })
+    @SuppressWarnings("ValueOfIncrementOrDecrementUsed")
     public static Headers readHeaders(InputStream in) throws IOException
     {
         Headers headers = new Headers();
@@ -179,44 +227,69 @@ public class NetUtils
 
         while ((line = FileUtils.readLine(in)).length() > 0)
         {
-            int start; // start of line data (after whitespace)
+            prevLine = addHeaderLine(headers, line, prevLine);
 
-            for (start = 0; start < line.length()
-                    && Character.isWhitespace(line.charAt(start)); start++);
-
-            if (start > 0) // unfold header continuation line
+            if (++count > 100)
             {
-                line = prevLine + ' ' + line.substring(start);
+                throw new IOException("too many header lines");
             }
+        }
 
-            int separator = line.indexOf(':');
+        return headers;
+    }
 
-            if (separator < 0)
+    /**
+     * Adds a header line to the given headers, as {@link #readHeaders} does
+     * for each line it reads: a continuation line is unfolded onto the
+     * previous line, and the value of a repeated header is concatenated
+     * with the previous one.
+     *
+     * @param headers  the headers to add to
+     * @param line     the header line (without its line terminator)
+     * @param prevLine the previous header line, as returned by the previous
+     *                 call, or an empty string for the first line
+     *
+     * @return the (unfolded) header line, to be passed as prevLine with the
+     *         next line
+     *
+     * @throws IOException if the header line is malformed
+     */
+    @SuppressWarnings(
             {
-                throw new IOException("invalid header: \"" + line + "\"");
-            }
+                "empty-statement", "AssignmentToMethodParameter"
+            })
+    protected static String addHeaderLine(Headers headers, String line, String prevLine) throws IOException
+    {
+        int start; // start of line data (after whitespace)
 
-            String name = line.substring(0, separator);
-            String value = line.substring(separator + 1).trim(); // ignore LWS
-            Header replaced = headers.replace(name, value);
+        for (start = 0; start < line.length()
+                && Character.isWhitespace(line.charAt(start)); start++);
 
-            // concatenate repeated arrHeader (distinguishing repeated from folded)
-            if (replaced != null && start == 0)
-            {
-                value = replaced.getValue() + ", " + value;
-                line = name + ": " + value;
-                headers.replace(name, value);
-            }
+        if (start > 0) // unfold header continuation line
+        {
+            line = prevLine + ' ' + line.substring(start);
+        }
 
-            prevLine = line;
+        int separator = line.indexOf(':');
 
-            if (++count > 100)
-            {
-                throw new IOException("too many header lines");
-            }
+        if (separator < 0)
+        {
+            throw new IOException("invalid header: \"" + line + "\"");
         }
 
-        return headers;
+        String name = line.substring(0, separator);
+        String value = line.substring(separator + 1).trim(); // ignore LWS
+        Header replaced = headers.replace(name, value);
+
+        // concatenate repeated arrHeader (distinguishing repeated from folded)
+        if (replaced != null && start == 0)
+        {
+            value = replaced.getValue() + ", " + value;
+            line = name + ": " + value;
+            headers.replace(name, value);
+        }
+
+        return line;
     }
 
     /**
@@ -243,8 +316,47 @@ public class NetUtils
      */
     public static int serveFile(File base, String context,
             Request req, Response resp) throws IOException
+    {
+        return serveFile(base, context, req, resp, null);
+    }
+
+    /**
+     * Serves a context's contents from a file based resource, as
+     * {@link #serveFile(File, String, Request, Response)} does, using the
+     * given cache.
+     * <p>
+     * A file found in the cache is served without any file system access
+     * (beyond periodic revalidation). Otherwise it is looked up as usual, and
+     * cached if small enough. Only cached files have their gzip variant
+     * compressed once; see {@link ContentCache}.
+     *
+     * @param base    the base directory to which the context is mapped
+     * @param context the context which is mapped to the base directory
+     * @param req     the request
+     * @param resp    the response into which the content is written
+     * @param cache   the content cache, or null if none is used
+     *
+     * @return the HTTP status code to return, or 0 if a response was sent
+     *
+     * @throws IOException if an error occurs
+     */
+    public static int serveFile(File base, String context,
+            Request req, Response resp, ContentCache cache) throws IOException
     {
         String relativePath = req.getPath().substring(context.length());
+        Path key = null;
+
+        if (cache != null && !relativePath.endsWith("/"))
+        {
+            key = new File(base, relativePath).toPath(); // not canonical - no file system access
+            ContentCache.Entry entry = cache.get(key);
+
+            if (entry != null)
+            {
+                serveFileContent(entry, cache, req, resp);
+                return 0;
+            }
+        }
 
         File file = new File(base, relativePath).getCanonicalFile();
 
@@ -277,7 +389,16 @@ public class NetUtils
 
         } else
         {
-            serveFileContent(file, req, resp);
+            ContentCache.Entry entry = key == null ? null
+                    : cache.load(key, file.toPath(), getContentType(file.getName(), "application/octet-stream"));
+
+            if (entry != null)
+            {
+                serveFileContent(entry, cache, req, resp);
+            } else
+            {
+                serveFileContent(file, req, resp);
+            }
         }
 
         return 0;
@@ -308,10 +429,41 @@ public class NetUtils
     public static int serveFile(FileSystem jarFS, String context,
             Request req, Response resp) throws IOException
     {
+        return serveFile(jarFS, context, req, resp, null);
+    }
 
+    /**
+     * Serves a context's contents from a 'jar' file based resource, as
+     * {@link #serveFile(FileSystem, String, Request, Response)} does, using
+     * the given cache.
+     *
+     * @param jarFS   The 'jar' file system.
+     * @param context the context which is mapped to the jarPath directory
+     * @param req     the request
+     * @param resp    the response into which the content is written
+     * @param cache   the content cache, or null if none is used
+     *
+     * @return the HTTP status code to return, or 0 if a response was sent
+     *
+     * @throws IOException if an error occurs
+     */
+    public static int serveFile(FileSystem jarFS, String context,
+            Request req, Response resp, ContentCache cache) throws IOException
+    {
         String relativePath = req.getPath().substring(context.length());
 
-        Path filePath = jarFS.getPath(req.getPath().substring(context.length()));
+        Path filePath = jarFS.getPath(relativePath);
+
+        if (cache != null && !relativePath.endsWith("/"))
+        {
+            ContentCache.Entry entry = cache.get(filePath);
+
+            if (entry != null)
+            {
+                serveFileContent(entry, cache, req, resp);
+                return 0;
+            }
+        }
 
         if (!Files.exists(filePath) || Files.isHidden(filePath)
                 || filePath.startsWith("."))
@@ -343,7 +495,17 @@ public class NetUtils
 
         } else
         {
-            serveFileContent(filePath, req, resp);
+            ContentCache.Entry entry = cache == null ? null
+                    : cache.load(filePath, filePath,
+                            getContentType(filePath.getFileName().toString(), "application/octet-stream"));
+
+            if (entry != null)
+            {
+                serveFileContent(entry, cache, req, resp);
+            } else
+            {
+                serveFileContent(filePath, req, resp);
+            }
         }
 
         return 0;
@@ -353,6 +515,13 @@ public class NetUtils
      * Serves the contents of a file, with its corresponding content type,
      * last modification time, etc. conditional and partial retrievals are
      * handled according to the RFC.
+     * <p>
+     * If the client accepts it, a precompressed sidecar of the file (e.g.
+     * {@code foo.js.gz}) is served with its length. Otherwise a compressible
+     * file is gzipped as it is sent, for every request, with chunked
+     * encoding: nothing is kept between requests. To compress a file only
+     * once, give it a sidecar, or serve it through a {@link ContentCache}
+     * (if it is no larger than the cache's maximum entry size).
      *
      * @param file the existing and readable file whose contents are served
      * @param req  the request
@@ -365,103 +534,155 @@ public class NetUtils
         long len = file.length();
         long lastModified = file.lastModified();
         String etag = "W/\"" + lastModified + "\""; // a weak tag based on date
-        int status = 200;
-        // handle range or conditional request
-        long[] range = req.getRange(len);
+        String contentType = getContentType(file.getName(), "application/octet-stream");
 
-        if (range == null || len == 0)
-        {
-            status = getConditionalStatus(req, lastModified, etag);
-        } else
+        for (String[] sidecar : getAcceptedSidecars(req, contentType, len))
         {
-            String ifRange = req.getHeaders().get("If-Range");
+            File encoded = new File(file.getPath() + sidecar[1]);
 
-            if (ifRange == null)
+            if (encoded.isFile() && encoded.lastModified() >= lastModified)
             {
-                if (range[0] >= len)
-                {
-                    status = 416; // unsatisfiable range
-                } else
-                {
-                    status = getConditionalStatus(req, lastModified, etag);
-                }
-            } else if (range[0] >= len)
+                long encodedLen = encoded.length();
+                serveEncodedContent(sidecar[0], encodedLen, lastModified, etag, contentType, req, resp,
+                        range -> resp.sendFile(encoded, encodedLen, range));
+                return;
+            }
+        }
+
+        serveContent(len, lastModified, etag, contentType, req, resp,
+                range -> resp.sendFile(file, len, range));
+    }
+
+    /**
+     * Serves the contents of a file, with its corresponding content type,
+     * last modification time, etc. conditional and partial retrievals are
+     * handled according to the RFC.
+     * <p>
+     * Compression works as in
+     * {@link #serveFileContent(File, Request, Response)}.
+     *
+     * @param file the existing and readable file whose contents are served
+     * @param req  the request
+     * @param resp the response into which the content is written
+     *
+     * @throws IOException if an error occurs
+     */
+    public static void serveFileContent(Path file, Request req, Response resp) throws IOException
+    {
+        long len = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String etag = "W/\"" + lastModified + "\""; // a weak tag based on date
+        String contentType = getContentType(file.getFileName().toString(), "application/octet-stream");
+
+        for (String[] sidecar : getAcceptedSidecars(req, contentType, len))
+        {
+            Path encoded = file.resolveSibling(file.getFileName() + sidecar[1]);
+
+            if (Files.isRegularFile(encoded)
+                    && Files.getLastModifiedTime(encoded).toMillis() >= lastModified)
             {
-                // RFC2616#14.16, 10.4.17: invalid If-Range gets everything
-                range = null;
-            } else
-            { // send either range or everything
-                if (!ifRange.startsWith("\"") && !ifRange.startsWith("W/"))
+                long encodedLen = Files.size(encoded);
+                serveEncodedContent(sidecar[0], encodedLen, lastModified, etag, contentType, req, resp,
+                        range ->
                 {
-                    Date date = req.getHeaders().getDate("If-Range");
-                    if (date != null && lastModified > date.getTime())
+                    try ( InputStream in = Files.newInputStream(encoded))
                     {
-                        range = null; // modified - send everything
+                        resp.sendBody(in, encodedLen, range);
                     }
-                } else if (!ifRange.equals(etag))
-                {
-                    range = null; // modified - send everything
-                }
+                });
+                return;
             }
         }
-        // send the response
-        Headers respHeaders = resp.getHeaders();
 
-        switch (status)
+        serveContent(len, lastModified, etag, contentType, req, resp, range ->
         {
-            case 304 ->
+            try ( InputStream in = Files.newInputStream(file))
             {
-                // no other headers or body allowed
-                respHeaders.add("ETag", etag);
-                respHeaders.add("Vary", "Accept-Encoding");
-                respHeaders.add("Last-Modified", formatDate(lastModified));
-                resp.sendHeaders(304);
+                resp.sendBody(in, len, range);
             }
+        });
+    }
 
-            case 412 ->
-                resp.sendHeaders(412);
-
-            case 416 ->
-            {
-                respHeaders.add("Content-Range", "bytes */" + len);
-                resp.sendHeaders(416);
-            }
+    /**
+     * Serves the contents of a cached file, as
+     * {@link #serveFileContent(File, Request, Response)} does.
+     * <p>
+     * If the client accepts it, the file is served compressed, with its
+     * length known up front. The compressed variant is taken from the cache,
+     * where it is kept after being read from a sidecar file, or compressed,
+     * the first time.
+     *
+     * @param entry the cached file
+     * @param cache the cache holding the entry
+     * @param req   the request
+     * @param resp  the response into which the content is written
+     *
+     * @throws IOException if an error occurs
+     */
+    public static void serveFileContent(ContentCache.Entry entry, ContentCache cache,
+            Request req, Response resp) throws IOException
+    {
+        for (String[] sidecar : getAcceptedSidecars(req, entry.contentType, entry.body.length))
+        {
+            byte[] encoded = cache.getEncoded(entry, sidecar[0], sidecar[1]);
 
-            case 200 ->
+            if (encoded != null)
             {
-                // send OK response
-                resp.sendHeaders(200, len, lastModified, etag,
-                        getContentType(file.getName(), "application/octet-stream"), range);
-
-                try ( // send body
-                          InputStream in = new FileInputStream(file))
-                {
-                    resp.sendBody(in, len, range);
-                }
+                serveEncodedContent(sidecar[0], encoded.length, entry.lastModified, entry.etag,
+                        entry.contentType, req, resp, range -> resp.sendBody(encoded, range));
+                return;
             }
-
-            default ->
-                resp.sendHeaders(500); // should never happen
         }
+
+        serveContent(entry.body.length, entry.lastModified, entry.etag, entry.contentType, req, resp,
+                range -> resp.sendBody(entry.body, range));
     }
 
     /**
-     * Serves the contents of a file, with its corresponding content type,
-     * last modification time, etc. conditional and partial retrievals are
-     * handled according to the RFC.
+     * Serves content that is already encoded (compressed), as
+     * {@link #serveContent serveContent} does, but with the given
+     * {@code Content-Encoding}, and an ETag distinct from that of the
+     * unencoded content.
      *
-     * @param file the existing and readable file whose contents are served
-     * @param req  the request
-     * @param resp the response into which the content is written
+     * @param encoding     the content encoding
+     * @param len          the encoded content length
+     * @param lastModified the content's last modification time
+     * @param etag         the unencoded content's ETag
+     * @param contentType  the content type
+     * @param req          the request
+     * @param resp         the response into which the content is written
+     * @param body         sends the encoded body, once the headers have been
+     *                     sent
      *
      * @throws IOException if an error occurs
      */
-    public static void serveFileContent(Path file, Request req, Response resp) throws IOException
+    protected static void serveEncodedContent(String encoding, long len, long lastModified, String etag,
+            String contentType, Request req, Response resp, BodySender body) throws IOException
     {
+        resp.getHeaders().add("Content-Encoding", encoding);
+        resp.setBodyEncoded(true);
+        serveContent(len, lastModified, etag.substring(0, etag.length() - 1) + "-" + encoding + "\"",
+                contentType, req, resp, body);
+    }
 
-        long len = Files.size(file);
-        long lastModified = Files.getLastModifiedTime(file).toMillis();
-        String etag = "W/\"" + lastModified + "\""; // a weak tag based on date
+    /**
+     * Serves content with the given metadata, handling conditional and
+     * partial retrievals according to the RFC.
+     *
+     * @param len          the content length
+     * @param lastModified the content's last modification time
+     * @param etag         the content's ETag
+     * @param contentType  the content type
+     * @param req          the request
+     * @param resp         the response into which the content is written
+     * @param body         sends the body (or requested range of it), once
+     *                     the headers have been sent
+     *
+     * @throws IOException if an error occurs
+     */
+    protected static void serveContent(long len, long lastModified, String etag, String contentType,
+            Request req, Response resp, BodySender body) throws IOException
+    {
         int status = 200;
         // handle range or conditional request
         long[] range = req.getRange(len);
@@ -527,14 +748,8 @@ public class NetUtils
             case 200 ->
             {
                 // send OK response
-                resp.sendHeaders(200, len, lastModified, etag,
-                        getContentType(file.getFileName().toString(),
-                                "application/octet-stream"), range);
-                // send body
-                try ( InputStream in = Files.newInputStream(file))
-                {
-                    resp.sendBody(in, len, range);
-                }
+                resp.sendHeaders(200, len, lastModified, etag, contentType, range);
+                body.send(range);
             }
 
             default ->
@@ -632,7 +847,7 @@ public class NetUtils
 
         switch (version)
         {
-            case "HTTP/1.1" ->
+            case "HTTP/1.1", Http2Connection.VERSION ->
             {
                 if (!reqHeaders.contains("Host"))
                 {
@@ -646,9 +861,7 @@ public class NetUtils
                     if (expect.equalsIgnoreCase("100-continue"))
                     {
                         // BW: (24/12/2020)
-                        Response tempResp = new Response(resp.getOutputStream(), resp.disallowCaching);
-                        tempResp.sendHeaders(100);
-                        resp.getOutputStream().flush();
+                        resp.sendContinue();
                     } else
                     {
                         // RFC2616#14.20: if unknown expect, send 417
@@ -701,17 +914,20 @@ public class NetUtils
         int status = 404;
         // add directory index if necessary
         String path = req.getPath();
+        String index = path.endsWith("/") ? req.getVirtualHost().getDirectoryIndex() : null;
 
-        if (path.endsWith("/"))
+        if (index == null && resp.suspendable && handler instanceof AsyncContextHandler async)
         {
-            String index = req.getVirtualHost().getDirectoryIndex();
+            // the transaction is suspended, and finished once the stage completes
+            resp.pending = async.serveAsync(req, resp).toCompletableFuture();
+            return;
+        }
 
-            if (index != null)
-            {
-                req.setPath(path + index);
-                status = handler.serve(req, resp);
-                req.setPath(path);
-            }
+        if (index != null)
+        {
+            req.setPath(path + index);
+            status = handler.serve(req, resp);
+            req.setPath(path);
         }
 
         if (status == 404)
@@ -724,4 +940,51 @@ public class NetUtils
             resp.sendError(status);
         }
     }
+
+    /**
+     * Waits for the stage returned by an {@link AsyncContextHandler} to
+     * complete, and returns its status.
+     *
+     * @param stage the stage
+     *
+     * @return the status the stage completed with (null is taken as 0)
+     *
+     * @throws IOException if the stage completed exceptionally (with the
+     *                     cause, if it is an IOException), or the wait is
+     *                     interrupted
+     */
+    protected static int awaitStatus(CompletionStage<Integer> stage) throws IOException
+    {
+        try
+        {
+            Integer status = stage.toCompletableFuture().get();
+
+            return status != null ? status : 0;
+        } catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for handler");
+        } catch (ExecutionException | CancellationException e)
+        {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+
+            throw cause instanceof IOException ioe ? ioe : new IOException(cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Sends a response body, or a range of it.
+     */
+    @FunctionalInterface
+    protected interface BodySender
+    {
+        /**
+         * Sends the body.
+         *
+         * @param range the sub-range of the body to send, or null for all of it
+         *
+         * @throws IOException if an error occurs
+         */
+        void send(long[] range) throws IOException;
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ *  File Name:    ParsedHeaders.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * The {@code ParsedHeaders} class holds the headers of a request as parsed
+ * by a {@link RequestParser}: the raw bytes of the request head, and the
+ * offsets of each header's name and value within them.
+ * <p>
+ * Looking up a well-known header (see {@link HeaderNames}) compares its id
+ * with the ids found by the parser, and looking up any other header compares
+ * its name against the raw bytes of the other headers' names. Only the
+ * values that are actually asked for are turned into Strings (once each).
+ * As in {@link NetUtils#readHeaders}, the values of repeated headers are
+ * concatenated, and folded values are unfolded.
+ * <p>
+ * Any other use, such as iterating or modifying the headers, first
+ * materializes them into a regular {@link Headers} collection.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class ParsedHeaders extends Headers
+{
+    /**
+     * The number of offsets recorded per header.
+     *
+     * @see RequestParser#headers
+     */
+    static final int FIELDS = 6;
+
+    protected byte[] head; // the raw request head, or null once materialized
+
+    protected final int headerCount;
+
+    protected final int[] offsets;
+
+    protected String[] values; // the values asked for so far, by header index
+
+    /**
+     * Constructs a ParsedHeaders.
+     *
+     * @param head        the raw request head
+     * @param offsets     the offsets of each header (see
+     *                    {@link RequestParser#headers})
+     * @param headerCount the number of headers
+     */
+    protected ParsedHeaders(byte[] head, int[] offsets, int headerCount)
+    {
+        super(0);
+        this.head = head;
+        this.offsets = offsets;
+        this.headerCount = headerCount;
+    }
+
+    /**
+     * Returns whether a byte array region holds the given ASCII string.
+     *
+     * @param bytes      the byte array
+     * @param offset     the region start
+     * @param s          the string, whose length is the region length
+     * @param ignoreCase whether case is ignored
+     *
+     * @return true if the region matches
+     */
+    static boolean regionMatches(byte[] bytes, int offset, String s, boolean ignoreCase)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = (char) (bytes[offset + i] & 0xFF);
+            char d = s.charAt(i);
+
+            if (c != d && (!ignoreCase || Character.toUpperCase(c) != Character.toUpperCase(d)
+                    && Character.toLowerCase(c) != Character.toLowerCase(d)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void add(String name, String value)
+    {
+        materialize();
+        super.add(name, value);
+    }
+
+    @Override
+    public String get(String name)
+    {
+        if (head == null)
+        {
+            return super.get(name);
+        }
+
+        if (name == null)
+        {
+            return null;
+        }
+
+        int id = HeaderNames.idOf(name);
+        String value = null;
+
+        for (int i = 0; i < headerCount; i++)
+        {
+            int start = offsets[FIELDS * i];
+
+            if (id >= 0 ? offsets[FIELDS * i + 5] == id
+                    : offsets[FIELDS * i + 5] < 0 && offsets[FIELDS * i + 1] - start == name.length()
+                    && regionMatches(head, start, name, true))
+            {
+                value = value == null ? value(i) : value + ", " + value(i); // repeated header
+            }
+        }
+
+        return value;
+    }
+
+    @Override
+    public Iterator<Header> iterator()
+    {
+        materialize();
+        return super.iterator();
+    }
+
+    @Override
+    public void remove(String name)
+    {
+        materialize();
+        super.remove(name);
+    }
+
+    @Override
+    public Header replace(String name, String value)
+    {
+        materialize();
+        return super.replace(name, value);
+    }
+
+    @Override
+    public int size()
+    {
+        materialize();
+        return super.size();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException
+    {
+        materialize();
+        super.writeTo(out);
+    }
+
+    /**
+     * Turns the raw headers into a regular collection of headers, as
+     * {@link NetUtils#readHeaders} would have read them.
+     */
+    protected void materialize()
+    {
+        if (head == null)
+        {
+            return;
+        }
+
+        String[] names = new String[headerCount];
+
+        for (int i = 0; i < headerCount; i++)
+        {
+            int start = offsets[FIELDS * i];
+            names[i] = new String(head, start, offsets[FIELDS * i + 1] - start, StandardCharsets.ISO_8859_1);
+            value(i);
+        }
+
+        String[] lValues = values;
+        head = null; // from here on, we are a regular collection
+        values = null;
+
+        for (int i = 0; i < headerCount; i++)
+        {
+            Header replaced = super.replace(names[i], lValues[i]);
+
+            // concatenate repeated headers
+            if (replaced != null)
+            {
+                super.replace(names[i], replaced.getValue() + ", " + lValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns a header's value, creating its String on first use.
+     *
+     * @param index the header index
+     *
+     * @return the value
+     */
+    @SuppressWarnings("AssignmentToForLoopParameter")
+    protected String value(int index)
+    {
+        if (values == null)
+        {
+            values = new String[headerCount];
+        }
+
+        if (values[index] == null)
+        {
+            int start = offsets[FIELDS * index + 2];
+            int end = offsets[FIELDS * index + 3];
+
+            if (offsets[FIELDS * index + 4] == 0)
+            {
+                values[index] = new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+            } else
+            { // replace each line break and the whitespace around it with a single space
+                StringBuilder sb = new StringBuilder(end - start);
+
+                for (int i = start; i < end; i++)
+                {
+                    char c = (char) (head[i] & 0xFF);
+
+                    if (c == '\n')
+                    {
+                        while (sb.length() > 0 && sb.charAt(sb.length() - 1) <= ' ')
+                        {
+                            sb.setLength(sb.length() - 1); // e.g. CR
+                        }
+
+                        sb.append(' ');
+
+                        while (i + 1 < end && (head[i + 1] == ' ' || head[i + 1] == '\t'))
+                        {
+                            i++;
+                        }
+                    } else
+                    {
+                        sb.append(c);
+                    }
+                }
+
+                values[index] = sb.toString().trim();
+            }
+        }
+
+        return values[index];
+    }
+}
@@ -22,6 +22,13 @@ package com.bewsoftware.httpserver;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * The {@code Part} class encapsulates a single part of the multipart.
@@ -29,7 +36,7 @@ import java.io.InputStream;
  * Refactored out to separate file: v2.6.3.
  *
  * @since 1.0
- * @version 2.6.3
+ * @version 2.7.1
  */
 @SuppressWarnings(value = "PublicField")
 public class Part
@@ -73,4 +80,25 @@ public class Part
         charset = charset == null ? "UTF-8" : charset;
         return FileUtils.readToken(body, -1, charset, 8192);
     }
+
+    /**
+     * Writes the rest of the part's body to the given file, which is created
+     * or truncated. A part read from a {@link MultipartIterator} is written
+     * straight from its buffer to the file's channel.
+     *
+     * @param file the file to write to
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException if an IO error occurs
+     */
+    public long transferTo(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING))
+        {
+            return body instanceof MultipartInputStream min
+                    ? min.transferTo(channel)
+                    : body.transferTo(Channels.newOutputStream(channel));
+        }
+    }
 }
@@ -39,7 +39,7 @@ import static com.bewsoftware.httpserver.Utils.*;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.6.3
+ * @version 2.7.1
  */
 @SuppressWarnings("PublicField")
 public final class Request
@@ -49,6 +49,8 @@ public final class Request
 
     public InputStream body;
 
+    InputStream connection; // the connection's input stream, for protocol upgrades (or null)
+
     public ContextInfo context; // cached value
 
     public Headers headers;
@@ -59,6 +61,8 @@ public final class Request
 
     public Map<String, String> params; // cached value
 
+    public Map<String, String> pathParams; // cached value
+
     public HTTPServer server;
 
     public URI uri;
@@ -67,6 +71,10 @@ public final class Request
 
     /**
      * Constructs a Request from the data in the given input stream.
+     * <p>
+     * If the stream is a {@link ConnectionInputStream}, the request head is
+     * parsed by its {@link RequestParser}, straight out of the stream's
+     * buffer.
      *
      * @param in     the input stream from which the request is read
      * @param server The active server.
@@ -76,9 +84,22 @@ public final class Request
     public Request(final InputStream in, final HTTPServer server) throws IOException
     {
         this.server = server;
+        this.connection = in;
+
+        if (in instanceof ConnectionInputStream connIn)
+        {
+            RequestParser parser = connIn.getParser();
+            parser.parse(connIn);
+            method = parser.getMethod();
+            uri = parseURI(parser.getURI());
+            version = parser.getVersion();
+            headers = parser.getHeaders();
+        } else
+        {
+            readRequestLine(in);
+            headers = readHeaders(in);
+        }
 
-        readRequestLine(in);
-        headers = readHeaders(in);
         // RFC2616#3.6 - if "chunked" is used, it must be the last one
         // RFC2616#4.4 - if non-identity Transfer-Encoding is present,
         // it must either include "chunked" or close the connection after
@@ -104,6 +125,31 @@ public final class Request
         }
     }
 
+    /**
+     * Constructs a Request from a request head that was already decoded,
+     * e.g. from the HEADERS frame of an HTTP/2 stream, whose body is
+     * delimited by the stream itself.
+     *
+     * @param server  The active server.
+     * @param method  the request method
+     * @param target  the request target (the path and query)
+     * @param version the request version
+     * @param headers the request headers
+     * @param body    the stream from which the request body is read
+     *
+     * @throws IOException if the target is malformed
+     */
+    Request(HTTPServer server, String method, String target, String version,
+            Headers headers, InputStream body) throws IOException
+    {
+        this.server = server;
+        this.method = method;
+        this.uri = parseURI(target);
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+    }
+
     /**
      * Returns the base URL (scheme, host and port) of the request resource.
      * The host name is taken from the request URI or the Host header or a
@@ -165,6 +211,32 @@ public final class Request
         return context != null ? context : (context = getVirtualHost().getContext(getPath()));
     }
 
+    /**
+     * Returns the values of the path template variables of the context
+     * handling this request (e.g. "id" for a context path of
+     * {@code /users/{id}}).
+     *
+     * @return the variable names and values, in path order (empty if the
+     *         context path is not a template)
+     */
+    public Map<String, String> getPathParams()
+    {
+        return pathParams != null ? pathParams : (pathParams = getContext().getPathParams(getPath()));
+    }
+
+    /**
+     * Returns the value of a path template variable of the context handling
+     * this request.
+     *
+     * @param name the variable name
+     *
+     * @return the value, or null if there is no such variable
+     */
+    public String getPathParam(String name)
+    {
+        return getPathParams().get(name);
+    }
+
     /**
      * Returns the request arrHeader.
      *
@@ -283,6 +355,7 @@ public final class Request
             uri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(),
                     trimDuplicates(path, '/'), uri.getQuery(), uri.getFragment());
             context = null; // clear cached context so it will be recalculated
+            pathParams = null;
         } catch (URISyntaxException use)
         {
             throw new IllegalArgumentException("error setting path", use);
@@ -372,12 +445,26 @@ public final class Request
             throw new IOException("invalid request line: \"" + line + "\"");
         }
 
+        method = tokens[0];
+        uri = parseURI(tokens[1]);
+        version = tokens[2]; // RFC2616#2.1: allow implied LWS; RFC7230#3.1.1: disallow it
+    }
+
+    /**
+     * Parses the request URI.
+     *
+     * @param str the URI string from the request line
+     *
+     * @return the URI
+     *
+     * @throws IOException if the URI is invalid
+     */
+    private static URI parseURI(String str) throws IOException
+    {
         try
         {
-            method = tokens[0];
             // must remove '//' prefix which constructor parses as host name
-            uri = new URI(trimDuplicates(tokens[1], '/'));
-            version = tokens[2]; // RFC2616#2.1: allow implied LWS; RFC7230#3.1.1: disallow it
+            return new URI(trimDuplicates(str, '/'));
         } catch (URISyntaxException use)
         {
             throw new IOException("invalid URI: " + use.getMessage());
@@ -394,6 +481,7 @@ public final class Request
                 + "\nhost=" + host + ", "
                 + "\nmethod=" + method + ", "
                 + "\nparams=" + params + ", "
+                + "\npathParams=" + pathParams + ", "
                 + "\nserver=" + server + ", "
                 + "\nuri=" + uri + ", "
                 + "\nversion=" + version
@@ -0,0 +1,459 @@
+/*
+ *  File Name:    RequestParser.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The {@code RequestParser} reads and parses a request head (the request line
+ * and headers) straight out of a {@link ConnectionInputStream}'s buffer.
+ * <p>
+ * Rather than reading the head a byte at a time, and turning every line into
+ * Strings that are then split, trimmed and concatenated, the parser copies
+ * the head's bytes in bulk and only records where each token starts and
+ * ends. The method and version are mapped to constants, and header names
+ * and values remain bytes until a handler asks for them (see
+ * {@link ParsedHeaders}).
+ * <p>
+ * A parser belongs to a single connection, and its buffers are reused for
+ * every request on that connection. Parsing allocates nothing beyond
+ * growing those buffers, but each request's {@link #getHeaders() headers}
+ * take an exact-size copy of the head and its offsets, so that they stay
+ * valid for as long as a handler keeps them.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class RequestParser
+{
+    /**
+     * The maximum number of header lines (including continuation lines).
+     */
+    public static final int MAX_HEADER_LINES = 100;
+
+    /**
+     * The maximum length of a single line.
+     */
+    public static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The well-known request methods, which are returned without allocating
+     * a new String.
+     */
+    protected static final String[] METHODS =
+    {
+        "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "PATCH", "CONNECT"
+    };
+
+    /**
+     * The well-known versions, which are returned without allocating a new
+     * String.
+     */
+    protected static final String[] VERSIONS =
+    {
+        "HTTP/1.1", "HTTP/1.0", "HTTP/0.9"
+    };
+
+    protected byte[] head = new byte[1024]; // the request head read so far
+
+    protected int headerCount;
+
+    /**
+     * The offsets of each header in {@link #head}: name start and end,
+     * value start and end, whether the value is folded over several
+     * lines (1) or not (0), and the name's id (see {@link HeaderNames}).
+     */
+    protected int[] headers = new int[ParsedHeaders.FIELDS * 16];
+
+    protected int length; // number of bytes in head
+
+    protected int lineCount; // number of header lines
+
+    protected int methodEnd;
+
+    protected int methodStart;
+
+    protected int uriEnd;
+
+    protected int uriStart;
+
+    protected int versionEnd;
+
+    protected int versionStart;
+
+    /**
+     * Constructs a RequestParser.
+     */
+    public RequestParser()
+    {
+    }
+
+    /**
+     * Returns the parsed request headers.
+     * <p>
+     * The returned headers own a copy of the request head, so they remain
+     * valid after this parser is reused.
+     *
+     * @return the request headers
+     */
+    public Headers getHeaders()
+    {
+        return new ParsedHeaders(Arrays.copyOf(head, length),
+                Arrays.copyOf(headers, ParsedHeaders.FIELDS * headerCount), headerCount);
+    }
+
+    /**
+     * Returns the parsed request method.
+     *
+     * @return the request method
+     */
+    public String getMethod()
+    {
+        return toString(METHODS, methodStart, methodEnd);
+    }
+
+    /**
+     * Returns the parsed request URI, exactly as sent.
+     *
+     * @return the request URI string
+     */
+    public String getURI()
+    {
+        return new String(head, uriStart, uriEnd - uriStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the parsed request version.
+     *
+     * @return the request version string
+     */
+    public String getVersion()
+    {
+        return toString(VERSIONS, versionStart, versionEnd);
+    }
+
+    /**
+     * Reads and parses a request head from the given stream. The stream is
+     * left positioned at the start of the request body.
+     * <p>
+     * Empty lines before the request line are skipped (RFC2616#4.1), and
+     * obsolete header line folding is supported.
+     *
+     * @param in the stream from which the request head is read
+     *
+     * @throws IOException if an error occurs, or the request head is
+     *                     invalid. If no request line could be read (e.g. the
+     *                     stream ended or timed out between requests), the
+     *                     message is "missing request line".
+     */
+    public void parse(ConnectionInputStream in) throws IOException
+    {
+        length = headerCount = lineCount = 0;
+        int end;
+
+        try
+        {
+            // RFC2616#4.1: should accept empty lines before request line
+            while ((end = readLine(in, 0)) == 0)
+            {
+                length = 0;
+            }
+        } catch (IOException ioe)
+        { // if EOF, timeout etc.
+            throw new IOException("missing request line"); // signal that the request did not begin
+        }
+
+        parseRequestLine(end);
+
+        for (int start = length; (end = readLine(in, start)) > start; start = length)
+        {
+            if (++lineCount > MAX_HEADER_LINES)
+            {
+                throw new IOException("too many header lines");
+            }
+
+            parseHeaderLine(start, end);
+        }
+    }
+
+    /**
+     * Makes room for more bytes in {@link #head}.
+     *
+     * @param n the number of bytes to add
+     */
+    protected void ensureCapacity(int n)
+    {
+        if (length + n > head.length)
+        {
+            head = Arrays.copyOf(head, Math.max(length + n, 2 * head.length));
+        }
+    }
+
+    /**
+     * Records a header line's offsets, or appends a continuation line to the
+     * previous header's value.
+     *
+     * @param start the line start
+     * @param end   the line end (excluding the line terminator)
+     *
+     * @throws IOException if the line is invalid
+     */
+    protected void parseHeaderLine(int start, int end) throws IOException
+    {
+        int valueEnd = trimRight(start, end);
+
+        if (head[start] == ' ' || head[start] == '\t') // unfold header continuation line
+        {
+            if (headerCount == 0)
+            {
+                throw new IOException("invalid header: \"" + line(start, end) + "\"");
+            }
+
+            int i = ParsedHeaders.FIELDS * (headerCount - 1);
+
+            if (valueEnd > start && trimLeft(start, valueEnd) < valueEnd)
+            {
+                headers[i + 3] = valueEnd;
+                headers[i + 4] = 1; // folded
+            }
+
+            return;
+        }
+
+        int separator = start;
+
+        while (separator < end && head[separator] != ':')
+        {
+            separator++;
+        }
+
+        int nameEnd = trimRight(start, separator);
+
+        if (separator == end || nameEnd == start)
+        {
+            throw new IOException("invalid header: \"" + line(start, end) + "\"");
+        }
+
+        int i = ParsedHeaders.FIELDS * headerCount++;
+
+        if (i + ParsedHeaders.FIELDS > headers.length)
+        {
+            headers = Arrays.copyOf(headers, 2 * headers.length);
+        }
+
+        headers[i] = start;
+        headers[i + 1] = nameEnd;
+        headers[i + 2] = trimLeft(separator + 1, valueEnd); // ignore LWS
+        headers[i + 3] = valueEnd;
+        headers[i + 4] = 0;
+        headers[i + 5] = HeaderNames.idOf(head, start, nameEnd);
+    }
+
+    /**
+     * Finds the method, URI and version in the request line.
+     * RFC2616#19.3: additional whitespace between tokens is tolerated.
+     *
+     * @param end the request line end (excluding the line terminator)
+     *
+     * @throws IOException if the request line is invalid
+     */
+    protected void parseRequestLine(int end) throws IOException
+    {
+        int count = 0;
+
+        for (int pos = 0; pos < end; pos++)
+        {
+            int start = pos;
+
+            while (pos < end && head[pos] != ' ')
+            {
+                pos++;
+            }
+
+            int tokenStart = trimLeft(start, pos);
+            int tokenEnd = trimRight(tokenStart, pos);
+
+            if (tokenEnd > tokenStart)
+            {
+                switch (count++)
+                {
+                    case 0 ->
+                    {
+                        methodStart = tokenStart;
+                        methodEnd = tokenEnd;
+                    }
+                    case 1 ->
+                    {
+                        uriStart = tokenStart;
+                        uriEnd = tokenEnd;
+                    }
+                    case 2 ->
+                    {
+                        versionStart = tokenStart;
+                        versionEnd = tokenEnd;
+                    }
+                    default ->
+                    {
+                        // NoOp - an extra token, rejected below
+                    }
+                }
+            }
+        }
+
+        if (count != 3)
+        {
+            throw new IOException("invalid request line: \"" + line(0, end) + "\"");
+        }
+    }
+
+    /**
+     * Reads a line into {@link #head}, copying the bytes straight from the
+     * stream's buffer.
+     *
+     * @param in    the stream
+     * @param start the line start in head (equal to {@link #length})
+     *
+     * @return the line end, excluding its terminator (LF or CRLF)
+     *
+     * @throws IOException if an error occurs, the stream ends, or the line is
+     *                     too long
+     */
+    protected int readLine(ConnectionInputStream in, int start) throws IOException
+    {
+        while (true)
+        {
+            if (in.pos == in.count && !in.fill())
+            {
+                throw new EOFException("unexpected end of stream");
+            }
+
+            int lf = in.pos;
+
+            while (lf < in.count && in.buf[lf] != '\n')
+            {
+                lf++;
+            }
+
+            int n = (lf < in.count ? lf + 1 : lf) - in.pos;
+
+            if (length + n - start > MAX_LINE_LENGTH)
+            {
+                throw new IOException("token too large (" + (length - start) + ")");
+            }
+
+            ensureCapacity(n);
+            System.arraycopy(in.buf, in.pos, head, length, n);
+            in.pos += n;
+            in.total += n;
+            length += n;
+
+            if (lf < in.count)
+            {
+                int end = length - 1;
+
+                return end > start && head[end - 1] == '\r' ? end - 1 : end;
+            }
+        }
+    }
+
+    /**
+     * Returns a line as a String, for error messages.
+     *
+     * @param start the line start
+     * @param end   the line end
+     *
+     * @return the line
+     */
+    private String line(int start, int end)
+    {
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns a token as a String, avoiding allocation if it is one of the
+     * given constants.
+     *
+     * @param constants the well-known values of the token
+     * @param start     the token start
+     * @param end       the token end
+     *
+     * @return the token
+     */
+    private String toString(String[] constants, int start, int end)
+    {
+        for (String constant : constants)
+        {
+            if (constant.length() == end - start && ParsedHeaders.regionMatches(head, start, constant, false))
+            {
+                return constant;
+            }
+        }
+
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Skips leading whitespace (and control characters, as
+     * {@link String#trim()} does).
+     *
+     * @param start the start
+     * @param end   the end
+     *
+     * @return the first non-whitespace position, or end
+     */
+    @SuppressWarnings("AssignmentToMethodParameter")
+    private int trimLeft(int start, int end)
+    {
+        while (start < end && (head[start] & 0xFF) <= ' ')
+        {
+            start++;
+        }
+
+        return start;
+    }
+
+    /**
+     * Skips trailing whitespace (and control characters, as
+     * {@link String#trim()} does).
+     *
+     * @param start the start
+     * @param end   the end
+     *
+     * @return the position after the last non-whitespace character, or start
+     */
+    @SuppressWarnings("AssignmentToMethodParameter")
+    private int trimRight(int start, int end)
+    {
+        while (end > start && (head[end - 1] & 0xFF) <= ' ')
+        {
+            end--;
+        }
+
+        return end;
+    }
+}
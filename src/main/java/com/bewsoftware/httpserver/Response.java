@@ -24,13 +24,18 @@ package com.bewsoftware.httpserver;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
-import static com.bewsoftware.httpserver.HTTPServer.CRLF;
 import static com.bewsoftware.httpserver.HTTPServer.isCompressible;
+import static com.bewsoftware.httpserver.HTTPServer.statusLines;
 import static com.bewsoftware.httpserver.HTTPServer.statuses;
 import static com.bewsoftware.httpserver.Utils.escapeHTML;
 import static com.bewsoftware.httpserver.Utils.formatDate;
@@ -43,12 +48,25 @@ import static com.bewsoftware.httpserver.Utils.splitElements;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.5.3
+ * @version 2.7.1
  */
 @SuppressWarnings("ProtectedField")
 public class Response implements Closeable
 {
 
+    /**
+     * The Server header line, encoded once.
+     */
+    private static final byte[] SERVER_LINE = getBytes("Server: ", HTTPServer.SERVER, "\r\n");
+
+    private static volatile DateLine dateLine = new DateLine(0); // the current second's Date line
+
+    protected boolean bodyEncoded; // the body is already content-encoded (e.g. precompressed)
+
+    protected List<Closeable> closeables; // closed when the response is finished (or null)
+
+    protected WritableByteChannel channel; // the channel under out, for zero-copy transfers (or null)
+
     protected boolean disallowCaching;
 
     protected boolean discardBody;
@@ -59,10 +77,18 @@ public class Response implements Closeable
 
     protected OutputStream out; // the underlying output stream
 
+    protected boolean passthrough; // the body is written to out as is, with no encoders (see getBody)
+
+    protected CompletableFuture<Integer> pending; // the status of a suspended transaction (or null)
+
     protected Request req; // request used in determining client capabilities
 
     protected int state; // nothing sent, arrHeader sent, or closed
 
+    protected int status; // the status sent, or 0 if the headers were not sent yet
+
+    protected boolean suspendable; // the transaction may be suspended by an asynchronous handler
+
     /**
      * Constructs a Response whose output is written to the given stream.
      *
@@ -83,15 +109,82 @@ public class Response implements Closeable
      */
     @Override
     public void close() throws IOException
+    {
+        finish();
+        out.flush(); // always flush underlying stream (even if getBody was never called)
+    }
+
+    /**
+     * Closes this response without flushing the underlying stream, so that
+     * the responses to pipelined requests can be flushed together.
+     *
+     * @throws IOException if an error occurs
+     * @see #close()
+     */
+    public void finish() throws IOException
     {
         state = -1; // closed
 
-        if (encoders[0] != null)
+        try
+        {
+            if (encoders[0] != null)
+            {
+                encoders[0].close(); // close all chained streams (except the underlying one)
+            }
+        } finally
         {
-            encoders[0].close(); // close all chained streams (except the underlying one)
+            closeResources();
         }
+    }
 
-        out.flush(); // always flush underlying stream (even if getBody was never called)
+    /**
+     * Registers a resource to be closed when this response is finished,
+     * i.e. when the transaction ends (e.g. the spooled parts of a
+     * {@link MultipartUpload}). Errors closing it are ignored.
+     *
+     * @param resource the resource
+     */
+    public void closeOnFinish(Closeable resource)
+    {
+        if (closeables == null)
+        {
+            closeables = new ArrayList<>(2);
+        }
+
+        closeables.add(resource);
+    }
+
+    /**
+     * Closes the resources registered with {@link #closeOnFinish}, once.
+     */
+    protected void closeResources()
+    {
+        List<Closeable> resources = closeables;
+        closeables = null;
+
+        if (resources != null)
+        {
+            for (Closeable resource : resources)
+            {
+                try
+                {
+                    resource.close();
+                } catch (IOException | RuntimeException ignore)
+                {
+                    // NoOp
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the status of this response.
+     *
+     * @return the status sent, or 0 if the headers have not been sent yet
+     */
+    public int getStatus()
+    {
+        return status;
     }
 
     /**
@@ -120,7 +213,8 @@ public class Response implements Closeable
         }            // set up chain of encoding streams according to arrHeader
 
         List<String> te = Arrays.asList(splitElements(headers.get("Transfer-Encoding"), true));
-        List<String> ce = Arrays.asList(splitElements(headers.get("Content-Encoding"), true));
+        List<String> ce = bodyEncoded ? List.of()
+                : Arrays.asList(splitElements(headers.get("Content-Encoding"), true));
         int i = encoders.length - 1;
 
         encoders[i] = new FilterOutputStream(out)
@@ -150,6 +244,7 @@ public class Response implements Closeable
             encoders[--i] = new DeflaterOutputStream(encoders[i + 1]);
         }
 
+        passthrough = i == encoders.length - 1;
         encoders[0] = encoders[i];
         encoders[i] = null; // prevent duplicate reference
 
@@ -167,6 +262,33 @@ public class Response implements Closeable
         this.req = req;
     }
 
+    /**
+     * Sets whether the body is already encoded according to the
+     * {@code Content-Encoding} header (e.g. a precompressed file), so that
+     * it is neither compressed by {@link #sendHeaders(int, long, long,
+     * String, String, long[]) sendHeaders} nor encoded again by
+     * {@link #getBody()}.
+     *
+     * @param bodyEncoded specifies whether the body is already encoded
+     */
+    public void setBodyEncoded(boolean bodyEncoded)
+    {
+        this.bodyEncoded = bodyEncoded;
+    }
+
+    /**
+     * Sets the channel that the underlying output stream writes to, if any,
+     * which file contents can be {@link #sendFile transferred} to without
+     * copying them through the output streams.
+     *
+     * @param channel the channel (in blocking mode), or null if there is
+     *                none
+     */
+    public void setChannel(WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
     /**
      * Sets whether this response's body is discarded or sent.
      *
@@ -307,6 +429,92 @@ public class Response implements Closeable
         }
     }
 
+    /**
+     * Sends the response body from a byte array. This method must be called
+     * only after the response headers have been sent (and indicate that there
+     * is a body).
+     *
+     * @param body  the response body
+     * @param range the sub-range within the response body that should be
+     *              sent, or null if the entire body should be sent
+     *
+     * @throws IOException if an error occurs
+     */
+    public void sendBody(byte[] body, long[] range) throws IOException
+    {
+        OutputStream outputStream = getBody();
+
+        if (outputStream != null)
+        {
+            int offset = range == null ? 0 : (int) range[0];
+            int length = range == null ? body.length : (int) (range[1] - range[0] + 1);
+            outputStream.write(body, offset, length);
+        }
+    }
+
+    /**
+     * Sends the response body from a file. This method must be called only
+     * after the response headers have been sent (and indicate that there is a
+     * body).
+     * <p>
+     * If the body is neither chunked nor compressed, and the response has a
+     * {@link #setChannel channel}, the file is transferred straight to the
+     * channel using {@link FileChannel#transferTo}, which lets the kernel
+     * send it without copying it through user space (e.g. sendfile).
+     * Otherwise it is sent as by {@link #sendBody}.
+     *
+     * @param file   the file containing the response body
+     * @param length the full length of the response body
+     * @param range  the sub-range within the response body that should be
+     *               sent, or null if the entire body should be sent
+     *
+     * @throws IOException if an error occurs
+     */
+    public void sendFile(File file, long length, long[] range) throws IOException
+    {
+        OutputStream outputStream = getBody();
+
+        if (outputStream == null)
+        {
+            return;
+        }
+
+        if (channel == null || !passthrough) // the body must go through the encoders
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                sendBody(in, length, range);
+            }
+
+            return;
+        }
+
+        long position = range == null ? 0 : range[0];
+        long count = range == null ? length : range[1] - range[0] + 1;
+        out.flush(); // the headers must go first
+
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            while (count > 0)
+            {
+                long sent = fc.transferTo(position, count, channel);
+
+                if (sent == 0 && position >= fc.size())
+                {
+                    throw new IOException("unexpected end of file");
+                }
+
+                position += sent;
+                count -= sent;
+
+                if (out instanceof ConnectionOutputStream cos)
+                {
+                    cos.addTotal(sent);
+                }
+            }
+        }
+    }
+
     /**
      * Sends an error response with the given status and detailed message.
      * An HTML body is created containing the status and its description,
@@ -363,16 +571,18 @@ public class Response implements Closeable
             addNoCachingHeaders();
         }
 
+        // the status line, Date and Server headers are written pre-encoded
+        out.write(statusLines[status]);
+
         if (!headers.contains("Date"))
         {
-            headers.add("Date", formatDate(System.currentTimeMillis()));
+            out.write(dateLine());
         }
 
-        headers.add("Server", HTTPServer.SERVER);
-        out.write(getBytes("HTTP/1.1 ", Integer.toString(status), " ", statuses[status]));
-        out.write(CRLF);
+        out.write(SERVER_LINE);
         headers.writeTo(out);
         state = 1; // headers sent
+        this.status = status;
     }
 
     /**
@@ -426,10 +636,12 @@ public class Response implements Closeable
         if (!headers.contains("Content-Length") && !headers.contains("Transfer-Encoding"))
         {
             // RFC2616#3.6: transfer encodings are case-insensitive and must not be sent to an HTTP/1.0 client
-            boolean modern = req != null && req.getVersion().endsWith("1.1");
+            boolean modern = req != null && (req.getVersion().endsWith("1.1")
+                    || req.getVersion().equals(Http2Connection.VERSION));
             String accepted = req == null ? null : req.getHeaders().get("Accept-Encoding");
             List<String> encodings = Arrays.asList(splitElements(accepted, true));
-            String compression = encodings.contains("gzip") ? "gzip"
+            String compression = bodyEncoded ? null
+                    : encodings.contains("gzip") ? "gzip"
                     : encodings.contains("deflate") ? "deflate" : null;
             if (compression != null && (length < 0 || length > 300) && isCompressible(ct) && modern)
             {
@@ -468,16 +680,67 @@ public class Response implements Closeable
         sendHeaders(status);
     }
 
+    /**
+     * Sends an interim {@code 100 Continue} response, telling the client to
+     * go ahead and send the request body (RFC7231#5.1.1).
+     *
+     * @throws IOException if an error occurs
+     */
+    protected void sendContinue() throws IOException
+    {
+        Response tempResp = new Response(out, disallowCaching);
+        tempResp.sendHeaders(100);
+        out.flush();
+    }
+
+    /**
+     * Returns the encoded Date header line (including CRLF) for the current
+     * time. The line is only formatted again once a new second has started,
+     * so all responses sent within the same second share it.
+     *
+     * @return the Date header line
+     */
+    protected static byte[] dateLine()
+    {
+        long now = System.currentTimeMillis();
+        DateLine line = dateLine;
+
+        if (now / 1000 != line.second)
+        {
+            line = new DateLine(now);
+            dateLine = line; // racing threads format the same line
+        }
+
+        return line.bytes;
+    }
+
     /**
      * Adds a number of headers designed to prevent the browser from caching the
      * files.
      * <p>
      * Bradley Willcott (24/12/2020)
      */
-    private void addNoCachingHeaders()
+    protected void addNoCachingHeaders()
     {
         headers.add("Cache-Control", "max-age=0,no-cache,no-store,must-revalidate");
         headers.add("Pragma", "no-cache");
         headers.add("Expires", "Tue, 01 Jan 1970 00:00:00 GMT");
     }
+
+    /**
+     * An encoded Date header line, and the second it was formatted for.
+     */
+    private static final class DateLine
+    {
+
+        final byte[] bytes;
+
+        final long second;
+
+        DateLine(long time)
+        {
+            this.second = time / 1000;
+            this.bytes = getBytes("Date: ", formatDate(time), "\r\n");
+        }
+    }
 }
@@ -0,0 +1,193 @@
+/*
+ *  File Name:    SelectorEngine.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * The {@code SelectorEngine} accepts connections using a non-blocking
+ * {@link ServerSocketChannel}, and parks idle connections in a
+ * {@link java.nio.channels.Selector Selector}.
+ * <p>
+ * A connection is only handed to the server's executor once the head of a
+ * request (request line and headers) has arrived, and it is returned to the
+ * selector when the transaction is done and the client has not already sent
+ * another request. Idle keep-alive connections therefore cost a selection key
+ * each, rather than a thread each.
+ * <p>
+ * The {@code Request}, {@code Response} and {@code ContextHandler} API is
+ * unchanged: the executor thread reads and writes the connection in blocking
+ * mode, exactly as with the default engine.
+ * <p>
+ * The engine is started and stopped by the server while holding its
+ * lifecycle lock.
+ * <p>
+ * Secure (HTTPS) connections are not supported by this engine, since
+ * {@link javax.net.ssl.SSLServerSocketFactory} sockets have no channel.
+ *
+ * @see HTTPServer#setConnectionEngine(ConnectionEngine)
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public class SelectorEngine implements ConnectionEngine
+{
+    /**
+     * The default maximum number of request head bytes read by the selector
+     * before the connection is dispatched anyway.
+     */
+    public static final int DEFAULT_HEAD_LIMIT = 8192;
+
+    protected final int headLimit;
+
+    private volatile SelectorHandlerThread[] threads;
+
+    /**
+     * Constructs a SelectorEngine with the {@link #DEFAULT_HEAD_LIMIT}.
+     */
+    public SelectorEngine()
+    {
+        this(DEFAULT_HEAD_LIMIT);
+    }
+
+    /**
+     * Constructs a SelectorEngine with the given head limit.
+     * <p>
+     * Request heads larger than the limit are still accepted - the remainder
+     * is simply read by the executor thread.
+     *
+     * @param headLimit the maximum number of request head bytes read by the
+     *                  selector before the connection is dispatched
+     *
+     * @throws IllegalArgumentException if headLimit is not positive
+     */
+    public SelectorEngine(int headLimit)
+    {
+        if (headLimit <= 0)
+        {
+            throw new IllegalArgumentException("invalid head limit: " + headLimit);
+        }
+
+        this.headLimit = headLimit;
+    }
+
+    @Override
+    public void start(HTTPServer server) throws IOException
+    {
+        if (server.secure)
+        {
+            throw new IOException("secure sockets are not supported by " + getClass().getSimpleName());
+        }
+
+        ServerSocketChannel[] channels = new ServerSocketChannel[server.acceptorThreads];
+        SelectorHandlerThread[] lThreads = new SelectorHandlerThread[channels.length];
+
+        try
+        {
+            channels[0] = openChannel(server);
+            server.serv = channels[0].socket(); // closing it closes the channel
+            server.bind(server.serv);
+
+            for (int i = 0; i < channels.length; i++)
+            {
+                if (i > 0)
+                {
+                    if (HTTPServer.isReusePortEnabled(server.serv))
+                    {
+                        channels[i] = openChannel(server);
+                        channels[i].socket().bind(new InetSocketAddress(server.port)); // the same port as the first
+                    } else
+                    {
+                        channels[i] = channels[0]; // shared - registered with every selector
+                    }
+                }
+
+                channels[i].configureBlocking(false);
+                lThreads[i] = new SelectorHandlerThread(server, channels[i], headLimit,
+                        channels.length > 1 ? i : -1);
+            }
+        } catch (IOException ex)
+        {
+            for (ServerSocket listener : server.listeners)
+            {
+                listener.close();
+            }
+
+            server.listeners.clear();
+            server.serv = null;
+            throw ex;
+        }
+
+        threads = lThreads;
+
+        for (SelectorHandlerThread thread : lThreads)
+        {
+            thread.start();
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        SelectorHandlerThread[] lThreads = threads;
+        threads = null;
+
+        if (lThreads != null)
+        {
+            for (SelectorHandlerThread thread : lThreads)
+            {
+                thread.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Opens a new, unbound listening channel, configured by the server and
+     * added to its listeners.
+     *
+     * @param server the server
+     *
+     * @return the new channel
+     *
+     * @throws IOException if an error occurs
+     */
+    private static ServerSocketChannel openChannel(HTTPServer server) throws IOException
+    {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        server.listeners.add(channel.socket());
+        server.configureListener(channel.socket());
+
+        return channel;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SelectorEngine{"
+                + "\nheadLimit=" + headLimit + '}';
+    }
+}
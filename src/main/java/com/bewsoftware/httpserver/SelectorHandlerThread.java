@@ -0,0 +1,590 @@
+/*
+ *  File Name:    SelectorHandlerThread.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The {@code SelectorHandlerThread} runs the selector loop of a
+ * {@link SelectorEngine}.
+ * <p>
+ * It accepts new connections, reads request heads from the connections
+ * registered with its selector, and dispatches each connection to the server's
+ * executor once its request head is complete. Connections are re-registered
+ * when their executor thread {@link #release releases} them.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("PackageVisibleField")
+class SelectorHandlerThread extends Thread
+{
+    /**
+     * The longest time (in milliseconds) the selector waits before checking
+     * for idle connections.
+     */
+    private static final int MAX_TICK = 1000;
+
+    protected final ServerSocketChannel channel;
+
+    protected final int headLimit;
+
+    protected final int index;
+
+    protected final Queue<SelectorConnection> released = new ConcurrentLinkedQueue<>();
+
+    protected volatile boolean running = true;
+
+    protected final Selector selector;
+
+    protected HTTPServer server;
+
+    /**
+     * Constructs a SelectorHandlerThread.
+     *
+     * @param server    the server whose connections are handled
+     * @param channel   the non-blocking listening channel to accept connections
+     *                  from (possibly shared with other selector threads)
+     * @param headLimit the maximum number of request head bytes to read before
+     *                  dispatching a connection
+     * @param index     the selector thread's index, or -1 if it is the only one
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    SelectorHandlerThread(HTTPServer server, ServerSocketChannel channel, int headLimit, int index) throws IOException
+    {
+        this.server = server;
+        this.channel = channel;
+        this.headLimit = headLimit;
+        this.index = index;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run()
+    {
+        setName(getClass().getSimpleName() + "-" + server.port + (index < 0 ? "" : "-" + index));
+        ByteBuffer buf = ByteBuffer.allocateDirect(headLimit); // only this thread reads into it
+        List<SelectorConnection> ready = new ArrayList<>();
+
+        try
+        {
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+            long lastExpiry = System.currentTimeMillis();
+
+            while (running && channel.isOpen())
+            {
+                int timeout = server.socketTimeout;
+                selector.select(timeout > 0 ? Math.min(timeout, MAX_TICK) : MAX_TICK);
+                long now = System.currentTimeMillis();
+
+                registerReleased(now);
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();)
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable())
+                    {
+                        accept(now);
+                    } else if (key.isReadable())
+                    {
+                        SelectorConnection conn = (SelectorConnection) key.attachment();
+                        int res;
+
+                        try
+                        {
+                            res = conn.read(buf, now);
+                        } catch (IOException ioe)
+                        {
+                            res = -1;
+                        }
+
+                        if (res != 0)
+                        {
+                            key.cancel();
+
+                            if (res > 0)
+                            {
+                                ready.add(conn);
+                            } else
+                            {
+                                conn.abort(); // client closed the connection
+                            }
+                        }
+                    }
+                }
+
+                // expire idle connections, the same as a blocking read would time out
+                if (timeout > 0 && now - lastExpiry >= Math.min(timeout, MAX_TICK))
+                {
+                    lastExpiry = now;
+
+                    for (SelectionKey key : selector.keys())
+                    {
+                        if (key.isValid() && key.attachment() instanceof SelectorConnection conn
+                                && now - conn.lastActive >= timeout)
+                        {
+                            key.cancel();
+
+                            if (conn.length > 0)
+                            {
+                                ready.add(conn); // partial request - let the worker send a 408
+                            } else
+                            {
+                                conn.abort(); // idle between requests - just disconnect
+                            }
+                        }
+                    }
+                }
+
+                if (!ready.isEmpty())
+                {
+                    selector.selectNow(); // deregister cancelled keys, so workers can block
+                    ready.forEach(this::dispatch);
+                    ready.clear();
+                }
+            }
+        } catch (IOException | ClosedSelectorException ignore)
+        {
+            // NoOp
+        } finally
+        {
+            running = false;
+
+            try
+            {
+                for (SelectionKey key : selector.keys())
+                {
+                    if (key.attachment() instanceof SelectorConnection conn)
+                    {
+                        conn.abort();
+                    }
+                }
+
+                selector.close();
+            } catch (IOException | ClosedSelectorException ignore)
+            {
+                // NoOp
+            }
+
+            registerReleased(0); // closes any stragglers
+        }
+    }
+
+    /**
+     * Returns a connection to this thread's selector, to wait for its next
+     * request.
+     *
+     * @param conn the connection, which must be in non-blocking mode
+     */
+    void release(SelectorConnection conn)
+    {
+        released.add(conn);
+
+        if (running)
+        {
+            selector.wakeup();
+        } else
+        {
+            registerReleased(0);
+        }
+    }
+
+    /**
+     * Stops the selector loop. Connections that are idle in the selector are
+     * closed, and busy ones are closed once their transaction is done.
+     */
+    void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Accepts all pending connections, and registers them for reading.
+     *
+     * @param now the current time
+     */
+    private void accept(long now)
+    {
+        try
+        {
+            for (SocketChannel sc; (sc = channel.accept()) != null;)
+            {
+                try
+                {
+                    sc.configureBlocking(false);
+                    sc.setOption(StandardSocketOptions.TCP_NODELAY, true); // we buffer anyway, so improve latency
+                    SelectorConnection conn = new SelectorConnection(sc, now);
+                    sc.register(selector, SelectionKey.OP_READ, conn);
+
+                    if (conn.metrics != null)
+                    {
+                        conn.metrics.connectionOpened();
+                    }
+                } catch (IOException ioe)
+                {
+                    sc.close();
+                }
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp
+        }
+    }
+
+    /**
+     * Hands a connection whose request head has arrived to the server's
+     * executor, or sheds it if the server is overloaded.
+     *
+     * @param conn the connection, whose key has been deregistered
+     */
+    private void dispatch(SelectorConnection conn)
+    {
+        if (!server.admitConnection())
+        {
+            conn.shed();
+            return;
+        }
+
+        try
+        {
+            server.executor.execute(conn);
+        } catch (RejectedExecutionException ree)
+        {
+            server.releaseConnection();
+            server.executorRejections.increment();
+            conn.shed();
+        }
+    }
+
+    /**
+     * Registers the connections released by executor threads with the
+     * selector, or closes them if this thread has stopped.
+     *
+     * @param now the current time
+     */
+    private void registerReleased(long now)
+    {
+        for (SelectorConnection conn; (conn = released.poll()) != null;)
+        {
+            try
+            {
+                if (running)
+                {
+                    conn.lastActive = now;
+                    conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                } else
+                {
+                    conn.abort();
+                }
+            } catch (IOException | RuntimeException ex)
+            { // e.g. ClosedSelectorException
+                conn.abort();
+            }
+        }
+    }
+
+    /**
+     * The state of a single connection handled by the selector.
+     * <p>
+     * While idle, a connection holds no buffers. The bytes of a request head
+     * are collected until it is complete (or the head limit is reached), and
+     * are then replayed to the executor thread ahead of the socket stream.
+     */
+    class SelectorConnection implements Runnable
+    {
+        protected final SocketChannel channel;
+
+        protected volatile boolean closed; // the connection has been aborted
+
+        protected byte[] head; // request head received so far (lazily allocated)
+
+        protected volatile long lastActive;
+
+        protected int length; // number of bytes in head
+
+        protected final Metrics metrics; // the server's metrics when accepted (or null)
+
+        protected long received; // bytes read by previous dispatches
+
+        protected SocketAddress remote; // the client's address (looked up on first dispatch)
+
+        protected int scanned; // number of bytes in head already searched for the head's end
+
+        protected long sent; // bytes written by previous dispatches
+
+        SelectorConnection(SocketChannel channel, long now)
+        {
+            this.channel = channel;
+            this.lastActive = now;
+            this.metrics = server.metrics;
+        }
+
+        /**
+         * Serves the buffered request, and any further requests the client
+         * has already sent, and then releases the connection back to the
+         * selector (or closes it).
+         */
+        @Override
+        public void run()
+        {
+            ConnectionInputStream in = null;
+            ConnectionOutputStream out = null;
+            InputStream headIn;
+
+            try
+            {
+                Socket sock = channel.socket();
+                channel.configureBlocking(true);
+                sock.setSoTimeout(server.socketTimeout);
+                headIn = new ByteArrayInputStream(head != null ? head : new byte[0], 0, length);
+                head = null;
+                length = scanned = 0;
+
+                int size = BufferPool.getDefault().getBufferSize();
+                in = new ConnectionInputStream(new SequenceInputStream(headIn, sock.getInputStream()), size);
+                out = new ConnectionOutputStream(sock.getOutputStream(), channel, size);
+                in.setOutput(out);
+                in.total = received; // the totals are of the whole connection
+                out.total = sent;
+
+                if (remote == null)
+                {
+                    remote = sock.getRemoteSocketAddress();
+                }
+            } catch (IOException ioe)
+            {
+                end(in, out, false);
+                return;
+            }
+
+            serve(in, out, headIn, true);
+        }
+
+        /**
+         * Serves the requests the client has already sent, and then releases
+         * the connection back to the selector (or closes it), unless a
+         * transaction is suspended, in which case its resumption continues
+         * from here.
+         *
+         * @param in      the connection's input stream
+         * @param out     the connection's output stream
+         * @param headIn  the stream replaying the request head read by the
+         *                selector
+         * @param persist whether the connection persists (after a resumed
+         *                transaction)
+         */
+        void serve(ConnectionInputStream in, ConnectionOutputStream out, InputStream headIn, boolean persist)
+        {
+            Boolean next = persist;
+
+            try
+            {
+                // serve pipelined requests without a round trip through the selector
+                while (next == Boolean.TRUE && in.buffered() + headIn.available() > 0)
+                {
+                    next = server.serveTransaction(in, out, channel, remote,
+                            resumed -> serve(in, out, headIn, resumed));
+                }
+
+                if (next == Boolean.TRUE)
+                {
+                    channel.configureBlocking(false);
+                }
+            } catch (IOException ioe)
+            {
+                next = false;
+            } finally
+            {
+                if (next != null) // not suspended
+                {
+                    end(in, out, next);
+                }
+            }
+        }
+
+        /**
+         * Ends a dispatch of the connection, by releasing its buffers and
+         * then releasing it back to the selector, or closing it.
+         *
+         * @param in      the connection's input stream, or null
+         * @param out     the connection's output stream, or null
+         * @param persist whether the connection persists
+         */
+        void end(ConnectionInputStream in, ConnectionOutputStream out, boolean persist)
+        {
+            // idle connections hold no buffers
+            if (in != null)
+            {
+                received = in.getTotal();
+                in.release();
+            }
+
+            if (out != null)
+            {
+                sent = out.getTotal();
+                out.release();
+            }
+
+            server.releaseConnection(); // before the selector can dispatch it again
+
+            if (persist)
+            {
+                release(this);
+            } else
+            {
+                try
+                {
+                    // RFC7230#6.6 - close socket gracefully
+                    Socket sock = channel.socket();
+                    sock.shutdownOutput(); // half-close socket (only output)
+                    FileUtils.transfer(sock.getInputStream(), null, -1); // consume input
+                } catch (IOException | IllegalBlockingModeException ignore)
+                {
+                    // NoOp
+                } finally
+                {
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * Closes the connection immediately.
+         */
+        void abort()
+        {
+            // the channel may already have been closed with its input stream
+            if (!closed)
+            {
+                closed = true;
+
+                if (metrics != null)
+                {
+                    metrics.connectionClosed();
+                }
+            }
+
+            try
+            {
+                channel.close();
+            } catch (IOException ignore)
+            {
+                // NoOp
+            }
+        }
+
+        /**
+         * Sheds the connection while overloaded, by writing the server's
+         * pre-encoded {@code 503 Service Unavailable} response and closing it.
+         * The request head read so far is discarded unparsed.
+         */
+        void shed()
+        {
+            head = null;
+
+            try
+            {
+                channel.write(ByteBuffer.wrap(server.overloadResponse)); // fits in an empty send buffer
+                channel.shutdownOutput();
+            } catch (IOException ignore)
+            {
+                // NoOp
+            } finally
+            {
+                abort();
+            }
+        }
+
+        /**
+         * Reads available data into the request head.
+         *
+         * @param buf the selector thread's read buffer
+         * @param now the current time
+         *
+         * @return 1 if the request head is complete (or the head limit is
+         *         reached), 0 if more data is needed, or -1 if the client
+         *         closed the connection
+         *
+         * @throws IOException if an error occurs
+         */
+        int read(ByteBuffer buf, long now) throws IOException
+        {
+            if (head == null)
+            {
+                head = new byte[headLimit];
+            }
+
+            buf.clear().limit(head.length - length);
+            int count = channel.read(buf);
+
+            if (count <= 0)
+            {
+                if (length == 0)
+                {
+                    head = null; // nothing received - hold no buffer while idle
+                }
+
+                return count < 0 ? -1 : 0;
+            }
+
+            buf.flip().get(head, length, count);
+            length += count;
+            lastActive = now;
+
+            // look for the empty line that ends the head (LF LF or LF CR LF)
+            for (int i = Math.max(scanned, 1); i < length; i++)
+            {
+                if (head[i] == '\n' && (head[i - 1] == '\n'
+                        || head[i - 1] == '\r' && i > 1 && head[i - 2] == '\n'))
+                {
+                    return 1;
+                }
+            }
+
+            scanned = length;
+
+            return length == head.length ? 1 : 0;
+        }
+    }
+}
@@ -24,6 +24,7 @@ package com.bewsoftware.httpserver;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.SSLSocket;
 
 /**
@@ -32,65 +33,137 @@ import javax.net.ssl.SSLSocket;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.6.3
+ * @version 2.7.1
  */
 @SuppressWarnings("PackageVisibleField")
 class SocketHandlerThread extends Thread
 {
+    protected final int index;
+
     protected HTTPServer server;
 
-    SocketHandlerThread(HTTPServer server)
+    protected final ServerSocket serverSocket;
+
+    /**
+     * Constructs a SocketHandlerThread.
+     *
+     * @param server       the server whose connections are handled
+     * @param serverSocket the listening socket to accept connections from
+     *                     (possibly shared with other acceptor threads)
+     * @param index        the acceptor thread's index, or -1 if it is the only
+     *                     one
+     */
+    SocketHandlerThread(HTTPServer server, ServerSocket serverSocket, int index)
     {
         this.server = server;
+        this.serverSocket = serverSocket;
+        this.index = index;
     }
 
     @Override
-    @SuppressWarnings("null")
     public void run()
     {
-        setName(getClass().getSimpleName() + "-" + server.port);
+        setName(getClass().getSimpleName() + "-" + server.port + (index < 0 ? "" : "-" + index));
         try
         {
-            ServerSocket serverSocket = server.serv; // keep local to avoid NPE when stopped
-
-            while (serverSocket != null && !serverSocket.isClosed())
+            while (!serverSocket.isClosed())
             {
                 final Socket sock = serverSocket.accept();
 
-                server.executor.execute(() ->
+                if (!server.admitConnection())
+                {
+                    server.shed(sock);
+                    continue;
+                }
+
+                try
+                {
+                    server.executor.execute(() -> serve(sock));
+                } catch (RejectedExecutionException ree)
+                {
+                    server.releaseConnection();
+                    server.executorRejections.increment();
+                    server.shed(sock);
+                }
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp
+        }
+    }
+
+    /**
+     * Serves an admitted connection until it is closed.
+     * <p>
+     * If a transaction is suspended by an asynchronous handler, this returns
+     * at once, and the connection is served (and closed) by the executor
+     * thread that resumes it.
+     *
+     * @param sock the connection's socket
+     */
+    private void serve(Socket sock)
+    {
+        Metrics metrics = server.metrics;
+
+        if (metrics != null)
+        {
+            metrics.connectionOpened();
+        }
+
+        try
+        {
+            sock.setSoTimeout(server.socketTimeout);
+            sock.setTcpNoDelay(true); // we buffer anyway, so improve latency
+
+            if (server.http2 && sock instanceof SSLSocket sslSocket)
+            {
+                // complete the handshake (and ALPN) before reading a request, so that a
+                // slow handshake is not answered with an HTTP/1.1 error on an h2 connection
+                sslSocket.startHandshake();
+            }
+
+            server.handleConnection(sock.getInputStream(), sock.getOutputStream(), sock.getChannel(),
+                    sock.getRemoteSocketAddress(), () -> close(sock, metrics));
+        } catch (IOException ioe)
+        {
+            close(sock, metrics);
+        }
+    }
+
+    /**
+     * Closes a served connection.
+     *
+     * @param sock    the connection's socket
+     * @param metrics the metrics its opening was recorded in, or null
+     */
+    private void close(Socket sock, Metrics metrics)
+    {
+        try
+        {
+            try
+            {
+                // RFC7230#6.6 - close socket gracefully
+                // (except SSL socket which doesn't support half-closing)
+                if (!(sock instanceof SSLSocket))
                 {
-                    try
-                    {
-                        try
-                        {
-                            sock.setSoTimeout(server.socketTimeout);
-                            sock.setTcpNoDelay(true); // we buffer anyway, so improve latency
-                            server.handleConnection(sock.getInputStream(), sock.getOutputStream());
-                        } finally
-                        {
-                            try
-                            {
-                                // RFC7230#6.6 - close socket gracefully
-                                // (except SSL socket which doesn't support half-closing)
-                                if (!(sock instanceof SSLSocket))
-                                {
-                                    sock.shutdownOutput(); // half-close socket (only output)
-                                    FileUtils.transfer(sock.getInputStream(), null, -1); // consume input
-                                }
-                            } finally
-                            {
-                                sock.close(); // and finally close socket fully
-                            }
-                        }
-                    } catch (IOException ignore)
-                    {
-                        // NoOp
-                    }
-                });
+                    sock.shutdownOutput(); // half-close socket (only output)
+                    FileUtils.transfer(sock.getInputStream(), null, -1); // consume input
+                }
+            } finally
+            {
+                sock.close(); // and finally close socket fully
             }
         } catch (IOException ignore)
         {
             // NoOp
+        } finally
+        {
+            server.releaseConnection();
+
+            if (metrics != null)
+            {
+                metrics.connectionClosed();
+            }
         }
     }
 }
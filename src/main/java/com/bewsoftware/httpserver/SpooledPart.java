@@ -0,0 +1,253 @@
+/*
+ *  File Name:    SpooledPart.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The {@code SpooledPart} class is a part of a {@link MultipartUpload},
+ * whose body has been read in full, and is held either in memory or in a
+ * temporary file.
+ * <p>
+ * The body is accessed through {@link #getInputStream}, {@link #getPath} or
+ * {@link #getByteBuffer}, each of which creates what it returns only when
+ * it is first asked for (e.g. a part held in memory is only written to a
+ * file if its path is asked for). The {@link #body} field is not used.
+ * <p>
+ * A part may only be used until its upload is closed, which happens at
+ * the latest when the response is finished.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class SpooledPart extends Part
+{
+    protected ByteBuffer buffer; // the body as a buffer, once asked for
+
+    protected byte[] data; // the body, or null if it was spooled to a file
+
+    protected Path path; // the file holding the body, or null if it is (only) in memory
+
+    protected long size;
+
+    protected final MultipartUpload upload;
+
+    /**
+     * Constructs a SpooledPart, whose body is then spooled by its upload.
+     *
+     * @param upload   the upload the part belongs to
+     * @param name     the part's name (form field name)
+     * @param filename the part's filename, or null
+     * @param headers  the part's headers
+     */
+    protected SpooledPart(MultipartUpload upload, String name, String filename, Headers headers)
+    {
+        this.upload = upload;
+        this.name = name;
+        this.filename = filename;
+        this.headers = headers;
+    }
+
+    /**
+     * Returns the part's body as a read-only buffer. A body held in a file is
+     * mapped into memory the first time this is called.
+     *
+     * @return a new buffer over the body, positioned at its start
+     *
+     * @throws IOException           if an IO error occurs
+     * @throws IllegalStateException if the upload is closed
+     */
+    public ByteBuffer getByteBuffer() throws IOException
+    {
+        checkOpen();
+
+        if (buffer == null)
+        {
+            if (data != null)
+            {
+                buffer = ByteBuffer.wrap(data, 0, (int) size).slice().asReadOnlyBuffer();
+            } else
+            {
+                try (FileChannel channel = FileChannel.open(path, READ))
+                {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+        }
+
+        return buffer.duplicate();
+    }
+
+    /**
+     * Returns a new stream from which the part's body is read.
+     *
+     * @return the stream, which the caller should close
+     *
+     * @throws IOException           if an IO error occurs
+     * @throws IllegalStateException if the upload is closed
+     */
+    public InputStream getInputStream() throws IOException
+    {
+        checkOpen();
+
+        return data != null ? new ByteArrayInputStream(data, 0, (int) size) : Files.newInputStream(path);
+    }
+
+    /**
+     * Returns the file holding the part's body. A body held in memory is
+     * written to a temporary file the first time this is called. The file is
+     * deleted when the upload is closed, so it must be moved or copied
+     * elsewhere to be kept.
+     *
+     * @return the file
+     *
+     * @throws IOException           if an IO error occurs
+     * @throws IllegalStateException if the upload is closed
+     */
+    public Path getPath() throws IOException
+    {
+        checkOpen();
+
+        if (path == null)
+        {
+            Path file = upload.spool.createFile();
+
+            try (FileChannel channel = FileChannel.open(file, WRITE))
+            {
+                ByteBuffer body = ByteBuffer.wrap(data, 0, (int) size);
+
+                while (body.hasRemaining())
+                {
+                    channel.write(body);
+                }
+            } catch (IOException | RuntimeException e)
+            {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+
+            path = file;
+        }
+
+        return path;
+    }
+
+    /**
+     * Returns the size of the part's body.
+     *
+     * @return the size in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the part's body as a string. If the part
+     * headers do not specify a charset, UTF-8 is used.
+     *
+     * @return the part's body as a string
+     *
+     * @throws IOException           if an IO error occurs
+     * @throws IllegalStateException if the upload is closed
+     */
+    @Override
+    public String getString() throws IOException
+    {
+        String charset = headers.getParams("Content-Type").get("charset");
+        charset = charset == null ? "UTF-8" : charset;
+
+        try (InputStream in = getInputStream())
+        {
+            return FileUtils.readToken(in, -1, charset, 8192);
+        }
+    }
+
+    /**
+     * Returns whether the part's body is held in memory, rather than having
+     * been spooled to a file.
+     *
+     * @return true if it is held in memory
+     */
+    public boolean isInMemory()
+    {
+        return data != null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SpooledPart{" + "\nfilename=" + filename
+                + ", \ninMemory=" + (data != null)
+                + ", \nname=" + name
+                + ", \npath=" + path
+                + ", \nsize=" + size
+                + "}";
+    }
+
+    /**
+     * Drops the part's body from memory, and deletes its file.
+     */
+    protected void close()
+    {
+        buffer = null;
+        data = null;
+
+        if (path != null)
+        {
+            try
+            {
+                Files.deleteIfExists(path);
+            } catch (IOException ignore)
+            {
+                // NoOp
+            }
+
+            path = null;
+        }
+    }
+
+    /**
+     * Checks that the part's upload is still open.
+     *
+     * @throws IllegalStateException if it is closed
+     */
+    private void checkOpen()
+    {
+        if (upload.closed)
+        {
+            throw new IllegalStateException("upload is closed");
+        }
+    }
+}
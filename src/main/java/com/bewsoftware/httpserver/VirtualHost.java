@@ -23,10 +23,12 @@ package com.bewsoftware.httpserver;
 
 import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.bewsoftware.httpserver.Utils.trimRight;
 
@@ -36,7 +38,7 @@ import static com.bewsoftware.httpserver.Utils.trimRight;
  * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
  *
  * @since 1.0
- * @version 2.6.4
+ * @version 2.7.1
  */
 @SuppressWarnings("ProtectedField")
 public class VirtualHost
@@ -53,10 +55,14 @@ public class VirtualHost
 
     protected final ContextInfo emptyContext = new ContextInfo(null, this);
 
+    protected final ReentrantLock lock = new ReentrantLock(); // guards adding contexts
+
     protected final Set<String> methods = new CopyOnWriteArraySet<>();
 
     protected final String name;
 
+    protected volatile ContextRouter router = new ContextRouter(); // replaced whenever a context is added
+
     /**
      * Constructs a VirtualHost with the given name.
      *
@@ -81,13 +87,16 @@ public class VirtualHost
     /**
      * Adds a context and its corresponding context handler to this server.
      * Paths are normalized by removing trailing slashes (except the root).
+     * A path may be a template (e.g. {@code /users/{id}}), as described in
+     * {@link ContextRouter}.
      *
      * @param context the context's path (must start with '/')
      * @param handler the context handler for the given path
      * @param methods the HTTP methods supported by the context handler (default
      *                is "GET")
      *
-     * @throws IllegalArgumentException if path is malformed
+     * @throws IllegalArgumentException if path is malformed, or conflicts
+     *                                  with an existing template path
      */
     @SuppressWarnings("AssignmentToMethodParameter")
     public void addContext(String context, ContextHandler handler, String... methods)
@@ -98,10 +107,41 @@ public class VirtualHost
         }
 
         context = trimRight(context, '/'); // remove trailing slash
-        ContextInfo info = new ContextInfo(context, this);
-        ContextInfo existing = contexts.putIfAbsent(context, info);
-        info = existing != null ? existing : info;
-        info.addHandler(handler, methods);
+        lock.lock();
+
+        try
+        {
+            ContextInfo info = contexts.get(context);
+
+            if (info == null)
+            {
+                info = new ContextInfo(context, this);
+
+                if (!context.equals("*"))
+                {
+                    // rebuild the router, so lookups never see one that is half-built
+                    ContextRouter newRouter = new ContextRouter();
+
+                    for (Map.Entry<String, ContextInfo> existing : contexts.entrySet())
+                    {
+                        if (!existing.getKey().equals("*"))
+                        {
+                            newRouter.add(existing.getValue());
+                        }
+                    }
+
+                    newRouter.add(info); // validates
+                    router = newRouter;
+                }
+
+                contexts.put(context, info);
+            }
+
+            info.addHandler(handler, methods);
+        } finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -154,10 +194,10 @@ public class VirtualHost
     /**
      * Returns the context handler for the given path.
      * <p>
-     * If a context is not found for the given path, the search is repeated for
-     * its parent path, and so on until a jarPath context is found. If neither
-     * the
-     * given path nor any of its parents has a context, an empty context is
+     * The context whose path is the longest match for the given path, segment
+     * by segment, is returned: if a context is not found for the given path,
+     * its parent path is tried, and so on up to the root. If neither the given
+     * path nor any of its parents has a context, an empty context is
      * returned.
      *
      * @param path the context's path
@@ -165,24 +205,10 @@ public class VirtualHost
      * @return the context info for the given path, or an empty context if none
      *         exists
      */
-    @SuppressWarnings("AssignmentToMethodParameter")
     public ContextInfo getContext(String path)
     {
-        // all context paths are without trailing slash
-        for (path = trimRight(path, '/'); path != null; path = FileUtils.getParentPath(path))
-        {
-            for (; path != null; path = FileUtils.getParentPath(path))
-            {
-                ContextInfo info = contexts.get(path);
-
-                if (info != null)
-                {
-                    return info;
-                }
-            }
-        }
-
-        return emptyContext;
+        ContextInfo info = path.startsWith("/") ? router.find(path) : contexts.get(path); // e.g. "*"
+        return info != null ? info : emptyContext;
     }
 
     /**
@@ -0,0 +1,1077 @@
+/*
+ *  File Name:    WebSocket.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.bewsoftware.httpserver.WebSocketCodec.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A {@code WebSocket} is a connection that was upgraded to the WebSocket
+ * protocol (RFC6455) by a {@link WebSocketContextHandler}.
+ * <p>
+ * Incoming messages are passed to the connection's {@link Listener}, on
+ * the thread serving the connection. Messages may be sent from any thread.
+ * <p>
+ * Outgoing frames are queued, and written in order by the connection's
+ * writer, which only runs while frames are queued (on a virtual thread,
+ * where available), and flushes once it has emptied the queue. So sending
+ * never waits for the client, and a client that falls more than the
+ * {@link WebSocketContextHandler#setMaxQueued maximum queued size} behind
+ * is too slow, and its connection is aborted.
+ * <p>
+ * Outgoing messages are encoded once into a {@link Frame}, which can then
+ * be {@link #broadcast broadcast} to any number of connections without
+ * being encoded (or compressed) again.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public final class WebSocket
+{
+    /**
+     * The size of the buffer frames are read into, which grows as needed
+     * for larger frames.
+     */
+    protected static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * How long a connection that has ended waits for its queued frames
+     * (e.g. the Close frame) to be written, in milliseconds.
+     */
+    protected static final long DRAIN_TIMEOUT = 5000;
+
+    protected volatile Object attachment;
+
+    protected final boolean clientNoContextTakeover; // each client message is compressed separately
+
+    protected int closeCode = NO_STATUS; // received in the client's Close frame (reader)
+
+    protected String closeReason = ""; // reader
+
+    protected volatile boolean closeSent;
+
+    protected volatile boolean closed;
+
+    protected final CharsetDecoder decoder = UTF_8.newDecoder(); // reports malformed input (reader)
+
+    protected final boolean deflate; // permessage-deflate was negotiated
+
+    protected final Condition drained; // the writer has emptied the queue, or failed
+
+    protected boolean draining; // the writer is running (writeLock)
+
+    protected final InputStream in;
+
+    protected Inflater inflater; // lazily created (reader)
+
+    protected final Listener listener;
+
+    protected final int maxMessageSize;
+
+    protected final int maxQueued;
+
+    protected byte[] message = new byte[0]; // the fragments of the current message (reader)
+
+    protected boolean messageCompressed; // reader
+
+    protected int messageLength; // reader
+
+    protected int messageOpcode; // of the current fragmented message, or 0 if none (reader)
+
+    protected final OutputStream out;
+
+    protected final long pingInterval; // in nanoseconds
+
+    protected final String protocol;
+
+    protected final ArrayDeque<byte[]> queue = new ArrayDeque<>(); // the encoded frames, in order (writeLock)
+
+    protected int queued; // number of bytes in queue (writeLock)
+
+    protected final Request req;
+
+    protected final ReentrantLock writeLock = new ReentrantLock(); // guards the queue
+
+    /**
+     * Constructs a WebSocket, over a connection whose upgrade response was
+     * already sent.
+     *
+     * @param req                     the upgrade request
+     * @param in                      the connection's input stream
+     * @param out                     the connection's output stream
+     * @param listener                the listener
+     * @param protocol                the negotiated subprotocol, or null
+     * @param deflate                 whether permessage-deflate was
+     *                                negotiated
+     * @param clientNoContextTakeover whether the client compresses each
+     *                                message separately
+     * @param maxMessageSize          the maximum (uncompressed) size of an
+     *                                incoming message
+     * @param pingInterval            the time without incoming data after
+     *                                which the client is pinged, in
+     *                                milliseconds
+     * @param maxQueued               the maximum size of the frames queued
+     *                                for the client
+     */
+    WebSocket(Request req, InputStream in, OutputStream out, Listener listener, String protocol,
+            boolean deflate, boolean clientNoContextTakeover, int maxMessageSize, long pingInterval,
+            int maxQueued)
+    {
+        this.req = req;
+        this.in = in;
+        this.out = out;
+        this.listener = listener;
+        this.protocol = protocol;
+        this.deflate = deflate;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.maxMessageSize = maxMessageSize;
+        this.pingInterval = pingInterval * 1_000_000;
+        this.maxQueued = maxQueued;
+        this.drained = writeLock.newCondition();
+
+        if (in instanceof ConnectionInputStream cin)
+        {
+            cin.setOutput(null); // the output is written by the writer, not the reader
+        }
+    }
+
+    /**
+     * Queues a frame for each of the given open connections, without
+     * waiting for any of them. A connection whose client has fallen too far
+     * behind is aborted.
+     *
+     * @param frame   the frame
+     * @param sockets the connections
+     *
+     * @return the number of connections the frame was queued for
+     */
+    public static int broadcast(Frame frame, Iterable<WebSocket> sockets)
+    {
+        int count = 0;
+
+        for (WebSocket socket : sockets)
+        {
+            if (socket.enqueue(frame.encode(socket.deflate), false))
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the object attached to this connection.
+     *
+     * @return the attachment, or null if there is none
+     */
+    public Object getAttachment()
+    {
+        return attachment;
+    }
+
+    /**
+     * Attaches an object (e.g. a session) to this connection.
+     *
+     * @param attachment the attachment, or null to remove it
+     */
+    public void setAttachment(Object attachment)
+    {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Returns the subprotocol negotiated for this connection.
+     *
+     * @return the subprotocol, or null if none was negotiated
+     */
+    public String getProtocol()
+    {
+        return protocol;
+    }
+
+    /**
+     * Returns the request that was upgraded to this connection.
+     *
+     * @return the upgrade request
+     */
+    public Request getRequest()
+    {
+        return req;
+    }
+
+    /**
+     * Returns whether messages can still be sent on this connection.
+     *
+     * @return true until the connection starts closing
+     */
+    public boolean isOpen()
+    {
+        return !closeSent && !closed;
+    }
+
+    /**
+     * Starts closing this connection, by sending a Close frame (after any
+     * frames already queued). The connection ends once the client's Close
+     * frame is received.
+     *
+     * @param code   the close code (RFC6455#7.4)
+     * @param reason the reason (at most 123 bytes in UTF-8), or null
+     *
+     * @throws IOException if the connection is closing
+     */
+    public void close(int code, String reason) throws IOException
+    {
+        byte[] text = reason != null ? reason.getBytes(UTF_8) : new byte[0];
+        byte[] payload = new byte[2 + Math.min(text.length, MAX_CONTROL_LENGTH - 2)];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        write(encode(FIN, CLOSE, payload, 0, payload.length), true);
+    }
+
+    /**
+     * Sends a Ping frame.
+     *
+     * @param data the application data (at most 125 bytes)
+     *
+     * @throws IOException if the connection is closing
+     */
+    public void ping(byte[] data) throws IOException
+    {
+        if (data.length > MAX_CONTROL_LENGTH)
+        {
+            throw new IllegalArgumentException("ping data too long");
+        }
+
+        write(encode(FIN, PING, data, 0, data.length), false);
+    }
+
+    /**
+     * Sends a frame, which may already have been sent to other connections.
+     * The frame is queued, and written by the connection's writer.
+     *
+     * @param frame the frame
+     *
+     * @throws IOException if the connection is closing (or the client has
+     *                     fallen too far behind)
+     */
+    public void send(Frame frame) throws IOException
+    {
+        write(frame.encode(deflate), false);
+    }
+
+    /**
+     * Sends a binary message.
+     *
+     * @param data the message data
+     *
+     * @throws IOException if the connection is closing (or the client has
+     *                     fallen too far behind)
+     */
+    public void sendBinary(ByteBuffer data) throws IOException
+    {
+        send(Frame.binary(data));
+    }
+
+    /**
+     * Sends a text message.
+     *
+     * @param text the message text
+     *
+     * @throws IOException if the connection is closing (or the client has
+     *                     fallen too far behind)
+     */
+    public void sendText(String text) throws IOException
+    {
+        send(Frame.text(text));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WebSocket{"
+                + "\nclosed=" + closed + ", "
+                + "\ncloseSent=" + closeSent + ", "
+                + "\ndeflate=" + deflate + ", "
+                + "\nprotocol=" + protocol + ", "
+                + "\nuri=" + req.getURI() + '}';
+    }
+
+    /**
+     * Reads and handles frames until the connection is closed, or fails.
+     * The listener is notified when the connection opens and closes.
+     *
+     * @throws IOException if the connection ends abnormally
+     */
+    void serve() throws IOException
+    {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buf = pool.acquire(BUFFER_SIZE);
+        Parser parser = new Parser();
+        int start = 0; // of the next frame
+        int end = 0; // of the data read
+        int code = ABNORMAL_CLOSURE;
+        String reason = "";
+        long received = System.nanoTime(); // when data was last read
+        boolean pinged = false;
+
+        try
+        {
+            listener.onOpen(this);
+
+            while (!closed)
+            {
+                int length;
+
+                // handle the complete frames read so far
+                while ((length = parser.parse(buf, start, end - start, maxMessageSize, deflate)) > 0
+                        && length <= end - start)
+                {
+                    onFrame(parser, buf, start + parser.headerLength);
+                    start += length;
+
+                    if (closed)
+                    {
+                        code = closeCode;
+                        reason = closeReason;
+
+                        return;
+                    }
+                }
+
+                // make room for the rest of the frame
+                int needed = Math.max(length, MAX_HEADER_LENGTH);
+
+                if (start > 0)
+                {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+
+                if (needed > buf.length)
+                {
+                    byte[] larger = pool.acquire(needed);
+                    System.arraycopy(buf, 0, larger, 0, end);
+                    pool.release(buf);
+                    buf = larger;
+                }
+
+                int n;
+
+                try
+                {
+                    n = in.read(buf, end, buf.length - end);
+                } catch (SocketTimeoutException ste)
+                {
+                    long idle = System.nanoTime() - received;
+
+                    if (closeSent || pinged && idle > 2 * pingInterval)
+                    {
+                        return; // the client is gone
+                    }
+
+                    if (!pinged && idle > pingInterval)
+                    {
+                        ping(new byte[0]);
+                        pinged = true;
+                    }
+
+                    continue;
+                }
+
+                if (n < 0)
+                {
+                    return;
+                }
+
+                end += n;
+                received = System.nanoTime();
+                pinged = false;
+            }
+        } catch (CloseException ce)
+        {
+            code = ce.code;
+            reason = ce.getMessage();
+            fail(code, reason);
+        } catch (RuntimeException re)
+        { // the listener failed
+            code = INTERNAL_ERROR;
+            reason = re.toString();
+            fail(code, "");
+        } finally
+        {
+            closed = true;
+            awaitDrained();
+            pool.release(buf);
+
+            if (inflater != null)
+            {
+                inflater.end();
+            }
+
+            listener.onClose(this, code, reason);
+        }
+    }
+
+    /**
+     * Aborts this connection, without a closing handshake.
+     */
+    private void abort()
+    {
+        closed = true;
+
+        try
+        {
+            in.close(); // unblocks the reader
+        } catch (IOException ignore)
+        {
+            // NoOp
+        }
+    }
+
+    /**
+     * Waits for the writer to empty the queue (up to the
+     * {@link #DRAIN_TIMEOUT drain timeout}), and aborts the connection if it
+     * has not.
+     */
+    private void awaitDrained()
+    {
+        boolean done;
+        writeLock.lock();
+
+        try
+        {
+            long wait = TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+
+            while (draining && wait > 0)
+            {
+                wait = drained.awaitNanos(wait);
+            }
+
+            done = !draining;
+        } catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            done = false;
+        } finally
+        {
+            writeLock.unlock();
+        }
+
+        if (!done)
+        {
+            abort(); // which makes the writer fail
+        }
+    }
+
+    /**
+     * Delivers a complete message to the listener.
+     *
+     * @param opcode     the message opcode
+     * @param compressed whether the message is compressed
+     * @param b          the buffer containing the message payload
+     * @param off        the payload offset
+     * @param len        the payload length
+     *
+     * @throws IOException if the message is invalid
+     */
+    private void deliver(int opcode, boolean compressed, byte[] b, int off, int len) throws IOException
+    {
+        if (compressed)
+        {
+            b = inflate(b, off, len);
+            len = messageLength;
+            off = 0;
+        }
+
+        if (opcode == TEXT)
+        {
+            listener.onText(this, decode(b, off, len));
+        } else
+        {
+            listener.onBinary(this, ByteBuffer.wrap(b, off, len).slice());
+        }
+    }
+
+    /**
+     * Decodes UTF-8 text, which must be valid.
+     *
+     * @param b   the buffer
+     * @param off the text offset
+     * @param len the text length
+     *
+     * @return the decoded text
+     *
+     * @throws CloseException if the text is not valid UTF-8
+     */
+    private String decode(byte[] b, int off, int len) throws CloseException
+    {
+        try
+        {
+            return decoder.decode(ByteBuffer.wrap(b, off, len)).toString();
+        } catch (CharacterCodingException cce)
+        {
+            throw new CloseException(INVALID_DATA, "invalid UTF-8 text");
+        }
+    }
+
+    /**
+     * Writes the queued frames until the queue is empty, flushing then. This
+     * runs on the writer's thread, which is started when a frame is queued
+     * and the writer is not running.
+     */
+    private void drain()
+    {
+        try
+        {
+            while (true)
+            {
+                byte[] frame;
+                writeLock.lock();
+
+                try
+                {
+                    frame = queue.peek();
+
+                    if (frame == null)
+                    {
+                        draining = false;
+                        drained.signalAll();
+
+                        return;
+                    }
+                } finally
+                {
+                    writeLock.unlock();
+                }
+
+                out.write(frame);
+                boolean empty;
+                writeLock.lock();
+
+                try
+                {
+                    queue.poll();
+                    queued -= frame.length;
+                    empty = queue.isEmpty();
+                } finally
+                {
+                    writeLock.unlock();
+                }
+
+                if (empty)
+                {
+                    out.flush(); // once for all the frames queued meanwhile
+                }
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            abort(); // the client is gone
+            writeLock.lock();
+
+            try
+            {
+                queue.clear();
+                queued = 0;
+                draining = false;
+                drained.signalAll();
+            } finally
+            {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues an encoded frame, and starts the writer if it is not running.
+     * A client that has fallen too far behind is aborted instead.
+     *
+     * @param frame the encoded frame
+     * @param close whether it is a Close frame
+     *
+     * @return true if the frame was queued, or false if the connection is
+     *         closing (or was aborted)
+     */
+    private boolean enqueue(byte[] frame, boolean close)
+    {
+        boolean start = false;
+        boolean slow = false;
+        writeLock.lock();
+
+        try
+        {
+            if (closeSent || closed)
+            {
+                return false;
+            }
+
+            if (queued > 0 && queued + frame.length > maxQueued) // a single frame may exceed it
+            {
+                slow = true;
+            } else
+            {
+                queue.add(frame);
+                queued += frame.length;
+                closeSent = close;
+                start = !draining;
+                draining = true;
+            }
+        } finally
+        {
+            writeLock.unlock();
+        }
+
+        if (slow)
+        {
+            abort(); // the client is too slow - drop it
+            return false;
+        }
+
+        if (start)
+        {
+            Writers.EXECUTOR.execute(this::drain);
+        }
+
+        return true;
+    }
+
+    /**
+     * Fails the connection, by sending a Close frame if possible and ending
+     * it without waiting for the client's.
+     *
+     * @param code   the close code
+     * @param reason the reason
+     */
+    private void fail(int code, String reason)
+    {
+        try
+        {
+            if (!closeSent)
+            {
+                close(code, reason);
+            }
+        } catch (IOException ignore)
+        {
+            // NoOp - the connection is broken
+        }
+    }
+
+    /**
+     * Decompresses a permessage-deflate message into the message buffer,
+     * setting the message length.
+     *
+     * @param b   the buffer containing the compressed payload
+     * @param off the payload offset
+     * @param len the payload length
+     *
+     * @return the message buffer
+     *
+     * @throws CloseException if the payload is invalid, or too large when
+     *                        decompressed
+     */
+    private byte[] inflate(byte[] b, int off, int len) throws CloseException
+    {
+        if (inflater == null)
+        {
+            inflater = new Inflater(true); // raw DEFLATE
+        }
+
+        byte[] dst = b == message ? new byte[Math.max(len * 2, 256)] : message; // don't overwrite the input
+        int n = 0;
+
+        try
+        {
+            inflater.setInput(b, off, len);
+            boolean tail = false;
+
+            while (true)
+            {
+                if (n == dst.length)
+                {
+                    if (dst.length >= maxMessageSize)
+                    {
+                        throw new CloseException(MESSAGE_TOO_BIG, "message too large");
+                    }
+
+                    dst = Arrays.copyOf(dst, (int) Math.min(Math.max(dst.length * 2L, 256), maxMessageSize + 1L));
+                }
+
+                int count = inflater.inflate(dst, n, dst.length - n);
+                n += count;
+
+                if (inflater.finished())
+                { // the final block - the next message starts a new stream
+                    inflater.reset();
+                    break;
+                }
+
+                if (count == 0 && inflater.needsInput())
+                {
+                    if (tail)
+                    {
+                        break;
+                    }
+
+                    inflater.setInput(DEFLATE_TAIL);
+                    tail = true;
+                }
+            }
+        } catch (DataFormatException dfe)
+        {
+            throw new CloseException(PROTOCOL_ERROR, "invalid compressed data");
+        }
+
+        if (n > maxMessageSize)
+        {
+            throw new CloseException(MESSAGE_TOO_BIG, "message too large");
+        }
+
+        if (clientNoContextTakeover)
+        {
+            inflater.reset();
+        }
+
+        message = dst;
+        messageLength = n;
+
+        return dst;
+    }
+
+    /**
+     * Handles a complete (unmasked) frame.
+     *
+     * @param frame the parsed frame header
+     * @param b     the buffer
+     * @param off   the payload offset
+     *
+     * @throws IOException if the frame is invalid or an error occurs
+     */
+    private void onFrame(Parser frame, byte[] b, int off) throws IOException
+    {
+        int len = frame.payloadLength;
+
+        switch (frame.opcode)
+        {
+            case PING -> write(encode(FIN, PONG, b, off, len), false);
+            case PONG ->
+            {
+                // NoOp - any incoming data shows the client is alive
+            }
+            case CLOSE -> onClose(b, off, len);
+            default ->
+            {
+                if (frame.opcode == CONTINUATION)
+                {
+                    if (messageOpcode == 0 || frame.compressed)
+                    {
+                        throw new CloseException(PROTOCOL_ERROR, "unexpected continuation frame");
+                    }
+                } else if (messageOpcode != 0)
+                {
+                    throw new CloseException(PROTOCOL_ERROR, "expected continuation frame");
+                } else
+                {
+                    messageOpcode = frame.opcode;
+                    messageCompressed = frame.compressed;
+                    messageLength = 0;
+                }
+
+                if (frame.fin && messageLength == 0)
+                { // the whole message is in this frame - pass it straight from the buffer
+                    int opcode = messageOpcode;
+                    messageOpcode = 0;
+                    deliver(opcode, messageCompressed, b, off, len);
+                    messageLength = 0;
+
+                    return;
+                }
+
+                if (messageLength + (long) len > maxMessageSize)
+                {
+                    throw new CloseException(MESSAGE_TOO_BIG, "message too large");
+                }
+
+                if (messageLength + len > message.length)
+                {
+                    message = Arrays.copyOf(message, Math.max(messageLength + len, message.length * 2));
+                }
+
+                System.arraycopy(b, off, message, messageLength, len);
+                messageLength += len;
+
+                if (frame.fin)
+                {
+                    int opcode = messageOpcode;
+                    messageOpcode = 0;
+                    deliver(opcode, messageCompressed, message, 0, messageLength);
+                    messageLength = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the client's Close frame, by replying with a Close frame
+     * (unless one was already sent) and ending the connection.
+     *
+     * @param b   the buffer
+     * @param off the payload offset
+     * @param len the payload length
+     *
+     * @throws IOException if the frame is invalid or an error occurs
+     */
+    private void onClose(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 1)
+        {
+            throw new CloseException(PROTOCOL_ERROR, "invalid close frame");
+        }
+
+        if (len >= 2)
+        {
+            int code = (b[off] & 0xFF) << 8 | b[off + 1] & 0xFF;
+
+            // RFC6455#7.4: only defined codes that may be sent, and registered or private ones
+            if (!(code >= NORMAL_CLOSURE && code <= 1003 || code >= INVALID_DATA && code <= INTERNAL_ERROR
+                    || code >= 3000 && code <= 4999))
+            {
+                throw new CloseException(PROTOCOL_ERROR, "invalid close code: " + code);
+            }
+
+            closeReason = decode(b, off + 2, len - 2);
+            closeCode = code;
+        }
+
+        if (!closeSent)
+        {
+            write(encode(FIN, CLOSE, b, off, Math.min(len, 2)), true); // echo the code
+        }
+
+        closed = true;
+    }
+
+    /**
+     * Queues an encoded frame.
+     *
+     * @param frame the encoded frame
+     * @param close whether it is a Close frame
+     *
+     * @throws IOException if a Close frame was already sent, or the
+     *                     connection was aborted
+     */
+    private void write(byte[] frame, boolean close) throws IOException
+    {
+        if (!enqueue(frame, close))
+        {
+            throw new IOException("WebSocket is closed");
+        }
+    }
+
+    /**
+     * The {@code Frame} class holds a message encoded as a single frame,
+     * which can be sent to any number of connections.
+     * <p>
+     * The frame is encoded (and compressed, for connections that negotiated
+     * permessage-deflate) only once, when first sent. Compressed messages do
+     * not depend on any previous message, so the same bytes can be sent on
+     * every connection.
+     */
+    public static final class Frame
+    {
+        /**
+         * The minimum payload length that is compressed, as compressing
+         * smaller messages rarely makes them smaller.
+         */
+        public static final int MIN_COMPRESSED_LENGTH = 256;
+
+        private volatile byte[] deflated; // lazily encoded
+
+        private final int opcode;
+
+        private final byte[] payload;
+
+        private volatile byte[] plain; // lazily encoded
+
+        /**
+         * Constructs a Frame.
+         *
+         * @param opcode  the opcode
+         * @param payload the payload
+         */
+        private Frame(int opcode, byte[] payload)
+        {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        /**
+         * Returns a frame holding a binary message.
+         *
+         * @param data the message data, which is copied
+         *
+         * @return the frame
+         */
+        public static Frame binary(ByteBuffer data)
+        {
+            byte[] payload = new byte[data.remaining()];
+            data.duplicate().get(payload);
+
+            return new Frame(BINARY, payload);
+        }
+
+        /**
+         * Returns a frame holding a binary message.
+         *
+         * @param data the message data, which must not be modified
+         *             afterwards
+         *
+         * @return the frame
+         */
+        public static Frame binary(byte[] data)
+        {
+            return new Frame(BINARY, data);
+        }
+
+        /**
+         * Returns a frame holding a text message.
+         *
+         * @param text the message text
+         *
+         * @return the frame
+         */
+        public static Frame text(String text)
+        {
+            return new Frame(TEXT, text.getBytes(UTF_8));
+        }
+
+        /**
+         * Returns the encoded frame.
+         *
+         * @param deflate whether the connection negotiated
+         *                permessage-deflate
+         *
+         * @return the encoded frame
+         */
+        byte[] encode(boolean deflate)
+        {
+            if (deflate && payload.length >= MIN_COMPRESSED_LENGTH)
+            {
+                byte[] frame = deflated; // concurrent encoding is harmless
+
+                if (frame == null)
+                {
+                    byte[] compressed = WebSocketCodec.deflate(payload, 0, payload.length);
+                    deflated = frame = WebSocketCodec.encode(FIN | RSV1, opcode, compressed, 0, compressed.length);
+                }
+
+                return frame;
+            }
+
+            byte[] frame = plain;
+
+            if (frame == null)
+            {
+                plain = frame = WebSocketCodec.encode(FIN, opcode, payload, 0, payload.length);
+            }
+
+            return frame;
+        }
+    }
+
+    /**
+     * The {@code Listener} interface receives the events of a
+     * {@link WebSocket}.
+     * <p>
+     * The events are delivered on the thread serving the connection, one at
+     * a time. The data passed to {@link #onBinary} may be a view into the
+     * connection's read buffer, and is only valid during the call.
+     */
+    public interface Listener
+    {
+        /**
+         * Receives a binary message.
+         *
+         * @param socket the connection
+         * @param data   the message data (only valid during the call)
+         *
+         * @throws IOException if an error occurs
+         */
+        default void onBinary(WebSocket socket, ByteBuffer data) throws IOException
+        {
+            socket.close(1003, "binary messages are not supported");
+        }
+
+        /**
+         * Called when the connection ends.
+         *
+         * @param socket the connection
+         * @param code   the close code, which is 1006 if the connection
+         *               ended abnormally
+         * @param reason the reason (may be empty)
+         */
+        default void onClose(WebSocket socket, int code, String reason)
+        {
+        }
+
+        /**
+         * Called when the connection opens, before any messages are
+         * received.
+         *
+         * @param socket the connection
+         *
+         * @throws IOException if an error occurs
+         */
+        default void onOpen(WebSocket socket) throws IOException
+        {
+        }
+
+        /**
+         * Receives a text message.
+         *
+         * @param socket the connection
+         * @param text   the message text
+         *
+         * @throws IOException if an error occurs
+         */
+        void onText(WebSocket socket, String text) throws IOException;
+    }
+}
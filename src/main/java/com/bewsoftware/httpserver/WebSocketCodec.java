@@ -0,0 +1,369 @@
+/*
+ *  File Name:    WebSocketCodec.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * The {@code WebSocketCodec} class encodes and parses WebSocket frames
+ * (RFC6455#5), and compresses messages for the permessage-deflate
+ * extension (RFC7692).
+ * <p>
+ * The codec never blocks or copies: frames are {@link Parser parsed} in
+ * place, out of whatever part of a buffer has been read so far, and their
+ * payloads are unmasked in the same buffer, eight bytes at a time.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+final class WebSocketCodec
+{
+    // opcodes
+    static final int CONTINUATION = 0x0;
+
+    static final int TEXT = 0x1;
+
+    static final int BINARY = 0x2;
+
+    static final int CLOSE = 0x8;
+
+    static final int PING = 0x9;
+
+    static final int PONG = 0xA;
+
+    // flags
+    static final int FIN = 0x80;
+
+    static final int RSV1 = 0x40; // the message is compressed (permessage-deflate)
+
+    // close codes
+    static final int NORMAL_CLOSURE = 1000;
+
+    static final int GOING_AWAY = 1001;
+
+    static final int PROTOCOL_ERROR = 1002;
+
+    static final int NO_STATUS = 1005;
+
+    static final int ABNORMAL_CLOSURE = 1006;
+
+    static final int INVALID_DATA = 1007;
+
+    static final int MESSAGE_TOO_BIG = 1009;
+
+    static final int INTERNAL_ERROR = 1011;
+
+    /**
+     * The maximum length of a frame header: two bytes, an eight byte
+     * extended payload length and a four byte masking key.
+     */
+    static final int MAX_HEADER_LENGTH = 14;
+
+    /**
+     * The maximum payload length of a control frame.
+     */
+    static final int MAX_CONTROL_LENGTH = 125;
+
+    /**
+     * The bytes that a permessage-deflate sender removes from the end of
+     * each compressed message (RFC7692#7.2.1), and the receiver restores.
+     */
+    static final byte[] DEFLATE_TAIL =
+    {
+        0x00, 0x00, (byte) 0xFF, (byte) 0xFF
+    };
+
+    /**
+     * Deflaters reused across messages, as each holds native memory.
+     */
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(16);
+
+    /**
+     * Reads and writes a byte array as big-endian longs, at any offset.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private WebSocketCodec()
+    {
+    }
+
+    /**
+     * Compresses a message payload for the permessage-deflate extension, as
+     * a single DEFLATE block that does not depend on any previous message
+     * (i.e. without context takeover).
+     *
+     * @param b   the payload
+     * @param off the payload offset
+     * @param len the payload length
+     *
+     * @return the compressed payload
+     */
+    static byte[] deflate(byte[] b, int off, int len)
+    {
+        Deflater deflater = DEFLATERS.poll();
+
+        if (deflater == null)
+        {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // raw DEFLATE
+        }
+
+        try
+        {
+            deflater.setInput(b, off, len);
+            byte[] out = new byte[len / 2 + 64];
+            int n = 0;
+
+            while (true)
+            {
+                n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+
+                if (n < out.length) // everything was flushed
+                {
+                    break;
+                }
+
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+
+            // a sync flush always ends with the empty stored block that is removed
+            return Arrays.copyOf(out, n - DEFLATE_TAIL.length);
+        } finally
+        {
+            deflater.reset();
+
+            if (!DEFLATERS.offer(deflater))
+            {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Encodes a server frame, which is never masked, into a single array
+     * holding both its header and payload, so that it can be written to any
+     * number of connections as is.
+     *
+     * @param flags   the FIN and RSV1 flags
+     * @param opcode  the opcode
+     * @param payload the payload
+     * @param off     the payload offset
+     * @param len     the payload length
+     *
+     * @return the encoded frame
+     */
+    static byte[] encode(int flags, int opcode, byte[] payload, int off, int len)
+    {
+        int headerLength = len <= 125 ? 2 : len <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[headerLength + len];
+        frame[0] = (byte) (flags | opcode);
+
+        switch (headerLength)
+        {
+            case 2 -> frame[1] = (byte) len;
+            case 4 ->
+            {
+                frame[1] = 126;
+                frame[2] = (byte) (len >>> 8);
+                frame[3] = (byte) len;
+            }
+            default ->
+            {
+                frame[1] = 127;
+                LONGS.set(frame, 2, (long) len);
+            }
+        }
+
+        System.arraycopy(payload, off, frame, headerLength, len);
+
+        return frame;
+    }
+
+    /**
+     * Masks (or unmasks) data in place with a masking key (RFC6455#5.3),
+     * eight bytes at a time.
+     *
+     * @param b   the data
+     * @param off the offset of the first byte, to which the first byte of
+     *            the key applies
+     * @param len the data length
+     * @param key the masking key
+     */
+    static void mask(byte[] b, int off, int len, int key)
+    {
+        long mask = (key & 0xFFFFFFFFL) << 32 | key & 0xFFFFFFFFL;
+        int end = off + len;
+        int i = off;
+
+        for (; i <= end - 8; i += 8)
+        {
+            LONGS.set(b, i, (long) LONGS.get(b, i) ^ mask);
+        }
+
+        for (int shift = 24; i < end; i++, shift -= 8) // the rest starts on a key boundary
+        {
+            b[i] ^= (byte) (key >>> shift);
+        }
+    }
+
+    /**
+     * The {@code Parser} class parses client frames in place, without
+     * blocking: it is given whatever has been read so far, and either
+     * parses the frame found there, or reports that more must be read.
+     */
+    @SuppressWarnings("ProtectedField")
+    static final class Parser
+    {
+        protected boolean compressed; // RSV1 was set
+
+        protected boolean fin;
+
+        protected int headerLength;
+
+        protected int opcode;
+
+        protected int payloadLength;
+
+        /**
+         * Parses a frame header, and unmasks the frame's payload if the
+         * whole frame is available.
+         *
+         * @param b         the buffer
+         * @param off       the offset of the frame
+         * @param len       the number of bytes available from the offset
+         * @param maxLength the maximum payload length accepted
+         * @param allowRsv1 whether RSV1 may be set (permessage-deflate was
+         *                  negotiated)
+         *
+         * @return the length of the whole frame (which may be greater than
+         *         len), or 0 if its header is not complete yet
+         *
+         * @throws CloseException if the frame is invalid
+         */
+        int parse(byte[] b, int off, int len, int maxLength, boolean allowRsv1) throws CloseException
+        {
+            if (len < 2)
+            {
+                return 0;
+            }
+
+            int b0 = b[off] & 0xFF;
+            int b1 = b[off + 1] & 0xFF;
+            fin = (b0 & FIN) != 0;
+            compressed = (b0 & RSV1) != 0;
+            opcode = b0 & 0x0F;
+
+            if ((b0 & 0x30) != 0 || compressed && !allowRsv1)
+            {
+                throw new CloseException(PROTOCOL_ERROR, "reserved bits set");
+            }
+
+            if ((b1 & 0x80) == 0)
+            {
+                throw new CloseException(PROTOCOL_ERROR, "client frames must be masked");
+            }
+
+            long length = b1 & 0x7F;
+            headerLength = length == 126 ? 8 : length == 127 ? 14 : 6;
+
+            if (len < headerLength)
+            {
+                return 0;
+            }
+
+            if (length == 126)
+            {
+                length = (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+            } else if (length == 127)
+            {
+                length = (long) LONGS.get(b, off + 2);
+            }
+
+            if (opcode >= CLOSE)
+            {
+                if (opcode > PONG)
+                {
+                    throw new CloseException(PROTOCOL_ERROR, "invalid opcode: " + opcode);
+                }
+
+                if (!fin || compressed || length > MAX_CONTROL_LENGTH)
+                {
+                    throw new CloseException(PROTOCOL_ERROR, "invalid control frame");
+                }
+            } else if (opcode > BINARY)
+            {
+                throw new CloseException(PROTOCOL_ERROR, "invalid opcode: " + opcode);
+            }
+
+            if (length < 0 || length > maxLength)
+            {
+                throw new CloseException(MESSAGE_TOO_BIG, "frame too large: " + length);
+            }
+
+            payloadLength = (int) length;
+            int frameLength = headerLength + payloadLength;
+
+            if (len >= frameLength)
+            {
+                int key = (b[off + headerLength - 4] & 0xFF) << 24 | (b[off + headerLength - 3] & 0xFF) << 16
+                        | (b[off + headerLength - 2] & 0xFF) << 8 | b[off + headerLength - 1] & 0xFF;
+                mask(b, off + headerLength, payloadLength, key);
+            }
+
+            return frameLength;
+        }
+    }
+
+    /**
+     * Thrown when a WebSocket connection must be closed, with the given
+     * close code.
+     */
+    static final class CloseException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        /**
+         * Constructs a CloseException.
+         *
+         * @param code    the close code
+         * @param message the reason
+         */
+        CloseException(int code, String message)
+        {
+            super(message);
+            this.code = code;
+        }
+    }
+}
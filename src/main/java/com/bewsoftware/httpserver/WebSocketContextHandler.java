@@ -0,0 +1,423 @@
+/*
+ *  File Name:    WebSocketContextHandler.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static com.bewsoftware.httpserver.Utils.splitElements;
+
+/**
+ * The {@code WebSocketContextHandler} services a context by upgrading its
+ * requests to {@link WebSocket} connections (RFC6455).
+ * <p>
+ * For example:
+ * <pre>{@code
+ * WebSocketContextHandler chat = new WebSocketContextHandler((socket, text) -> ...);
+ * server.getVirtualHost(null).addContext("/chat", chat);
+ * ...
+ * chat.broadcast(WebSocket.Frame.text("hello everyone"));
+ * }</pre>
+ * The permessage-deflate extension (RFC7692) is negotiated if the client
+ * offers it, unless disabled. Messages sent by the server are always
+ * compressed without context takeover, which is what lets a
+ * {@link WebSocket.Frame} be compressed once and sent to every connection.
+ * <p>
+ * A connection is served by the thread that served its upgrade request,
+ * until it is closed, so servers with many long-lived connections should
+ * use {@link HTTPServer#setVirtualThreads virtual threads}. The connection
+ * is pinged when it has been idle for the ping interval, and dropped when
+ * the client does not respond within another.
+ * <p>
+ * WebSockets are only supported over HTTP/1.1 connections.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+@SuppressWarnings("ProtectedField")
+public class WebSocketContextHandler implements ContextHandler
+{
+    /**
+     * The default maximum size of an incoming message.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /**
+     * The default maximum size of the frames queued for a client.
+     */
+    public static final int DEFAULT_MAX_QUEUED = 1024 * 1024;
+
+    /**
+     * The default ping interval, in milliseconds.
+     */
+    public static final long DEFAULT_PING_INTERVAL = 30_000;
+
+    /**
+     * The GUID that is appended to the client's key in computing the
+     * {@code Sec-WebSocket-Accept} header (RFC6455#1.3).
+     */
+    protected static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    protected volatile boolean deflate = true;
+
+    protected final Function<Request, WebSocket.Listener> factory;
+
+    protected volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    protected volatile int maxQueued = DEFAULT_MAX_QUEUED;
+
+    protected volatile long pingInterval = DEFAULT_PING_INTERVAL;
+
+    protected volatile List<String> protocols = List.of();
+
+    protected final Set<WebSocket> sockets = ConcurrentHashMap.newKeySet(); // the open connections
+
+    /**
+     * Constructs a WebSocketContextHandler whose connections all share the
+     * given listener.
+     *
+     * @param listener the listener
+     */
+    public WebSocketContextHandler(WebSocket.Listener listener)
+    {
+        this(req -> listener);
+    }
+
+    /**
+     * Constructs a WebSocketContextHandler that gets each connection's
+     * listener from the given factory.
+     *
+     * @param factory returns the listener for an upgrade request, or null
+     *                if the request is forbidden
+     */
+    public WebSocketContextHandler(Function<Request, WebSocket.Listener> factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Sends a frame to every open connection of this context.
+     *
+     * @param frame the frame
+     *
+     * @return the number of connections the frame was sent to
+     *
+     * @see WebSocket#broadcast(WebSocket.Frame, Iterable)
+     */
+    public int broadcast(WebSocket.Frame frame)
+    {
+        return WebSocket.broadcast(frame, sockets);
+    }
+
+    /**
+     * Returns the open connections of this context.
+     *
+     * @return an unmodifiable view of the open connections
+     */
+    public Set<WebSocket> getSockets()
+    {
+        return Collections.unmodifiableSet(sockets);
+    }
+
+    @Override
+    public int serve(Request req, Response resp) throws IOException
+    {
+        Headers headers = req.getHeaders();
+        String key = headers.get("Sec-WebSocket-Key");
+
+        if (!"GET".equals(req.getMethod()) || !"HTTP/1.1".equals(req.getVersion()) || req.connection == null
+                || !Arrays.asList(splitElements(headers.get("Upgrade"), true)).contains("websocket")
+                || !Arrays.asList(splitElements(headers.get("Connection"), true)).contains("upgrade")
+                || !isValidKey(key))
+        {
+            return 400;
+        }
+
+        if (!"13".equals(headers.get("Sec-WebSocket-Version")))
+        {
+            resp.getHeaders().add("Sec-WebSocket-Version", "13"); // RFC6455#4.4
+            return 426;
+        }
+
+        WebSocket.Listener listener = factory.apply(req);
+
+        if (listener == null)
+        {
+            return 403;
+        }
+
+        String protocol = selectProtocol(headers.get("Sec-WebSocket-Protocol"));
+        String extension = deflate ? selectDeflate(headers.get("Sec-WebSocket-Extensions")) : null;
+        Headers respHeaders = resp.getHeaders();
+        respHeaders.add("Upgrade", "websocket");
+        respHeaders.add("Connection", "Upgrade");
+        respHeaders.add("Sec-WebSocket-Accept", accept(key));
+
+        if (protocol != null)
+        {
+            respHeaders.add("Sec-WebSocket-Protocol", protocol);
+        }
+
+        if (extension != null)
+        {
+            respHeaders.add("Sec-WebSocket-Extensions", extension);
+        }
+
+        resp.sendHeaders(101);
+        resp.getOutputStream().flush();
+
+        WebSocket socket = new WebSocket(req, req.connection, resp.getOutputStream(), listener, protocol,
+                extension != null, extension != null && extension.contains("client_no_context_takeover"),
+                maxMessageSize, pingInterval, maxQueued);
+        sockets.add(socket);
+
+        try
+        {
+            socket.serve();
+        } finally
+        {
+            sockets.remove(socket);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Sets the maximum (uncompressed) size of an incoming message. Larger
+     * messages close the connection.
+     *
+     * @param maxMessageSize the maximum message size
+     *
+     * @throws IllegalArgumentException if maxMessageSize is not positive
+     */
+    public void setMaxMessageSize(int maxMessageSize)
+    {
+        if (maxMessageSize <= 0)
+        {
+            throw new IllegalArgumentException("invalid message size: " + maxMessageSize);
+        }
+
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Sets the maximum size of the frames queued for a client. A client
+     * that falls that far behind is too slow, and its connection is aborted
+     * (a single larger frame is still queued, if nothing else is).
+     *
+     * @param maxQueued the maximum size of the queued frames, in bytes
+     *
+     * @throws IllegalArgumentException if maxQueued is not positive
+     */
+    public void setMaxQueued(int maxQueued)
+    {
+        if (maxQueued <= 0)
+        {
+            throw new IllegalArgumentException("invalid size: " + maxQueued);
+        }
+
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Sets whether the permessage-deflate extension is negotiated (it is by
+     * default).
+     *
+     * @param deflate true to negotiate permessage-deflate
+     */
+    public void setPermessageDeflate(boolean deflate)
+    {
+        this.deflate = deflate;
+    }
+
+    /**
+     * Sets the time without incoming data after which a connection is
+     * pinged. A connection is only checked when reading from it times out,
+     * so the interval is rounded up to the server's socket timeout.
+     *
+     * @param pingInterval the ping interval, in milliseconds
+     *
+     * @throws IllegalArgumentException if pingInterval is not positive
+     */
+    public void setPingInterval(long pingInterval)
+    {
+        if (pingInterval <= 0)
+        {
+            throw new IllegalArgumentException("invalid ping interval: " + pingInterval);
+        }
+
+        this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Sets the subprotocols supported, in order of preference. The first
+     * one the client offers is selected.
+     *
+     * @param protocols the supported subprotocols
+     */
+    public void setProtocols(String... protocols)
+    {
+        this.protocols = List.of(protocols);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WebSocketContextHandler{"
+                + "\ndeflate=" + deflate + ", "
+                + "\nmaxMessageSize=" + maxMessageSize + ", "
+                + "\nmaxQueued=" + maxQueued + ", "
+                + "\npingInterval=" + pingInterval + ", "
+                + "\nprotocols=" + protocols + ", "
+                + "\nsockets=" + sockets.size() + '}';
+    }
+
+    /**
+     * Returns the value of the {@code Sec-WebSocket-Accept} header for a
+     * client's key.
+     *
+     * @param key the value of the {@code Sec-WebSocket-Key} header
+     *
+     * @return the accept value
+     */
+    protected static String accept(String key)
+    {
+        try
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+
+            return Base64.getEncoder().encodeToString(
+                    sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException(nsae); // every Java platform supports SHA-1
+        }
+    }
+
+    /**
+     * Returns whether a {@code Sec-WebSocket-Key} header is valid, i.e. a
+     * base64-encoded 16 byte value (RFC6455#4.1).
+     *
+     * @param key the key, or null
+     *
+     * @return true if the key is valid
+     */
+    protected static boolean isValidKey(String key)
+    {
+        try
+        {
+            return key != null && Base64.getDecoder().decode(key).length == 16;
+        } catch (IllegalArgumentException iae)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Selects the first acceptable permessage-deflate offer from a
+     * {@code Sec-WebSocket-Extensions} header (RFC7692#5).
+     * <p>
+     * The server's window can not be limited (Java's {@link java.util.zip.Deflater}
+     * always uses the largest), so offers that limit it are declined. The
+     * client's window may be limited, as any window can be inflated.
+     *
+     * @param offers the header value, or null
+     *
+     * @return the response extension, or null if no offer is acceptable
+     */
+    protected String selectDeflate(String offers)
+    {
+        for (String offer : splitElements(offers, true))
+        {
+            String[] params = Utils.split(offer, ";", -1);
+
+            if (!params[0].equals("permessage-deflate"))
+            {
+                continue;
+            }
+
+            boolean acceptable = true;
+            boolean clientNoContextTakeover = false;
+
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i];
+                int eq = param.indexOf('=');
+                String name = eq < 0 ? param : param.substring(0, eq).trim();
+                String value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+
+                switch (name)
+                {
+                    case "client_no_context_takeover" -> clientNoContextTakeover = true;
+                    case "server_no_context_takeover", "client_max_window_bits" ->
+                    {
+                        // NoOp - we never take over context, and can inflate any window
+                    }
+                    case "server_max_window_bits" -> acceptable = "15".equals(value);
+                    default -> acceptable = false;
+                }
+            }
+
+            if (acceptable)
+            {
+                return clientNoContextTakeover
+                        ? "permessage-deflate; server_no_context_takeover; client_no_context_takeover"
+                        : "permessage-deflate; server_no_context_takeover";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Selects the first supported subprotocol offered by the client.
+     *
+     * @param offers the {@code Sec-WebSocket-Protocol} header value, or null
+     *
+     * @return the selected subprotocol, or null if none is supported
+     */
+    protected String selectProtocol(String offers)
+    {
+        List<String> offered = Arrays.asList(splitElements(offers, false));
+
+        for (String protocol : protocols)
+        {
+            if (offered.contains(protocol))
+            {
+                return protocol;
+            }
+        }
+
+        return null;
+    }
+}
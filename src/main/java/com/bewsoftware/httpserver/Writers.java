@@ -0,0 +1,73 @@
+/*
+ *  File Name:    Writers.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the executor that writes the output queued for long-lived
+ * connections ({@link WebSocket} frames and {@link EventStream} events),
+ * which is created when first used. Each writer runs only while it has
+ * something to write, so there are at most as many threads as there are
+ * connections with queued output, and none for idle connections.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+final class Writers
+{
+    /**
+     * The executor the writers run on.
+     */
+    static final Executor EXECUTOR = create();
+
+    /**
+     * Not meant to be instantiated.
+     */
+    private Writers()
+    {
+    }
+
+    /**
+     * Returns a virtual thread per task executor, if virtual threads are
+     * available, or else a pool of daemon threads that grows as needed.
+     */
+    private static Executor create()
+    {
+        try
+        {
+            return HTTPServer.newVirtualThreadExecutor();
+        } catch (UnsupportedOperationException uoe)
+        {
+            return Executors.newCachedThreadPool(r ->
+            {
+                Thread thread = new Thread(r, "Connection writer");
+                thread.setDaemon(true);
+
+                return thread;
+            });
+        }
+    }
+}
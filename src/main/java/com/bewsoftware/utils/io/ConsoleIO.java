@@ -23,6 +23,7 @@ package com.bewsoftware.utils.io;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 /**
@@ -72,6 +73,13 @@ public final class ConsoleIO implements Display, Input
 
     private final String linePrefix;
 
+    /**
+     * Guards the internal buffer, which may be shared by many threads (e.g.
+     * server worker threads). A lock is used rather than {@code synchronized},
+     * so that a virtual thread flushing to the console is not pinned.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     private boolean open;
 
     private PrintWriter out;
@@ -262,7 +270,15 @@ public final class ConsoleIO implements Display, Input
         {
             if (!blank && displayOK())
             {
-                sb.append(text);
+                lock.lock();
+
+                try
+                {
+                    sb.append(text);
+                } finally
+                {
+                    lock.unlock();
+                }
             }
         } else
         {
@@ -275,17 +291,25 @@ public final class ConsoleIO implements Display, Input
     @Override
     public void clear()
     {
-        if (open)
+        lock.lock();
+
+        try
         {
-            if (!blank)
+            if (open)
             {
-                sb = new StringBuilder();
-                formatter = new Formatter(sb);
+                if (!blank)
+                {
+                    sb = new StringBuilder();
+                    formatter = new Formatter(sb);
+                }
+            } else
+            {
+                sb = null;
+                formatter = null;
             }
-        } else
+        } finally
         {
-            sb = null;
-            formatter = null;
+            lock.unlock();
         }
     }
 
@@ -325,38 +349,46 @@ public final class ConsoleIO implements Display, Input
     @Override
     public void flush()
     {
-        if (open)
+        lock.lock();
+
+        try
         {
-            if (out != null || file != null)
+            if (open)
             {
-                if (linePrefix != null && linePrefix.length() > 0)
+                if (out != null || file != null)
                 {
-                    List<String> lines = sb.toString().lines().collect(Collectors.toList());
-                    clear();
+                    if (linePrefix != null && linePrefix.length() > 0)
+                    {
+                        List<String> lines = sb.toString().lines().collect(Collectors.toList());
+                        clear();
 
-                    for (int i = 0; i < lines.size(); i++)
+                        for (int i = 0; i < lines.size(); i++)
+                        {
+                            sb.append(linePrefix).append(lines.get(i)).append(System.lineSeparator());
+                        }
+                    }
+
+                    if (out != null)
                     {
-                        sb.append(linePrefix).append(lines.get(i)).append(System.lineSeparator());
+                        out.print(sb);
+                        out.flush();
                     }
-                }
 
-                if (out != null)
-                {
-                    out.print(sb);
-                    out.flush();
-                }
+                    if (file != null)
+                    {
+                        file.print(sb);
+                        file.flush();
+                    }
 
-                if (file != null)
-                {
-                    file.print(sb);
-                    file.flush();
+                    clear();
                 }
-
-                clear();
+            } else
+            {
+                exception = new IOException(CLOSED);
             }
-        } else
+        } finally
         {
-            exception = new IOException(CLOSED);
+            lock.unlock();
         }
     }
 
@@ -373,10 +405,18 @@ public final class ConsoleIO implements Display, Input
     {
         if (open && displayOK())
         {
-            formatter.format(
-                    Locale.getDefault(Locale.Category.FORMAT),
-                    format, args
-            );
+            lock.lock();
+
+            try
+            {
+                formatter.format(
+                        Locale.getDefault(Locale.Category.FORMAT),
+                        format, args
+                );
+            } finally
+            {
+                lock.unlock();
+            }
         }
 
         return this;
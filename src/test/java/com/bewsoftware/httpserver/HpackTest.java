@@ -0,0 +1,320 @@
+/*
+ *  File Name:    HpackTest.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the HPACK encoder and decoder against the examples of RFC 7541
+ * Appendix C, and the decoder's handling of invalid Huffman padding and
+ * dynamic table size updates.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public class HpackTest
+{
+    private static final String C41 = "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff";
+
+    private static final String C42 = "8286 84be 5886 a8eb 1064 9cbf";
+
+    private static final String C43 = "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf";
+
+    private static final String C61 = "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81"
+            + "66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3";
+
+    private static final String DATE_21 = "date: Mon, 21 Oct 2013 20:13:21 GMT";
+
+    private static final String DATE_22 = "date: Mon, 21 Oct 2013 20:13:22 GMT";
+
+    private static final String LOCATION = "location: https://www.example.com";
+
+    private static final String SET_COOKIE = "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    /**
+     * A dynamic table size update to 256 bytes, as the C.5 and C.6 examples
+     * assume (our decoder starts with the default of 4096).
+     */
+    private static final String TABLE_SIZE_256 = "3fe101";
+
+    public HpackTest()
+    {
+    }
+
+    /**
+     * C.2: the literal and indexed field representations, one block each.
+     */
+    @Test
+    public void testDecodeFieldRepresentations() throws IOException
+    {
+        assertEquals(List.of("custom-key: custom-header"), decode(new Hpack.Decoder(65536),
+                "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        assertEquals(List.of(":path: /sample/path"), decode(new Hpack.Decoder(65536),
+                "040c 2f73 616d 706c 652f 7061 7468"));
+        assertEquals(List.of("password: secret"), decode(new Hpack.Decoder(65536),
+                "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+        assertEquals(List.of(":method: GET"), decode(new Hpack.Decoder(65536), "82"));
+    }
+
+    /**
+     * C.3: requests without Huffman coding, sharing one dynamic table.
+     */
+    @Test
+    public void testDecodeRequests() throws IOException
+    {
+        Hpack.Decoder decoder = new Hpack.Decoder(65536);
+
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                "cache-control: no-cache"),
+                decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html",
+                ":authority: www.example.com", "custom-key: custom-value"),
+                decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+    }
+
+    /**
+     * C.4: requests with Huffman coding, sharing one dynamic table.
+     */
+    @Test
+    public void testDecodeRequestsHuffman() throws IOException
+    {
+        Hpack.Decoder decoder = new Hpack.Decoder(65536);
+
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, C41));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                "cache-control: no-cache"),
+                decode(decoder, C42));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html",
+                ":authority: www.example.com", "custom-key: custom-value"),
+                decode(decoder, C43));
+    }
+
+    /**
+     * C.5: responses without Huffman coding, which evict entries from a
+     * 256 byte dynamic table.
+     */
+    @Test
+    public void testDecodeResponses() throws IOException
+    {
+        Hpack.Decoder decoder = new Hpack.Decoder(65536);
+
+        assertEquals(List.of(":status: 302", "cache-control: private", DATE_21, LOCATION),
+                decode(decoder, TABLE_SIZE_256 + "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c"
+                        + "2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474"
+                        + "7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":status: 307", "cache-control: private", DATE_21, LOCATION),
+                decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", DATE_22, LOCATION,
+                "content-encoding: gzip", SET_COOKIE),
+                decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133"
+                        + "3a32 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b"
+                        + "425a 584f 5157 454f 5049 5541 5851 5745 4f49 553b 206d 6178 2d61 6765"
+                        + "3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+        assertResponseTable(decoder);
+    }
+
+    /**
+     * C.6: responses with Huffman coding, which evict entries from a
+     * 256 byte dynamic table.
+     */
+    @Test
+    public void testDecodeResponsesHuffman() throws IOException
+    {
+        Hpack.Decoder decoder = new Hpack.Decoder(65536);
+
+        assertEquals(List.of(":status: 302", "cache-control: private", DATE_21, LOCATION),
+                decode(decoder, TABLE_SIZE_256 + C61));
+        assertEquals(List.of(":status: 307", "cache-control: private", DATE_21, LOCATION),
+                decode(decoder, "4883 640e ffc1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", DATE_22, LOCATION,
+                "content-encoding: gzip", SET_COOKIE),
+                decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff"
+                        + "c05a 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708"
+                        + "7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"));
+        assertResponseTable(decoder);
+    }
+
+    /**
+     * C.4, encoded: the encoder makes the same choices as the example
+     * (static table references, incremental indexing and Huffman coding).
+     */
+    @Test
+    public void testEncodeRequestsHuffman()
+    {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+
+        assertArrayEquals(bytes(C41), encode(encoder,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"));
+        assertArrayEquals(bytes(C42), encode(encoder,
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache"));
+        assertArrayEquals(bytes(C43), encode(encoder,
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value"));
+    }
+
+    /**
+     * C.6, encoded: the encoder signals the smaller table, and evicts in
+     * step with the decoder (it sends location without indexing, unlike
+     * the example, so its blocks differ from it after the first three
+     * fields).
+     */
+    @Test
+    public void testEncodeResponsesHuffman() throws IOException
+    {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(65536);
+        encoder.setMaxTableSize(256);
+
+        byte[] block = encode(encoder, ":status", "302", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        assertArrayEquals(Arrays.copyOf(bytes(TABLE_SIZE_256 + C61), 37), Arrays.copyOf(block, 37));
+        assertEquals(List.of(":status: 302", "cache-control: private", DATE_21, LOCATION),
+                decode(decoder, block, block.length));
+
+        block = encode(encoder, ":status", "307", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        assertEquals(List.of(":status: 307", "cache-control: private", DATE_21, LOCATION),
+                decode(decoder, block, block.length));
+
+        block = encode(encoder, ":status", "200", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        assertEquals(List.of(":status: 200", "cache-control: private", DATE_22, LOCATION,
+                "content-encoding: gzip", SET_COOKIE),
+                decode(decoder, block, block.length));
+
+        block = encode(encoder, ":status", "307", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:22 GMT", "content-encoding", "gzip");
+        assertEquals(List.of(":status: 307", "cache-control: private", DATE_22, "content-encoding: gzip"),
+                decode(decoder, block, block.length));
+    }
+
+    @Test
+    public void testHuffman() throws IOException
+    {
+        assertEquals(12, Hpack.huffmanLength("www.example.com"));
+        assertEquals("www.example.com", huffman("f1e3 c2e5 f23a 6ba0 ab90 f4ff"));
+        assertEquals("a", huffman("1f")); // 00011, padded with 111
+        assertEquals("", huffman(""));
+    }
+
+    @Test
+    public void testHuffmanInvalidPadding()
+    {
+        assertThrows(IOException.class, () -> huffman("18")); // padded with zeros
+        assertThrows(IOException.class, () -> huffman("1e")); // padding not all ones
+        assertThrows(IOException.class, () -> huffman("1fff")); // 11 bits of padding
+        assertThrows(IOException.class, () -> huffman("ff")); // 8 bits of padding alone
+        assertThrows(IOException.class, () -> huffman("ffff ffff")); // EOS
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(65536), "0001 6181 18"));
+    }
+
+    @Test
+    public void testTableSizeUpdate() throws IOException
+    {
+        Hpack.Decoder decoder = new Hpack.Decoder(65536);
+
+        assertEquals(List.of("custom-key: custom-header"), decode(decoder,
+                "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        assertEquals(List.of("custom-key: custom-header"), decode(decoder, "be"));
+        assertEquals(List.of(":method: GET"), decode(decoder, "20 3fe1 1f 82")); // two updates, to 0 and 4096
+        assertThrows(IOException.class, () -> decode(decoder, "be")); // evicted by the update to 0
+    }
+
+    @Test
+    public void testTableSizeUpdateInvalid()
+    {
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(65536), "3fe2 1f")); // 4097
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(65536), "82 3fe1 01")); // after a field
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(65536), "3fe1")); // truncated
+    }
+
+    /**
+     * The C.5.3 and C.6.3 examples leave three entries in the dynamic table.
+     */
+    private static void assertResponseTable(Hpack.Decoder decoder) throws IOException
+    {
+        assertEquals(List.of(SET_COOKIE, "content-encoding: gzip", DATE_22), decode(decoder, "be bf c0"));
+        assertThrows(IOException.class, () -> decode(decoder, "c1"));
+    }
+
+    private static byte[] bytes(String hex)
+    {
+        hex = hex.replace(" ", "");
+        byte[] b = new byte[hex.length() / 2];
+
+        for (int i = 0; i < b.length; i++)
+        {
+            b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return b;
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) throws IOException
+    {
+        byte[] block = bytes(hex);
+        return decode(decoder, block, block.length);
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, byte[] block, int len) throws IOException
+    {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(block, len, (name, value) -> fields.add(name + ": " + value));
+        return fields;
+    }
+
+    private static byte[] encode(Hpack.Encoder encoder, String... fields)
+    {
+        encoder.begin();
+
+        for (int i = 0; i < fields.length; i += 2)
+        {
+            encoder.encode(fields[i], fields[i + 1]);
+        }
+
+        return Arrays.copyOf(encoder.getBuffer(), encoder.getLength());
+    }
+
+    private static String huffman(String hex) throws IOException
+    {
+        byte[] b = bytes(hex);
+        StringBuilder sb = new StringBuilder();
+        Hpack.huffmanDecode(b, 0, b.length, sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ *  File Name:    Http2FrameTest.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static com.bewsoftware.httpserver.Http2Connection.COMPRESSION_ERROR;
+import static com.bewsoftware.httpserver.Http2Connection.CONTINUATION;
+import static com.bewsoftware.httpserver.Http2Connection.DATA;
+import static com.bewsoftware.httpserver.Http2Connection.FLAG_ACK;
+import static com.bewsoftware.httpserver.Http2Connection.FLAG_END_HEADERS;
+import static com.bewsoftware.httpserver.Http2Connection.FLAG_END_STREAM;
+import static com.bewsoftware.httpserver.Http2Connection.FLAG_PADDED;
+import static com.bewsoftware.httpserver.Http2Connection.FLAG_PRIORITY;
+import static com.bewsoftware.httpserver.Http2Connection.FLOW_CONTROL_ERROR;
+import static com.bewsoftware.httpserver.Http2Connection.FRAME_SIZE_ERROR;
+import static com.bewsoftware.httpserver.Http2Connection.GOAWAY;
+import static com.bewsoftware.httpserver.Http2Connection.HEADERS;
+import static com.bewsoftware.httpserver.Http2Connection.PING;
+import static com.bewsoftware.httpserver.Http2Connection.PROTOCOL_ERROR;
+import static com.bewsoftware.httpserver.Http2Connection.RST_STREAM;
+import static com.bewsoftware.httpserver.Http2Connection.SETTINGS;
+import static com.bewsoftware.httpserver.Http2Connection.SETTINGS_ENABLE_PUSH;
+import static com.bewsoftware.httpserver.Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE;
+import static com.bewsoftware.httpserver.Http2Connection.SETTINGS_MAX_FRAME_SIZE;
+import static com.bewsoftware.httpserver.Http2UploadTest.literal;
+import static com.bewsoftware.httpserver.Http2UploadTest.writeFrame;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Tests how a connection handles CONTINUATION frames, padding and SETTINGS
+ * frames, valid and invalid, at the frame level.
+ * <p>
+ * Each test speaks h2c with prior knowledge over a plain socket, as in
+ * {@link Http2UploadTest}, and expects either a response or a GOAWAY frame
+ * with a given error code.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public class Http2FrameTest
+{
+    private static final byte[] NONE = new byte[0];
+
+    private DataInputStream in;
+
+    private OutputStream out;
+
+    private HTTPServer server;
+
+    private Socket socket;
+
+    public Http2FrameTest()
+    {
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException
+    {
+        if (socket != null)
+        {
+            socket.close();
+        }
+
+        if (server != null)
+        {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testContinuation() throws IOException
+    {
+        connect();
+        byte[] block = requestHeaders("GET", "/echo");
+        writeFrame(out, HEADERS, FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, 7));
+        writeFrame(out, CONTINUATION, 0, 1, Arrays.copyOfRange(block, 7, 20));
+        writeFrame(out, CONTINUATION, FLAG_END_HEADERS, 1, Arrays.copyOfRange(block, 20, block.length));
+        assertEquals("GET 0", response(1));
+    }
+
+    @Test
+    public void testContinuationInterleaved() throws IOException
+    {
+        connect();
+        writeFrame(out, HEADERS, FLAG_END_STREAM, 1, requestHeaders("GET", "/echo"));
+        writeFrame(out, PING, 0, 0, new byte[8]);
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    @Test
+    public void testContinuationOnOtherStream() throws IOException
+    {
+        connect();
+        byte[] block = requestHeaders("GET", "/echo");
+        writeFrame(out, HEADERS, FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, 7));
+        writeFrame(out, CONTINUATION, FLAG_END_HEADERS, 3, Arrays.copyOfRange(block, 7, block.length));
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    @Test
+    public void testContinuationUnexpected() throws IOException
+    {
+        connect();
+        writeFrame(out, HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 1, requestHeaders("GET", "/echo"));
+        assertEquals("GET 0", response(1));
+        writeFrame(out, CONTINUATION, FLAG_END_HEADERS, 1, requestHeaders("GET", "/echo"));
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    @Test
+    public void testHeaderBlockInvalid() throws IOException
+    {
+        connect();
+        writeFrame(out, HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 1, new byte[]
+        {
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF // integer overflow
+        });
+        assertEquals(COMPRESSION_ERROR, goAway());
+    }
+
+    @Test
+    public void testPadding() throws IOException
+    {
+        connect();
+        byte[] block = requestHeaders("POST", "/echo");
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(3); // pad length
+        b.writeBytes(new byte[5]); // stream dependency and weight
+        b.writeBytes(block);
+        b.writeBytes(new byte[3]);
+        writeFrame(out, HEADERS, FLAG_END_HEADERS | FLAG_PADDED | FLAG_PRIORITY, 1, b.toByteArray());
+        writeFrame(out, DATA, FLAG_PADDED, 1, padded("abc", 10));
+        writeFrame(out, DATA, FLAG_PADDED, 1, padded("", 0));
+        writeFrame(out, DATA, FLAG_PADDED | FLAG_END_STREAM, 1, padded("de", 255));
+        assertEquals("POST 5 abcde", response(1));
+    }
+
+    @Test
+    public void testPaddingInvalidData() throws IOException
+    {
+        connect();
+        writeFrame(out, HEADERS, FLAG_END_HEADERS, 1, requestHeaders("POST", "/echo"));
+        writeFrame(out, DATA, FLAG_PADDED, 1, new byte[]
+        {
+            4, 0, 0, 0 // 4 bytes of padding, in a 4 byte payload
+        });
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    @Test
+    public void testPaddingInvalidHeaders() throws IOException
+    {
+        connect();
+        byte[] block = requestHeaders("GET", "/echo");
+        byte[] payload = new byte[1 + block.length];
+        payload[0] = (byte) (block.length + 1); // one byte more than the block
+        System.arraycopy(block, 0, payload, 1, block.length);
+        writeFrame(out, HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM | FLAG_PADDED, 1, payload);
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    @Test
+    public void testPaddingMissing() throws IOException
+    {
+        connect();
+        writeFrame(out, HEADERS, FLAG_END_HEADERS, 1, requestHeaders("POST", "/echo"));
+        writeFrame(out, DATA, FLAG_PADDED, 1, NONE);
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    @Test
+    public void testSettings() throws IOException
+    {
+        connect();
+        writeFrame(out, SETTINGS, 0, 0, settings(SETTINGS_MAX_FRAME_SIZE, 1 << 20, 0xF0F0, 1));
+        out.flush();
+        byte[] header = new byte[9];
+
+        while (true) // the server's own SETTINGS come first
+        {
+            byte[] payload = readFrame(header);
+
+            if (header[3] == SETTINGS && (header[4] & FLAG_ACK) != 0)
+            {
+                assertEquals(0, payload.length);
+                break;
+            }
+        }
+
+        writeFrame(out, HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 1, requestHeaders("GET", "/echo"));
+        assertEquals("GET 0", response(1));
+    }
+
+    @Test
+    public void testSettingsInvalid() throws IOException
+    {
+        assertSettingsError(FRAME_SIZE_ERROR, 0, 0, new byte[5]);
+        assertSettingsError(FRAME_SIZE_ERROR, FLAG_ACK, 0, settings(SETTINGS_ENABLE_PUSH, 0));
+        assertSettingsError(PROTOCOL_ERROR, 0, 1, NONE);
+        assertSettingsError(PROTOCOL_ERROR, 0, 0, settings(SETTINGS_ENABLE_PUSH, 2));
+        assertSettingsError(PROTOCOL_ERROR, 0, 0, settings(SETTINGS_MAX_FRAME_SIZE, 16383));
+        assertSettingsError(PROTOCOL_ERROR, 0, 0, settings(SETTINGS_MAX_FRAME_SIZE, 1 << 24));
+        assertSettingsError(FLOW_CONTROL_ERROR, 0, 0, settings(SETTINGS_INITIAL_WINDOW_SIZE, 1 << 31));
+    }
+
+    @Test
+    public void testSettingsMissing() throws IOException
+    {
+        start();
+        open();
+        writeFrame(out, PING, 0, 0, new byte[8]); // instead of the SETTINGS ending the preface
+        assertEquals(PROTOCOL_ERROR, goAway());
+    }
+
+    /**
+     * Sends a SETTINGS frame on a new connection, and checks the GOAWAY
+     * frame it is answered with.
+     */
+    private void assertSettingsError(int error, int flags, int id, byte[] payload) throws IOException
+    {
+        if (server == null)
+        {
+            start();
+        }
+
+        try
+        {
+            open();
+            writeFrame(out, SETTINGS, flags, id, payload);
+            assertEquals(error, goAway());
+        } finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Starts the server and opens a connection, as far as the client's
+     * (empty) SETTINGS frame.
+     */
+    private void connect() throws IOException
+    {
+        start();
+        open();
+        writeFrame(out, SETTINGS, 0, 0, NONE);
+    }
+
+    /**
+     * Reads frames until a GOAWAY frame arrives.
+     *
+     * @return its error code
+     */
+    private int goAway() throws IOException
+    {
+        out.flush();
+        byte[] header = new byte[9];
+
+        while (true)
+        {
+            byte[] payload = readFrame(header);
+
+            if (header[3] == GOAWAY)
+            {
+                return ByteBuffer.wrap(payload).getInt(4);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the server, and sends the preface's magic.
+     */
+    private void open() throws IOException
+    {
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.port);
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+        out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1));
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param header receives the frame header
+     *
+     * @return the payload
+     */
+    private byte[] readFrame(byte[] header) throws IOException
+    {
+        try
+        {
+            in.readFully(header);
+        } catch (EOFException eofe)
+        {
+            return fail("connection closed without GOAWAY");
+        }
+
+        byte[] payload = new byte[(header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Returns the HPACK block of a request's headers.
+     */
+    private byte[] requestHeaders(String method, String path)
+    {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        literal(b, ":method", method);
+        literal(b, ":scheme", "http");
+        literal(b, ":path", path);
+        literal(b, ":authority", "127.0.0.1:" + server.port);
+        return b.toByteArray();
+    }
+
+    /**
+     * Reads frames until a stream ends, and returns its response body.
+     */
+    private String response(int stream) throws IOException
+    {
+        out.flush();
+        byte[] header = new byte[9];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        while (true)
+        {
+            byte[] payload = readFrame(header);
+            int id = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7FFFFFFF;
+
+            switch (header[3])
+            {
+                case DATA, HEADERS ->
+                {
+                    if (id == stream)
+                    {
+                        if (header[3] == DATA)
+                        {
+                            body.write(payload);
+                        }
+
+                        if ((header[4] & FLAG_END_STREAM) != 0)
+                        {
+                            return body.toString(ISO_8859_1);
+                        }
+                    }
+                }
+                case GOAWAY -> fail("connection closed, error code " + ByteBuffer.wrap(payload).getInt(4));
+                case RST_STREAM -> fail("stream reset, error code " + ByteBuffer.wrap(payload).getInt());
+                case SETTINGS ->
+                {
+                    if ((header[4] & FLAG_ACK) == 0)
+                    {
+                        writeFrame(out, SETTINGS, FLAG_ACK, 0, NONE);
+                        out.flush();
+                    }
+                }
+                default ->
+                {
+                    // NoOp - not needed here
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a server with HTTP/2 enabled, whose "/echo" context answers
+     * with the request method, body length and body.
+     */
+    private void start() throws IOException
+    {
+        int port;
+
+        try (ServerSocket ss = new ServerSocket(0))
+        {
+            port = ss.getLocalPort();
+        }
+
+        server = new HTTPServer(port);
+        server.setHttp2(true);
+        server.getVirtualHost(null).addContext("/echo", (req, resp) ->
+        {
+            byte[] body = req.getBody().readAllBytes();
+            String s = req.getMethod() + " " + body.length;
+            resp.send(200, body.length > 0 ? s + " " + new String(body, ISO_8859_1) : s);
+            return 0;
+        }, "GET", "POST");
+        server.start();
+    }
+
+    private static byte[] padded(String data, int padding)
+    {
+        byte[] bytes = data.getBytes(ISO_8859_1);
+        byte[] payload = new byte[1 + bytes.length + padding];
+        payload[0] = (byte) padding;
+        System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        return payload;
+    }
+
+    private static byte[] settings(int... pairs)
+    {
+        ByteBuffer b = ByteBuffer.allocate(3 * pairs.length);
+
+        for (int i = 0; i < pairs.length; i += 2)
+        {
+            b.putShort((short) pairs[i]).putInt(pairs[i + 1]);
+        }
+
+        return b.array();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *  File Name:    Http2UploadTest.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Tests HTTP/2 request bodies larger than a stream's initial receive window.
+ * <p>
+ * The client speaks h2c with prior knowledge over a plain socket, so that
+ * it sends exactly as much as the server's flow control windows allow, and
+ * sees any RST_STREAM the server answers with.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public class Http2UploadTest
+{
+    private static final int DATA = 0x0;
+
+    private static final int FLAG_ACK = 0x1;
+
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int FLAG_END_STREAM = 0x1;
+
+    private static final int GOAWAY = 0x7;
+
+    private static final int HEADERS = 0x1;
+
+    private static final int INITIAL_WINDOW_SIZE = 65535;
+
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    private static final int PING = 0x6;
+
+    private static final int RST_STREAM = 0x3;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int UPLOAD_SIZE = 4 * 65536 + 1; // several times the stream window
+
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private int port;
+
+    private HTTPServer server;
+
+    public Http2UploadTest()
+    {
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        if (server != null)
+        {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUploadBlocking() throws IOException
+    {
+        start(null);
+        upload(UPLOAD_SIZE);
+    }
+
+    @Test
+    public void testUploadSelector() throws IOException
+    {
+        start(new SelectorEngine());
+        upload(UPLOAD_SIZE);
+    }
+
+    /**
+     * Starts a server with HTTP/2 enabled, whose "/upload" context answers
+     * with the length and CRC-32 of the request body.
+     */
+    private void start(ConnectionEngine engine) throws IOException
+    {
+        try (ServerSocket ss = new ServerSocket(0))
+        {
+            port = ss.getLocalPort();
+        }
+
+        server = new HTTPServer(port);
+
+        if (engine != null)
+        {
+            server.setConnectionEngine(engine);
+        }
+
+        server.setHttp2(true);
+        server.getVirtualHost(null).addContext("/upload", (req, resp) ->
+        {
+            byte[] body = req.getBody().readAllBytes();
+            resp.send(200, body.length + " " + crc(body, body.length));
+            return 0;
+        }, "POST");
+        server.start();
+    }
+
+    /**
+     * Uploads a random body of the given size on stream 1, within the
+     * server's flow control windows, and checks the response.
+     */
+    private void upload(int size) throws IOException
+    {
+        byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            socket.setSoTimeout(10000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1));
+            writeFrame(out, SETTINGS, 0, 0, new byte[0]);
+            writeFrame(out, HEADERS, FLAG_END_HEADERS, 1, requestHeaders(size));
+
+            long connectionWindow = INITIAL_WINDOW_SIZE;
+            long streamWindow = INITIAL_WINDOW_SIZE;
+            int initialWindow = INITIAL_WINDOW_SIZE;
+            int sent = 0;
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            boolean ended = false;
+
+            while (!ended)
+            {
+                // send as much as the windows allow, then wait for the next frame
+                while (sent < size && connectionWindow > 0 && streamWindow > 0)
+                {
+                    int n = (int) Math.min(Math.min(size - sent, MAX_FRAME_SIZE),
+                            Math.min(connectionWindow, streamWindow));
+                    writeFrame(out, DATA, sent + n == size ? FLAG_END_STREAM : 0, 1,
+                            Arrays.copyOfRange(body, sent, sent + n));
+                    sent += n;
+                    connectionWindow -= n;
+                    streamWindow -= n;
+                }
+
+                out.flush();
+
+                int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int id = in.readInt() & 0x7FFFFFFF;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                ByteBuffer p = ByteBuffer.wrap(payload);
+
+                switch (type)
+                {
+                    case DATA ->
+                    {
+                        if (id == 1)
+                        {
+                            response.write(payload);
+                            ended = (flags & FLAG_END_STREAM) != 0;
+                        }
+                    }
+                    case HEADERS -> ended = id == 1 && (flags & FLAG_END_STREAM) != 0;
+                    case SETTINGS ->
+                    {
+                        if ((flags & FLAG_ACK) == 0)
+                        {
+                            while (p.remaining() >= 6)
+                            {
+                                int setting = p.getShort() & 0xFFFF;
+                                int value = p.getInt();
+
+                                if (setting == SETTINGS_INITIAL_WINDOW_SIZE)
+                                {
+                                    streamWindow += value - initialWindow;
+                                    initialWindow = value;
+                                }
+                            }
+
+                            writeFrame(out, SETTINGS, FLAG_ACK, 0, new byte[0]);
+                        }
+                    }
+                    case PING ->
+                    {
+                        if ((flags & FLAG_ACK) == 0)
+                        {
+                            writeFrame(out, PING, FLAG_ACK, 0, payload);
+                        }
+                    }
+                    case WINDOW_UPDATE ->
+                    {
+                        int increment = p.getInt() & 0x7FFFFFFF;
+
+                        if (id == 0)
+                        {
+                            connectionWindow += increment;
+                        } else if (id == 1)
+                        {
+                            streamWindow += increment;
+                        }
+                    }
+                    case RST_STREAM -> fail("stream reset after " + sent + " bytes, error code " + p.getInt());
+                    case GOAWAY -> fail("connection closed after " + sent + " bytes, error code " + p.getInt(4));
+                    default ->
+                    {
+                        // NoOp - not needed here
+                    }
+                }
+            }
+
+            assertEquals(size, sent);
+            assertEquals(size + " " + crc(body, size), response.toString(ISO_8859_1));
+        }
+    }
+
+    /**
+     * Returns the HPACK block of the request headers, as literals without
+     * indexing or Huffman coding.
+     */
+    private byte[] requestHeaders(int contentLength)
+    {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        literal(b, ":method", "POST");
+        literal(b, ":scheme", "http");
+        literal(b, ":path", "/upload");
+        literal(b, ":authority", "127.0.0.1:" + port);
+        literal(b, "content-length", String.valueOf(contentLength));
+        return b.toByteArray();
+    }
+
+    private static long crc(byte[] b, int len)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, len);
+        return crc.getValue();
+    }
+
+    static void literal(ByteArrayOutputStream b, String name, String value)
+    {
+        b.write(0); // literal header field without indexing - new name
+
+        for (String s : new String[]
+        {
+            name, value
+        })
+        {
+            byte[] bytes = s.getBytes(ISO_8859_1);
+            b.write(bytes.length); // all shorter than 127
+            b.writeBytes(bytes);
+        }
+    }
+
+    static void writeFrame(OutputStream out, int type, int flags, int id, byte[] payload)
+            throws IOException
+    {
+        int length = payload.length;
+        out.write(new byte[]
+        {
+            (byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags,
+            (byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id
+        });
+        out.write(payload);
+    }
+}
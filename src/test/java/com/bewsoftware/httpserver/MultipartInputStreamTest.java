@@ -0,0 +1,330 @@
+/*
+ *  File Name:    MultipartInputStreamTest.java
+ *  Project Name: bewsoftware-jlhttp
+ *
+ *  Copyright (c) 2022 Bradley Willcott
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.bewsoftware.httpserver;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the boundary search of {@link MultipartInputStream} differentially:
+ * random multipart bodies, built mostly of boundary fragments, CRs, LFs and
+ * dashes, are parsed both by it and by a reference stream which finds
+ * boundaries with the original byte by byte scan, and reads part headers
+ * with {@link NetUtils#readHeaders}. Both must yield the same preamble,
+ * headers, part data and epilogue, or fail with the same error.
+ * <p>
+ * The bodies are delivered in randomly sized reads, so that boundaries are
+ * cut off at the end of the buffered data. The seeds are fixed, so a
+ * failure can be reproduced from the seed in its message.
+ *
+ * @author <a href="mailto:bw.opensource@yahoo.com">Bradley Willcott</a>
+ *
+ * @since 2.7.1
+ * @version 2.7.1
+ */
+public class MultipartInputStreamTest
+{
+    /**
+     * The building blocks of the part data: lots of ways to almost, or
+     * actually, write a boundary.
+     */
+    private static final String[] ATOMS =
+    {
+        "\r", "\n", "-", "--", "\r\n", "x", "abc", "\r\n--", "\r\n--b", "\r\n--bo", "\r\n--bnd", "\r\n--bnd--",
+        "\r\n--bnd \t", " ", "Name: v", ": ", "\r\n--bnd\r\n", "\r\n--bnd--\r\n"
+    };
+
+    private static final byte[] BOUNDARY = "bnd".getBytes(ISO_8859_1);
+
+    private static final int ITERATIONS = 6000;
+
+    public MultipartInputStreamTest()
+    {
+    }
+
+    @Test
+    public void testDifferential() throws IOException
+    {
+        for (int seed = 0; seed < ITERATIONS; seed++)
+        {
+            Random random = new Random(seed);
+            boolean headers = random.nextBoolean();
+            byte[] body = body(random, seed % 3, headers);
+            int bufferSize = random.nextBoolean() ? 1024 : MultipartInputStream.DEFAULT_BUFFER_SIZE;
+
+            String expected = parse(new ReferenceStream(new ChunkedStream(body, seed), bufferSize), headers, seed);
+            String actual = parse(new MultipartInputStream(new ChunkedStream(body, seed), BOUNDARY, bufferSize),
+                    headers, seed);
+            assertEquals(expected, actual, "seed " + seed);
+        }
+    }
+
+    /**
+     * Returns a random multipart body. The first kind uses all the atoms,
+     * the second only those not containing a whole boundary line, and the
+     * third is always well formed, with a start and a last boundary.
+     */
+    private static byte[] body(Random random, int kind, boolean headers)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        if (kind == 2 || random.nextBoolean())
+        {
+            sb.append("--bnd\r\n");
+        } else if (random.nextBoolean())
+        {
+            sb.append("preamble\r\n--bnd\r\n");
+        }
+
+        int parts = random.nextInt(4);
+        int atoms = kind == 0 ? ATOMS.length : kind == 1 ? 14 : 10;
+
+        for (int i = 0; i < parts; i++)
+        {
+            if (headers && (kind == 2 || random.nextInt(10) > 0))
+            {
+                sb.append("Content-Disposition: form-data; name=\"f").append(i).append("\"\r\n");
+
+                if (random.nextBoolean())
+                {
+                    sb.append("X-A: 1\r\n  folded\r\nx-a: 2\n");
+                }
+
+                sb.append("\r\n");
+            }
+
+            int n = random.nextInt(random.nextInt(10) == 0 ? 20000 : 60);
+
+            for (int j = 0; j < n; j++)
+            {
+                sb.append(ATOMS[random.nextInt(atoms)]);
+            }
+
+            sb.append(kind != 2 && random.nextInt(20) == 0 ? "\r\n--bnd" : "\r\n--bnd\r\n");
+        }
+
+        if (kind == 2)
+        {
+            sb.setLength(sb.length() - 2);
+            sb.append("--");
+        } else if (random.nextInt(8) > 0)
+        {
+            sb.append(random.nextBoolean() ? "--" : "x--bnd--");
+        }
+
+        if ((kind == 2 || sb.toString().endsWith("--")) && random.nextBoolean())
+        {
+            sb.append("\r\nepilogue");
+        }
+
+        return sb.toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Parses a multipart stream into a string of its preamble, parts and
+     * epilogue, reading each in a randomly chosen way, or up to the error
+     * it fails with.
+     */
+    private static String parse(MultipartInputStream in, boolean headers, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+
+        try
+        {
+            sb.append(read(in, random)).append("|preamble|");
+
+            while (in.nextPart())
+            {
+                if (headers)
+                {
+                    for (Header header : in.readHeaders())
+                    {
+                        sb.append(header.getName()).append('=').append(header.getValue()).append(';');
+                    }
+
+                    sb.append("|headers|");
+                }
+
+                sb.append(read(in, random)).append("|part|");
+            }
+
+            sb.append(read(in, random)).append("|epilogue");
+        } catch (IOException | IllegalArgumentException e) // the latter for invalid header lines
+        {
+            sb.append("|error: ").append(e);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Reads the rest of the current part a byte at a time, in random
+     * blocks, or with {@link MultipartInputStream#transferTo}.
+     */
+    private static String read(MultipartInputStream in, Random random) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[64];
+
+        switch (random.nextInt(3))
+        {
+            case 0 ->
+            {
+                for (int c; (c = in.read()) != -1;)
+                {
+                    out.write(c);
+                }
+            }
+            case 1 ->
+            {
+                for (int n; (n = in.read(b, 0, 1 + random.nextInt(b.length))) != -1;)
+                {
+                    out.write(b, 0, n);
+                }
+            }
+            default -> in.transferTo(out);
+        }
+
+        return out.toString(ISO_8859_1);
+    }
+
+    /**
+     * Delivers a body in randomly sized reads, mostly small, sometimes
+     * large.
+     */
+    private static class ChunkedStream extends InputStream
+    {
+        private final byte[] data;
+
+        private int pos;
+
+        private final Random random;
+
+        ChunkedStream(byte[] data, long seed)
+        {
+            this.data = data;
+            this.random = new Random(seed * 31 + 1);
+        }
+
+        @Override
+        public int read()
+        {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (pos >= data.length)
+            {
+                return -1;
+            }
+
+            int n = Math.min(Math.min(len, data.length - pos), 1 + random.nextInt(random.nextBoolean() ? 7 : 3000));
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * A MultipartInputStream which finds boundaries as the original
+     * implementation did, by trying to match one at every position, and
+     * reads part headers a byte at a time.
+     */
+    private static class ReferenceStream extends MultipartInputStream
+    {
+        ReferenceStream(InputStream in, int bufferSize)
+        {
+            super(in, BOUNDARY, bufferSize);
+        }
+
+        @Override
+        protected void findBoundary() throws IOException
+        {
+            len = 0;
+            int off = tail - ((state & 1) != 0 || buf[0] != '-' ? 0 : 2); // skip initial CRLF?
+
+            for (int lEnd = this.end; tail < lEnd; tail++, off = tail)
+            {
+                int j = tail; // end of potential boundary
+
+                // try to match boundary value (leading CRLF is optional at first boundary)
+                while (j < lEnd && j - off < boundary.length && buf[j] == boundary[j - off])
+                {
+                    j++;
+                }
+
+                // return potential partial boundary which is cut off at end of current data
+                if (j + 1 >= lEnd) // at least two more chars needed for full boundary (CRLF or --)
+                {
+                    return;
+                }
+
+                // if we found the boundary value, expand selection to include full line
+                if (j - off == boundary.length)
+                {
+                    // check if last boundary of entire multipart
+                    if (buf[j] == '-' && buf[j + 1] == '-')
+                    {
+                        j += 2;
+                        state |= 8; // found last boundary that ends multipart
+                    }
+
+                    // allow linear whitespace after boundary
+                    while (j < lEnd && (buf[j] == ' ' || buf[j] == '\t'))
+                    {
+                        j++;
+                    }
+
+                    // check for CRLF (required, except in last boundary with no epilogue)
+                    if (j + 1 < lEnd && buf[j] == '\r' && buf[j + 1] == '\n') // found CRLF
+                    {
+                        len = j - tail + 2; // including optional whitespace and CRLF
+                    } else if (j + 1 < lEnd || (state & 4) != 0 && j + 1 == lEnd) // should have found or never will
+                    {
+                        throw new IOException("boundary must end with CRLF");
+                    } else if ((state & 4) != 0) // last boundary with no CRLF at end of data is valid
+                    {
+                        len = j - tail;
+                    }
+
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected Headers readHeaders() throws IOException
+        {
+            return NetUtils.readHeaders(this);
+        }
+    }
+}